@@ -52,6 +52,9 @@ public class MessageTemplate {
         List<ValuePathPart> thisPathParts = Lists.newArrayList();
         List<ArgPathPart> argPathParts = Lists.newArrayList();
         List<ValuePathPart> returnPathParts = Lists.newArrayList();
+        // compiled paths are defined in the class loader of the instrumented class, since that is
+        // where the static types of the receiver, arguments and return value are all visible
+        ClassLoader loader = method.getDeclaringClass().getClassLoader();
         Matcher matcher = pattern.matcher(template);
         int curr = 0;
         while (matcher.find()) {
@@ -73,14 +76,14 @@ public class MessageTemplate {
             }
             if (base.equals("this")) {
                 ValuePathPart part = new ValuePathPart(PartType.THIS_PATH,
-                        method.getDeclaringClass(), remaining);
+                        method.getDeclaringClass(), remaining, loader);
                 allParts.add(part);
                 thisPathParts.add(part);
             } else if (base.matches("[0-9]+")) {
                 int argNumber = Integer.parseInt(base);
                 if (argNumber < method.getParameterTypes().length) {
                     ArgPathPart part = new ArgPathPart(method.getParameterTypes()[argNumber],
-                            remaining, argNumber);
+                            remaining, argNumber, loader);
                     allParts.add(part);
                     argPathParts.add(part);
                 } else {
@@ -88,8 +91,8 @@ public class MessageTemplate {
                             "<requested arg index out of bounds: " + argNumber + ">"));
                 }
             } else if (base.equals("_")) {
-                ValuePathPart part =
-                        new ValuePathPart(PartType.RETURN_PATH, method.getReturnType(), remaining);
+                ValuePathPart part = new ValuePathPart(PartType.RETURN_PATH,
+                        method.getReturnType(), remaining, loader);
                 allParts.add(part);
                 returnPathParts.add(part);
             } else if (base.equals("methodName")) {
@@ -165,9 +168,10 @@ public class MessageTemplate {
 
         private final PathEvaluator pathEvaluator;
 
-        private ValuePathPart(PartType partType, Class<?> valueClass, String propertyPath) {
+        private ValuePathPart(PartType partType, Class<?> valueClass, String propertyPath,
+                @Nullable ClassLoader loader) {
             super(partType);
-            this.pathEvaluator = new PathEvaluator(valueClass, propertyPath);
+            this.pathEvaluator = new PathEvaluator(valueClass, propertyPath, loader);
         }
 
         String evaluatePart(@Nullable Object base) {
@@ -226,8 +230,9 @@ public class MessageTemplate {
 
         private final int argNumber;
 
-        private ArgPathPart(Class<?> argClass, String propertyPath, int argNumber) {
-            super(PartType.ARG_PATH, argClass, propertyPath);
+        private ArgPathPart(Class<?> argClass, String propertyPath, int argNumber,
+                @Nullable ClassLoader loader) {
+            super(PartType.ARG_PATH, argClass, propertyPath, loader);
             this.argNumber = argNumber;
         }
 
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.advicegen;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.weaving.ClassLoaders;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.IFNONNULL;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_5;
+
+// generates a CompiledPath subclass which evaluates a fully resolved template path using direct
+// method invocations and field reads, instead of reflection (which is still used for any path that
+// cannot be fully resolved from the static types, or that goes through non-public members)
+class PathCompiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(PathCompiler.class);
+
+    private static final String COMPILED_PATH_INTERNAL_NAME =
+            Type.getInternalName(CompiledPath.class);
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private PathCompiler() {}
+
+    static @Nullable CompiledPath compile(Class<?> baseClass, Accessor[] accessors,
+            @Nullable ClassLoader loader) {
+        if (loader == null || accessors.length == 0
+                || !isCompilable(baseClass, accessors, loader)) {
+            return null;
+        }
+        String internalName = "org/glowroot/agent/advicegen/GeneratedCompiledPath"
+                + counter.incrementAndGet();
+        try {
+            byte[] bytes = generate(internalName, accessors);
+            Class<?> compiledPathClass = ClassLoaders.defineClass(
+                    Type.getObjectType(internalName).getClassName(), bytes, loader);
+            return (CompiledPath) compiledPathClass.newInstance();
+        } catch (Throwable t) {
+            // e.g. the class loader does not permit defining new classes, fall back to reflection
+            logger.debug(t.getMessage(), t);
+            return null;
+        }
+    }
+
+    private static boolean isCompilable(Class<?> baseClass, Accessor[] accessors,
+            ClassLoader loader) {
+        Class<?> currClass = baseClass;
+        for (Accessor accessor : accessors) {
+            if (isPossiblyArray(currClass)) {
+                // accessors are applied element-wise to arrays
+                return false;
+            }
+            Member member = getMember(accessor);
+            if (member == null || !isPublic(member) || Modifier.isStatic(member.getModifiers())
+                    || !isVisible(member.getDeclaringClass(), loader)
+                    || !areDescriptorTypesVisible(member, loader)) {
+                return false;
+            }
+            currClass = accessor.getValueType();
+            if (currClass == void.class) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPossiblyArray(Class<?> clazz) {
+        return clazz.isArray() || clazz == Object.class || clazz == Cloneable.class
+                || clazz == Serializable.class;
+    }
+
+    private static @Nullable Member getMember(Accessor accessor) {
+        Method method = accessor.getMethod();
+        if (method != null) {
+            return method;
+        }
+        // this is null for array length accessor
+        return accessor.getField();
+    }
+
+    private static boolean isPublic(Member member) {
+        return Modifier.isPublic(member.getModifiers())
+                && Modifier.isPublic(member.getDeclaringClass().getModifiers());
+    }
+
+    // the generated class also references the parameter and return types (or field type) by name
+    // in the member descriptors, which are resolved when the member is linked
+    private static boolean areDescriptorTypesVisible(Member member, ClassLoader loader) {
+        if (member instanceof Field) {
+            return isVisible(((Field) member).getType(), loader);
+        }
+        Method method = (Method) member;
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            if (!isVisible(parameterType, loader)) {
+                return false;
+            }
+        }
+        return isVisible(method.getReturnType(), loader);
+    }
+
+    // the generated class references the declaring classes by name, so they must resolve to the
+    // same classes from the class loader that the generated class is defined in
+    private static boolean isVisible(Class<?> clazz, ClassLoader loader) {
+        Class<?> elementClass = clazz;
+        while (elementClass.isArray()) {
+            elementClass = elementClass.getComponentType();
+        }
+        if (elementClass.isPrimitive()) {
+            return true;
+        }
+        try {
+            return Class.forName(elementClass.getName(), false, loader) == elementClass;
+        } catch (ClassNotFoundException e) {
+            // log exception at trace level
+            logger.trace(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private static byte[] generate(String internalName, Accessor[] accessors) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, internalName, null,
+                COMPILED_PATH_INTERNAL_NAME, null);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, COMPILED_PATH_INTERNAL_NAME, "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "evaluate", "(Ljava/lang/Object;)Ljava/lang/Object;",
+                null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        for (int i = 0; i < accessors.length; i++) {
+            if (i > 0) {
+                // return null if intermediate value is null
+                Label nonNullLabel = new Label();
+                mv.visitInsn(DUP);
+                mv.visitJumpInsn(IFNONNULL, nonNullLabel);
+                mv.visitInsn(ARETURN);
+                mv.visitLabel(nonNullLabel);
+            }
+            Accessor accessor = accessors[i];
+            Method method = accessor.getMethod();
+            if (method == null) {
+                Field field = accessor.getField();
+                // isCompilable() has already verified that it is either method or field
+                checkNotNull(field);
+                String owner = Type.getInternalName(field.getDeclaringClass());
+                mv.visitTypeInsn(CHECKCAST, owner);
+                mv.visitFieldInsn(GETFIELD, owner, field.getName(),
+                        Type.getDescriptor(field.getType()));
+            } else {
+                Class<?> declaringClass = method.getDeclaringClass();
+                String owner = Type.getInternalName(declaringClass);
+                mv.visitTypeInsn(CHECKCAST, owner);
+                if (declaringClass.isInterface()) {
+                    mv.visitMethodInsn(INVOKEINTERFACE, owner, method.getName(),
+                            Type.getMethodDescriptor(method), true);
+                } else {
+                    mv.visitMethodInsn(INVOKEVIRTUAL, owner, method.getName(),
+                            Type.getMethodDescriptor(method), false);
+                }
+            }
+        }
+        box(mv, accessors[accessors.length - 1].getValueType());
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void box(MethodVisitor mv, Class<?> valueType) {
+        if (!valueType.isPrimitive()) {
+            return;
+        }
+        Type type = Type.getType(valueType);
+        String wrapperInternalName;
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                wrapperInternalName = "java/lang/Boolean";
+                break;
+            case Type.CHAR:
+                wrapperInternalName = "java/lang/Character";
+                break;
+            case Type.BYTE:
+                wrapperInternalName = "java/lang/Byte";
+                break;
+            case Type.SHORT:
+                wrapperInternalName = "java/lang/Short";
+                break;
+            case Type.INT:
+                wrapperInternalName = "java/lang/Integer";
+                break;
+            case Type.FLOAT:
+                wrapperInternalName = "java/lang/Float";
+                break;
+            case Type.LONG:
+                wrapperInternalName = "java/lang/Long";
+                break;
+            case Type.DOUBLE:
+                wrapperInternalName = "java/lang/Double";
+                break;
+            default:
+                throw new AssertionError("Unexpected primitive type: " + valueType);
+        }
+        mv.visitMethodInsn(INVOKESTATIC, wrapperInternalName, "valueOf",
+                "(" + type.getDescriptor() + ")L" + wrapperInternalName + ";", false);
+    }
+}
@@ -15,21 +15,36 @@
  */
 package org.glowroot.agent.advicegen;
 
+import java.lang.reflect.InvocationTargetException;
 import java.util.List;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 class PathEvaluator {
 
+    private static final Logger logger = LoggerFactory.getLogger(PathEvaluator.class);
+
     private static final Splitter splitter = Splitter.on('.').omitEmptyStrings();
 
     private final Accessor[] accessors;
     private final String /*@Nullable*/[] remainingPath;
+    // non-null when the path is fully resolved from the static types (and all of the accessors are
+    // public), in which case it is evaluated using generated bytecode instead of reflection
+    // (this is cleared if the generated bytecode fails to link, see evaluateOnBase())
+    private volatile @Nullable CompiledPath compiledPath;
 
     PathEvaluator(Class<?> baseClass, String path) {
+        this(baseClass, path, baseClass.getClassLoader());
+    }
+
+    // the class loader is where the compiled path (if possible) is defined
+    PathEvaluator(Class<?> baseClass, String path, @Nullable ClassLoader loader) {
         List<String> parts = Lists.newArrayList(splitter.split(path));
         List<Accessor> accessors = Lists.newArrayList();
         Class<?> currClass = baseClass;
@@ -46,13 +61,40 @@ class PathEvaluator {
         this.accessors = accessors.toArray(new Accessor[accessors.size()]);
         if (parts.isEmpty()) {
             remainingPath = null;
+            compiledPath = PathCompiler.compile(baseClass, this.accessors, loader);
         } else {
             remainingPath = parts.toArray(new String[parts.size()]);
+            compiledPath = null;
         }
     }
 
+    @VisibleForTesting
+    boolean isCompiled() {
+        return compiledPath != null;
+    }
+
     @Nullable
     Object evaluateOnBase(Object base) throws Exception {
+        CompiledPath compiledPath = this.compiledPath;
+        if (compiledPath != null) {
+            try {
+                return compiledPath.evaluate(base);
+            } catch (LinkageError e) {
+                // the generated bytecode could not be linked in its class loader (this is not
+                // expected since PathCompiler checks visibility up front), so fall back to
+                // reflection from now on
+                logger.debug(e.getMessage(), e);
+                this.compiledPath = null;
+                return evaluateUsingReflection(base);
+            } catch (Throwable t) {
+                // wrap for consistency with reflective evaluation
+                throw new InvocationTargetException(t);
+            }
+        }
+        return evaluateUsingReflection(base);
+    }
+
+    private @Nullable Object evaluateUsingReflection(Object base) throws Exception {
         Object curr = base;
         for (Accessor accessor : accessors) {
             curr = accessor.evaluate(curr);
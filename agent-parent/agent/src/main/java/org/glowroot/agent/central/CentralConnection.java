@@ -28,6 +28,7 @@ import io.netty.channel.EventLoopGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.common.util.NativeTransport;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -62,6 +63,7 @@ class CentralConnection {
         channel = NettyChannelBuilder
                 .forAddress(collectorHost, collectorPort)
                 .eventLoopGroup(eventLoopGroup)
+                .channelType(NativeTransport.getChannelType())
                 .executor(executor)
                 .negotiationType(NegotiationType.PLAINTEXT)
                 .build();
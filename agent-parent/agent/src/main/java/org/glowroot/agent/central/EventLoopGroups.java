@@ -21,10 +21,11 @@ import java.util.concurrent.ThreadFactory;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
+import org.glowroot.common.util.NativeTransport;
+
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class EventLoopGroups {
@@ -38,8 +39,8 @@ class EventLoopGroups {
                 .setNameFormat(name + "-%d")
                 .build();
         final ExecutorService executor = Executors.newSingleThreadExecutor(threadFactory);
-        NioEventLoopGroup nioEventLoopGroup = new NioEventLoopGroup(1, executor);
-        nioEventLoopGroup.terminationFuture().addListener(
+        EventLoopGroup eventLoopGroup = NativeTransport.newEventLoopGroup(1, executor);
+        eventLoopGroup.terminationFuture().addListener(
                 new GenericFutureListener<Future<Object>>() {
                     @Override
                     public void operationComplete(Future<Object> future) throws Exception {
@@ -49,6 +50,6 @@ class EventLoopGroups {
                         }
                     }
                 });
-        return nioEventLoopGroup;
+        return eventLoopGroup;
     }
 }
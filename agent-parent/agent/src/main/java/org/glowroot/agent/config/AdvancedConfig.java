@@ -35,6 +35,15 @@ public abstract class AdvancedConfig {
         return false;
     }
 
+    // captures thread cpu time and allocated bytes only (not blocked and waited times, which
+    // require ThreadMXBean.getThreadInfo()), and captures gc activity from gc notifications
+    // instead of querying the GarbageCollectorMXBeans at the start and end of every transaction
+    @Value.Default
+    @JsonInclude(value = Include.NON_EMPTY)
+    public boolean lowOverheadThreadStats() {
+        return false;
+    }
+
     @Value.Default
     public int immediatePartialStoreThresholdSeconds() {
         return 60;
@@ -65,6 +74,36 @@ public abstract class AdvancedConfig {
         return 10000;
     }
 
+    // used to limit memory requirement, auxiliary thread contexts beyond this limit are still
+    // included in aggregates, but are not included in traces
+    @Value.Default
+    public int maxAuxThreadContextsPerTransaction() {
+        return 500;
+    }
+
+    // used to limit memory requirement, async timers beyond this limit are combined into a single
+    // timer per timer name as they complete
+    @Value.Default
+    public int maxAsyncRootTimersPerTransaction() {
+        return 500;
+    }
+
+    // used to limit memory requirement and trace capture size of N+1 query patterns, consecutive
+    // identical sibling query entries beyond this many are folded into a single trace entry
+    // (zero disables folding)
+    @Value.Default
+    public int traceEntryFoldThreshold() {
+        return 10;
+    }
+
+    // approximate budget for the memory retained by all in-flight transactions combined, once this
+    // is exceeded the largest (and then oldest) transactions stop capturing trace entries and
+    // profile samples (zero means no budget)
+    @Value.Default
+    public int transactionMemoryBudgetMb() {
+        return 0;
+    }
+
     @Value.Default
     public int mbeanGaugeNotFoundDelaySeconds() {
         return 60;
@@ -81,12 +120,19 @@ public abstract class AdvancedConfig {
                 .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                 .setMaxStackTraceSamplesPerTransaction(of(maxStackTraceSamplesPerTransaction()))
                 .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
+                .setMaxAuxThreadContextsPerTransaction(of(maxAuxThreadContextsPerTransaction()))
+                .setLowOverheadThreadStats(lowOverheadThreadStats())
+                .setTraceEntryFoldThreshold(of(traceEntryFoldThreshold()))
+                .setTransactionMemoryBudgetMb(transactionMemoryBudgetMb())
+                .setMaxAsyncRootTimersPerTransaction(of(maxAsyncRootTimersPerTransaction()))
                 .build();
     }
 
     public static AdvancedConfig create(AgentConfig.AdvancedConfig config) {
         ImmutableAdvancedConfig.Builder builder = ImmutableAdvancedConfig.builder()
-                .weavingTimer(config.getWeavingTimer());
+                .weavingTimer(config.getWeavingTimer())
+                .lowOverheadThreadStats(config.getLowOverheadThreadStats())
+                .transactionMemoryBudgetMb(config.getTransactionMemoryBudgetMb());
         if (config.hasImmediatePartialStoreThresholdSeconds()) {
             builder.immediatePartialStoreThresholdSeconds(
                     config.getImmediatePartialStoreThresholdSeconds().getValue());
@@ -111,6 +157,17 @@ public abstract class AdvancedConfig {
             builder.mbeanGaugeNotFoundDelaySeconds(
                     config.getMbeanGaugeNotFoundDelaySeconds().getValue());
         }
+        if (config.hasMaxAuxThreadContextsPerTransaction()) {
+            builder.maxAuxThreadContextsPerTransaction(
+                    config.getMaxAuxThreadContextsPerTransaction().getValue());
+        }
+        if (config.hasTraceEntryFoldThreshold()) {
+            builder.traceEntryFoldThreshold(config.getTraceEntryFoldThreshold().getValue());
+        }
+        if (config.hasMaxAsyncRootTimersPerTransaction()) {
+            builder.maxAsyncRootTimersPerTransaction(
+                    config.getMaxAsyncRootTimersPerTransaction().getValue());
+        }
         return builder.build();
     }
 
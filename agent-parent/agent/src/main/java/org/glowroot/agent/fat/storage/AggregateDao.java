@@ -23,12 +23,15 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.Nullable;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.protobuf.AbstractMessageLite;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
@@ -42,17 +45,21 @@ import org.glowroot.agent.fat.storage.util.DataSource.JdbcRowQuery;
 import org.glowroot.agent.fat.storage.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.fat.storage.util.ImmutableColumn;
 import org.glowroot.agent.fat.storage.util.ImmutableIndex;
+import org.glowroot.agent.fat.storage.util.PartitionedTable;
 import org.glowroot.agent.fat.storage.util.RowMappers;
 import org.glowroot.agent.fat.storage.util.Schemas.Column;
 import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
 import org.glowroot.agent.fat.storage.util.Schemas.Index;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.model.QueryCollector;
+import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.Styles;
 import org.glowroot.storage.config.ConfigDefaults;
 import org.glowroot.storage.repo.AggregateRepository;
+import org.glowroot.storage.repo.AggregateRepository.TransactionSummary;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
+import org.glowroot.storage.repo.ImmutableTransactionSummary;
 import org.glowroot.storage.repo.ImmutableErrorPoint;
 import org.glowroot.storage.repo.ImmutableOverallErrorSummary;
 import org.glowroot.storage.repo.ImmutableOverallSummary;
@@ -114,6 +121,25 @@ public class AggregateDao implements AggregateRepository {
                     ImmutableColumn.of("aux_thread_stats", ColumnType.VARBINARY), // protobuf
                     ImmutableColumn.of("histogram", ColumnType.VARBINARY)); // protobuf
 
+    // per-interval top transaction lists
+    // see TransactionSummaryCollector.getTopTransactionSummaries()
+    private static final ImmutableList<Column> topTransactionColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
+            ImmutableColumn.of("transaction_name", ColumnType.VARCHAR),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("total_duration_nanos", ColumnType.DOUBLE),
+            ImmutableColumn.of("transaction_count", ColumnType.BIGINT),
+            // whether the list for this interval does not include every transaction
+            ImmutableColumn.of("truncated", ColumnType.BOOLEAN));
+
+    private static final ImmutableList<String> topTransactionIndexColumns =
+            ImmutableList.of("capture_time", "transaction_type", "transaction_name",
+                    "total_duration_nanos", "transaction_count", "truncated");
+
+    private static final ImmutableList<Column> topTransactionSinceColumns =
+            ImmutableList.<Column>of(ImmutableColumn.of("rollup_level", ColumnType.BIGINT),
+                    ImmutableColumn.of("since", ColumnType.BIGINT));
+
     // this index includes all columns needed for the overall aggregate query so h2 can return
     // the result set directly from the index without having to reference the table for each row
     private static final ImmutableList<String> overallAggregateIndexColumns =
@@ -133,12 +159,19 @@ public class AggregateDao implements AggregateRepository {
     private final ConfigRepository configRepository;
     private final TransactionTypeDao transactionTypeDao;
 
+    private final ImmutableList<PartitionedTable> overallAggregateTables;
+    private final ImmutableList<PartitionedTable> transactionAggregateTables;
+    private final ImmutableList<PartitionedTable> topTransactionTables;
+
+    // intervals captured prior to this time (per rollup level) do not have top transaction lists
+    private final long[] topTransactionsSince;
+
     private final AtomicLongArray lastRollupTimes;
 
     private final Object rollupLock = new Object();
 
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
-            ConfigRepository configRepository, TransactionTypeDao transactionTypeDao)
+            ConfigRepository configRepository, TransactionTypeDao transactionTypeDao, Clock clock)
                     throws Exception {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
@@ -146,16 +179,44 @@ public class AggregateDao implements AggregateRepository {
         this.transactionTypeDao = transactionTypeDao;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        List<PartitionedTable> overallAggregateTables = Lists.newArrayList();
+        List<PartitionedTable> transactionAggregateTables = Lists.newArrayList();
+        List<PartitionedTable> topTransactionTables = Lists.newArrayList();
+        topTransactionsSince = new long[rollupConfigs.size()];
+        dataSource.syncTable("aggregate_tn_top_since", topTransactionSinceColumns);
         for (int i = 0; i < rollupConfigs.size(); i++) {
             String overallTableName = "aggregate_tt_rollup_" + castUntainted(i);
-            dataSource.syncTable(overallTableName, overallAggregatePointColumns);
-            dataSource.syncIndexes(overallTableName, ImmutableList.<Index>of(
-                    ImmutableIndex.of(overallTableName + "_idx", overallAggregateIndexColumns)));
+            overallAggregateTables.add(new PartitionedTable(dataSource, overallTableName,
+                    overallAggregatePointColumns, ImmutableList.<Index>of(ImmutableIndex
+                            .of(overallTableName + "_idx", overallAggregateIndexColumns)),
+                    clock));
             String transactionTableName = "aggregate_tn_rollup_" + castUntainted(i);
-            dataSource.syncTable(transactionTableName, transactionAggregateColumns);
-            dataSource.syncIndexes(transactionTableName, ImmutableList.<Index>of(ImmutableIndex
-                    .of(transactionTableName + "_idx", transactionAggregateIndexColumns)));
+            transactionAggregateTables.add(new PartitionedTable(dataSource, transactionTableName,
+                    transactionAggregateColumns, ImmutableList.<Index>of(ImmutableIndex
+                            .of(transactionTableName + "_idx", transactionAggregateIndexColumns)),
+                    clock));
+            String topTransactionTableName = "aggregate_tn_top_rollup_" + castUntainted(i);
+            boolean newTopTransactionTable = !dataSource.tableExists(topTransactionTableName);
+            topTransactionTables.add(new PartitionedTable(dataSource, topTransactionTableName,
+                    topTransactionColumns, ImmutableList.<Index>of(ImmutableIndex
+                            .of(topTransactionTableName + "_idx", topTransactionIndexColumns)),
+                    clock));
+            Long since = dataSource.queryForOptionalLong(
+                    "select since from aggregate_tn_top_since where rollup_level = ?", i);
+            if (since == null || newTopTransactionTable) {
+                // everything already stored at this rollup level does not have top transaction
+                // lists
+                since = dataSource.queryForLong("select ifnull(max(capture_time), 0) from "
+                        + transactionTableName);
+                dataSource.update("delete from aggregate_tn_top_since where rollup_level = ?", i);
+                dataSource.update("insert into aggregate_tn_top_since (rollup_level, since)"
+                        + " values (?, ?)", i, since);
+            }
+            topTransactionsSince[i] = since;
         }
+        this.overallAggregateTables = ImmutableList.copyOf(overallAggregateTables);
+        this.transactionAggregateTables = ImmutableList.copyOf(transactionAggregateTables);
+        this.topTransactionTables = ImmutableList.copyOf(topTransactionTables);
 
         // don't need last_rollup_times table like in GaugePointDao since there is already index
         // on capture_time so these queries are relatively fast
@@ -173,21 +234,30 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public void store(String serverId, long captureTime, List<AggregatesByType> aggregatesByType)
             throws Exception {
+        String overallTableName = overallAggregateTables.get(0).getInsertTableName();
+        String transactionTableName = transactionAggregateTables.get(0).getInsertTableName();
+        String topTransactionTableName = topTransactionTables.get(0).getInsertTableName();
         // intentionally not using batch update as that could cause memory spike while preparing a
         // large batch
         for (AggregatesByType aggregatesByType1 : aggregatesByType) {
             String transactionType = aggregatesByType1.getTransactionType();
 
-            dataSource.update(new AggregateInsert(transactionType, null, captureTime,
-                    aggregatesByType1.getOverallAggregate(), 0));
+            dataSource.update(new AggregateInsert(overallTableName, transactionType, null,
+                    captureTime, aggregatesByType1.getOverallAggregate(), 0));
             transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
 
+            List<TransactionSummary> transactionSummaries = Lists.newArrayList();
             for (TransactionAggregate transactionAggregate : aggregatesByType1
                     .getTransactionAggregateList()) {
-                dataSource.update(new AggregateInsert(transactionType,
+                dataSource.update(new AggregateInsert(transactionTableName, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
                         transactionAggregate.getAggregate(), 0));
+                transactionSummaries.add(toTransactionSummary(
+                        transactionAggregate.getTransactionName(),
+                        transactionAggregate.getAggregate()));
             }
+            storeTopTransactions(topTransactionTableName, transactionType, captureTime,
+                    transactionSummaries);
         }
         synchronized (rollupLock) {
             List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
@@ -214,8 +284,25 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public void mergeInTransactionSummaries(TransactionSummaryCollector mergedTransactionSummaries,
             OverallQuery query, SummarySortOrder sortOrder, int limit) throws Exception {
-        dataSource.query(
-                new TransactionSummaryQuery(query, sortOrder, limit, mergedTransactionSummaries));
+        if (query.from() >= topTransactionsSince[query.rollupLevel()]
+                && limit <= TransactionSummaryCollector.TOP_TRANSACTION_LIMIT) {
+            // only need to read the top transaction list of each interval, instead of every
+            // transaction in every interval
+            dataSource.query(new TopTransactionSummaryQuery(query, mergedTransactionSummaries));
+        } else {
+            dataSource.query(new TransactionSummaryQuery(query, sortOrder, limit,
+                    mergedTransactionSummaries));
+        }
+    }
+
+    @Override
+    public void mergeInTransactionSummaries(TransactionSummaryCollector mergedTransactionSummaries,
+            OverallQuery query, Map<Long, List<String>> transactionNames) throws Exception {
+        if (transactionNames.isEmpty()) {
+            return;
+        }
+        dataSource.query(new TransactionSummaryByNameQuery(query, transactionNames,
+                mergedTransactionSummaries));
     }
 
     // query.from() is non-inclusive
@@ -322,14 +409,16 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public void deleteAll(String serverRollup) throws Exception {
         for (int i = 0; i < configRepository.getRollupConfigs().size(); i++) {
-            dataSource.execute("truncate table aggregate_tt_rollup_" + castUntainted(i));
-            dataSource.execute("truncate table aggregate_tn_rollup_" + castUntainted(i));
+            overallAggregateTables.get(i).truncate();
+            transactionAggregateTables.get(i).truncate();
+            topTransactionTables.get(i).truncate();
         }
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
-        dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
-        dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        overallAggregateTables.get(rollupLevel).deleteBefore(captureTime);
+        transactionAggregateTables.get(rollupLevel).deleteBefore(captureTime);
+        topTransactionTables.get(rollupLevel).deleteBefore(captureTime);
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
@@ -337,13 +426,32 @@ public class AggregateDao implements AggregateRepository {
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
         for (Long rollupTime : rollupTimes) {
+            // insert table names are obtained here since they cannot be obtained while holding the
+            // data source lock (inside of processResultSet())
             dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+                    fromRollupLevel, toRollupLevel,
+                    overallAggregateTables.get(toRollupLevel).getInsertTableName()));
             dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+                    fromRollupLevel, toRollupLevel,
+                    transactionAggregateTables.get(toRollupLevel).getInsertTableName(),
+                    topTransactionTables.get(toRollupLevel).getInsertTableName()));
         }
     }
 
+    private void storeTopTransactions(@Untainted String topTransactionTableName,
+            String transactionType, long captureTime, List<TransactionSummary> transactionSummaries)
+            throws Exception {
+        List<TransactionSummary> topTransactionSummaries =
+                TransactionSummaryCollector.getTopTransactionSummaries(transactionSummaries);
+        if (topTransactionSummaries.isEmpty()) {
+            return;
+        }
+        // batch update is ok here since the top transaction list is bounded in size
+        dataSource.batchUpdate(new TopTransactionInsert(topTransactionTableName, transactionType,
+                captureTime, topTransactionSummaries,
+                topTransactionSummaries.size() < transactionSummaries.size()));
+    }
+
     private void mergeInProfiles(ProfileCollector mergedProfile, TransactionQuery query,
             @Untainted String cappedIdColumnName) throws Exception {
         // get list of capped ids first since that is done under the data source lock
@@ -471,6 +579,15 @@ public class AggregateDao implements AggregateRepository {
         return i;
     }
 
+    private static TransactionSummary toTransactionSummary(String transactionName,
+            Aggregate aggregate) {
+        return ImmutableTransactionSummary.builder()
+                .transactionName(transactionName)
+                .totalNanos(aggregate.getTotalDurationNanos())
+                .transactionCount(aggregate.getTransactionCount())
+                .build();
+    }
+
     private static <T extends /*@NonNull*/ Object> List<T> readMessages(byte[] bytes,
             Parser<T> parser) throws InvalidProtocolBufferException {
         ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
@@ -484,6 +601,7 @@ public class AggregateDao implements AggregateRepository {
 
     private class AggregateInsert implements JdbcUpdate {
 
+        private final @Untainted String tableName;
         private final String transactionType;
         private final @Nullable String transactionName;
         private final long captureTime;
@@ -498,15 +616,14 @@ public class AggregateDao implements AggregateRepository {
         private final byte /*@Nullable*/[] auxThreadStats;
         private final byte[] histogramBytes;
 
-        private final int rollupLevel;
-
-        private AggregateInsert(String transactionType, @Nullable String transactionName,
-                long captureTime, Aggregate aggregate, int rollupLevel) throws IOException {
+        private AggregateInsert(@Untainted String tableName, String transactionType,
+                @Nullable String transactionName, long captureTime, Aggregate aggregate,
+                int rollupLevel) throws IOException {
+            this.tableName = tableName;
             this.transactionType = transactionType;
             this.transactionName = transactionName;
             this.captureTime = captureTime;
             this.aggregate = aggregate;
-            this.rollupLevel = rollupLevel;
 
             if (aggregate.hasMainThreadProfile()) {
                 mainThreadProfileCappedId = rollupCappedDatabases.get(rollupLevel).writeMessage(
@@ -575,14 +692,8 @@ public class AggregateDao implements AggregateRepository {
         @Override
         public @Untainted String getSql() {
             StringBuilder sb = new StringBuilder();
-            sb.append("insert into aggregate_");
-            if (transactionName != null) {
-                sb.append("tn_");
-            } else {
-                sb.append("tt_");
-            }
-            sb.append("rollup_");
-            sb.append(castUntainted(rollupLevel));
+            sb.append("insert into ");
+            sb.append(tableName);
             sb.append(" (transaction_type,");
             if (transactionName != null) {
                 sb.append(" transaction_name,");
@@ -758,6 +869,168 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static class TopTransactionSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final OverallQuery query;
+        private final TransactionSummaryCollector mergedTransactionSummaries;
+
+        private TopTransactionSummaryQuery(OverallQuery query,
+                TransactionSummaryCollector mergedTransactionSummaries) {
+            this.query = query;
+            this.mergedTransactionSummaries = mergedTransactionSummaries;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select capture_time, transaction_name, total_duration_nanos, transaction_count,"
+                    + " truncated from aggregate_tn_top_rollup_"
+                    + castUntainted(query.rollupLevel()) + " where transaction_type = ?"
+                    + " and capture_time > ? and capture_time <= ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setString(1, query.transactionType());
+            preparedStatement.setLong(2, query.from());
+            preparedStatement.setLong(3, query.to());
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            while (resultSet.next()) {
+                long captureTime = resultSet.getLong(1);
+                String transactionName = checkNotNull(resultSet.getString(2));
+                double totalNanos = resultSet.getDouble(3);
+                long transactionCount = resultSet.getLong(4);
+                boolean truncated = resultSet.getBoolean(5);
+                mergedTransactionSummaries.collectFromTopList(query.rollupLevel(), captureTime,
+                        transactionName, totalNanos, transactionCount, truncated);
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosing() {
+            return null;
+        }
+    }
+
+    // reads all of the given intervals of a rollup level in a single query, the "in" criteria
+    // select the cross product of capture times and transaction names, so the rows are then
+    // restricted to the requested (capture time, transaction name) pairs
+    private static class TransactionSummaryByNameQuery implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final OverallQuery query;
+        private final Map<Long, List<String>> transactionNames;
+        private final Set<String> distinctTransactionNames;
+        private final TransactionSummaryCollector mergedTransactionSummaries;
+
+        private TransactionSummaryByNameQuery(OverallQuery query,
+                Map<Long, List<String>> transactionNames,
+                TransactionSummaryCollector mergedTransactionSummaries) {
+            this.query = query;
+            this.transactionNames = transactionNames;
+            distinctTransactionNames = Sets.newHashSet();
+            for (List<String> names : transactionNames.values()) {
+                distinctTransactionNames.addAll(names);
+            }
+            this.mergedTransactionSummaries = mergedTransactionSummaries;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("select capture_time, transaction_name, sum(total_duration_nanos),"
+                    + " sum(transaction_count) from aggregate_tn_rollup_");
+            sb.append(query.rollupLevel());
+            sb.append(" where transaction_type = ? and capture_time in (?");
+            for (int i = 1; i < transactionNames.size(); i++) {
+                sb.append(", ?");
+            }
+            sb.append(") and transaction_name in (?");
+            for (int i = 1; i < distinctTransactionNames.size(); i++) {
+                sb.append(", ?");
+            }
+            sb.append(") group by capture_time, transaction_name");
+            return castUntainted(sb.toString());
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setString(i++, query.transactionType());
+            for (Long captureTime : transactionNames.keySet()) {
+                preparedStatement.setLong(i++, captureTime);
+            }
+            for (String transactionName : distinctTransactionNames) {
+                preparedStatement.setString(i++, transactionName);
+            }
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            while (resultSet.next()) {
+                long captureTime = resultSet.getLong(1);
+                String transactionName = checkNotNull(resultSet.getString(2));
+                List<String> names = transactionNames.get(captureTime);
+                if (names == null || !names.contains(transactionName)) {
+                    // this transaction was already merged from the top list of this interval
+                    continue;
+                }
+                double totalNanos = resultSet.getDouble(3);
+                long transactionCount = resultSet.getLong(4);
+                mergedTransactionSummaries.collect(transactionName, totalNanos, transactionCount,
+                        captureTime);
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosing() {
+            return null;
+        }
+    }
+
+    private static class TopTransactionInsert implements JdbcUpdate {
+
+        private final @Untainted String tableName;
+        private final String transactionType;
+        private final long captureTime;
+        private final List<TransactionSummary> topTransactionSummaries;
+        private final boolean truncated;
+
+        private TopTransactionInsert(@Untainted String tableName, String transactionType,
+                long captureTime, List<TransactionSummary> topTransactionSummaries,
+                boolean truncated) {
+            this.tableName = tableName;
+            this.transactionType = transactionType;
+            this.captureTime = captureTime;
+            this.topTransactionSummaries = topTransactionSummaries;
+            this.truncated = truncated;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "insert into " + tableName + " (transaction_type, transaction_name,"
+                    + " capture_time, total_duration_nanos, transaction_count, truncated) values"
+                    + " (?, ?, ?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (TransactionSummary transactionSummary : topTransactionSummaries) {
+                int i = 1;
+                preparedStatement.setString(i++, transactionType);
+                preparedStatement.setString(i++, transactionSummary.transactionName());
+                preparedStatement.setLong(i++, captureTime);
+                preparedStatement.setDouble(i++, transactionSummary.totalNanos());
+                preparedStatement.setLong(i++, transactionSummary.transactionCount());
+                preparedStatement.setBoolean(i++, truncated);
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
     private static class OverallErrorSummaryQuery implements JdbcQuery<OverallErrorSummary> {
 
         private final OverallQuery query;
@@ -1032,14 +1305,16 @@ public class AggregateDao implements AggregateRepository {
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
+        private final @Untainted String insertTableName;
         private final ScratchBuffer scratchBuffer = new ScratchBuffer();
 
         private RollupOverallAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+                int fromRollupLevel, int toRollupLevel, @Untainted String insertTableName) {
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
             this.toRollupLevel = toRollupLevel;
+            this.insertTableName = insertTableName;
         }
 
         @Override
@@ -1066,9 +1341,9 @@ public class AggregateDao implements AggregateRepository {
                 String transactionType = checkNotNull(resultSet.getString(1));
                 if (curr == null || !transactionType.equals(curr.transactionType())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                                rollupCaptureTime, curr.aggregate().toAggregate(scratchBuffer),
-                                toRollupLevel));
+                        dataSource.update(new AggregateInsert(insertTableName,
+                                curr.transactionType(), null, rollupCaptureTime,
+                                curr.aggregate().toAggregate(scratchBuffer), toRollupLevel));
                     }
                     curr = ImmutableMutableOverallAggregate.of(transactionType,
                             new MutableAggregate(maxAggregateQueriesPerQueryType));
@@ -1076,9 +1351,9 @@ public class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, 2, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource
-                        .update(new AggregateInsert(curr.transactionType(), null, rollupCaptureTime,
-                                curr.aggregate().toAggregate(scratchBuffer), toRollupLevel));
+                dataSource.update(new AggregateInsert(insertTableName, curr.transactionType(),
+                        null, rollupCaptureTime, curr.aggregate().toAggregate(scratchBuffer),
+                        toRollupLevel));
             }
             return null;
         }
@@ -1095,14 +1370,19 @@ public class AggregateDao implements AggregateRepository {
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
+        private final @Untainted String insertTableName;
+        private final @Untainted String topTransactionInsertTableName;
         private final ScratchBuffer scratchBuffer = new ScratchBuffer();
 
         private RollupTransactionAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+                int fromRollupLevel, int toRollupLevel, @Untainted String insertTableName,
+                @Untainted String topTransactionInsertTableName) {
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
             this.toRollupLevel = toRollupLevel;
+            this.insertTableName = insertTableName;
+            this.topTransactionInsertTableName = topTransactionInsertTableName;
         }
 
         @Override
@@ -1126,15 +1406,21 @@ public class AggregateDao implements AggregateRepository {
         public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
             int maxAggregateQueriesPerQueryType = getMaxAggregateQueriesPerQueryType();
             MutableTransactionAggregate curr = null;
+            // summaries of the rolled up transactions of the current transaction type
+            List<TransactionSummary> transactionSummaries = Lists.newArrayList();
             while (resultSet.next()) {
                 String transactionType = checkNotNull(resultSet.getString(1));
                 String transactionName = checkNotNull(resultSet.getString(2));
                 if (curr == null || !transactionType.equals(curr.transactionType())
                         || !transactionName.equals(curr.transactionName())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(),
-                                curr.transactionName(), rollupCaptureTime,
-                                curr.aggregate().toAggregate(scratchBuffer), toRollupLevel));
+                        transactionSummaries.add(insert(curr));
+                        if (!transactionType.equals(curr.transactionType())) {
+                            storeTopTransactions(topTransactionInsertTableName,
+                                    curr.transactionType(), rollupCaptureTime,
+                                    transactionSummaries);
+                            transactionSummaries = Lists.newArrayList();
+                        }
                     }
                     curr = ImmutableMutableTransactionAggregate.of(transactionType, transactionName,
                             new MutableAggregate(maxAggregateQueriesPerQueryType));
@@ -1142,13 +1428,20 @@ public class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, 3, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(),
-                        curr.transactionName(), rollupCaptureTime,
-                        curr.aggregate().toAggregate(scratchBuffer), toRollupLevel));
+                transactionSummaries.add(insert(curr));
+                storeTopTransactions(topTransactionInsertTableName, curr.transactionType(),
+                        rollupCaptureTime, transactionSummaries);
             }
             return null;
         }
 
+        private TransactionSummary insert(MutableTransactionAggregate curr) throws Exception {
+            Aggregate aggregate = curr.aggregate().toAggregate(scratchBuffer);
+            dataSource.update(new AggregateInsert(insertTableName, curr.transactionType(),
+                    curr.transactionName(), rollupCaptureTime, aggregate, toRollupLevel));
+            return toTransactionSummary(curr.transactionName(), aggregate);
+        }
+
         @Override
         public @Nullable Void valueIfDataSourceClosing() {
             return null;
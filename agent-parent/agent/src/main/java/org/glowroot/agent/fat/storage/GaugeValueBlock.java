@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+// compresses a block of gauge values (which must be added in capture time order) in the style of
+// the Gorilla time series database: capture times and weights are stored as delta-of-deltas and
+// values are stored as the xor with the prior value, so that gauges captured at a regular interval
+// (with the same weight) typically take just a few bits per value
+//
+// the block can be appended to after it has been serialized, which allows open blocks to be
+// persisted periodically
+class GaugeValueBlock {
+
+    private final BitWriter out = new BitWriter();
+
+    private int count;
+
+    private long lastCaptureTime;
+    private long lastCaptureTimeDelta;
+    private long lastValueBits;
+    private int lastLeadingZeros;
+    private int lastTrailingZeros;
+    private long lastWeight;
+    private long lastWeightDelta;
+
+    void add(long captureTime, double value, long weight) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            out.writeBits(captureTime, 64);
+            out.writeBits(valueBits, 64);
+            out.writeBits(weight, 64);
+            // forces the first non-zero xor to write out its leading and trailing zeros
+            lastLeadingZeros = Long.SIZE;
+        } else {
+            long captureTimeDelta = captureTime - lastCaptureTime;
+            writeDeltaOfDelta(captureTimeDelta - lastCaptureTimeDelta);
+            lastCaptureTimeDelta = captureTimeDelta;
+            writeValue(valueBits ^ lastValueBits);
+            long weightDelta = weight - lastWeight;
+            writeDeltaOfDelta(weightDelta - lastWeightDelta);
+            lastWeightDelta = weightDelta;
+        }
+        lastCaptureTime = captureTime;
+        lastValueBits = valueBits;
+        lastWeight = weight;
+        count++;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getLastCaptureTime() {
+        return lastCaptureTime;
+    }
+
+    byte[] toByteArray() {
+        byte[] bits = out.toByteArray();
+        byte[] bytes = new byte[4 + bits.length];
+        bytes[0] = (byte) (count >>> 24);
+        bytes[1] = (byte) (count >>> 16);
+        bytes[2] = (byte) (count >>> 8);
+        bytes[3] = (byte) count;
+        System.arraycopy(bits, 0, bytes, 4, bits.length);
+        return bytes;
+    }
+
+    private void writeDeltaOfDelta(long deltaOfDelta) {
+        long zigZag = (deltaOfDelta << 1) ^ (deltaOfDelta >> 63);
+        if (zigZag == 0) {
+            out.writeBits(0, 1);
+        } else if ((zigZag >>> 7) == 0) {
+            out.writeBits(0x2, 2);
+            out.writeBits(zigZag, 7);
+        } else if ((zigZag >>> 9) == 0) {
+            out.writeBits(0x6, 3);
+            out.writeBits(zigZag, 9);
+        } else if ((zigZag >>> 12) == 0) {
+            out.writeBits(0xE, 4);
+            out.writeBits(zigZag, 12);
+        } else {
+            out.writeBits(0xF, 4);
+            out.writeBits(zigZag, 64);
+        }
+    }
+
+    private void writeValue(long xor) {
+        if (xor == 0) {
+            out.writeBits(0, 1);
+            return;
+        }
+        out.writeBits(1, 1);
+        int leadingZeros = Long.numberOfLeadingZeros(xor);
+        int trailingZeros = Long.numberOfTrailingZeros(xor);
+        if (leadingZeros >= lastLeadingZeros && trailingZeros >= lastTrailingZeros) {
+            // meaningful bits fit inside the prior window
+            out.writeBits(0, 1);
+            out.writeBits(xor >>> lastTrailingZeros,
+                    Long.SIZE - lastLeadingZeros - lastTrailingZeros);
+        } else {
+            int significantBits = Long.SIZE - leadingZeros - trailingZeros;
+            out.writeBits(1, 1);
+            out.writeBits(leadingZeros, 6);
+            out.writeBits(significantBits - 1, 6);
+            out.writeBits(xor >>> trailingZeros, significantBits);
+            lastLeadingZeros = leadingZeros;
+            lastTrailingZeros = trailingZeros;
+        }
+    }
+
+    static List<GaugeValue> decode(byte[] bytes) {
+        int count = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16)
+                | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        List<GaugeValue> gaugeValues = Lists.newArrayListWithCapacity(count);
+        if (count == 0) {
+            return gaugeValues;
+        }
+        BitReader in = new BitReader(bytes, 4);
+        long captureTime = in.readBits(64);
+        long valueBits = in.readBits(64);
+        long weight = in.readBits(64);
+        gaugeValues.add(createGaugeValue(captureTime, valueBits, weight));
+        long captureTimeDelta = 0;
+        long weightDelta = 0;
+        int leadingZeros = 0;
+        int trailingZeros = 0;
+        for (int i = 1; i < count; i++) {
+            captureTimeDelta += readDeltaOfDelta(in);
+            captureTime += captureTimeDelta;
+            if (in.readBits(1) == 1) {
+                if (in.readBits(1) == 1) {
+                    leadingZeros = (int) in.readBits(6);
+                    int significantBits = (int) in.readBits(6) + 1;
+                    trailingZeros = Long.SIZE - leadingZeros - significantBits;
+                }
+                int significantBits = Long.SIZE - leadingZeros - trailingZeros;
+                valueBits ^= in.readBits(significantBits) << trailingZeros;
+            }
+            weightDelta += readDeltaOfDelta(in);
+            weight += weightDelta;
+            gaugeValues.add(createGaugeValue(captureTime, valueBits, weight));
+        }
+        return gaugeValues;
+    }
+
+    private static long readDeltaOfDelta(BitReader in) {
+        long zigZag;
+        if (in.readBits(1) == 0) {
+            return 0;
+        } else if (in.readBits(1) == 0) {
+            zigZag = in.readBits(7);
+        } else if (in.readBits(1) == 0) {
+            zigZag = in.readBits(9);
+        } else if (in.readBits(1) == 0) {
+            zigZag = in.readBits(12);
+        } else {
+            zigZag = in.readBits(64);
+        }
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+
+    private static GaugeValue createGaugeValue(long captureTime, long valueBits, long weight) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(Double.longBitsToDouble(valueBits))
+                .setWeight(weight)
+                .build();
+    }
+
+    private static class BitWriter {
+
+        private byte[] buffer = new byte[16];
+        private int bitCount;
+
+        // writes the lowest numBits of value, most significant bit first
+        private void writeBits(long value, int numBits) {
+            for (int i = numBits - 1; i >= 0; i--) {
+                int byteIndex = bitCount >>> 3;
+                if (byteIndex == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                if (((value >>> i) & 1) != 0) {
+                    buffer[byteIndex] |= (byte) (0x80 >>> (bitCount & 7));
+                }
+                bitCount++;
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buffer, (bitCount + 7) >>> 3);
+        }
+    }
+
+    private static class BitReader {
+
+        private final byte[] bytes;
+        private int bitIndex;
+
+        private BitReader(byte[] bytes, int byteOffset) {
+            this.bytes = bytes;
+            bitIndex = byteOffset * 8;
+        }
+
+        private long readBits(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                int bit = (bytes[bitIndex >>> 3] >>> (7 - (bitIndex & 7))) & 1;
+                value = (value << 1) | bit;
+                bitIndex++;
+            }
+            return value;
+        }
+    }
+}
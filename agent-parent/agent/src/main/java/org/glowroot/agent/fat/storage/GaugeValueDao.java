@@ -18,26 +18,35 @@ package org.glowroot.agent.fat.storage;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLongArray;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.primitives.Longs;
 import org.checkerframework.checker.tainting.qual.Untainted;
 
 import org.glowroot.agent.fat.storage.util.DataSource;
 import org.glowroot.agent.fat.storage.util.DataSource.JdbcQuery;
 import org.glowroot.agent.fat.storage.util.DataSource.JdbcRowQuery;
-import org.glowroot.agent.fat.storage.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.fat.storage.util.ImmutableColumn;
 import org.glowroot.agent.fat.storage.util.ImmutableIndex;
+import org.glowroot.agent.fat.storage.util.PartitionedTable;
 import org.glowroot.agent.fat.storage.util.Schemas.Column;
 import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
 import org.glowroot.agent.fat.storage.util.Schemas.Index;
 import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
 import org.glowroot.storage.repo.GaugeValueRepository;
@@ -45,11 +54,30 @@ import org.glowroot.storage.repo.helper.Gauges;
 import org.glowroot.storage.repo.helper.RollupLevelService;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.glowroot.agent.fat.storage.util.Checkers.castUntainted;
 
+// gauge values are stored in compressed blocks (see GaugeValueBlock), one block per gauge per
+// time bucket, instead of one row per gauge value
+//
+// the block for the current time bucket is kept open in memory (and appended to as new values
+// arrive), and is persisted periodically so that at most a minute of gauge values is lost on jvm
+// termination, once its time bucket has ended it is persisted one last time and evicted (so blocks
+// of gauges that are no longer reported do not stay in memory)
 public class GaugeValueDao implements GaugeValueRepository {
 
-    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+    private static final long RAW_BLOCK_MILLIS = HOURS.toMillis(1);
+    private static final long ROLLUP_BLOCK_MILLIS = DAYS.toMillis(1);
+
+    private static final ImmutableList<Column> blockColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("gauge_id", ColumnType.BIGINT),
+            ImmutableColumn.of("first_capture_time", ColumnType.BIGINT),
+            // capture time of the last value in the block, this is what is used for expiration
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("block", ColumnType.VARBINARY));
+
+    private static final ImmutableList<Column> legacyColumns = ImmutableList.<Column>of(
             ImmutableColumn.of("gauge_id", ColumnType.BIGINT),
             ImmutableColumn.of("capture_time", ColumnType.BIGINT),
             ImmutableColumn.of("value", ColumnType.DOUBLE),
@@ -63,12 +91,22 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final ConfigRepository configRepository;
     private final Clock clock;
     private final ImmutableList<RollupConfig> rollupConfigs;
+    private final ImmutableList<PartitionedTable> gaugeValueBlockTables;
+    // gauge values stored (one row per value) prior to the introduction of blocks, these are
+    // still read until they expire
+    private final List</*@Nullable*/ PartitionedTable> legacyGaugeValueTables;
+
+    // open block per gauge id, one map per rollup level
+    private final ImmutableList<ConcurrentMap<Long, OpenBlock>> openBlocks;
 
     // AtomicLongArray used for visibility
     private final AtomicLongArray lastRollupTimes;
 
     private final Object rollupLock = new Object();
 
+    @GuardedBy("rollupLock")
+    private long lastPersistOpenBlocksTime;
+
     GaugeValueDao(DataSource dataSource, GaugeDao gaugeMetaDao,
             ConfigRepository configRepository, Clock clock) throws Exception {
         this.dataSource = dataSource;
@@ -77,13 +115,34 @@ public class GaugeValueDao implements GaugeValueRepository {
         this.clock = clock;
         this.rollupConfigs = ImmutableList.copyOf(RollupConfig.buildRollupConfigs());
 
+        List<PartitionedTable> gaugeValueBlockTables = Lists.newArrayList();
+        List</*@Nullable*/ PartitionedTable> legacyGaugeValueTables = Lists.newArrayList();
+        List<ConcurrentMap<Long, OpenBlock>> openBlocks = Lists.newArrayList();
         for (int i = 0; i <= rollupConfigs.size(); i++) {
-            dataSource.syncTable("gauge_value_rollup_" + castUntainted(i), columns);
-            dataSource.syncIndexes("gauge_value_rollup_" + castUntainted(i),
-                    ImmutableList.<Index>of(ImmutableIndex.of(
-                            "gauge_value_rollup_" + castUntainted(i) + "_idx",
-                            ImmutableList.of("gauge_id", "capture_time", "value", "weight"))));
+            String blockTableName = "gauge_value_block_rollup_" + castUntainted(i);
+            gaugeValueBlockTables.add(new PartitionedTable(dataSource, blockTableName,
+                    blockColumns, ImmutableList.<Index>of(
+                            ImmutableIndex.of(blockTableName + "_idx",
+                                    ImmutableList.of("gauge_id", "first_capture_time")),
+                            // this index is for rollups and expiration
+                            ImmutableIndex.of(blockTableName + "_capture_time_idx",
+                                    ImmutableList.of("capture_time"))),
+                    clock));
+            String legacyTableName = "gauge_value_rollup_" + castUntainted(i);
+            if (dataSource.tableExists(legacyTableName) || dataSource.viewExists(legacyTableName)) {
+                legacyGaugeValueTables.add(new PartitionedTable(dataSource, legacyTableName,
+                        legacyColumns, ImmutableList.<Index>of(ImmutableIndex.of(
+                                legacyTableName + "_idx",
+                                ImmutableList.of("gauge_id", "capture_time", "value", "weight"))),
+                        clock));
+            } else {
+                legacyGaugeValueTables.add(null);
+            }
+            openBlocks.add(Maps.<Long, OpenBlock>newConcurrentMap());
         }
+        this.gaugeValueBlockTables = ImmutableList.copyOf(gaugeValueBlockTables);
+        this.legacyGaugeValueTables = legacyGaugeValueTables;
+        this.openBlocks = ImmutableList.copyOf(openBlocks);
         List<Column> columns = Lists.newArrayList();
         for (int i = 1; i <= rollupConfigs.size(); i++) {
             columns.add(ImmutableColumn.of("last_rollup_" + i + "_time", ColumnType.BIGINT));
@@ -125,8 +184,21 @@ public class GaugeValueDao implements GaugeValueRepository {
         if (gaugeValues.isEmpty()) {
             return;
         }
-        dataSource.batchUpdate(new GaugeValuesBinder(gaugeValues));
         synchronized (rollupLock) {
+            for (GaugeValue gaugeValue : gaugeValues) {
+                long gaugeId = gaugeMetaDao.updateLastCaptureTime(gaugeValue.getGaugeName(),
+                        gaugeValue.getCaptureTime());
+                if (gaugeId == -1) {
+                    // data source is closing and a new gauge id was needed, but could not
+                    // insert it
+                    //
+                    // --or-- race condition with GaugeMetaDao.deleteAll() in which case return
+                    // is the best option also
+                    return;
+                }
+                append(0, gaugeId, gaugeValue.getCaptureTime(), gaugeValue.getValue(),
+                        gaugeValue.getWeight());
+            }
             // clock can never go backwards and future gauge captures will wait until this method
             // completes since ScheduledExecutorService.scheduleAtFixedRate() guarantees that future
             // invocations of GaugeCollector will wait until prior invocations complete
@@ -142,12 +214,34 @@ public class GaugeValueDao implements GaugeValueRepository {
                     rollup(lastRollupTime, safeRollupTime, intervalMillis, i + 1, i);
                     // JVM termination here will cause last_rollup_*_time to be out of sync, which
                     // will cause a re-rollup of this time after the next startup, but this possible
-                    // duplicate is filtered out by the distinct clause in readGaugeValues()
+                    // duplicate is filtered out when appending to the open block (or, if the open
+                    // block was lost, when reading the blocks)
                     dataSource.update("update gauge_value_last_rollup_times set last_rollup_"
                             + castUntainted(i + 1) + "_time = ?", safeRollupTime);
                     lastRollupTimes.set(i, safeRollupTime);
                 }
             }
+            if (safeCurrentTime - lastPersistOpenBlocksTime >= rollupConfigs.get(0)
+                    .intervalMillis()) {
+                persistOpenBlocks(safeCurrentTime);
+                lastPersistOpenBlocksTime = safeCurrentTime;
+            }
+        }
+    }
+
+    @OnlyUsedByTests
+    int getOpenBlockCount(int rollupLevel) {
+        return openBlocks.get(rollupLevel).size();
+    }
+
+    @OnlyUsedByTests
+    void close() throws Exception {
+        synchronized (rollupLock) {
+            for (int i = 0; i < openBlocks.size(); i++) {
+                for (OpenBlock openBlock : openBlocks.get(i).values()) {
+                    persist(i, openBlock);
+                }
+            }
         }
     }
 
@@ -159,79 +253,236 @@ public class GaugeValueDao implements GaugeValueRepository {
             // not necessarily an error, gauge id not created until first store
             return ImmutableList.of();
         }
-        // the distinct clause is needed for the rollup tables in order to handle corner case where
-        // JVM termination occurs in between rollup and updating gauge_value_last_rollup_times
-        // in which case a duplicate entry will occur after the next startup
-        return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
+        // keyed by capture time in order to handle duplicates, e.g. an open block that has been
+        // persisted, or the corner case where JVM termination occurs in between rollup and
+        // updating gauge_value_last_rollup_times in which case a duplicate block will occur after
+        // the next startup
+        TreeMap<Long, GaugeValue> gaugeValues = Maps.newTreeMap();
+        PartitionedTable legacyGaugeValueTable = legacyGaugeValueTables.get(rollupLevel);
+        if (legacyGaugeValueTable != null) {
+            for (GaugeValue gaugeValue : dataSource
+                    .query(new LegacyGaugeValueQuery(gaugeId, from, to, rollupLevel))) {
+                gaugeValues.put(gaugeValue.getCaptureTime(), gaugeValue);
+            }
+        }
+        List<byte[]> blocks = dataSource.query(new GaugeValueBlockQuery(gaugeId,
+                from - getBlockMillis(rollupLevel), from, to, rollupLevel));
+        for (byte[] block : blocks) {
+            addGaugeValues(gaugeValues, GaugeValueBlock.decode(block), from - 1, to);
+        }
+        OpenBlock openBlock = openBlocks.get(rollupLevel).get(gaugeId);
+        if (openBlock != null) {
+            addGaugeValues(gaugeValues, openBlock.getGaugeValues(), from - 1, to);
+        }
+        return ImmutableList.copyOf(gaugeValues.values());
     }
 
     @Override
     public void deleteAll(String serverRollup) throws Exception {
-        dataSource.execute("truncate table gauge_value_rollup_0");
-        for (int i = 1; i <= configRepository.getRollupConfigs().size(); i++) {
-            dataSource.execute("truncate table gauge_value_rollup_" + castUntainted(i));
+        synchronized (rollupLock) {
+            for (int i = 0; i <= configRepository.getRollupConfigs().size(); i++) {
+                openBlocks.get(i).clear();
+                gaugeValueBlockTables.get(i).truncate();
+                PartitionedTable legacyGaugeValueTable = legacyGaugeValueTables.get(i);
+                if (legacyGaugeValueTable != null) {
+                    legacyGaugeValueTable.truncate();
+                }
+            }
+            gaugeMetaDao.deleteAll();
         }
-        gaugeMetaDao.deleteAll();
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
-        dataSource.deleteBefore("gauge_value_rollup_" + castUntainted(rollupLevel), captureTime);
+        gaugeValueBlockTables.get(rollupLevel).deleteBefore(captureTime);
+        PartitionedTable legacyGaugeValueTable = legacyGaugeValueTables.get(rollupLevel);
+        if (legacyGaugeValueTable != null) {
+            legacyGaugeValueTable.deleteBefore(captureTime);
+        }
     }
 
+    @GuardedBy("rollupLock")
+    private void append(int rollupLevel, long gaugeId, long captureTime, double value,
+            long weight) throws Exception {
+        ConcurrentMap<Long, OpenBlock> blocks = openBlocks.get(rollupLevel);
+        long bucketEnd = getBucketEnd(captureTime, getBlockMillis(rollupLevel));
+        OpenBlock openBlock = blocks.get(gaugeId);
+        if (openBlock != null) {
+            if (captureTime <= openBlock.getLastCaptureTime()) {
+                // duplicate (see comment in store())
+                return;
+            }
+            if (bucketEnd != openBlock.bucketEnd) {
+                persist(rollupLevel, openBlock);
+                blocks.remove(gaugeId);
+                openBlock = null;
+            }
+        }
+        if (openBlock == null) {
+            openBlock = new OpenBlock(gaugeId, bucketEnd);
+            blocks.put(gaugeId, openBlock);
+        }
+        openBlock.add(captureTime, value, weight);
+    }
+
+    @GuardedBy("rollupLock")
+    private void persistOpenBlocks(long safeCurrentTime) throws Exception {
+        for (int i = 0; i < openBlocks.size(); i++) {
+            // values appended to this rollup level from now on have capture times after this
+            long appendedAfter = i == 0 ? safeCurrentTime : lastRollupTimes.get(i - 1);
+            Iterator<OpenBlock> j = openBlocks.get(i).values().iterator();
+            while (j.hasNext()) {
+                OpenBlock openBlock = j.next();
+                persist(i, openBlock);
+                if (openBlock.bucketEnd <= appendedAfter) {
+                    // no more values can be appended to this block
+                    j.remove();
+                }
+            }
+        }
+    }
+
+    @GuardedBy("rollupLock")
+    private void persist(int rollupLevel, OpenBlock openBlock) throws Exception {
+        if (!openBlock.dirty) {
+            return;
+        }
+        byte[] block = openBlock.toByteArray();
+        String tableName = openBlock.tableName;
+        if (tableName == null) {
+            tableName = gaugeValueBlockTables.get(rollupLevel).getInsertTableName();
+            dataSource.update("insert into " + tableName + " (gauge_id, first_capture_time,"
+                    + " capture_time, block) values (?, ?, ?, ?)", openBlock.gaugeId,
+                    openBlock.firstCaptureTime, openBlock.getLastCaptureTime(), block);
+            openBlock.tableName = tableName;
+        } else {
+            dataSource.update("update " + tableName + " set capture_time = ?, block = ?"
+                    + " where gauge_id = ? and first_capture_time = ?",
+                    openBlock.getLastCaptureTime(), block, openBlock.gaugeId,
+                    openBlock.firstCaptureTime);
+        }
+        openBlock.dirty = false;
+    }
+
+    @GuardedBy("rollupLock")
     private void rollup(long lastRollupTime, long safeRollupTime, long fixedIntervalMillis,
             int toRollupLevel, int fromRollupLevel) throws Exception {
+        Map<Long, TreeMap<Long, GaugeValue>> gaugeValuesByGaugeId = Maps.newHashMap();
+        List<GaugeIdAndBlock> blocks = dataSource
+                .query(new RollupBlockQuery(lastRollupTime, safeRollupTime, fromRollupLevel));
+        for (GaugeIdAndBlock block : blocks) {
+            addGaugeValues(getGaugeValues(gaugeValuesByGaugeId, block.gaugeId),
+                    GaugeValueBlock.decode(block.block), lastRollupTime, safeRollupTime);
+        }
+        for (OpenBlock openBlock : openBlocks.get(fromRollupLevel).values()) {
+            addGaugeValues(getGaugeValues(gaugeValuesByGaugeId, openBlock.gaugeId),
+                    openBlock.getGaugeValues(), lastRollupTime, safeRollupTime);
+        }
         // TODO handle when offset is different for lastRollupTime and safeRollupTime?
         int offsetMillis = TimeZone.getDefault().getOffset(safeRollupTime);
-        // need ".0" to force double result
-        String captureTimeSql = castUntainted("ceil((capture_time + " + offsetMillis + ") / "
-                + fixedIntervalMillis + ".0) * " + fixedIntervalMillis + " - " + offsetMillis);
-        rollup(lastRollupTime, safeRollupTime, captureTimeSql, toRollupLevel, fromRollupLevel);
+        for (Map.Entry<Long, TreeMap<Long, GaugeValue>> entry : gaugeValuesByGaugeId
+                .entrySet()) {
+            long gaugeId = entry.getKey();
+            long currRollupCaptureTime = Long.MIN_VALUE;
+            double totalWeightedValue = 0;
+            long totalWeight = 0;
+            for (GaugeValue gaugeValue : entry.getValue().values()) {
+                long rollupCaptureTime = (long) Math.ceil((gaugeValue.getCaptureTime()
+                        + offsetMillis) / (double) fixedIntervalMillis) * fixedIntervalMillis
+                        - offsetMillis;
+                if (rollupCaptureTime != currRollupCaptureTime
+                        && currRollupCaptureTime != Long.MIN_VALUE) {
+                    append(toRollupLevel, gaugeId, currRollupCaptureTime,
+                            totalWeightedValue / totalWeight, totalWeight);
+                    totalWeightedValue = 0;
+                    totalWeight = 0;
+                }
+                currRollupCaptureTime = rollupCaptureTime;
+                totalWeightedValue += gaugeValue.getValue() * gaugeValue.getWeight();
+                totalWeight += gaugeValue.getWeight();
+            }
+            if (currRollupCaptureTime != Long.MIN_VALUE) {
+                append(toRollupLevel, gaugeId, currRollupCaptureTime,
+                        totalWeightedValue / totalWeight, totalWeight);
+            }
+        }
     }
 
-    private void rollup(long lastRollupTime, long safeRollupTime, @Untainted String captureTimeSql,
-            int toRollupLevel, int fromRollupLevel) throws Exception {
-        dataSource.update("insert into gauge_value_rollup_" + castUntainted(toRollupLevel)
-                + " (gauge_id, capture_time, value, weight) select gauge_id, " + captureTimeSql
-                + " ceil_capture_time, sum(value * weight) / sum(weight), sum(weight)"
-                + " from gauge_value_rollup_" + castUntainted(fromRollupLevel)
-                + " gp where gp.capture_time > ? and gp.capture_time <= ?"
-                + " group by gp.gauge_id, ceil_capture_time", lastRollupTime, safeRollupTime);
+    private static long getBlockMillis(int rollupLevel) {
+        return rollupLevel == 0 ? RAW_BLOCK_MILLIS : ROLLUP_BLOCK_MILLIS;
     }
 
-    private class GaugeValuesBinder implements JdbcUpdate {
+    private static long getBucketEnd(long captureTime, long blockMillis) {
+        return (long) Math.ceil(captureTime / (double) blockMillis) * blockMillis;
+    }
 
-        private final List<GaugeValue> gaugeValues;
+    private static TreeMap<Long, GaugeValue> getGaugeValues(
+            Map<Long, TreeMap<Long, GaugeValue>> gaugeValuesByGaugeId, long gaugeId) {
+        TreeMap<Long, GaugeValue> gaugeValues = gaugeValuesByGaugeId.get(gaugeId);
+        if (gaugeValues == null) {
+            gaugeValues = Maps.newTreeMap();
+            gaugeValuesByGaugeId.put(gaugeId, gaugeValues);
+        }
+        return gaugeValues;
+    }
 
-        private GaugeValuesBinder(List<GaugeValue> gaugeValues) {
-            this.gaugeValues = gaugeValues;
+    // from is non-inclusive and to is inclusive
+    private static void addGaugeValues(TreeMap<Long, GaugeValue> gaugeValues,
+            List<GaugeValue> blockGaugeValues, long from, long to) {
+        for (GaugeValue gaugeValue : blockGaugeValues) {
+            long captureTime = gaugeValue.getCaptureTime();
+            if (captureTime > from && captureTime <= to) {
+                gaugeValues.put(captureTime, gaugeValue);
+            }
         }
+    }
 
-        @Override
-        public @Untainted String getSql() {
-            return "insert into gauge_value_rollup_0 (gauge_id, capture_time, value, weight)"
-                    + " values (?, ?, ?, ?)";
+    private static class OpenBlock {
+
+        private final long gaugeId;
+        private final long bucketEnd;
+        @GuardedBy("this")
+        private final GaugeValueBlock block = new GaugeValueBlock();
+
+        private long firstCaptureTime;
+
+        // these are only accessed under rollupLock
+        private @Nullable @Untainted String tableName;
+        private boolean dirty;
+
+        private OpenBlock(long gaugeId, long bucketEnd) {
+            this.gaugeId = gaugeId;
+            this.bucketEnd = bucketEnd;
         }
 
-        @Override
-        public void bind(PreparedStatement preparedStatement) throws SQLException {
-            for (GaugeValue gaugeValue : gaugeValues) {
-                long gaugeId = gaugeMetaDao.updateLastCaptureTime(gaugeValue.getGaugeName(),
-                        gaugeValue.getCaptureTime());
-                if (gaugeId == -1) {
-                    // data source is closing and a new gauge id was needed, but could not
-                    // insert it, but this bind is already inside of the data source lock so any
-                    // inserts here will succeed, thus the return
-                    //
-                    // --or-- race condition with GaugeMetaDao.deleteAll() in which case return
-                    // is the best option also
-                    return;
-                }
-                preparedStatement.setLong(1, gaugeId);
-                preparedStatement.setLong(2, gaugeValue.getCaptureTime());
-                preparedStatement.setDouble(3, gaugeValue.getValue());
-                preparedStatement.setLong(4, gaugeValue.getWeight());
-                preparedStatement.addBatch();
+        private synchronized void add(long captureTime, double value, long weight) {
+            if (block.getCount() == 0) {
+                firstCaptureTime = captureTime;
             }
+            block.add(captureTime, value, weight);
+            dirty = true;
+        }
+
+        private synchronized long getLastCaptureTime() {
+            return block.getLastCaptureTime();
+        }
+
+        private synchronized byte[] toByteArray() {
+            return block.toByteArray();
+        }
+
+        private synchronized List<GaugeValue> getGaugeValues() {
+            return GaugeValueBlock.decode(block.toByteArray());
+        }
+    }
+
+    private static class GaugeIdAndBlock {
+
+        private final long gaugeId;
+        private final byte[] block;
+
+        private GaugeIdAndBlock(long gaugeId, byte[] block) {
+            this.gaugeId = gaugeId;
+            this.block = block;
         }
     }
 
@@ -270,14 +521,86 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
-    private class GaugeValueQuery implements JdbcRowQuery<GaugeValue> {
+    private static class GaugeValueBlockQuery implements JdbcRowQuery<byte[]> {
+
+        private final long gaugeId;
+        private final long minFirstCaptureTime;
+        private final long from;
+        private final long to;
+        private final int rollupLevel;
+
+        private GaugeValueBlockQuery(long gaugeId, long minFirstCaptureTime, long from, long to,
+                int rollupLevel) {
+            this.gaugeId = gaugeId;
+            this.minFirstCaptureTime = minFirstCaptureTime;
+            this.from = from;
+            this.to = to;
+            this.rollupLevel = rollupLevel;
+        }
+
+        // the lower bound on first_capture_time (based on the block time bucket size) allows the
+        // index on (gauge_id, first_capture_time) to be used for the range
+        @Override
+        public @Untainted String getSql() {
+            return "select block from gauge_value_block_rollup_" + castUntainted(rollupLevel)
+                    + " where gauge_id = ? and first_capture_time > ? and first_capture_time <= ?"
+                    + " and capture_time >= ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, gaugeId);
+            preparedStatement.setLong(i++, minFirstCaptureTime);
+            preparedStatement.setLong(i++, to);
+            preparedStatement.setLong(i++, from);
+        }
+
+        @Override
+        public byte[] mapRow(ResultSet resultSet) throws SQLException {
+            return resultSet.getBytes(1);
+        }
+    }
+
+    private static class RollupBlockQuery implements JdbcRowQuery<GaugeIdAndBlock> {
+
+        private final long from;
+        private final long to;
+        private final int rollupLevel;
+
+        private RollupBlockQuery(long from, long to, int rollupLevel) {
+            this.from = from;
+            this.to = to;
+            this.rollupLevel = rollupLevel;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select gauge_id, block from gauge_value_block_rollup_"
+                    + castUntainted(rollupLevel)
+                    + " where capture_time > ? and first_capture_time <= ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, from);
+            preparedStatement.setLong(2, to);
+        }
+
+        @Override
+        public GaugeIdAndBlock mapRow(ResultSet resultSet) throws SQLException {
+            return new GaugeIdAndBlock(resultSet.getLong(1), resultSet.getBytes(2));
+        }
+    }
+
+    private static class LegacyGaugeValueQuery implements JdbcRowQuery<GaugeValue> {
 
         private final long gaugeId;
         private final long from;
         private final long to;
         private final int rollupLevel;
 
-        private GaugeValueQuery(long gaugeId, long from, long to, int rollupLevel) {
+        private LegacyGaugeValueQuery(long gaugeId, long from, long to, int rollupLevel) {
             this.gaugeId = gaugeId;
             this.from = from;
             this.to = to;
@@ -286,9 +609,9 @@ public class GaugeValueDao implements GaugeValueRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "select distinct capture_time, value, weight from gauge_value_rollup_"
+            return "select capture_time, value, weight from gauge_value_rollup_"
                     + castUntainted(rollupLevel) + " where gauge_id = ? and capture_time >= ?"
-                    + " and capture_time <= ? order by capture_time";
+                    + " and capture_time <= ?";
         }
 
         @Override
@@ -19,6 +19,7 @@ import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.ScheduledRunnable;
 import org.glowroot.storage.config.StorageConfig;
 import org.glowroot.storage.repo.ConfigRepository;
+import org.glowroot.storage.repo.helper.CachingAggregateRepository;
 
 import static java.util.concurrent.TimeUnit.HOURS;
 
@@ -26,17 +27,20 @@ class ReaperRunnable extends ScheduledRunnable {
 
     private final ConfigRepository configRepository;
     private final AggregateDao aggregateDao;
+    private final CachingAggregateRepository cachingAggregateRepository;
     private final TraceDao traceDao;
     private final GaugeValueDao gaugeValueDao;
     private final GaugeDao gaugeMetaDao;
     private final TransactionTypeDao transactionTypeDao;
     private final Clock clock;
 
-    ReaperRunnable(ConfigRepository configService, AggregateDao aggregateDao, TraceDao traceDao,
+    ReaperRunnable(ConfigRepository configService, AggregateDao aggregateDao,
+            CachingAggregateRepository cachingAggregateRepository, TraceDao traceDao,
             GaugeValueDao gaugeValueDao, GaugeDao gaugeMetaDao,
             TransactionTypeDao transactionTypeDao, Clock clock) {
         this.configRepository = configService;
         this.aggregateDao = aggregateDao;
+        this.cachingAggregateRepository = cachingAggregateRepository;
         this.traceDao = traceDao;
         this.gaugeValueDao = gaugeValueDao;
         this.gaugeMetaDao = gaugeMetaDao;
@@ -53,6 +57,7 @@ class ReaperRunnable extends ScheduledRunnable {
             int hours = storageConfig.rollupExpirationHours().get(i);
             long captureTime = currentTime - HOURS.toMillis(hours);
             aggregateDao.deleteBefore(captureTime, i);
+            cachingAggregateRepository.invalidateBefore(captureTime, i);
             if (i == 0) {
                 gaugeValueDao.deleteBefore(captureTime, i);
             }
@@ -39,13 +39,14 @@ import org.glowroot.agent.fat.storage.util.H2DatabaseStats;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.storage.config.StorageConfig;
-import org.glowroot.storage.repo.AggregateRepository;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.GaugeValueRepository;
 import org.glowroot.storage.repo.RepoAdmin;
 import org.glowroot.storage.repo.TraceRepository;
 import org.glowroot.storage.repo.TransactionTypeRepository;
+import org.glowroot.storage.repo.helper.AggregateCacheStats;
 import org.glowroot.storage.repo.helper.AlertingService;
+import org.glowroot.storage.repo.helper.CachingAggregateRepository;
 import org.glowroot.storage.repo.helper.RollupLevelService;
 import org.glowroot.storage.util.MailService;
 
@@ -64,6 +65,7 @@ public class SimpleRepoModule {
     private final ServerDao serverDao;
     private final TransactionTypeDao transactionTypeDao;
     private final AggregateDao aggregateDao;
+    private final CachingAggregateRepository cachingAggregateRepository;
     private final TraceDao traceDao;
     private final GaugeValueDao gaugeValueDao;
     private final ConfigRepository configRepository;
@@ -98,8 +100,9 @@ public class SimpleRepoModule {
         transactionTypeDao = new TransactionTypeDao(dataSource);
         rollupLevelService = new RollupLevelService(configRepository, clock);
         aggregateDao = new AggregateDao(dataSource, this.rollupCappedDatabases, configRepository,
-                transactionTypeDao);
-        traceDao = new TraceDao(dataSource, traceCappedDatabase, transactionTypeDao);
+                transactionTypeDao, clock);
+        cachingAggregateRepository = new CachingAggregateRepository(aggregateDao, clock);
+        traceDao = new TraceDao(dataSource, traceCappedDatabase, transactionTypeDao, clock);
         GaugeDao gaugeMetaDao = new GaugeDao(dataSource);
         gaugeValueDao = new GaugeValueDao(dataSource, gaugeMetaDao, configRepository, clock);
 
@@ -108,14 +111,15 @@ public class SimpleRepoModule {
 
         TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(dataSource);
         alertingService = new AlertingService(configRepository, serverDao, triggeredAlertDao,
-                aggregateDao, rollupLevelService, new MailService());
+                cachingAggregateRepository, rollupLevelService, new MailService());
         if (reaperDisabled) {
             reaperRunnable = null;
         } else {
             // scheduledExecutor must be non-null when enabling reaper
             checkNotNull(scheduledExecutor);
-            reaperRunnable = new ReaperRunnable(configRepository, aggregateDao, traceDao,
-                    gaugeValueDao, gaugeMetaDao, transactionTypeDao, clock);
+            reaperRunnable = new ReaperRunnable(configRepository, aggregateDao,
+                    cachingAggregateRepository, traceDao, gaugeValueDao, gaugeMetaDao,
+                    transactionTypeDao, clock);
             reaperRunnable.scheduleWithFixedDelay(scheduledExecutor, 0,
                     SNAPSHOT_REAPER_PERIOD_MINUTES, MINUTES);
         }
@@ -136,6 +140,8 @@ public class SimpleRepoModule {
                             new ObjectName("org.glowroot:type=TraceCappedDatabase"));
                     mbeanServer.registerMBean(new H2DatabaseStats(dataSource),
                             new ObjectName("org.glowroot:type=H2Database"));
+                    mbeanServer.registerMBean(new AggregateCacheStats(cachingAggregateRepository),
+                            new ObjectName("org.glowroot:type=AggregateCache"));
                     unregisterMBeans = true;
                 } catch (InstanceAlreadyExistsException e) {
                     // this happens during unit tests when a non-shared local container is used
@@ -156,8 +162,8 @@ public class SimpleRepoModule {
         return transactionTypeDao;
     }
 
-    public AggregateRepository getAggregateRepository() {
-        return aggregateDao;
+    public CachingAggregateRepository getAggregateRepository() {
+        return cachingAggregateRepository;
     }
 
     public TraceRepository getTraceRepository() {
@@ -194,6 +200,7 @@ public class SimpleRepoModule {
             }
             mbeanServer.unregisterMBean(new ObjectName("org.glowroot:type=TraceCappedDatabase"));
             mbeanServer.unregisterMBean(new ObjectName("org.glowroot:type=H2Database"));
+            mbeanServer.unregisterMBean(new ObjectName("org.glowroot:type=AggregateCache"));
         }
         if (reaperRunnable != null) {
             reaperRunnable.cancel();
@@ -202,6 +209,8 @@ public class SimpleRepoModule {
             cappedDatabase.close();
         }
         traceCappedDatabase.close();
+        // open gauge value blocks must be persisted before the data source is closed
+        gaugeValueDao.close();
         dataSource.close();
     }
 }
@@ -38,4 +38,14 @@ public class TraceCappedDatabaseStats implements TraceCappedDatabaseStatsMXBean
     public CappedDatabaseStats getTraceProfiles() {
         return cappedDatabase.getStats(TRACE_PROFILES);
     }
+
+    @Override
+    public boolean isResizing() {
+        return cappedDatabase.isResizing();
+    }
+
+    @Override
+    public double getResizePercentComplete() {
+        return cappedDatabase.getResizePercentComplete();
+    }
 }
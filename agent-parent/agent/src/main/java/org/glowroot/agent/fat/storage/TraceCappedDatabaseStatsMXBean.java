@@ -21,4 +21,7 @@ public interface TraceCappedDatabaseStatsMXBean {
 
     CappedDatabaseStats getTraceEntries();
     CappedDatabaseStats getTraceProfiles();
+
+    boolean isResizing();
+    double getResizePercentComplete();
 }
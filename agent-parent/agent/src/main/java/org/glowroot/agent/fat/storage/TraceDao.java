@@ -36,6 +36,7 @@ import org.glowroot.agent.fat.storage.util.DataSource.JdbcRowQuery;
 import org.glowroot.agent.fat.storage.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.fat.storage.util.ImmutableColumn;
 import org.glowroot.agent.fat.storage.util.ImmutableIndex;
+import org.glowroot.agent.fat.storage.util.PartitionedTable;
 import org.glowroot.agent.fat.storage.util.RowMappers;
 import org.glowroot.agent.fat.storage.util.Schemas.Column;
 import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
@@ -45,12 +46,14 @@ import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.TraceKind;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.util.Clock;
 import org.glowroot.storage.repo.ImmutableErrorMessageCount;
 import org.glowroot.storage.repo.ImmutableErrorMessagePoint;
 import org.glowroot.storage.repo.ImmutableErrorMessageResult;
 import org.glowroot.storage.repo.ImmutableHeaderPlus;
 import org.glowroot.storage.repo.Result;
 import org.glowroot.storage.repo.TraceRepository;
+import org.glowroot.storage.repo.helper.TracePointDownsampler;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
@@ -112,17 +115,20 @@ public class TraceDao implements TraceRepository {
     private final CappedDatabase traceCappedDatabase;
     private final TraceAttributeNameDao traceAttributeNameDao;
     private final TransactionTypeDao transactionTypeDao;
+    private final PartitionedTable traceTable;
+    private final PartitionedTable traceAttributeTable;
+    private final TraceSearchIndex traceSearchIndex;
 
     TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
-            TransactionTypeDao transactionTypeDao) throws Exception {
+            TransactionTypeDao transactionTypeDao, Clock clock) throws Exception {
         this.dataSource = dataSource;
         this.traceCappedDatabase = traceCappedDatabase;
         traceAttributeNameDao = new TraceAttributeNameDao(dataSource);
         this.transactionTypeDao = transactionTypeDao;
-        dataSource.syncTable("trace", traceColumns);
-        dataSource.syncIndexes("trace", traceIndexes);
-        dataSource.syncTable("trace_attribute", traceAttributeColumns);
-        dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        traceTable = new PartitionedTable(dataSource, "trace", traceColumns, traceIndexes, clock);
+        traceAttributeTable = new PartitionedTable(dataSource, "trace_attribute",
+                traceAttributeColumns, traceAttributeIndexes, clock);
+        traceSearchIndex = new TraceSearchIndex(dataSource, clock);
     }
 
     @Override
@@ -130,17 +136,26 @@ public class TraceDao implements TraceRepository {
         final Trace.Header header = trace.getHeader();
         boolean exists =
                 dataSource.queryForExists("select 1 from trace where id = ?", trace.getId());
-        dataSource.update(new TraceUpsert(trace, exists));
+        if (exists && traceTable.isPartitioned()) {
+            // the prior (partial) trace may be in an older partition, and rows cannot be updated
+            // through the partition view
+            traceTable.delete("id = ?", trace.getId());
+            dataSource.update(new TraceUpsert(trace, false, traceTable.getInsertTableName()));
+        } else {
+            dataSource.update(new TraceUpsert(trace, exists, traceTable.getInsertTableName()));
+        }
         if (header.getAttributeCount() > 0) {
             if (exists) {
-                dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
+                traceAttributeTable.delete("trace_id = ?", trace.getId());
             }
-            dataSource.batchUpdate(new TraceAttributeInsert(trace));
+            dataSource.batchUpdate(
+                    new TraceAttributeInsert(trace, traceAttributeTable.getInsertTableName()));
             for (Trace.Attribute attribute : header.getAttributeList()) {
                 traceAttributeNameDao.updateLastCaptureTime(header.getTransactionType(),
                         attribute.getName(), header.getCaptureTime());
             }
         }
+        traceSearchIndex.index(trace, exists);
         transactionTypeDao.updateLastCaptureTime(trace.getHeader().getTransactionType(),
                 trace.getHeader().getCaptureTime());
     }
@@ -163,6 +178,18 @@ public class TraceDao implements TraceRepository {
         return readPoints(TraceKind.ERROR, query, filter, limit);
     }
 
+    @Override
+    public List<TracePoint> readDownsampledSlowPoints(TraceQuery query, TracePointFilter filter,
+            TracePointBuckets buckets) throws Exception {
+        return readDownsampledPoints(TraceKind.SLOW, query, filter, buckets);
+    }
+
+    @Override
+    public List<TracePoint> readDownsampledErrorPoints(TraceQuery query, TracePointFilter filter,
+            TracePointBuckets buckets) throws Exception {
+        return readDownsampledPoints(TraceKind.ERROR, query, filter, buckets);
+    }
+
     @Override
     public long readSlowCount(TraceQuery query) throws Exception {
         String transactionName = query.transactionName();
@@ -198,10 +225,12 @@ public class TraceDao implements TraceRepository {
     @Override
     public ErrorMessageResult readErrorMessages(TraceQuery query, ErrorMessageFilter filter,
             long resolutionMillis, long liveCaptureTime, int limit) throws Exception {
-        List<ErrorMessagePoint> points = dataSource.query(
-                new ErrorPointQuery(query, filter, resolutionMillis, liveCaptureTime));
-        List<ErrorMessageCount> counts =
-                dataSource.query(new ErrorMessageCountQuery(query, filter, limit + 1));
+        ParameterizedSql searchCriteria = traceSearchIndex.getCriteria("id",
+                TraceSearchIndex.Field.ERROR_MESSAGE, filter.includes(), query);
+        List<ErrorMessagePoint> points = dataSource.query(new ErrorPointQuery(query, filter,
+                searchCriteria, resolutionMillis, liveCaptureTime));
+        List<ErrorMessageCount> counts = dataSource
+                .query(new ErrorMessageCountQuery(query, filter, searchCriteria, limit + 1));
         // one extra record over the limit is fetched above to identify if the limit was hit
         return ImmutableErrorMessageResult.builder()
                 .addAllPoints(points)
@@ -252,27 +281,60 @@ public class TraceDao implements TraceRepository {
     @Override
     public void deleteAll(String serverRollup) throws Exception {
         traceAttributeNameDao.deleteAll();
-        dataSource.execute("truncate table trace");
-        dataSource.execute("truncate table trace_attribute");
+        traceTable.truncate();
+        traceAttributeTable.truncate();
+        traceSearchIndex.deleteAll();
     }
 
     void deleteBefore(long captureTime) throws Exception {
         traceAttributeNameDao.deleteBefore(captureTime);
-        dataSource.deleteBefore("trace", captureTime);
-        dataSource.deleteBefore("trace_attribute", captureTime);
+        traceTable.deleteBefore(captureTime);
+        traceAttributeTable.deleteBefore(captureTime);
+        traceSearchIndex.deleteBefore(captureTime);
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
         ParameterizedSql parameterizedSql =
-                new TracePointQueryBuilder(traceKind, query, filter, limit).getParameterizedSql();
+                new TracePointQueryBuilder(traceKind, query, filter, limit, traceSearchIndex)
+                        .getParameterizedSql();
         List<TracePoint> points = dataSource.query(new TracePointQuery(parameterizedSql));
         // one extra record over the limit is fetched above to identify if the limit was hit
         return Result.from(points, limit);
     }
 
+    private List<TracePoint> readDownsampledPoints(TraceKind traceKind, TraceQuery query,
+            TracePointFilter filter, TracePointBuckets buckets) throws Exception {
+        if (query.to() <= query.from()) {
+            return ImmutableList.of();
+        }
+        TracePointQueryBuilder builder =
+                new TracePointQueryBuilder(traceKind, query, filter, 0, traceSearchIndex);
+        // the duration buckets are linear up to the longest point, same as the chart's y-axis
+        ParameterizedSql maxDurationSql = builder.getMaxDurationParameterizedSql();
+        Long maxDurationNanos = dataSource.queryForOptionalLong(
+                castUntainted(maxDurationSql.sql()), maxDurationSql.argsAsArray());
+        if (maxDurationNanos == null) {
+            // no matching points, or data source is closing
+            return ImmutableList.of();
+        }
+        long minDurationNanos = filter.durationNanosLow();
+        // the downsampling is performed by h2 (see TracePointQueryBuilder), so only one row per
+        // bucket is read here (plus any traces that tie for the longest duration in a bucket)
+        List<TracePoint> points = dataSource.query(new TracePointQuery(builder
+                .getDownsampledParameterizedSql(buckets, minDurationNanos, maxDurationNanos)));
+        // run through the same buckets in order to break ties and to remove duplicates from
+        // joining multiple matching trace attributes
+        TracePointDownsampler downsampler = new TracePointDownsampler(query.from(), query.to(),
+                buckets, minDurationNanos, maxDurationNanos);
+        for (TracePoint point : points) {
+            downsampler.add(point);
+        }
+        return downsampler.getPoints();
+    }
+
     private static void appendQueryAndFilter(StringBuilder sql, TraceQuery query,
-            ErrorMessageFilter filter) {
+            ErrorMessageFilter filter, @Nullable ParameterizedSql searchCriteria) {
         sql.append(" and transaction_type = ?");
         String transactionName = query.transactionName();
         if (transactionName != null) {
@@ -285,10 +347,14 @@ public class TraceDao implements TraceRepository {
         for (int i = 0; i < filter.excludes().size(); i++) {
             sql.append(" and upper(error_message) not like ?");
         }
+        if (searchCriteria != null) {
+            sql.append(searchCriteria.sql());
+        }
     }
 
     private static int bindQueryAndFilter(PreparedStatement preparedStatement, int startIndex,
-            TraceQuery query, ErrorMessageFilter filter) throws SQLException {
+            TraceQuery query, ErrorMessageFilter filter, @Nullable ParameterizedSql searchCriteria)
+            throws SQLException {
         int i = startIndex;
         preparedStatement.setString(i++, query.transactionType());
         String transactionName = query.transactionName();
@@ -303,20 +369,28 @@ public class TraceDao implements TraceRepository {
         for (String exclude : filter.excludes()) {
             preparedStatement.setString(i++, '%' + exclude.toUpperCase(Locale.ENGLISH) + '%');
         }
+        if (searchCriteria != null) {
+            for (Object arg : searchCriteria.args()) {
+                preparedStatement.setObject(i++, arg);
+            }
+        }
         return i;
     }
 
     private class TraceUpsert implements JdbcUpdate {
 
         private final boolean update;
+        private final @Untainted String tableName;
         private final String traceId;
         private final Trace.Header header;
         private final @Nullable Long entriesId;
         private final @Nullable Long mainThreadProfileId;
         private final @Nullable Long auxThreadProfileId;
 
-        private TraceUpsert(Trace trace, boolean update) throws IOException {
+        private TraceUpsert(Trace trace, boolean update, @Untainted String tableName)
+                throws IOException {
             this.update = update;
+            this.tableName = tableName;
             this.traceId = trace.getId();
             this.header = trace.getHeader();
 
@@ -344,15 +418,16 @@ public class TraceDao implements TraceRepository {
         @Override
         public @Untainted String getSql() {
             if (update) {
-                return "update trace set partial = ?, slow = ?, error = ?, start_time = ?,"
-                        + " capture_time = ?, duration_nanos = ?, transaction_type = ?,"
-                        + " transaction_name = ?, headline = ?, user = ?, error_message = ?,"
-                        + " header = ?, entries_capped_id = ?, main_thread_profile_capped_id = ?,"
-                        + " aux_thread_profile_capped_id = ? where id = ?";
+                return "update " + tableName + " set partial = ?, slow = ?, error = ?,"
+                        + " start_time = ?, capture_time = ?, duration_nanos = ?,"
+                        + " transaction_type = ?, transaction_name = ?, headline = ?, user = ?,"
+                        + " error_message = ?, header = ?, entries_capped_id = ?,"
+                        + " main_thread_profile_capped_id = ?, aux_thread_profile_capped_id = ?"
+                        + " where id = ?";
             } else {
-                return "insert into trace (partial, slow, error, start_time, capture_time,"
-                        + " duration_nanos, transaction_type, transaction_name, headline,"
-                        + " user, error_message, header, entries_capped_id,"
+                return "insert into " + tableName + " (partial, slow, error, start_time,"
+                        + " capture_time, duration_nanos, transaction_type, transaction_name,"
+                        + " headline, user, error_message, header, entries_capped_id,"
                         + " main_thread_profile_capped_id, aux_thread_profile_capped_id, id)"
                         + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
             }
@@ -388,14 +463,16 @@ public class TraceDao implements TraceRepository {
     private static class TraceAttributeInsert implements JdbcUpdate {
 
         private final Trace trace;
+        private final @Untainted String tableName;
 
-        private TraceAttributeInsert(Trace trace) {
+        private TraceAttributeInsert(Trace trace, @Untainted String tableName) {
             this.trace = trace;
+            this.tableName = tableName;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "insert into trace_attribute (trace_id, name, value, capture_time)"
+            return "insert into " + tableName + " (trace_id, name, value, capture_time)"
                     + " values (?, ?, ?, ?)";
         }
 
@@ -498,13 +575,16 @@ public class TraceDao implements TraceRepository {
 
         private final TraceQuery query;
         private final ErrorMessageFilter filter;
+        private final @Nullable ParameterizedSql searchCriteria;
         private final long resolutionMillis;
         private final long liveCaptureTime;
 
-        private ErrorPointQuery(TraceQuery query, ErrorMessageFilter filter, long resolutionMillis,
+        private ErrorPointQuery(TraceQuery query, ErrorMessageFilter filter,
+                @Nullable ParameterizedSql searchCriteria, long resolutionMillis,
                 long liveCaptureTime) {
             this.query = query;
             this.filter = filter;
+            this.searchCriteria = searchCriteria;
             this.resolutionMillis = resolutionMillis;
             this.liveCaptureTime = liveCaptureTime;
         }
@@ -516,7 +596,7 @@ public class TraceDao implements TraceRepository {
                     "ceil(capture_time / " + resolutionMillis + ".0) * " + resolutionMillis);
             StringBuilder sql = new StringBuilder();
             sql.append("select " + captureTimeSql + ", count(*) from trace where error = ?");
-            appendQueryAndFilter(sql, query, filter);
+            appendQueryAndFilter(sql, query, filter, searchCriteria);
             sql.append(" group by " + captureTimeSql + " order by " + captureTimeSql);
             return castUntainted(sql.toString());
         }
@@ -525,7 +605,7 @@ public class TraceDao implements TraceRepository {
         public void bind(PreparedStatement preparedStatement) throws SQLException {
             int i = 1;
             preparedStatement.setBoolean(i++, true);
-            bindQueryAndFilter(preparedStatement, i, query, filter);
+            bindQueryAndFilter(preparedStatement, i, query, filter, searchCriteria);
         }
 
         @Override
@@ -540,11 +620,14 @@ public class TraceDao implements TraceRepository {
 
         private final TraceQuery query;
         private final ErrorMessageFilter filter;
+        private final @Nullable ParameterizedSql searchCriteria;
         private final int limit;
 
-        private ErrorMessageCountQuery(TraceQuery query, ErrorMessageFilter filter, int limit) {
+        private ErrorMessageCountQuery(TraceQuery query, ErrorMessageFilter filter,
+                @Nullable ParameterizedSql searchCriteria, int limit) {
             this.query = query;
             this.filter = filter;
+            this.searchCriteria = searchCriteria;
             this.limit = limit;
         }
 
@@ -552,7 +635,7 @@ public class TraceDao implements TraceRepository {
         public @Untainted String getSql() {
             StringBuilder sql = new StringBuilder();
             sql.append("select error_message, count(*) from trace where error = ?");
-            appendQueryAndFilter(sql, query, filter);
+            appendQueryAndFilter(sql, query, filter, searchCriteria);
             sql.append(" group by error_message order by count(*) desc limit ?");
             return castUntainted(sql.toString());
         }
@@ -561,7 +644,7 @@ public class TraceDao implements TraceRepository {
         public void bind(PreparedStatement preparedStatement) throws SQLException {
             int i = 1;
             preparedStatement.setBoolean(i++, true);
-            i = bindQueryAndFilter(preparedStatement, i, query, filter);
+            i = bindQueryAndFilter(preparedStatement, i, query, filter, searchCriteria);
             preparedStatement.setInt(i++, limit);
         }
 
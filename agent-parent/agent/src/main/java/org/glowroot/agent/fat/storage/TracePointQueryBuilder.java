@@ -30,21 +30,26 @@ import org.glowroot.common.live.LiveTraceRepository.TraceKind;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.util.Styles;
+import org.glowroot.storage.repo.TraceRepository.TracePointBuckets;
 import org.glowroot.storage.repo.TraceRepository.TraceQuery;
 
+import static org.glowroot.agent.fat.storage.util.Checkers.castUntainted;
+
 class TracePointQueryBuilder {
 
     private final TraceKind traceKind;
     private final TraceQuery query;
     private final TracePointFilter filter;
     private final int limit;
+    private final TraceSearchIndex traceSearchIndex;
 
     TracePointQueryBuilder(TraceKind traceKind, TraceQuery query, TracePointFilter filter,
-            int limit) {
+            int limit, TraceSearchIndex traceSearchIndex) {
         this.traceKind = traceKind;
         this.query = query;
         this.filter = filter;
         this.limit = limit;
+        this.traceSearchIndex = traceSearchIndex;
     }
 
     // capture time lower bound is non-inclusive so that aggregate data intervals can be mapped
@@ -52,18 +57,80 @@ class TracePointQueryBuilder {
     // inclusive on upper bound)
     ParameterizedSql getParameterizedSql() {
         ParameterizedSqlBuilder builder = new ParameterizedSqlBuilder();
-        builder.appendText("select trace.id, trace.capture_time, trace.duration_nanos, trace.error"
-                + " from trace");
+        builder.appendText(
+                "select trace.id, trace.capture_time, trace.duration_nanos, trace.error");
+        appendFromAndCriteria(builder, null);
+        appendOrderByAndLimit(builder);
+        return builder.build();
+    }
+
+    ParameterizedSql getMaxDurationParameterizedSql() {
+        ParameterizedSqlBuilder builder = new ParameterizedSqlBuilder();
+        builder.appendText("select max(trace.duration_nanos)");
+        appendFromAndCriteria(builder, null);
+        return builder.build();
+    }
+
+    // the group by finds the longest duration in each (capture time, duration, error) bucket, and
+    // the result is then joined back to the trace table to get the trace that has that duration,
+    // bounding the join by the capture time range of the bucket so that each bucket only needs a
+    // short index range scan
+    //
+    // the bucket expressions must be kept in sync with TracePointDownsampler
+    ParameterizedSql getDownsampledParameterizedSql(TracePointBuckets buckets,
+            long minDurationNanos, long maxDurationNanos) {
+        long captureTimeBase = query.from() + 1;
+        long captureTimeRange = query.to() - query.from();
+        int timeBuckets = Math.max(buckets.timeBuckets(), 1);
+        int durationBuckets = Math.max(buckets.durationBuckets(), 1);
+        long durationRange = maxDurationNanos - minDurationNanos + 1;
+        String timeBucket = "(trace.capture_time - " + captureTimeBase + ") * " + timeBuckets
+                + " / " + captureTimeRange;
+        String durationBucket = "(trace.duration_nanos - " + minDurationNanos + ") * "
+                + durationBuckets + " / " + durationRange;
+
+        ParameterizedSqlBuilder bucketBuilder = new ParameterizedSqlBuilder();
+        bucketBuilder.appendText(castUntainted("(select " + timeBucket
+                + " time_bucket, trace.error error, max(trace.duration_nanos) max_duration"));
+        appendFromAndCriteria(bucketBuilder, null);
+        bucketBuilder.appendText(castUntainted(" group by " + timeBucket + ", " + durationBucket
+                + ", trace.error) bucket"));
+
+        ParameterizedSqlBuilder builder = new ParameterizedSqlBuilder();
+        builder.appendText(
+                "select trace.id, trace.capture_time, trace.duration_nanos, trace.error");
+        appendFromAndCriteria(builder, bucketBuilder.build());
+        // capture time range of the bucket is the inverse of the time bucket expression above
+        // (using integer division rounding up)
+        String roundUp = " + " + (timeBuckets - 1) + ") / " + timeBuckets;
+        builder.appendText(castUntainted(" and trace.error = bucket.error"
+                + " and trace.duration_nanos = bucket.max_duration"
+                + " and trace.capture_time >= " + captureTimeBase + " + (bucket.time_bucket * "
+                + captureTimeRange + roundUp
+                + " and trace.capture_time < " + captureTimeBase + " + ((bucket.time_bucket + 1) * "
+                + captureTimeRange + roundUp));
+        return builder.build();
+    }
+
+    private void appendFromAndCriteria(ParameterizedSqlBuilder builder,
+            @Nullable ParameterizedSql joinedTable) {
+        builder.appendText(" from trace");
         ParameterizedSql criteria = getAttributeCriteria();
-        if (criteria == null) {
-            builder.appendText(" where");
-        } else {
-            builder.appendText(", trace_attribute attr where attr.trace_id = trace.id"
-                    + " and attr.capture_time > ? and attr.capture_time <= ? and" + criteria.sql());
+        if (criteria != null) {
+            builder.appendText(", trace_attribute attr");
+        }
+        if (joinedTable != null) {
+            builder.appendText(", ");
+            builder.appendText(joinedTable.sql());
+            builder.addArgs(joinedTable.args());
+        }
+        builder.appendText(" where");
+        if (criteria != null) {
+            builder.appendText(" attr.trace_id = trace.id and attr.capture_time > ?"
+                    + " and attr.capture_time <= ? and" + criteria.sql());
             builder.addArg(query.from());
             builder.addArg(query.to());
             builder.addArgs(criteria.args());
-
         }
         builder.appendText(" trace.capture_time > ? and trace.capture_time <= ?");
         builder.addArg(query.from());
@@ -74,8 +141,7 @@ class TracePointQueryBuilder {
         appendDurationNanosCriteria(builder);
         appendUserCriteria(builder);
         appendErrorCriteria(builder);
-        appendOrderByAndLimit(builder);
-        return builder.build();
+        appendSearchIndexCriteria(builder);
     }
 
     private @Nullable ParameterizedSql getAttributeCriteria() {
@@ -155,6 +221,28 @@ class TracePointQueryBuilder {
         }
     }
 
+    // these narrow down the candidate traces using the search index, the original criteria above
+    // are still needed to filter out the false positives
+    private void appendSearchIndexCriteria(ParameterizedSqlBuilder builder) {
+        appendSearchIndexCriteria(builder, TraceSearchIndex.Field.USER, filter.userComparator(),
+                filter.user());
+        appendSearchIndexCriteria(builder, TraceSearchIndex.Field.ERROR_MESSAGE,
+                filter.errorMessageComparator(), filter.errorMessage());
+        appendSearchIndexCriteria(builder, TraceSearchIndex.Field.ATTRIBUTE_VALUE,
+                filter.attributeValueComparator(), filter.attributeValue());
+    }
+
+    private void appendSearchIndexCriteria(ParameterizedSqlBuilder builder,
+            TraceSearchIndex.Field field, @Nullable StringComparator comparator,
+            @Nullable String searchTerm) {
+        ParameterizedSql criteria =
+                traceSearchIndex.getCriteria("trace.id", field, comparator, searchTerm, query);
+        if (criteria != null) {
+            builder.appendText(criteria.sql());
+            builder.addArgs(criteria.args());
+        }
+    }
+
     private void appendOrderByAndLimit(ParameterizedSqlBuilder builder) {
         builder.appendText(" order by trace.duration_nanos");
         if (limit != 0) {
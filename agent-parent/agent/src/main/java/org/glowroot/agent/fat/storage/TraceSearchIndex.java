@@ -0,0 +1,381 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.tainting.qual.Untainted;
+
+import org.glowroot.agent.fat.storage.TracePointQueryBuilder.ParameterizedSql;
+import org.glowroot.agent.fat.storage.util.DataSource;
+import org.glowroot.agent.fat.storage.util.DataSource.JdbcUpdate;
+import org.glowroot.agent.fat.storage.util.ImmutableColumn;
+import org.glowroot.agent.fat.storage.util.ImmutableIndex;
+import org.glowroot.agent.fat.storage.util.PartitionedTable;
+import org.glowroot.agent.fat.storage.util.Schemas.Column;
+import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
+import org.glowroot.agent.fat.storage.util.Schemas.Index;
+import org.glowroot.common.live.StringComparator;
+import org.glowroot.common.util.Clock;
+import org.glowroot.storage.repo.TraceRepository.TraceQuery;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.glowroot.agent.fat.storage.util.Checkers.castUntainted;
+
+// inverted trigram and token index over trace error messages, users and attribute values
+//
+// the upper(...) like ? predicates used for trace searches cannot use any index, so without this
+// every search scans every trace row in the time window (under the single data source lock)
+//
+// the index is used to narrow down the candidate trace ids (every trigram of the search term must
+// be present, and every token that the search term fully contains must be present as a token),
+// and the original like predicate is still applied to the candidates since the presence of all of
+// the trigrams and tokens is necessary but not sufficient for a match
+//
+// tokens are the normalized (upper case) runs of letters and digits, these narrow down searches
+// for terms that are too short to have trigrams (e.g. user = 'al') and searches for whole words
+class TraceSearchIndex {
+
+    // only the beginning of long text is indexed, in order to bound the size of the index, and a
+    // marker gram is recorded for text that was not fully indexed, so that it is always included in
+    // the candidates
+    private static final int MAX_INDEXED_LENGTH = 256;
+    private static final String NOT_FULLY_INDEXED_MARKER = "";
+
+    private static final int GRAM_LENGTH = 3;
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("field", ColumnType.VARCHAR),
+            // this is a trigram or a token, depending on the field code
+            ImmutableColumn.of("gram", ColumnType.VARCHAR),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("trace_id", ColumnType.VARCHAR));
+
+    private static final ImmutableList<Index> indexes = ImmutableList.<Index>of(
+            // trace_id is included so database can return the candidate trace ids directly from
+            // the index without having to reference the table for each row
+            ImmutableIndex.of("trace_search_gram_idx",
+                    ImmutableList.of("field", "gram", "capture_time", "trace_id")),
+            // trace_search_gram_trace_idx is for removing the grams of a trace when it is updated
+            ImmutableIndex.of("trace_search_gram_trace_idx", ImmutableList.of("trace_id")));
+
+    private final DataSource dataSource;
+    private final PartitionedTable gramTable;
+
+    // traces captured prior to this time (e.g. prior to upgrading to a version with this index) are
+    // not in the index, so the index cannot be used for queries that include them
+    private final long indexedSince;
+    // token postings were added after trigram postings, so they can be indexed since a later time
+    private final long tokensIndexedSince;
+
+    TraceSearchIndex(DataSource dataSource, Clock clock) throws Exception {
+        this.dataSource = dataSource;
+        boolean newIndex = !dataSource.tableExists("trace_search_gram");
+        gramTable = new PartitionedTable(dataSource, "trace_search_gram", columns, indexes, clock);
+        dataSource.syncTable("trace_search_index_since", ImmutableList.<Column>of(
+                ImmutableColumn.of("indexed_since", ColumnType.BIGINT),
+                ImmutableColumn.of("tokens_indexed_since", ColumnType.BIGINT)));
+        Long indexedSince = dataSource
+                .queryForOptionalLong("select indexed_since from trace_search_index_since");
+        Long tokensIndexedSince = dataSource
+                .queryForOptionalLong("select tokens_indexed_since from trace_search_index_since");
+        if (indexedSince == null || newIndex) {
+            // everything already in the trace table has not been indexed
+            indexedSince =
+                    dataSource.queryForLong("select ifnull(max(capture_time), 0) from trace");
+            tokensIndexedSince = indexedSince;
+            dataSource.update("delete from trace_search_index_since");
+            dataSource.update("insert into trace_search_index_since (indexed_since,"
+                    + " tokens_indexed_since) values (?, ?)", indexedSince, tokensIndexedSince);
+        } else if (tokensIndexedSince == null) {
+            // everything already in the trace table has not been indexed with tokens
+            tokensIndexedSince =
+                    dataSource.queryForLong("select ifnull(max(capture_time), 0) from trace");
+            dataSource.update("update trace_search_index_since set tokens_indexed_since = ?",
+                    tokensIndexedSince);
+        }
+        this.indexedSince = indexedSince;
+        this.tokensIndexedSince = tokensIndexedSince;
+    }
+
+    void index(Trace trace, boolean exists) throws Exception {
+        if (exists) {
+            gramTable.delete("trace_id = ?", trace.getId());
+        }
+        Trace.Header header = trace.getHeader();
+        List<Posting> postings = Lists.newArrayList();
+        if (header.hasError()) {
+            addPostings(postings, Field.ERROR_MESSAGE,
+                    ImmutableList.of(header.getError().getMessage()));
+        }
+        addPostings(postings, Field.USER, ImmutableList.of(header.getUser()));
+        List<String> attributeValues = Lists.newArrayList();
+        for (Trace.Attribute attribute : header.getAttributeList()) {
+            attributeValues.addAll(attribute.getValueList());
+        }
+        addPostings(postings, Field.ATTRIBUTE_VALUE, attributeValues);
+        if (!postings.isEmpty()) {
+            dataSource.batchUpdate(new PostingInsert(trace.getId(), header.getCaptureTime(),
+                    postings, gramTable.getInsertTableName()));
+        }
+    }
+
+    // returns sql criteria (for use with the trace table) which narrows down the candidate trace
+    // ids to those which could possibly contain all of the search terms, or returns null if the
+    // index cannot be used to narrow down this search
+    @Nullable
+    ParameterizedSql getCriteria(@Untainted String traceIdColumn, Field field,
+            List<String> searchTerms, TraceQuery query) {
+        Set<String> grams = Sets.newHashSet();
+        Set<String> tokens = Sets.newHashSet();
+        for (String searchTerm : searchTerms) {
+            grams.addAll(getSearchGrams(searchTerm));
+            tokens.addAll(getSearchTokens(searchTerm, StringComparator.CONTAINS));
+        }
+        return getCriteria(traceIdColumn, field, grams, tokens, query);
+    }
+
+    // returns null if the index cannot be used to narrow down this comparison
+    @Nullable
+    ParameterizedSql getCriteria(@Untainted String traceIdColumn, Field field,
+            @Nullable StringComparator comparator, @Nullable String searchTerm, TraceQuery query) {
+        if (comparator == null || comparator == StringComparator.NOT_CONTAINS
+                || Strings.isNullOrEmpty(searchTerm)) {
+            return null;
+        }
+        return getCriteria(traceIdColumn, field, getSearchGrams(searchTerm),
+                getSearchTokens(searchTerm, comparator), query);
+    }
+
+    void deleteAll() throws Exception {
+        gramTable.truncate();
+    }
+
+    void deleteBefore(long captureTime) throws Exception {
+        gramTable.deleteBefore(captureTime);
+    }
+
+    private @Nullable ParameterizedSql getCriteria(@Untainted String traceIdColumn, Field field,
+            Set<String> grams, Set<String> tokens, TraceQuery query) {
+        if (query.from() < indexedSince) {
+            return null;
+        }
+        StringBuilder sql = new StringBuilder();
+        List<Object> args = Lists.newArrayList();
+        if (!grams.isEmpty()) {
+            appendCriteria(sql, args, traceIdColumn, field.code, grams, query);
+        }
+        if (!tokens.isEmpty() && query.from() >= tokensIndexedSince) {
+            appendCriteria(sql, args, traceIdColumn, field.tokenCode, tokens, query);
+        }
+        if (args.isEmpty()) {
+            return null;
+        }
+        return ImmutableParameterizedSql.of(castUntainted(sql.toString()), args);
+    }
+
+    private static void addPostings(List<Posting> postings, Field field, List<String> texts) {
+        Set<String> grams = Sets.newHashSet();
+        Set<String> tokens = Sets.newHashSet();
+        for (String text : texts) {
+            grams.addAll(getIndexGrams(text));
+            tokens.addAll(getIndexTokens(text));
+        }
+        for (String gram : grams) {
+            postings.add(new Posting(field.code, gram));
+        }
+        for (String token : tokens) {
+            postings.add(new Posting(field.tokenCode, token));
+        }
+    }
+
+    private static void appendCriteria(StringBuilder sql, List<Object> args,
+            @Untainted String traceIdColumn, String fieldCode, Set<String> grams,
+            TraceQuery query) {
+        sql.append(" and ");
+        sql.append(traceIdColumn);
+        sql.append(" in (select trace_id from trace_search_gram where field = ? and gram in (?");
+        args.add(fieldCode);
+        args.add(NOT_FULLY_INDEXED_MARKER);
+        for (String gram : grams) {
+            sql.append(", ?");
+            args.add(gram);
+        }
+        sql.append(") and capture_time > ? and capture_time <= ? group by trace_id having"
+                + " count(distinct gram) = ? or min(gram) = ?)");
+        args.add(query.from());
+        args.add(query.to());
+        args.add(grams.size());
+        args.add(NOT_FULLY_INDEXED_MARKER);
+    }
+
+    @VisibleForTesting
+    static Set<String> getIndexGrams(String text) {
+        Set<String> grams = Sets.newHashSet();
+        if (text.length() > MAX_INDEXED_LENGTH) {
+            grams.add(NOT_FULLY_INDEXED_MARKER);
+            grams.addAll(getGrams(text.substring(0, MAX_INDEXED_LENGTH)));
+        } else {
+            grams.addAll(getGrams(text));
+        }
+        return grams;
+    }
+
+    @VisibleForTesting
+    static Set<String> getSearchGrams(String searchTerm) {
+        // search terms are matched using upper(...) like ?, so any % or _ wildcard inside of the
+        // search term would also be treated as a wildcard
+        Set<String> grams = Sets.newHashSet();
+        for (String part : searchTerm.split("[%_]")) {
+            grams.addAll(getGrams(part));
+        }
+        return grams;
+    }
+
+    @VisibleForTesting
+    static Set<String> getIndexTokens(String text) {
+        Set<String> tokens = Sets.newHashSet();
+        if (text.length() > MAX_INDEXED_LENGTH) {
+            tokens.add(NOT_FULLY_INDEXED_MARKER);
+            addTokens(tokens, text.substring(0, MAX_INDEXED_LENGTH), true, true);
+        } else {
+            addTokens(tokens, text, true, true);
+        }
+        return tokens;
+    }
+
+    // returns the tokens that are fully contained in any text matching the comparison, e.g. the
+    // search term "/api/orders" (contains) only fully contains the token "API", since "ORDERS"
+    // could be followed by more letters or digits in the matching text
+    @VisibleForTesting
+    static Set<String> getSearchTokens(String searchTerm, StringComparator comparator) {
+        Set<String> tokens = Sets.newHashSet();
+        boolean anchoredStart =
+                comparator == StringComparator.BEGINS || comparator == StringComparator.EQUALS;
+        boolean anchoredEnd =
+                comparator == StringComparator.ENDS || comparator == StringComparator.EQUALS;
+        if (comparator == StringComparator.EQUALS) {
+            // equals is not a like predicate, so % and _ are not wildcards
+            addTokens(tokens, searchTerm, true, true);
+            return tokens;
+        }
+        // a wildcard can match letters and digits, so it does not end a token
+        String[] parts = searchTerm.split("[%_]", -1);
+        for (int i = 0; i < parts.length; i++) {
+            addTokens(tokens, parts[i], anchoredStart && i == 0,
+                    anchoredEnd && i == parts.length - 1);
+        }
+        return tokens;
+    }
+
+    // the first and last runs of letters and digits are only added if the text boundary is also a
+    // token boundary
+    private static void addTokens(Set<String> tokens, String text, boolean startIsBoundary,
+            boolean endIsBoundary) {
+        String upper = text.toUpperCase(Locale.ENGLISH);
+        int tokenStart = -1;
+        for (int i = 0; i <= upper.length(); i++) {
+            boolean tokenChar = i < upper.length() && Character.isLetterOrDigit(upper.charAt(i));
+            if (tokenChar && tokenStart == -1) {
+                tokenStart = i;
+            } else if (!tokenChar && tokenStart != -1) {
+                if ((tokenStart > 0 || startIsBoundary) && (i < upper.length() || endIsBoundary)) {
+                    tokens.add(upper.substring(tokenStart, i));
+                }
+                tokenStart = -1;
+            }
+        }
+    }
+
+    private static Collection<String> getGrams(String text) {
+        String upper = text.toUpperCase(Locale.ENGLISH);
+        Set<String> grams = Sets.newHashSet();
+        for (int i = 0; i + GRAM_LENGTH <= upper.length(); i++) {
+            grams.add(upper.substring(i, i + GRAM_LENGTH));
+        }
+        return grams;
+    }
+
+    enum Field {
+
+        ERROR_MESSAGE("E", "ET"), USER("U", "UT"), ATTRIBUTE_VALUE("A", "AT");
+
+        // field codes of the trigram postings and of the token postings
+        private final String code;
+        private final String tokenCode;
+
+        private Field(String code, String tokenCode) {
+            this.code = code;
+            this.tokenCode = tokenCode;
+        }
+    }
+
+    private static class Posting {
+
+        private final String fieldCode;
+        private final String gram;
+
+        private Posting(String fieldCode, String gram) {
+            this.fieldCode = fieldCode;
+            this.gram = gram;
+        }
+    }
+
+    private static class PostingInsert implements JdbcUpdate {
+
+        private final String traceId;
+        private final long captureTime;
+        private final List<Posting> postings;
+        private final @Untainted String tableName;
+
+        private PostingInsert(String traceId, long captureTime, List<Posting> postings,
+                @Untainted String tableName) {
+            this.traceId = traceId;
+            this.captureTime = captureTime;
+            this.postings = postings;
+            this.tableName = tableName;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "insert into " + tableName + " (field, gram, capture_time, trace_id)"
+                    + " values (?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (Posting posting : postings) {
+                preparedStatement.setString(1, posting.fieldCode);
+                preparedStatement.setString(2, posting.gram);
+                preparedStatement.setLong(3, captureTime);
+                preparedStatement.setString(4, traceId);
+                preparedStatement.addBatch();
+            }
+        }
+    }
+}
@@ -27,8 +27,10 @@ import java.io.Reader;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
@@ -47,6 +49,7 @@ import com.ning.compress.lzf.LZFOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.fat.storage.util.CappedDatabaseOutputStream.OnlineResize;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
@@ -54,8 +57,16 @@ public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
+    // the lock is only held for copying this much at a time during resize
+    private static final int RESIZE_CHUNK_BYTES = 65536;
+
+    // number of times a lapped resize is restarted before falling back to copying under the lock
+    private static final int MAX_RESIZE_RESTARTS = 3;
+
     private final File file;
     private final Object lock = new Object();
+    // only one resize at a time
+    private final Object resizeLock = new Object();
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
@@ -66,6 +77,11 @@ public class CappedDatabase {
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
+    // resize progress (the bytes remaining keep growing as new blocks are written during resize)
+    private volatile boolean resizing;
+    private volatile long resizeBytesCopied;
+    private volatile long resizeBytesRemaining;
+
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
         this.file = file;
         this.ticker = ticker;
@@ -235,15 +251,115 @@ public class CappedDatabase {
         }
     }
 
+    // the lock is only held while copying one chunk at a time (and for the final swap), so trace
+    // writes and reads can continue while a large capped database is being resized
     public void resize(int newSizeKb) throws IOException {
+        synchronized (resizeLock) {
+            OnlineResize onlineResize = startResize(newSizeKb, RESIZE_CHUNK_BYTES);
+            if (onlineResize == null) {
+                return;
+            }
+            resizeBytesCopied = 0;
+            resizeBytesRemaining = 0;
+            resizing = true;
+            try {
+                while (!continueResize(onlineResize, RESIZE_CHUNK_BYTES)) {
+                    // the lock is released between chunks
+                }
+            } finally {
+                resizing = false;
+            }
+        }
+    }
+
+    public boolean isResizing() {
+        return resizing;
+    }
+
+    public double getResizePercentComplete() {
+        if (!resizing) {
+            return 0;
+        }
+        long copied = resizeBytesCopied;
+        long total = copied + resizeBytesRemaining;
+        return total == 0 ? 0 : 100.0 * copied / total;
+    }
+
+    // returns null if no copy is needed (or if closing)
+    @VisibleForTesting
+    @Nullable
+    OnlineResize startResize(int newSizeKb, int chunkBytes) throws IOException {
+        synchronized (lock) {
+            if (closing || out.performEasyResize(newSizeKb)) {
+                return null;
+            }
+            OnlineResize onlineResize = out.startOnlineResize(newSizeKb);
+            // copying the first chunk while still holding the lock, since when resizing larger,
+            // the copy starts at the oldest data, which is what the next block will overwrite
+            try {
+                out.continueOnlineResize(onlineResize, chunkBytes);
+            } catch (IOException e) {
+                out.abortOnlineResize(onlineResize);
+                throw e;
+            }
+            return onlineResize;
+        }
+    }
+
+    // copies the next chunk, and returns true once the resize is complete (or aborted)
+    @VisibleForTesting
+    boolean continueResize(OnlineResize onlineResize, int chunkBytes) throws IOException {
         synchronized (lock) {
             if (closing) {
-                return;
+                out.abortOnlineResize(onlineResize);
+                return true;
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            int maxBytes = chunkBytes;
+            if (out.isOnlineResizeLapped(onlineResize)) {
+                // new blocks have overwritten data that had not been copied yet, which can happen
+                // whenever blocks are written faster than the copy progresses, e.g. when resizing
+                // larger, the copy starts at the oldest data, which is exactly what new blocks
+                // overwrite first
+                out.restartLappedOnlineResize(onlineResize);
+                if (onlineResize.getRestartCount() > MAX_RESIZE_RESTARTS) {
+                    // sustained writes are outpacing the copy, so copy the rest while holding the
+                    // lock (blocking writes until done) instead of restarting indefinitely
+                    maxBytes = Integer.MAX_VALUE;
+                }
+            }
+            long remaining;
+            try {
+                remaining = out.continueOnlineResize(onlineResize, maxBytes);
+            } catch (IOException e) {
+                out.abortOnlineResize(onlineResize);
+                throw e;
+            }
+            if (remaining == 0) {
+                inFile.close();
+                out.finishOnlineResize(onlineResize);
+                inFile = new RandomAccessFile(file, "r");
+                return true;
+            }
+            resizeBytesCopied = onlineResize.getCopiedBytes();
+            resizeBytesRemaining = remaining;
+            return false;
+        }
+    }
+
+    // block headers can wrap around the end of the file for blocks that were written during an
+    // online resize (see CappedDatabaseOutputStream.continueOnlineResize())
+    @GuardedBy("lock")
+    private long readBlockLength(long filePosition) throws IOException {
+        long fileRemaining = out.getSizeKb() * 1024L - filePosition;
+        inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+        if (fileRemaining >= CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES) {
+            return inFile.readLong();
         }
+        byte[] bytes = new byte[CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES];
+        inFile.readFully(bytes, 0, (int) fileRemaining);
+        inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES);
+        inFile.readFully(bytes, (int) fileRemaining, bytes.length - (int) fileRemaining);
+        return Longs.fromByteArray(bytes);
     }
 
     @OnlyUsedByTests
@@ -296,9 +412,7 @@ public class CappedDatabase {
                     throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
                 }
                 if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+                    blockLength = readBlockLength(out.convertToFilePosition(cappedId));
                 }
                 long filePosition = out.convertToFilePosition(
                         cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
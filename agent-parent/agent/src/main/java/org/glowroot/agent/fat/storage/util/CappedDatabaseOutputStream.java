@@ -20,6 +20,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 
+import com.google.common.primitives.Longs;
+
 import org.glowroot.common.util.OnlyUsedByTests;
 
 // Needs to be externally synchronized around startBlock()/write()/endBlock().
@@ -29,6 +31,7 @@ class CappedDatabaseOutputStream extends OutputStream {
     static final int BLOCK_HEADER_SKIP_BYTES = 8;
 
     private static final int HEADER_CURR_INDEX_POS = 0;
+    private static final int HEADER_LAST_RESIZE_BASE_INDEX_POS = 12;
 
     private final File file;
     private RandomAccessFile out;
@@ -111,46 +114,94 @@ class CappedDatabaseOutputStream extends OutputStream {
         return (index - lastResizeBaseIndex) % sizeBytes;
     }
 
-    // perform resize in-place to avoid using extra disk space
-    void resize(int newSizeKb) throws IOException {
-        if (performEasyResize(newSizeKb)) {
-            return;
-        }
+    // online resize copies the kept range to the new file in chunks (see CappedDatabase.resize()),
+    // while new blocks continue to be written to the current file, and then swaps in the new file
+    // once the copy has caught up
+    //
+    // performEasyResize() should be tried first, since this relies on currIndex being >= either the
+    // current or new capped size
+    OnlineResize startOnlineResize(int newSizeKb) throws IOException {
         long newSizeBytes = newSizeKb * 1024L;
-        // keep the min of the current and new capped size
-        int numKeepKb = Math.min(sizeKb, newSizeKb);
-        long numKeepBytes = numKeepKb * 1024L;
-        // at this point, because of the two shortcut conditionals above, currIndex must be >=
-        // either the current or new capped size (numKeepBytes)
-        long startPosition = convertToFilePosition(currIndex - numKeepBytes);
-        lastResizeBaseIndex = currIndex - numKeepBytes;
+        long numKeepBytes = Math.min(sizeBytes, newSizeBytes);
+        long baseIndex = currIndex - numKeepBytes;
         File tmpCappedFile = new File(file.getPath() + ".resizing.tmp");
         RandomAccessFile tmpOut = new RandomAccessFile(tmpCappedFile, "rw");
+        // in case left over from a prior failed resize
+        tmpOut.setLength(0);
         tmpOut.writeLong(currIndex);
         tmpOut.writeInt(newSizeKb);
-        tmpOut.writeLong(lastResizeBaseIndex);
-        long remaining = sizeBytes - startPosition;
-        out.seek(HEADER_SKIP_BYTES + startPosition);
-        if (numKeepBytes > remaining) {
-            copy(out, tmpOut, remaining);
-            out.seek(HEADER_SKIP_BYTES);
-            copy(out, tmpOut, numKeepBytes - remaining);
-        } else {
-            copy(out, tmpOut, numKeepBytes);
+        tmpOut.writeLong(baseIndex);
+        return new OnlineResize(tmpCappedFile, tmpOut, newSizeKb, baseIndex);
+    }
+
+    // returns true if new blocks have overwritten data that has not been copied yet
+    boolean isOnlineResizeLapped(OnlineResize resize) {
+        return isOverwritten(Math.max(resize.copiedIndex, currIndex - resize.newSizeBytes));
+    }
+
+    // once lapped, everything that has been copied so far has also been overwritten, so the copy
+    // restarts from the smallest non-overwritten id, which also becomes the smallest id retained by
+    // the new file (ids before it are reported as overwritten, same as they are now)
+    void restartLappedOnlineResize(OnlineResize resize) throws IOException {
+        long smallestNonOverwrittenId = getSmallestNonOverwrittenId();
+        resize.baseIndex = smallestNonOverwrittenId;
+        resize.copiedIndex = smallestNonOverwrittenId;
+        resize.restartCount++;
+        resize.out.seek(HEADER_LAST_RESIZE_BASE_INDEX_POS);
+        resize.out.writeLong(smallestNonOverwrittenId);
+    }
+
+    // returns the number of bytes (as of now) that still need to be copied
+    //
+    // blocks that are written while the copy is in progress are copied too, and since they are
+    // positioned relative to the current file, their block headers can wrap around the end of the
+    // new file (unlike blocks that are written directly to a file, see startBlock())
+    long continueOnlineResize(OnlineResize resize, int maxBytes) throws IOException {
+        // no need to copy what would already be overwritten in the new file
+        resize.copiedIndex = Math.max(resize.copiedIndex, currIndex - resize.newSizeBytes);
+        long numBytes = Math.min(currIndex - resize.copiedIndex, maxBytes);
+        while (numBytes > 0) {
+            long position = convertToFilePosition(resize.copiedIndex);
+            long newPosition = (resize.copiedIndex - resize.baseIndex) % resize.newSizeBytes;
+            int n = (int) Longs.min(numBytes, sizeBytes - position,
+                    resize.newSizeBytes - newPosition, resize.buffer.length);
+            out.seek(HEADER_SKIP_BYTES + position);
+            out.readFully(resize.buffer, 0, n);
+            resize.out.seek(HEADER_SKIP_BYTES + newPosition);
+            resize.out.write(resize.buffer, 0, n);
+            resize.copiedIndex += n;
+            numBytes -= n;
         }
+        return currIndex - resize.copiedIndex;
+    }
+
+    // must only be called once continueOnlineResize() has returned 0 (under the same external
+    // synchronization)
+    void finishOnlineResize(OnlineResize resize) throws IOException {
+        resize.out.seek(HEADER_CURR_INDEX_POS);
+        resize.out.writeLong(currIndex);
+        resize.out.getFD().sync();
         out.close();
-        tmpOut.close();
+        resize.out.close();
         if (!file.delete()) {
             throw new IOException("Unable to delete existing capped database during resize");
         }
-        if (!tmpCappedFile.renameTo(file)) {
+        if (!resize.file.renameTo(file)) {
             throw new IOException("Unable to rename new capped database during resize");
         }
-        sizeKb = newSizeKb;
-        sizeBytes = newSizeBytes;
+        lastResizeBaseIndex = resize.baseIndex;
+        sizeKb = resize.newSizeKb;
+        sizeBytes = resize.newSizeBytes;
         out = new RandomAccessFile(file, "rw");
     }
 
+    void abortOnlineResize(OnlineResize resize) throws IOException {
+        resize.out.close();
+        if (!resize.file.delete()) {
+            throw new IOException("Unable to delete new capped database after aborted resize");
+        }
+    }
+
     @Override
     public void close() throws IOException {
         out.close();
@@ -188,7 +239,8 @@ class CappedDatabaseOutputStream extends OutputStream {
         out.writeLong(currIndex);
     }
 
-    private boolean performEasyResize(int newSizeKb) throws IOException {
+    // resizes without copying if possible
+    boolean performEasyResize(int newSizeKb) throws IOException {
         if (newSizeKb == sizeKb) {
             return true;
         }
@@ -217,14 +269,36 @@ class CappedDatabaseOutputStream extends OutputStream {
         out.getFD().sync();
     }
 
-    private static void copy(RandomAccessFile in, RandomAccessFile out, long numBytes)
-            throws IOException {
-        byte[] block = new byte[1024];
-        long total = 0;
-        while (total < numBytes) {
-            int n = in.read(block, 0, (int) Math.min(1024L, numBytes - total));
-            out.write(block, 0, n);
-            total += n;
+    static class OnlineResize {
+
+        private final File file;
+        private final RandomAccessFile out;
+        private final int newSizeKb;
+        private final long newSizeBytes;
+        private final byte[] buffer = new byte[8192];
+
+        // this only changes if the copy is lapped, see restartLappedOnlineResize()
+        private long baseIndex;
+
+        private long copiedIndex;
+
+        private int restartCount;
+
+        private OnlineResize(File file, RandomAccessFile out, int newSizeKb, long baseIndex) {
+            this.file = file;
+            this.out = out;
+            this.newSizeKb = newSizeKb;
+            this.newSizeBytes = newSizeKb * 1024L;
+            this.baseIndex = baseIndex;
+            copiedIndex = baseIndex;
+        }
+
+        long getCopiedBytes() {
+            return copiedIndex - baseIndex;
+        }
+
+        int getRestartCount() {
+            return restartCount;
         }
     }
 }
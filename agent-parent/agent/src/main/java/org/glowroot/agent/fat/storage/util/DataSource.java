@@ -337,6 +337,21 @@ public class DataSource {
         }
     }
 
+    public boolean viewExists(String viewName) throws SQLException {
+        synchronized (lock) {
+            return !closing && Schemas.viewExists(viewName, connection);
+        }
+    }
+
+    List</*@Untainted*/ String> getTableNames() throws SQLException {
+        synchronized (lock) {
+            if (closing) {
+                return ImmutableList.of();
+            }
+            return Schemas.getTableNames(connection);
+        }
+    }
+
     long getDbFileSize() {
         return dbFile == null ? 0 : dbFile.length();
     }
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage.util;
+
+import java.sql.SQLException;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.fat.storage.util.Schemas.Column;
+import org.glowroot.agent.fat.storage.util.Schemas.Index;
+import org.glowroot.common.util.Clock;
+
+import static org.glowroot.agent.fat.storage.util.Checkers.castUntainted;
+
+// a logical table that, when glowroot.internal.h2.partitionedTables is enabled, is stored as one
+// physical table per day, with a view under the logical table name that unions all of the daily
+// partitions (so that existing queries against the logical table name continue to work, and h2
+// pushes their conditions down into each partition)
+//
+// inserts always go into the current day's partition, which keeps the table and indexes being
+// written to small, and expiration drops entire partitions instead of deleting row by row (which
+// holds the single connection lock for long periods on a busy agent and fragments the h2 file)
+//
+// a partition is only dropped once the entire day that it covers has expired, so in this mode data
+// is retained for up to one day longer than the configured expiration
+public class PartitionedTable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionedTable.class);
+
+    private static final boolean PARTITIONED =
+            Boolean.getBoolean("glowroot.internal.h2.partitionedTables");
+
+    private static final String PARTITION_SUFFIX = "_p";
+
+    private final DataSource dataSource;
+    private final @Untainted String name;
+    private final ImmutableList<Column> columns;
+    private final ImmutableList<Index> indexes;
+    private final Clock clock;
+    private final boolean partitioned;
+
+    private final Object lock = new Object();
+
+    // key is day in yyyyMMdd format, value is the partition table name
+    @GuardedBy("lock")
+    private final TreeMap<Integer, /*@Untainted*/ String> partitions =
+            new TreeMap<Integer, /*@Untainted*/ String>();
+
+    private volatile @Untainted String currentPartitionName;
+    private volatile long currentPartitionEndTime;
+
+    public PartitionedTable(DataSource dataSource, @Untainted String name, List<Column> columns,
+            ImmutableList<Index> indexes, Clock clock) throws SQLException {
+        this(dataSource, name, columns, indexes, clock, PARTITIONED);
+    }
+
+    @VisibleForTesting
+    PartitionedTable(DataSource dataSource, @Untainted String name, List<Column> columns,
+            ImmutableList<Index> indexes, Clock clock, boolean partitioned) throws SQLException {
+        this.dataSource = dataSource;
+        this.name = name;
+        this.columns = ImmutableList.copyOf(columns);
+        this.indexes = indexes;
+        this.clock = clock;
+        this.partitioned = partitioned;
+        currentPartitionName = name;
+        if (partitioned) {
+            syncPartitioned();
+        } else {
+            syncNonPartitioned();
+        }
+    }
+
+    public boolean isPartitioned() {
+        return partitioned;
+    }
+
+    // returns the name of the physical table that new rows should be inserted into
+    //
+    // this must not be called while holding the data source lock (e.g. from inside of
+    // JdbcQuery.processResultSet()) since it may need to create a new partition
+    public @Untainted String getInsertTableName() throws SQLException {
+        if (!partitioned) {
+            return name;
+        }
+        long currentTime = clock.currentTimeMillis();
+        if (currentTime < currentPartitionEndTime) {
+            return currentPartitionName;
+        }
+        synchronized (lock) {
+            if (currentTime >= currentPartitionEndTime && rotate(currentTime)) {
+                createView();
+            }
+            return currentPartitionName;
+        }
+    }
+
+    // deletes matching rows, in partitioned mode this is performed against every partition
+    public void delete(@Untainted String whereClause, Object... args) throws SQLException {
+        if (!partitioned) {
+            dataSource.update("delete from " + name + " where " + whereClause, args);
+            return;
+        }
+        synchronized (lock) {
+            for (String partitionName : partitions.values()) {
+                dataSource.update("delete from " + partitionName + " where " + whereClause, args);
+            }
+        }
+    }
+
+    public void deleteBefore(long captureTime) throws SQLException {
+        if (!partitioned) {
+            dataSource.deleteBefore(name, captureTime);
+            return;
+        }
+        synchronized (lock) {
+            List<String> expiredPartitionNames = Lists.newArrayList();
+            for (Map.Entry<Integer, /*@Untainted*/ String> entry : partitions.entrySet()) {
+                String partitionName = entry.getValue();
+                if (getEndTime(entry.getKey()) > captureTime
+                        || partitionName.equals(currentPartitionName)) {
+                    // partitions are ordered by day, so no later partitions are expired either
+                    break;
+                }
+                expiredPartitionNames.add(partitionName);
+            }
+            if (expiredPartitionNames.isEmpty()) {
+                return;
+            }
+            for (int i = 0; i < expiredPartitionNames.size(); i++) {
+                partitions.pollFirstEntry();
+            }
+            // the view is re-created before dropping the partitions so that it never references a
+            // dropped partition
+            createView();
+            for (String partitionName : expiredPartitionNames) {
+                dataSource.execute("drop table " + castUntainted(partitionName));
+            }
+        }
+    }
+
+    public void truncate() throws SQLException {
+        if (!partitioned) {
+            dataSource.execute("truncate table " + name);
+            return;
+        }
+        synchronized (lock) {
+            List<String> droppedPartitionNames = Lists.newArrayList();
+            Iterator</*@Untainted*/ String> i = partitions.values().iterator();
+            while (i.hasNext()) {
+                String partitionName = i.next();
+                if (!partitionName.equals(currentPartitionName)) {
+                    droppedPartitionNames.add(partitionName);
+                    i.remove();
+                }
+            }
+            createView();
+            for (String partitionName : droppedPartitionNames) {
+                dataSource.execute("drop table " + castUntainted(partitionName));
+            }
+            dataSource.execute("truncate table " + currentPartitionName);
+        }
+    }
+
+    @VisibleForTesting
+    List<String> getPartitionNames() {
+        synchronized (lock) {
+            return ImmutableList.copyOf(partitions.values());
+        }
+    }
+
+    private void syncNonPartitioned() throws SQLException {
+        List<Integer> partitionDays = getExistingPartitionDays();
+        if (partitionDays.isEmpty()) {
+            dataSource.syncTable(name, columns);
+            dataSource.syncIndexes(name, indexes);
+            return;
+        }
+        // partitioned mode was previously enabled, so merge the partitions back into a single table
+        logger.info("merging {} partitions of table {} back into a single table",
+                partitionDays.size(), name);
+        dataSource.execute("drop view if exists " + name);
+        dataSource.syncTable(name, columns);
+        dataSource.syncIndexes(name, indexes);
+        String columnList = getColumnList();
+        for (int partitionDay : partitionDays) {
+            String partitionName = getPartitionName(partitionDay);
+            dataSource.execute(castUntainted("insert into " + name + " (" + columnList
+                    + ") select " + columnList + " from " + partitionName));
+            dataSource.execute(castUntainted("drop table " + partitionName));
+        }
+    }
+
+    private void syncPartitioned() throws SQLException {
+        int currentDay = getDay(clock.currentTimeMillis());
+        synchronized (lock) {
+            for (int partitionDay : getExistingPartitionDays()) {
+                partitions.put(partitionDay, getPartitionName(partitionDay));
+            }
+            if (dataSource.tableExists(name) && !dataSource.viewExists(name)) {
+                // partitioned mode was previously disabled, so the existing rows are moved into
+                // the current day's partition (which is fine since the existing rows are all older,
+                // and so will be expired when or before the current day's partition is dropped)
+                logger.info("moving existing rows from table {} into partition", name);
+                String partitionName = getPartitionName(currentDay);
+                if (partitions.containsKey(currentDay)) {
+                    String columnList = getColumnList();
+                    dataSource.execute(castUntainted("insert into " + partitionName + " ("
+                            + columnList + ") select " + columnList + " from " + name));
+                    dataSource.execute("drop table " + name);
+                } else {
+                    dataSource.execute("alter table " + name + " rename to " + partitionName);
+                    partitions.put(currentDay, partitionName);
+                }
+            }
+            for (String partitionName : partitions.values()) {
+                syncPartition(partitionName);
+            }
+            rotate(clock.currentTimeMillis());
+            createView();
+        }
+    }
+
+    // returns true if a new partition was created, in which case the view needs to be re-created
+    @GuardedBy("lock")
+    private boolean rotate(long currentTime) throws SQLException {
+        int currentDay = getDay(currentTime);
+        String partitionName = getPartitionName(currentDay);
+        boolean created = false;
+        if (!partitions.containsKey(currentDay)) {
+            syncPartition(partitionName);
+            partitions.put(currentDay, partitionName);
+            created = true;
+        }
+        currentPartitionName = partitionName;
+        currentPartitionEndTime = getEndTime(currentDay);
+        return created;
+    }
+
+    private void syncPartition(@Untainted String partitionName) throws SQLException {
+        dataSource.syncTable(partitionName, columns);
+        List<Index> partitionIndexes = Lists.newArrayList();
+        for (Index index : indexes) {
+            // index names are global in h2, so each partition needs its own index names
+            String indexName = index.name();
+            if (indexName.startsWith(name)) {
+                indexName = partitionName + indexName.substring(name.length());
+            } else {
+                indexName = partitionName + "_" + indexName;
+            }
+            partitionIndexes.add(ImmutableIndex.of(castUntainted(indexName), index.columns()));
+        }
+        dataSource.syncIndexes(partitionName, ImmutableList.copyOf(partitionIndexes));
+    }
+
+    @GuardedBy("lock")
+    private void createView() throws SQLException {
+        String columnList = getColumnList();
+        StringBuilder sql = new StringBuilder();
+        sql.append("create or replace view ");
+        sql.append(name);
+        sql.append(" as ");
+        boolean first = true;
+        for (String partitionName : partitions.values()) {
+            if (!first) {
+                sql.append(" union all ");
+            }
+            sql.append("select ");
+            sql.append(columnList);
+            sql.append(" from ");
+            sql.append(partitionName);
+            first = false;
+        }
+        dataSource.execute(castUntainted(sql.toString()));
+    }
+
+    private List<Integer> getExistingPartitionDays() throws SQLException {
+        String prefix = name + PARTITION_SUFFIX;
+        List<Integer> partitionDays = Lists.newArrayList();
+        for (String tableName : dataSource.getTableNames()) {
+            if (!tableName.startsWith(prefix)) {
+                continue;
+            }
+            String day = tableName.substring(prefix.length());
+            if (day.length() == 8 && day.matches("[0-9]+")) {
+                partitionDays.add(Integer.parseInt(day));
+            }
+        }
+        return partitionDays;
+    }
+
+    private String getColumnList() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(columns.get(i).name());
+        }
+        return sb.toString();
+    }
+
+    private @Untainted String getPartitionName(int day) {
+        return name + PARTITION_SUFFIX + castUntainted(day);
+    }
+
+    // returns the day in yyyyMMdd format (using the default time zone)
+    @VisibleForTesting
+    static int getDay(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100
+                + calendar.get(Calendar.DAY_OF_MONTH);
+    }
+
+    // returns the (exclusive) end of the day, which is the start of the next day
+    @VisibleForTesting
+    static long getEndTime(int day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(day / 10000, day / 100 % 100 - 1, day % 100);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+}
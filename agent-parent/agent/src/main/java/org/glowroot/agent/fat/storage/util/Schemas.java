@@ -108,6 +108,40 @@ public class Schemas {
         }
     }
 
+    static boolean viewExists(String viewName, Connection connection) throws SQLException {
+        logger.debug("viewExists(): viewName={}", viewName);
+        DatabaseMetaData metaData = connection.getMetaData();
+        ResultSet resultSet = metaData.getTables(null, null, convert(metaData, viewName),
+                new String[] {"VIEW"});
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            return resultSet.next();
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    // returns lower case table names (excluding views)
+    static List</*@Untainted*/ String> getTableNames(Connection connection) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        ResultSet resultSet = metaData.getTables(null, null, "%", new String[] {"TABLE"});
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            List</*@Untainted*/ String> tableNames = Lists.newArrayList();
+            while (resultSet.next()) {
+                String tableName = checkNotNull(resultSet.getString("TABLE_NAME"));
+                tableNames.add(castUntainted(tableName.toLowerCase(Locale.ENGLISH)));
+            }
+            return tableNames;
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
     // useful for upgrades
     static boolean columnExists(String tableName, String columnName, Connection connection)
             throws SQLException {
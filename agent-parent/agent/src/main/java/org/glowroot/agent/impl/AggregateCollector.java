@@ -92,7 +92,7 @@ class AggregateCollector {
         mergeRootTimer(toBeMergedRootTimer, mainThreadRootTimers);
     }
 
-    void mergeAuxThreadRootTimer(TimerImpl toBeMergedRootTimer) {
+    void mergeAuxThreadRootTimer(CommonTimerImpl toBeMergedRootTimer) {
         mergeRootTimer(toBeMergedRootTimer, auxThreadRootTimers);
     }
 
@@ -171,7 +171,7 @@ public class AggregateIntervalCollector {
                 } else {
                     aggregateCollector.mergeMainThreadRootTimer(mainThreadRootTimer);
                 }
-                for (TimerImpl rootTimer : transaction.getAuxThreadRootTimers()) {
+                for (CommonTimerImpl rootTimer : transaction.getAuxThreadRootTimers()) {
                     aggregateCollector.mergeAuxThreadRootTimer(rootTimer);
                 }
                 for (CommonTimerImpl rootTimer : transaction.getAsyncRootTimers()) {
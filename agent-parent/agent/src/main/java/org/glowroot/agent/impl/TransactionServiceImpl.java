@@ -20,7 +20,6 @@ import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Ticker;
-import com.google.common.collect.ImmutableList;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.model.ErrorMessage;
+import org.glowroot.agent.model.GcEpochTracker;
 import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.model.QueryEntryBase;
 import org.glowroot.agent.model.ThreadContextImpl;
@@ -49,6 +49,7 @@ import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopTraceEntr
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.UsedByGeneratedBytecode;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -73,16 +74,23 @@ public class TransactionServiceImpl implements AdvancedService, ConfigListener {
     // cache for fast read access
     // visibility is provided by memoryBarrier below
     private boolean captureThreadStats;
+    private boolean lowOverheadThreadStats;
+    // this is only created while lowOverheadThreadStats is enabled, since it registers a listener
+    // on each of the garbage collector beans
+    private @Nullable GcEpochTracker gcEpochTracker;
     private int maxAggregateQueriesPerQueryType;
+    private int maxAuxThreadContextsPerTransaction;
+    private int maxAsyncRootTimersPerTransaction;
+    private int traceEntryFoldThreshold;
     private int maxTraceEntriesPerTransaction;
 
     public static TransactionServiceImpl create(TransactionRegistry transactionRegistry,
             TransactionCollector transactionCollector, ConfigService configService,
             TimerNameCache timerNameCache, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             UserProfileScheduler userProfileScheduler, Ticker ticker, Clock clock) {
-        TransactionServiceImpl transactionServiceImpl =
-                new TransactionServiceImpl(transactionRegistry, transactionCollector, configService,
-                        timerNameCache, threadAllocatedBytes, userProfileScheduler, ticker, clock);
+        TransactionServiceImpl transactionServiceImpl = new TransactionServiceImpl(
+                transactionRegistry, transactionCollector, configService, timerNameCache,
+                threadAllocatedBytes, userProfileScheduler, ticker, clock);
         configService.addConfigListener(transactionServiceImpl);
         return transactionServiceImpl;
     }
@@ -139,9 +147,11 @@ public class TransactionServiceImpl implements AdvancedService, ConfigListener {
         long startTick = ticker.read();
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
                 transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
-                maxTraceEntriesPerTransaction, maxAggregateQueriesPerQueryType,
-                threadAllocatedBytes, transactionCompletionCallback, ticker, transactionRegistry,
-                this, configService, userProfileScheduler, threadContextHolder);
+                lowOverheadThreadStats, gcEpochTracker, maxTraceEntriesPerTransaction,
+                maxAggregateQueriesPerQueryType, maxAuxThreadContextsPerTransaction,
+                maxAsyncRootTimersPerTransaction, traceEntryFoldThreshold, threadAllocatedBytes,
+                transactionCompletionCallback, ticker, transactionRegistry, this, configService,
+                userProfileScheduler, threadContextHolder);
         if (transactionType.equals("Startup")) {
             transaction.setSlowThresholdMillis(0, OverrideSource.STARTUP);
         }
@@ -154,7 +164,6 @@ public class TransactionServiceImpl implements AdvancedService, ConfigListener {
             TraceEntryImpl parentTraceEntry,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
         long startTick = ticker.read();
-        // FIXME implement limit on auxiliary thread context creation for a given transaction
         TimerName auxThreadTimerName = timerNameCache.getAuxThreadTimerName();
         return transaction.startAuxThreadContext(parentTraceEntry, auxThreadTimerName,
                 startTick, threadContextHolder, threadAllocatedBytes);
@@ -202,8 +211,31 @@ public class TransactionServiceImpl implements AdvancedService, ConfigListener {
     public void onChange() {
         AdvancedConfig advancedConfig = configService.getAdvancedConfig();
         captureThreadStats = configService.getTransactionConfig().captureThreadStats();
+        lowOverheadThreadStats = advancedConfig.lowOverheadThreadStats();
         maxAggregateQueriesPerQueryType = advancedConfig.maxAggregateQueriesPerQueryType();
+        maxAuxThreadContextsPerTransaction = advancedConfig.maxAuxThreadContextsPerTransaction();
+        maxAsyncRootTimersPerTransaction = advancedConfig.maxAsyncRootTimersPerTransaction();
         maxTraceEntriesPerTransaction = advancedConfig.maxTraceEntriesPerTransaction();
+        traceEntryFoldThreshold = advancedConfig.traceEntryFoldThreshold();
+        updateGcEpochTracker();
+    }
+
+    @OnlyUsedByTests
+    public synchronized void close() {
+        if (gcEpochTracker != null) {
+            gcEpochTracker.close();
+            gcEpochTracker = null;
+        }
+    }
+
+    private synchronized void updateGcEpochTracker() {
+        if (lowOverheadThreadStats && gcEpochTracker == null) {
+            // this is still null if garbage collection notifications are not supported
+            gcEpochTracker = GcEpochTracker.create();
+        } else if (!lowOverheadThreadStats && gcEpochTracker != null) {
+            gcEpochTracker.close();
+            gcEpochTracker = null;
+        }
     }
 
     private class TransactionCompletionCallback implements CompletionCallback {
@@ -291,8 +323,7 @@ public class TransactionServiceImpl implements AdvancedService, ConfigListener {
                     // skip i=1 which is "...DummyTraceEntryOrQuery.endWithErrorInternal()"
                     // skip i=2 which is "...DummyTraceEntryOrQuery.endWithError()"
                     // skip i=3 which is the plugin advice
-                    entry.setStackTrace(
-                            ImmutableList.copyOf(stackTrace).subList(4, stackTrace.length));
+                    entry.setStackTrace(stackTrace, 4);
                 }
             }
         }
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Executors;
@@ -27,6 +28,9 @@ import java.util.concurrent.ThreadFactory;
 import java.util.jar.JarFile;
 
 import javax.annotation.Nullable;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Ticker;
@@ -55,6 +59,7 @@ import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.agent.util.LazyPlatformMBeanServer.InitListener;
 import org.glowroot.agent.util.OptionalService;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.agent.util.Tickers;
@@ -95,8 +100,10 @@ public class AgentModule {
 
     private final TransactionCollector transactionCollector;
     private final Aggregator aggregator;
+    private final TransactionServiceImpl transactionService;
 
     private final ImmediateTraceStoreWatcher immedateTraceStoreWatcher;
+    private final TransactionMemoryWatcher transactionMemoryWatcher;
 
     private final ScheduledExecutorService scheduledExecutor;
     private final GaugeCollector gaugeCollector;
@@ -110,6 +117,8 @@ public class AgentModule {
 
     private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
 
+    private volatile boolean unregisterMBeans;
+
     // accepts @Nullable Ticker to deal with shading issues when called from GlowrootModule
     public AgentModule(Clock clock, @Nullable Ticker nullableTicker, final PluginCache pluginCache,
             final ConfigService configService, Collector collector,
@@ -168,8 +177,8 @@ public class AgentModule {
         UserProfileScheduler userProfileScheduler =
                 new UserProfileScheduler(scheduledExecutor, configService, random);
         GlowrootService glowrootService = new GlowrootServiceImpl(transactionRegistry);
-        TransactionServiceImpl transactionService = TransactionServiceImpl.create(
-                transactionRegistry, transactionCollector, configService, timerNameCache,
+        transactionService = TransactionServiceImpl.create(transactionRegistry,
+                transactionCollector, configService, timerNameCache,
                 threadAllocatedBytes.getService(), userProfileScheduler, ticker, clock);
         ConfigServiceFactory configServiceFactory = new ConfigServiceFactory() {
             @Override
@@ -199,6 +208,10 @@ public class AgentModule {
                 transactionRegistry, transactionCollector, configService, ticker);
         immedateTraceStoreWatcher.scheduleWithFixedDelay(scheduledExecutor, 0,
                 ImmediateTraceStoreWatcher.PERIOD_MILLIS, MILLISECONDS);
+        transactionMemoryWatcher = new TransactionMemoryWatcher(transactionRegistry, configService);
+        transactionMemoryWatcher.scheduleWithFixedDelay(scheduledExecutor, 0,
+                TransactionMemoryWatcher.PERIOD_MILLIS, MILLISECONDS);
+        registerMBeans();
 
         liveTraceRepository = new LiveTraceRepositoryImpl(transactionRegistry, transactionCollector,
                 clock, ticker);
@@ -266,6 +279,27 @@ public class AgentModule {
         return new ExtraBootResourceFinder(pluginJars);
     }
 
+    private void registerMBeans() {
+        lazyPlatformMBeanServer.addInitListener(new InitListener() {
+            @Override
+            public void postInit(MBeanServer mbeanServer) throws Exception {
+                try {
+                    mbeanServer.registerMBean(transactionMemoryWatcher,
+                            new ObjectName("org.glowroot:type=TransactionMemory"));
+                    mbeanServer.registerMBean(gaugeCollector,
+                            new ObjectName("org.glowroot:type=GaugeCollector"));
+                    unregisterMBeans = true;
+                } catch (InstanceAlreadyExistsException e) {
+                    // this happens during unit tests when a non-shared local container is used
+                    // (so that then there are two local containers in the same jvm)
+                    //
+                    // log exception at debug level
+                    logger.debug(e.getMessage(), e);
+                }
+            }
+        });
+    }
+
     // now init plugins to give them a chance to do something in their static initializer
     // e.g. append their package to jboss.modules.system.pkgs
     private static void initPlugins(List<PluginDescriptor> pluginDescriptors) {
@@ -282,11 +316,18 @@ public class AgentModule {
     }
 
     @OnlyUsedByTests
-    public void close() throws InterruptedException {
+    public void close() throws Exception {
+        if (unregisterMBeans) {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            mbeanServer.unregisterMBean(new ObjectName("org.glowroot:type=TransactionMemory"));
+            mbeanServer.unregisterMBean(new ObjectName("org.glowroot:type=GaugeCollector"));
+        }
         immedateTraceStoreWatcher.cancel();
+        transactionMemoryWatcher.cancel();
         aggregator.close();
         gaugeCollector.close();
         stackTraceCollector.close();
+        transactionService.close();
         scheduledExecutor.shutdown();
         if (!scheduledExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate agent scheduled executor");
@@ -23,12 +23,19 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 
@@ -60,7 +67,9 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-class GaugeCollector extends ScheduledRunnable {
+class GaugeCollector extends ScheduledRunnable implements GaugeCollectorStatsMXBean {
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
 
     private static final Logger logger = LoggerFactory.getLogger(GaugeCollector.class);
 
@@ -82,6 +91,23 @@ class GaugeCollector extends ScheduledRunnable {
     // priorRawCounterValues (except can't initialize here outside of the dedicated thread)
     private @MonotonicNonNull Map<String, RawCounterValue> priorRawCounterValues;
 
+    // parsed object names and pattern matches are cached since parsing and querying can be
+    // expensive on app servers with lots of mbeans, these are only accessed by the dedicated thread
+    private final Map<String, ObjectName> objectNames = Maps.newHashMap();
+    private final Map<ObjectName, Set<ObjectName>> patternMatches = Maps.newHashMap();
+
+    // cached pattern matches are only used if mbean registration notifications are being received
+    private volatile boolean mbeanRegistrationNotifications;
+    private final AtomicBoolean mbeanRegistrationChanged = new AtomicBoolean();
+    private final NotificationListener mbeanRegistrationListener =
+            new MBeanRegistrationListener();
+    // this is the mbean server that mbeanRegistrationListener was added to, so that it can be
+    // removed on close
+    private volatile @Nullable MBeanServer mbeanRegistrationListenerServer;
+
+    private volatile long lastCollectionNanos;
+    private volatile long maxCollectionNanos;
+
     GaugeCollector(ConfigService configService, Collector collector,
             LazyPlatformMBeanServer lazyPlatformMBeanServer, Clock clock, Ticker ticker) {
         this.configService = configService;
@@ -111,10 +137,30 @@ class GaugeCollector extends ScheduledRunnable {
                 }
             }
         });
+        lazyPlatformMBeanServer.addInitListener(new InitListener() {
+            @Override
+            public void postInit(MBeanServer mbeanServer) throws Exception {
+                mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                        mbeanRegistrationListener, null, null);
+                mbeanRegistrationListenerServer = mbeanServer;
+                mbeanRegistrationNotifications = true;
+            }
+        });
+    }
+
+    @Override
+    public double getLastCollectionTimeMillis() {
+        return lastCollectionNanos / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    public double getMaxCollectionTimeMillis() {
+        return maxCollectionNanos / NANOSECONDS_PER_MILLISECOND;
     }
 
     @Override
     protected void runInternal() throws Exception {
+        long startTick = ticker.read();
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         if (priorRawCounterValues == null) {
             // wait to now to initialize priorGaugeValues inside of the dedicated thread
@@ -123,6 +169,11 @@ class GaugeCollector extends ScheduledRunnable {
         for (GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
             gaugeValues.addAll(collectGaugeValues(gaugeConfig));
         }
+        long collectionNanos = ticker.read() - startTick;
+        lastCollectionNanos = collectionNanos;
+        if (collectionNanos > maxCollectionNanos) {
+            maxCollectionNanos = collectionNanos;
+        }
         try {
             collector.collectGaugeValues(gaugeValues);
         } catch (Throwable t) {
@@ -136,6 +187,15 @@ class GaugeCollector extends ScheduledRunnable {
     }
 
     void close() throws InterruptedException {
+        MBeanServer mbeanServer = mbeanRegistrationListenerServer;
+        if (mbeanServer != null) {
+            try {
+                mbeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                        mbeanRegistrationListener);
+            } catch (JMException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
         dedicatedScheduledExecutor.shutdown();
         if (!dedicatedScheduledExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate gauge collector");
@@ -146,19 +206,23 @@ class GaugeCollector extends ScheduledRunnable {
     @RequiresNonNull("priorRawCounterValues")
     List<GaugeValue> collectGaugeValues(GaugeConfig gaugeConfig) throws InterruptedException {
         String mbeanObjectName = gaugeConfig.mbeanObjectName();
-        ObjectName objectName;
-        try {
-            objectName = ObjectName.getInstance(mbeanObjectName);
-        } catch (MalformedObjectNameException e) {
-            logger.debug(e.getMessage(), e);
-            // using toString() instead of getMessage() in order to capture exception class name
-            logFirstTimeMBeanException(mbeanObjectName, e.toString());
-            return ImmutableList.of();
+        ObjectName objectName = objectNames.get(mbeanObjectName);
+        if (objectName == null) {
+            try {
+                objectName = ObjectName.getInstance(mbeanObjectName);
+            } catch (MalformedObjectNameException e) {
+                logger.debug(e.getMessage(), e);
+                // using toString() instead of getMessage() in order to capture exception class
+                // name
+                logFirstTimeMBeanException(mbeanObjectName, e.toString());
+                return ImmutableList.of();
+            }
+            objectNames.put(mbeanObjectName, objectName);
         }
         if (!objectName.isPattern()) {
             return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(), mbeanObjectName);
         }
-        Set<ObjectName> matchingObjectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
+        Set<ObjectName> matchingObjectNames = getMatchingObjectNames(objectName);
         if (matchingObjectNames.isEmpty()) {
             logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
             return ImmutableList.of();
@@ -172,23 +236,65 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    private Set<ObjectName> getMatchingObjectNames(ObjectName pattern)
+            throws InterruptedException {
+        if (mbeanRegistrationChanged.getAndSet(false)) {
+            patternMatches.clear();
+        }
+        Set<ObjectName> matchingObjectNames = patternMatches.get(pattern);
+        if (matchingObjectNames == null) {
+            matchingObjectNames = lazyPlatformMBeanServer.queryNames(pattern, null);
+            if (mbeanRegistrationNotifications) {
+                patternMatches.put(pattern, matchingObjectNames);
+            }
+        }
+        return matchingObjectNames;
+    }
+
     @RequiresNonNull("priorRawCounterValues")
     private List<GaugeValue> collectGaugeValues(ObjectName objectName,
             List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName) {
         long captureTime = clock.currentTimeMillis();
+        // read all attributes of the mbean in a single call
+        Set<String> attributeNames = Sets.newLinkedHashSet();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            attributeNames.add(getAttributeName(mbeanAttribute.name()));
+        }
+        Map<String, /*@Nullable*/ Object> attributeValues = Maps.newHashMap();
+        try {
+            AttributeList attributeList = lazyPlatformMBeanServer.getAttributes(objectName,
+                    attributeNames.toArray(new String[attributeNames.size()]));
+            if (attributeList != null) {
+                for (Attribute attribute : attributeList.asList()) {
+                    attributeValues.put(attribute.getName(), attribute.getValue());
+                }
+            }
+        } catch (InstanceNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+            logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+            return ImmutableList.of();
+        } catch (Exception e) {
+            // fall back to reading the attributes one at a time below, which will log the
+            // specific error(s)
+            logger.debug(e.getMessage(), e);
+        }
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
             String mbeanAttributeName = mbeanAttribute.name();
+            String attributeName = getAttributeName(mbeanAttributeName);
             Object attributeValue;
             try {
-                if (mbeanAttributeName.contains("/")) {
-                    String[] path = mbeanAttributeName.split("\\/");
-                    attributeValue = lazyPlatformMBeanServer.getAttribute(objectName, path[0]);
-                    CompositeData compositeData = (CompositeData) attributeValue;
-                    attributeValue = compositeData.get(path[1]);
+                if (attributeValues.containsKey(attributeName)) {
+                    attributeValue = attributeValues.get(attributeName);
                 } else {
+                    // attributes that could not be read are omitted from getAttributes() (without
+                    // any indication of why), so read individually in order to find out why
                     attributeValue =
-                            lazyPlatformMBeanServer.getAttribute(objectName, mbeanAttributeName);
+                            lazyPlatformMBeanServer.getAttribute(objectName, attributeName);
+                }
+                if (!attributeName.equals(mbeanAttributeName)) {
+                    CompositeData compositeData = (CompositeData) attributeValue;
+                    attributeValue = compositeData.get(mbeanAttributeName.split("\\/")[1]);
                 }
             } catch (InstanceNotFoundException e) {
                 logger.debug(e.getMessage(), e);
@@ -257,6 +363,11 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    private static String getAttributeName(String mbeanAttributeName) {
+        int index = mbeanAttributeName.indexOf('/');
+        return index == -1 ? mbeanAttributeName : mbeanAttributeName.substring(0, index);
+    }
+
     // relatively common, so nice message
     private void logFirstTimeMBeanNotMatchedOrFound(String mbeanObjectName) {
         int delaySeconds = configService.getAdvancedConfig().mbeanGaugeNotFoundDelaySeconds();
@@ -299,6 +410,14 @@ class GaugeCollector extends ScheduledRunnable {
         }
     }
 
+    private class MBeanRegistrationListener implements NotificationListener {
+        @Override
+        public void handleNotification(Notification notification, @Nullable Object handback) {
+            // registration or unregistration
+            mbeanRegistrationChanged.set(true);
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface RawCounterValue {
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.model.Transaction;
+import org.glowroot.common.util.ScheduledRunnable;
+
+// periodically sums the approximate memory retained by all in-flight transactions (see
+// Transaction.getEstimatedRetainedBytes()), and when this exceeds the configured budget, selects
+// the largest (and then oldest) transactions to stop capturing additional detail
+//
+// the per-transaction counters are maintained on the hot path anyways, so the only cost here is
+// iterating over the in-flight transactions once per period
+class TransactionMemoryWatcher extends ScheduledRunnable implements TransactionMemoryStatsMXBean {
+
+    static final int PERIOD_MILLIS = 1000;
+
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    private final TransactionRegistry transactionRegistry;
+    private final ConfigService configService;
+
+    private volatile long estimatedRetainedBytes;
+    private volatile int inFlightTransactionCount;
+    private final AtomicLong memoryBudgetExceededTransactionCount = new AtomicLong();
+
+    TransactionMemoryWatcher(TransactionRegistry transactionRegistry,
+            ConfigService configService) {
+        this.transactionRegistry = transactionRegistry;
+        this.configService = configService;
+    }
+
+    @Override
+    protected void runInternal() {
+        List<TransactionSize> transactionSizes = Lists.newArrayList();
+        long totalBytes = 0;
+        long growingBytes = 0;
+        int transactionCount = 0;
+        for (Transaction transaction : transactionRegistry.getTransactions()) {
+            transactionCount++;
+            long bytes = transaction.getEstimatedRetainedBytes();
+            totalBytes += bytes;
+            if (!transaction.isMemoryBudgetExceeded()) {
+                growingBytes += bytes;
+                transactionSizes.add(new TransactionSize(transaction, bytes));
+            }
+        }
+        estimatedRetainedBytes = totalBytes;
+        inFlightTransactionCount = transactionCount;
+        long budgetBytes = getBudgetBytes();
+        // memory that has already been captured is not released until the transaction completes,
+        // so the goal here is to stop growth from the transactions that account for the overage
+        //
+        // transactions that have already been flagged have stopped growing, so they are excluded
+        // from the overage, otherwise their (unreleasable) bytes would cause additional
+        // transactions to be flagged on every run until they complete
+        if (budgetBytes == 0 || growingBytes <= budgetBytes) {
+            return;
+        }
+        Collections.sort(transactionSizes, LargestThenOldest.INSTANCE);
+        long overageBytes = growingBytes - budgetBytes;
+        for (TransactionSize transactionSize : transactionSizes) {
+            if (overageBytes <= 0) {
+                break;
+            }
+            transactionSize.transaction.setMemoryBudgetExceeded();
+            memoryBudgetExceededTransactionCount.incrementAndGet();
+            overageBytes -= transactionSize.bytes;
+        }
+    }
+
+    @Override
+    public long getEstimatedRetainedBytes() {
+        return estimatedRetainedBytes;
+    }
+
+    @Override
+    public long getBudgetBytes() {
+        return configService.getAdvancedConfig().transactionMemoryBudgetMb() * BYTES_PER_MB;
+    }
+
+    @Override
+    public int getInFlightTransactionCount() {
+        return inFlightTransactionCount;
+    }
+
+    @Override
+    public long getMemoryBudgetExceededTransactionCount() {
+        return memoryBudgetExceededTransactionCount.get();
+    }
+
+    private static class TransactionSize {
+
+        private final Transaction transaction;
+        private final long bytes;
+
+        private TransactionSize(Transaction transaction, long bytes) {
+            this.transaction = transaction;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class LargestThenOldest implements Comparator<TransactionSize> {
+
+        private static final LargestThenOldest INSTANCE = new LargestThenOldest();
+
+        @Override
+        public int compare(TransactionSize left, TransactionSize right) {
+            int result = Longs.compare(right.bytes, left.bytes);
+            if (result != 0) {
+                return result;
+            }
+            // start ticks need to be compared as difference since ticker can wrap around
+            long diff = left.transaction.getStartTick() - right.transaction.getStartTick();
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+    }
+}
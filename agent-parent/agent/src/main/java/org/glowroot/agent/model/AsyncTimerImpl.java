@@ -17,6 +17,8 @@ package org.glowroot.agent.model;
 
 import java.util.Iterator;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 
@@ -31,20 +33,28 @@ public class AsyncTimerImpl implements CommonTimerImpl {
 
     private final TimerNameImpl timerName;
     private final long startTick;
+    // non-null when this timer is not retained by the transaction, see
+    // Transaction.startAsyncTimer()
+    private final @Nullable AsyncTimerRollup rollup;
 
     private volatile long totalNanos = -1;
 
-    AsyncTimerImpl(TimerNameImpl timerName, long startTick) {
+    AsyncTimerImpl(TimerNameImpl timerName, long startTick, @Nullable AsyncTimerRollup rollup) {
         this.timerName = timerName;
         this.startTick = startTick;
+        this.rollup = rollup;
     }
 
     public void stop() {
-        totalNanos = ticker.read() - startTick;
+        end(ticker.read());
     }
 
     public void end(long endTick) {
+        boolean active = totalNanos == -1;
         totalNanos = endTick - startTick;
+        if (active && rollup != null) {
+            rollup.add(this);
+        }
     }
 
     @Override
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.List;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+
+// async timers beyond AdvancedConfig.maxAsyncRootTimersPerTransaction() are not retained by the
+// transaction, instead they are rolled up here (one timer per timer name) as each one ends
+class AsyncTimerRollup {
+
+    @GuardedBy("this")
+    private final List<MutableTimer> rootTimers = Lists.newArrayList();
+
+    synchronized void add(AsyncTimerImpl asyncTimer) {
+        String name = asyncTimer.getName();
+        for (MutableTimer rootTimer : rootTimers) {
+            if (name.equals(rootTimer.getName())) {
+                rootTimer.merge(asyncTimer);
+                return;
+            }
+        }
+        MutableTimer rootTimer = MutableTimer.createRootTimer(name, false);
+        rootTimer.merge(asyncTimer);
+        rootTimers.add(rootTimer);
+    }
+
+    // returns copies since the rollup can continue to be merged into while the transaction is
+    // still active
+    synchronized List<MutableTimer> getRootTimers() {
+        List<MutableTimer> copies = Lists.newArrayListWithCapacity(rootTimers.size());
+        for (MutableTimer rootTimer : rootTimers) {
+            copies.add(rootTimer.copy());
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.common.util.NotAvailableAware;
+
+// auxiliary thread contexts have their root timers, thread stats and queries rolled up here as each
+// one completes, so that reading them (e.g. when the transaction is aggregated) does not need to
+// visit every auxiliary thread context, and so that auxiliary thread contexts beyond
+// AdvancedConfig.maxAuxThreadContextsPerTransaction() do not need to be retained by the
+// transaction at all
+//
+// auxiliary thread contexts that are retained (for their trace entries) but have not completed yet
+// are read under the same lock that add() holds, so that each one is counted exactly once
+class AuxThreadContextRollup {
+
+    @GuardedBy("this")
+    private final List<MutableTimer> rootTimers = Lists.newArrayList();
+
+    @GuardedBy("this")
+    private long totalCpuNanos;
+    @GuardedBy("this")
+    private long totalBlockedMillis;
+    @GuardedBy("this")
+    private long totalWaitedMillis;
+    @GuardedBy("this")
+    private long totalAllocatedBytes;
+
+    @GuardedBy("this")
+    private final Map<String, Map<String, QueryData>> queries = Maps.newHashMap();
+
+    synchronized void add(ThreadContextImpl threadContext) {
+        mergeRootTimer(threadContext.getRootTimer());
+        ThreadStats threadStats = threadContext.getThreadStats();
+        totalCpuNanos = NotAvailableAware.add(totalCpuNanos, threadStats.getTotalCpuNanos());
+        totalBlockedMillis =
+                NotAvailableAware.add(totalBlockedMillis, threadStats.getTotalBlockedMillis());
+        totalWaitedMillis =
+                NotAvailableAware.add(totalWaitedMillis, threadStats.getTotalWaitedMillis());
+        totalAllocatedBytes =
+                NotAvailableAware.add(totalAllocatedBytes, threadStats.getTotalAllocatedBytes());
+        Iterator<QueryData> i = threadContext.getQueries();
+        while (i.hasNext()) {
+            mergeQuery(i.next());
+        }
+        threadContext.setRolledUp();
+    }
+
+    // returns copies since the rollup can continue to be merged into while the transaction is
+    // still active
+    synchronized List<CommonTimerImpl> getRootTimers(
+            Iterable<ThreadContextImpl> retainedAuxThreadContexts) {
+        List<CommonTimerImpl> rootTimers = Lists.newArrayList();
+        for (ThreadContextImpl threadContext : retainedAuxThreadContexts) {
+            if (!threadContext.isRolledUp()) {
+                rootTimers.add(threadContext.getRootTimer());
+            }
+        }
+        for (MutableTimer rootTimer : this.rootTimers) {
+            rootTimers.add(rootTimer.copy());
+        }
+        return rootTimers;
+    }
+
+    synchronized List<ThreadStats> getThreadStats(
+            Iterable<ThreadContextImpl> retainedAuxThreadContexts) {
+        List<ThreadStats> threadStats = Lists.newArrayList();
+        for (ThreadContextImpl threadContext : retainedAuxThreadContexts) {
+            if (!threadContext.isRolledUp()) {
+                threadStats.add(threadContext.getThreadStats());
+            }
+        }
+        threadStats.add(new ThreadStats(totalCpuNanos, totalBlockedMillis, totalWaitedMillis,
+                totalAllocatedBytes));
+        return threadStats;
+    }
+
+    synchronized void addQueries(Iterable<ThreadContextImpl> retainedAuxThreadContexts,
+            List<Iterator<QueryData>> queries) {
+        for (ThreadContextImpl threadContext : retainedAuxThreadContexts) {
+            if (!threadContext.isRolledUp()) {
+                queries.add(threadContext.getQueries());
+            }
+        }
+        List<QueryData> copies = Lists.newArrayList();
+        for (Map<String, QueryData> queriesForType : this.queries.values()) {
+            for (QueryData queryData : queriesForType.values()) {
+                QueryData copy = new QueryData(queryData.getQueryType(),
+                        queryData.getQueryText(), null);
+                copy.add(queryData);
+                copies.add(copy);
+            }
+        }
+        queries.add(ImmutableList.copyOf(copies).iterator());
+    }
+
+    @GuardedBy("this")
+    private void mergeRootTimer(TimerImpl toBeMergedRootTimer) {
+        for (MutableTimer rootTimer : rootTimers) {
+            if (toBeMergedRootTimer.getName().equals(rootTimer.getName())) {
+                rootTimer.merge(toBeMergedRootTimer);
+                return;
+            }
+        }
+        MutableTimer rootTimer = MutableTimer.createRootTimer(toBeMergedRootTimer.getName(),
+                toBeMergedRootTimer.isExtended());
+        rootTimer.merge(toBeMergedRootTimer);
+        rootTimers.add(rootTimer);
+    }
+
+    @GuardedBy("this")
+    private void mergeQuery(QueryData toBeMergedQuery) {
+        String queryType = toBeMergedQuery.getQueryType();
+        Map<String, QueryData> queriesForType = queries.get(queryType);
+        if (queriesForType == null) {
+            queriesForType = Maps.newHashMap();
+            queries.put(queryType, queriesForType);
+        }
+        String queryText = toBeMergedQuery.getQueryText();
+        QueryData queryData = queriesForType.get(queryText);
+        if (queryData == null) {
+            queryData = new QueryData(queryType, queryText, null);
+            queriesForType.put(queryText, queryData);
+        }
+        queryData.add(toBeMergedQuery);
+    }
+}
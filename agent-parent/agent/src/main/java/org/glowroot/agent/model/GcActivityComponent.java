@@ -21,8 +21,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -31,12 +33,17 @@ import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.model.GcEpochTracker.GcEpoch;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 class GcActivityComponent {
 
     private static final Logger logger = LoggerFactory.getLogger(GcActivityComponent.class);
 
+    // null unless low overhead thread stats is enabled (and gc notifications are supported)
+    private final @Nullable GcEpochTracker gcEpochTracker;
+
+    private final long startingEpoch;
     private final Map<String, GcSnapshot> startingSnapshots;
 
     @GuardedBy("lock")
@@ -44,15 +51,15 @@ class GcActivityComponent {
 
     private final Object lock = new Object();
 
-    GcActivityComponent() {
-        List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
-        startingSnapshots = Maps.newHashMap();
-        for (GarbageCollectorMXBean gcBean : gcBeans) {
-            GcSnapshot info = ImmutableGcSnapshot.builder()
-                    .collectionCount(gcBean.getCollectionCount())
-                    .collectionTime(gcBean.getCollectionTime())
-                    .build();
-            startingSnapshots.put(gcBean.getName(), info);
+    GcActivityComponent(@Nullable GcEpochTracker gcEpochTracker) {
+        this.gcEpochTracker = gcEpochTracker;
+        if (gcEpochTracker == null) {
+            startingEpoch = -1;
+            startingSnapshots = getGcSnapshots(ManagementFactory.getGarbageCollectorMXBeans());
+        } else {
+            GcEpoch gcEpoch = gcEpochTracker.getCurrentEpoch();
+            startingEpoch = gcEpoch.epoch();
+            startingSnapshots = gcEpoch.gcSnapshots();
         }
     }
 
@@ -78,19 +85,29 @@ class GcActivityComponent {
     }
 
     private List<Trace.GarbageCollectionActivity> getGcActivityInternal() {
+        Map<String, GcSnapshot> endingSnapshots;
+        if (gcEpochTracker == null) {
+            endingSnapshots = getGcSnapshots(ManagementFactory.getGarbageCollectorMXBeans());
+        } else {
+            GcEpoch gcEpoch = gcEpochTracker.getCurrentEpoch();
+            if (gcEpoch.epoch() == startingEpoch) {
+                // optimization for common case, no garbage collections during the transaction
+                return ImmutableList.of();
+            }
+            endingSnapshots = gcEpoch.gcSnapshots();
+        }
         Set<String> unmatchedNames = Sets.newHashSet(startingSnapshots.keySet());
-        List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
         List<Trace.GarbageCollectionActivity> gcActivity = Lists.newArrayList();
-        for (GarbageCollectorMXBean gcBean : gcBeans) {
-            String name = gcBean.getName();
+        for (Map.Entry<String, GcSnapshot> entry : endingSnapshots.entrySet()) {
+            String name = entry.getKey();
             GcSnapshot gcSnapshot = startingSnapshots.get(name);
             if (gcSnapshot == null) {
                 logger.warn("garbage collector bean {} did not exist at start of trace", name);
                 continue;
             }
             unmatchedNames.remove(name);
-            long collectionCountEnd = gcBean.getCollectionCount();
-            long collectionTimeEnd = gcBean.getCollectionTime();
+            long collectionCountEnd = entry.getValue().collectionCount();
+            long collectionTimeEnd = entry.getValue().collectionTime();
             if (collectionCountEnd == gcSnapshot.collectionCount()) {
                 // no new collections, so don't write it out
                 continue;
@@ -107,6 +124,18 @@ class GcActivityComponent {
         return gcActivity;
     }
 
+    static Map<String, GcSnapshot> getGcSnapshots(List<GarbageCollectorMXBean> gcBeans) {
+        Map<String, GcSnapshot> gcSnapshots = Maps.newHashMap();
+        for (GarbageCollectorMXBean gcBean : gcBeans) {
+            GcSnapshot info = ImmutableGcSnapshot.builder()
+                    .collectionCount(gcBean.getCollectionCount())
+                    .collectionTime(gcBean.getCollectionTime())
+                    .build();
+            gcSnapshots.put(gcBean.getName(), info);
+        }
+        return gcSnapshots;
+    }
+
     @Value.Immutable
     interface GcSnapshot {
         long collectionCount();
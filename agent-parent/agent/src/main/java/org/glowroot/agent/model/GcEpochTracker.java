@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.model.GcActivityComponent.GcSnapshot;
+import org.glowroot.agent.util.JavaVersion;
+import org.glowroot.common.util.Styles;
+
+// maintains a global gc "epoch" which is incremented (along with a new snapshot of the garbage
+// collector counts and times) on every garbage collection notification
+//
+// this allows transactions to capture gc activity by reading a single volatile field at the start
+// and end of the transaction, instead of querying every GarbageCollectorMXBean at the start and end
+// of every transaction (and in the common case where no garbage collection occurred during the
+// transaction, nothing needs to be allocated either)
+public class GcEpochTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(GcEpochTracker.class);
+
+    // same as com.sun.management.GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION,
+    // which is not referenced directly since it is not available on all JVMs
+    private static final String GARBAGE_COLLECTION_NOTIFICATION =
+            "com.sun.management.gc.notification";
+
+    private final List<GarbageCollectorMXBean> gcBeans;
+    private final NotificationListener listener = new GcNotificationListener();
+
+    private volatile GcEpoch currentEpoch;
+
+    // returns null if garbage collection notifications are not supported, in which case gc activity
+    // is captured by querying the GarbageCollectorMXBeans directly
+    public static @Nullable GcEpochTracker create() {
+        if (JavaVersion.isJava6()) {
+            // garbage collection notifications were introduced in Java SE 7
+            return null;
+        }
+        List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean gcBean : gcBeans) {
+            if (!(gcBean instanceof NotificationEmitter)) {
+                logger.debug("garbage collector bean {} does not implement NotificationEmitter",
+                        gcBean.getName());
+                return null;
+            }
+        }
+        GcEpochTracker gcEpochTracker = new GcEpochTracker(gcBeans);
+        for (GarbageCollectorMXBean gcBean : gcBeans) {
+            ((NotificationEmitter) gcBean).addNotificationListener(gcEpochTracker.listener, null,
+                    null);
+        }
+        return gcEpochTracker;
+    }
+
+    private GcEpochTracker(List<GarbageCollectorMXBean> gcBeans) {
+        this.gcBeans = gcBeans;
+        currentEpoch = ImmutableGcEpoch.of(0, GcActivityComponent.getGcSnapshots(gcBeans));
+    }
+
+    GcEpoch getCurrentEpoch() {
+        return currentEpoch;
+    }
+
+    public void close() {
+        for (GarbageCollectorMXBean gcBean : gcBeans) {
+            try {
+                ((NotificationEmitter) gcBean).removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    private synchronized void onGarbageCollection() {
+        // garbage collections are rare relative to transactions, so it is fine to re-read all of
+        // the garbage collector beans here
+        currentEpoch = ImmutableGcEpoch.of(currentEpoch.epoch() + 1,
+                GcActivityComponent.getGcSnapshots(gcBeans));
+    }
+
+    private class GcNotificationListener implements NotificationListener {
+
+        @Override
+        public void handleNotification(Notification notification, @Nullable Object handback) {
+            if (!notification.getType().equals(GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            try {
+                onGarbageCollection();
+            } catch (Throwable t) {
+                // don't propagate exception into the notification thread
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface GcEpoch {
+        long epoch();
+        Map<String, GcSnapshot> gcSnapshots();
+    }
+}
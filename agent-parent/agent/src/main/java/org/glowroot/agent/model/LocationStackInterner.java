@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+// interns the location stack traces captured for trace entries of a single transaction, so that
+// e.g. an N+1 query pattern which captures the same stack trace hundreds of times only retains a
+// single copy of it (and only serializes it once, see LocationStackTable)
+//
+// this is called from the transaction thread and auxiliary threads
+class LocationStackInterner {
+
+    @GuardedBy("this")
+    private final Map<LocationStackKey, ImmutableList<StackTraceElement>> locationStacks =
+            Maps.newHashMap();
+
+    // returns the interned stack trace for stackTrace[skip..length), the frames are only copied the
+    // first time that a given stack trace is seen
+    synchronized ImmutableList<StackTraceElement> intern(StackTraceElement[] stackTrace,
+            int skip) {
+        List<StackTraceElement> frames = Arrays.asList(stackTrace).subList(skip, stackTrace.length);
+        LocationStackKey key = new LocationStackKey(frames);
+        ImmutableList<StackTraceElement> locationStack = locationStacks.get(key);
+        if (locationStack == null) {
+            locationStack = ImmutableList.copyOf(frames);
+            // re-key with the interned list so that the captured array is not retained
+            locationStacks.put(new LocationStackKey(locationStack, key.hashCode), locationStack);
+        }
+        return locationStack;
+    }
+
+    private static class LocationStackKey {
+
+        private final List<StackTraceElement> frames;
+        private final int hashCode;
+
+        private LocationStackKey(List<StackTraceElement> frames) {
+            this(frames, frames.hashCode());
+        }
+
+        private LocationStackKey(List<StackTraceElement> frames, int hashCode) {
+            this.frames = frames;
+            this.hashCode = hashCode;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof LocationStackKey)) {
+                return false;
+            }
+            LocationStackKey that = (LocationStackKey) obj;
+            return hashCode == that.hashCode && frames.equals(that.frames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+// tracks which interned location stack traces have already been written while serializing the
+// entries of a single trace, so that each distinct stack trace is only written once (on the first
+// entry that references it) and subsequent entries instead reference that first entry by its
+// (1-based) position in the pre-order traversal of the serialized entry tree
+//
+// this is only used by a single thread during serialization
+class LocationStackTable {
+
+    // identity map is fine since location stack traces are interned per transaction
+    private final Map<ImmutableList<StackTraceElement>, Integer> firstEntryIndexes =
+            Maps.newIdentityHashMap();
+
+    private int entryIndex;
+
+    int nextEntryIndex() {
+        return ++entryIndex;
+    }
+
+    // returns 0 if this is the first entry to reference the location stack trace, in which case
+    // the caller is responsible for writing out the stack trace elements
+    int getFirstEntryIndex(ImmutableList<StackTraceElement> locationStack, int entryIndex) {
+        Integer firstEntryIndex = firstEntryIndexes.get(locationStack);
+        if (firstEntryIndex == null) {
+            firstEntryIndexes.put(locationStack, entryIndex);
+            return 0;
+        }
+        return firstEntryIndex;
+    }
+}
@@ -24,7 +24,7 @@ import com.google.common.collect.Lists;
 import org.glowroot.agent.model.TimerImpl.TimerImplSnapshot;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
-class MutableTimer {
+class MutableTimer implements CommonTimerImpl {
 
     private final String name;
     private final boolean extended;
@@ -46,10 +46,48 @@ class MutableTimer {
         this.childTimers = Lists.newArrayList(nestedTimers);
     }
 
-    String getName() {
+    @Override
+    public String getName() {
         return name;
     }
 
+    @Override
+    public boolean isExtended() {
+        return extended;
+    }
+
+    @Override
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public Iterator<MutableTimer> getChildTimers() {
+        return childTimers.iterator();
+    }
+
+    @Override
+    public TimerImplSnapshot getSnapshot() {
+        return ImmutableTimerImplSnapshot.of(totalNanos, count, active);
+    }
+
+    // deep copy, so that the copy can be read while this timer continues to be merged into
+    MutableTimer copy() {
+        List<MutableTimer> copiedChildTimers = Lists.newArrayListWithCapacity(childTimers.size());
+        for (MutableTimer childTimer : childTimers) {
+            copiedChildTimers.add(childTimer.copy());
+        }
+        MutableTimer copy =
+                new MutableTimer(name, extended, totalNanos, count, copiedChildTimers);
+        copy.active = active;
+        return copy;
+    }
+
     void merge(CommonTimerImpl timer) {
         TimerImplSnapshot snapshot = timer.getSnapshot();
         count += snapshot.count();
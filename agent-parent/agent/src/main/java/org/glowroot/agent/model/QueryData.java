@@ -94,6 +94,13 @@ public class QueryData {
         }
     }
 
+    // used to roll up the queries of completed auxiliary thread contexts
+    void add(QueryData queryData) {
+        totalNanos += queryData.totalNanos;
+        executionCount += queryData.executionCount;
+        totalRows += queryData.totalRows;
+    }
+
     void incrementRowCount(long inc) {
         totalRows += inc;
     }
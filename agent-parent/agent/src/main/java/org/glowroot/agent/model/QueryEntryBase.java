@@ -35,6 +35,11 @@ public abstract class QueryEntryBase implements QueryEntry {
         this.queryData = queryData;
     }
 
+    @Nullable
+    QueryData getQueryData() {
+        return queryData;
+    }
+
     public void extendQueryData(long startTick) {
         if (queryData != null) {
             queryData.extend(startTick);
@@ -89,6 +89,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     private final boolean auxiliary;
 
+    // set (under the AuxThreadContextRollup lock) once this auxiliary thread context has completed
+    // and been rolled up into the transaction's AuxThreadContextRollup
+    private volatile boolean rolledUp;
+
     private final TransactionRegistry transactionRegistry;
     private final TransactionServiceImpl transactionService;
     private final ConfigService configService;
@@ -99,19 +103,20 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     ThreadContextImpl(Transaction transaction, @Nullable TraceEntryImpl parentTraceEntry,
             MessageSupplier messageSupplier, TimerName rootTimerName, long startTick,
-            boolean captureThreadStats, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
-            boolean auxiliary, TransactionRegistry transactionRegistry,
-            TransactionServiceImpl transactionService, ConfigService configService, Ticker ticker,
+            boolean captureThreadStats, boolean lowOverheadThreadStats,
+            @Nullable ThreadAllocatedBytes threadAllocatedBytes, boolean auxiliary,
+            TransactionRegistry transactionRegistry, TransactionServiceImpl transactionService,
+            ConfigService configService, Ticker ticker,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
         this.transaction = transaction;
         this.parentTraceEntry = parentTraceEntry;
         rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName);
         rootTimer.start(startTick);
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
-                rootTimer, startTick, ticker);
+                rootTimer, startTick, transaction.getTraceEntryFoldThreshold(), ticker);
         threadId = Thread.currentThread().getId();
-        threadStatsComponent =
-                captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
+        threadStatsComponent = captureThreadStats
+                ? new ThreadStatsComponent(threadAllocatedBytes, !lowOverheadThreadStats) : null;
         this.auxiliary = auxiliary;
         this.transactionRegistry = transactionRegistry;
         this.transactionService = transactionService;
@@ -124,6 +129,14 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return auxiliary;
     }
 
+    boolean isRolledUp() {
+        return rolledUp;
+    }
+
+    void setRolledUp() {
+        rolledUp = true;
+    }
+
     public Transaction getTransaction() {
         return transaction;
     }
@@ -278,10 +291,20 @@ public class ThreadContextImpl implements ThreadContextPlus {
             logger.warn("cannot create async context because active entry is null");
             return NopAuxThreadContext.INSTANCE;
         }
+        AuxThreadContext overflowAuxThreadContext =
+                transaction.getOverflowAuxThreadContext(activeEntry);
+        if (overflowAuxThreadContext != null) {
+            return overflowAuxThreadContext;
+        }
         return new AsyncContextImpl(transaction, activeEntry, transactionRegistry,
                 transactionService);
     }
 
+    // called after a completed trace entry has been folded into a prior identical sibling entry
+    void traceEntryFolded() {
+        transaction.releaseEntry();
+    }
+
     // typically pop() methods don't require the objects to pop, but for safety, the entry to pop is
     // passed in just to make sure it is the one on top (and if not, then pop until is is found,
     // preventing any nasty bugs from a missed pop, e.g. a trace never being marked as complete)
@@ -295,6 +318,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             if (threadStatsComponent != null) {
                 threadStatsComponent.onComplete();
             }
+            if (auxiliary) {
+                transaction.rollupAuxThreadContext(this);
+            }
             threadContextHolder.set(null);
         }
     }
@@ -577,7 +603,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 // skip i=1 which is "...TransactionServiceImpl.addErrorEntryInternal()"
                 // skip i=2 which is "...TransactionServiceImpl.addErrorEntry()"
                 // skip i=3 which is the plugin advice
-                entry.setStackTrace(ImmutableList.copyOf(stackTrace).subList(4, stackTrace.length));
+                entry.setStackTrace(stackTrace, 4);
             }
         }
     }
@@ -691,8 +717,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                     // skip i=1 which is "...DummyTraceEntryOrQuery.endWithErrorInternal()"
                     // skip i=2 which is "...DummyTraceEntryOrQuery.endWithError()"
                     // skip i=3 which is the plugin advice
-                    entry.setStackTrace(
-                            ImmutableList.copyOf(stackTrace).subList(4, stackTrace.length));
+                    entry.setStackTrace(stackTrace, 4);
                 }
             }
         }
@@ -38,6 +38,9 @@ class ThreadStatsComponent {
             threadMXBean.isThreadContentionMonitoringSupported();
 
     private final long threadId;
+    // when false (low overhead thread stats), ThreadMXBean.getThreadInfo() is never called, and
+    // blocked and waited times are reported as N/A
+    private final boolean captureContentionTimes;
     private final long startingCpuNanos;
     private final long startingBlockedMillis;
     private final long startingWaitedMillis;
@@ -50,17 +53,20 @@ class ThreadStatsComponent {
 
     private final Object lock = new Object();
 
-    ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+    ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            boolean captureContentionTimes) {
         threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
+        this.captureContentionTimes =
+                captureContentionTimes && IS_THREAD_CONTENTION_MONITORING_SUPPORTED;
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
             startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
         } else {
             startingCpuNanos = -1;
         }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (this.captureContentionTimes) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            // thread info for current thread cannot be null
+            checkNotNull(threadInfo);
             startingBlockedMillis = threadInfo.getBlockedTime();
             startingWaitedMillis = threadInfo.getWaitedTime();
         } else {
@@ -97,10 +103,13 @@ class ThreadStatsComponent {
     }
 
     private ThreadStats getThreadStatsInternal() {
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        if (threadInfo == null) {
-            // thread must have just recently terminated
-            return new ThreadStats(-1, -1, -1, -1);
+        ThreadInfo threadInfo = null;
+        if (captureContentionTimes) {
+            threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            if (threadInfo == null) {
+                // thread must have just recently terminated
+                return new ThreadStats(-1, -1, -1, -1);
+            }
         }
         long totalCpuNanos;
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
@@ -110,7 +119,7 @@ class ThreadStatsComponent {
         }
         long totalBlockedMillis;
         long totalWaitedMillis;
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (threadInfo != null) {
             totalBlockedMillis = getTotalBlockedMillis(threadInfo);
             totalWaitedMillis = getTotalWaitedMillis(threadInfo);
         } else {
@@ -130,7 +139,14 @@ class ThreadStatsComponent {
     private long getTotalCpuNanos() {
         // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
         // than whether or not it is supported)
-        long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+        long threadCpuNanos;
+        if (Thread.currentThread().getId() == threadId) {
+            // this is the common case (called from onComplete()), and is cheaper than
+            // getThreadCpuTime(threadId)
+            threadCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+        } else {
+            threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+        }
         if (startingCpuNanos != -1 && threadCpuNanos != -1) {
             return threadCpuNanos - startingCpuNanos;
         } else {
@@ -132,11 +132,12 @@ public class TraceCreator {
             errorBuilder.build();
         }
         TimerImpl mainThreadRootTimer = transaction.getMainThreadRootTimer();
-        Iterable<TimerImpl> auxThreadRootTimers = transaction.getAuxThreadRootTimers();
+        Iterable<CommonTimerImpl> auxThreadRootTimers = transaction.getAuxThreadRootTimers();
         if (transaction.isAsynchronous()) {
             // the main thread is treated as just another auxiliary thread
             builder.addAllAuxThreadRootTimer(mergeRootTimers(
-                    Iterables.concat(ImmutableList.of(mainThreadRootTimer), auxThreadRootTimers)));
+                    Iterables.concat(ImmutableList.<CommonTimerImpl>of(mainThreadRootTimer),
+                            auxThreadRootTimers)));
         } else {
             builder.setMainThreadRootTimer(mainThreadRootTimer.toProto());
             builder.addAllAuxThreadRootTimer(mergeRootTimers(auxThreadRootTimers));
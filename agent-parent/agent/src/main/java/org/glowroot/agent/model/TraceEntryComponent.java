@@ -55,12 +55,20 @@ class TraceEntryComponent {
 
     private TraceEntryImpl tailEntry;
 
+    // consecutive identical sibling query entries (e.g. N+1 queries) beyond this many are folded
+    // into a single trace entry as they occur, zero disables folding
+    private final int foldThreshold;
+    // the last entry of the current run of consecutive identical sibling query entries
+    private @Nullable TraceEntryImpl runTailEntry;
+    private int runLength;
+
     private final Ticker ticker;
 
     TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
-            TimerImpl timer, long startTick, Ticker ticker) {
+            TimerImpl timer, long startTick, int foldThreshold, Ticker ticker) {
         this.threadContext = threadContext;
         this.startTick = startTick;
+        this.foldThreshold = foldThreshold;
         this.ticker = ticker;
         rootEntry = new TraceEntryImpl(threadContext, null, messageSupplier, null, 0, startTick,
                 timer, null);
@@ -115,7 +123,8 @@ class TraceEntryComponent {
             childTraceEntries = TraceEntryImpl.orderingByStartTick.sortedCopy(childTraceEntries);
             parentChildMap.replaceValues(parentTraceEntry, childTraceEntries);
         }
-        return getProtobufChildEntries(rootEntry, parentChildMap, startTick, captureTick);
+        return getProtobufChildEntries(rootEntry, parentChildMap, startTick, captureTick,
+                new LocationStackTable());
     }
 
     long getStartTick() {
@@ -136,6 +145,9 @@ class TraceEntryComponent {
 
     TraceEntryImpl pushEntry(long startTick, MessageSupplier messageSupplier,
             @Nullable QueryData queryData, long queryExecutionCount, TimerImpl timer) {
+        if (foldThreshold != 0) {
+            foldTailEntryIfRepeated();
+        }
         TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
                 queryData, queryExecutionCount, startTick, timer, null);
         tailEntry.setNextTraceEntry(entry);
@@ -148,6 +160,10 @@ class TraceEntryComponent {
     // passed in just to make sure it is the one on top (and if not, then pop until it is found,
     // preventing any nasty bugs from a missed pop, e.g. an entry never being marked as complete)
     void popEntry(TraceEntryImpl entry, long endTick) {
+        if (foldThreshold != 0 && entry != tailEntry) {
+            // no more siblings will follow the tail entry
+            foldTailEntryIfRepeated();
+        }
         popEntrySafe(entry);
         if (activeEntry == null) {
             this.endTick = endTick;
@@ -180,6 +196,45 @@ class TraceEntryComponent {
         return activeEntry;
     }
 
+    // folding is performed on the (completed) tail entry when the next entry is pushed, instead of
+    // when the tail entry itself is popped, so that any extensions of the tail entry (e.g. jdbc
+    // result set iteration) are included in the folded duration
+    //
+    // the first foldThreshold entries of a run are kept as individual entries, the next entry
+    // becomes the fold target, and all subsequent entries of the run are folded into the fold
+    // target and unlinked, so that they can be garbage collected while the transaction is still
+    // running and no longer count toward maxTraceEntriesPerTransaction
+    private void foldTailEntryIfRepeated() {
+        TraceEntryImpl entry = tailEntry;
+        if (!entry.isFoldable()) {
+            runTailEntry = null;
+            runLength = 0;
+            return;
+        }
+        TraceEntryImpl runTailEntry = this.runTailEntry;
+        if (runTailEntry == entry) {
+            // already processed (e.g. pushEntry() after popEntry() of parent)
+            return;
+        }
+        if (runTailEntry == null || runTailEntry.getNextTraceEntry() != entry
+                || !entry.isRepeatOf(runTailEntry)) {
+            this.runTailEntry = entry;
+            runLength = 1;
+            return;
+        }
+        if (runTailEntry.isFoldTarget()) {
+            runTailEntry.fold(entry);
+            runTailEntry.clearNextTraceEntry();
+            tailEntry = runTailEntry;
+            threadContext.traceEntryFolded();
+            return;
+        }
+        this.runTailEntry = entry;
+        if (++runLength > foldThreshold) {
+            entry.markAsFoldTarget();
+        }
+    }
+
     private void popEntrySafe(TraceEntryImpl entry) {
         if (activeEntry == null) {
             logger.error("entry stack is empty, cannot pop entry: {}", entry);
@@ -210,7 +265,7 @@ class TraceEntryComponent {
 
     private static List<Trace.Entry> getProtobufChildEntries(TraceEntryImpl entry,
             Multimap<TraceEntryImpl, TraceEntryImpl> parentChildMap, long transactionStartTick,
-            long captureTick) {
+            long captureTick, LocationStackTable locationStackTable) {
         if (!parentChildMap.containsKey(entry)) {
             return ImmutableList.of();
         }
@@ -218,10 +273,15 @@ class TraceEntryComponent {
         List<Trace.Entry> protobufChildEntries =
                 Lists.newArrayListWithCapacity(childEntries.size());
         for (TraceEntryImpl childEntry : childEntries) {
+            // location stack trace must be registered before descending into the child entries,
+            // since entries reference each other by their position in pre-order traversal
+            int entryIndex = locationStackTable.nextEntryIndex();
+            int locationStackEntryIndex =
+                    childEntry.getLocationStackEntryIndex(locationStackTable, entryIndex);
             List<Trace.Entry> subChildEntries = getProtobufChildEntries(childEntry, parentChildMap,
-                    transactionStartTick, captureTick);
+                    transactionStartTick, captureTick, locationStackTable);
             protobufChildEntries.add(childEntry.toProto(transactionStartTick, captureTick,
-                    subChildEntries));
+                    subChildEntries, locationStackEntryIndex));
         }
         return protobufChildEntries;
     }
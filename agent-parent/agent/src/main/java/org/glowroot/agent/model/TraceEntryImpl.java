@@ -76,6 +76,18 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
     // not volatile, so depends on memory barrier in Transaction for visibility
     private @Nullable ImmutableList<StackTraceElement> stackTrace;
 
+    // number of consecutive identical sibling query entries represented by this entry, including
+    // this entry, see TraceEntryComponent (zero means this entry is not a fold target)
+    //
+    // not volatile, so depends on memory barrier in Transaction for visibility
+    private int repeatCount;
+    // not volatile, so depends on memory barrier in Transaction for visibility
+    private long repeatTotalNanos;
+    // not volatile, so depends on memory barrier in Transaction for visibility
+    private long repeatMaxNanos;
+    // not volatile, so depends on memory barrier in Transaction for visibility
+    private long repeatLastStartTick;
+
     // only used by transaction thread
     private long stackTraceThreshold;
     // only used by transaction thread
@@ -109,8 +121,10 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
         return errorMessage;
     }
 
+    // locationStackEntryIndex is the position of an earlier serialized entry which already holds
+    // this entry's location stack trace, or zero if the stack trace needs to be written here
     Trace.Entry toProto(long transactionStartTick, long captureTick,
-            List<Trace.Entry> childEntries) {
+            List<Trace.Entry> childEntries, int locationStackEntryIndex) {
         long offsetNanos = startTick - transactionStartTick;
         long durationNanos;
         boolean active;
@@ -129,8 +143,16 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
 
         Trace.Entry.Builder builder = Trace.Entry.newBuilder()
                 .setStartOffsetNanos(offsetNanos)
-                .setDurationNanos(durationNanos)
                 .setActive(active);
+        if (repeatCount > 1) {
+            // duration of a folded entry is the total duration across all of the repetitions
+            builder.setDurationNanos(durationNanos + repeatTotalNanos)
+                    .setRepeatCount(repeatCount)
+                    .setRepeatMaxDurationNanos(Math.max(durationNanos, repeatMaxNanos))
+                    .setRepeatLastStartOffsetNanos(repeatLastStartTick - transactionStartTick);
+        } else {
+            builder.setDurationNanos(durationNanos);
+        }
 
         // async root entry always has empty message and empty detail
         builder.setMessage(message == null ? "" : message.getText() + getRowCountSuffix());
@@ -148,13 +170,17 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
             errorBuilder.build();
         }
         if (stackTrace != null) {
-            for (StackTraceElement stackTraceElement : stackTrace) {
-                builder.addLocationStackTraceElementBuilder()
-                        .setClassName(stackTraceElement.getClassName())
-                        .setMethodName(Strings.nullToEmpty(stackTraceElement.getMethodName()))
-                        .setFileName(Strings.nullToEmpty(stackTraceElement.getFileName()))
-                        .setLineNumber(stackTraceElement.getLineNumber())
-                        .build();
+            if (locationStackEntryIndex == 0) {
+                for (StackTraceElement stackTraceElement : stackTrace) {
+                    builder.addLocationStackTraceElementBuilder()
+                            .setClassName(stackTraceElement.getClassName())
+                            .setMethodName(Strings.nullToEmpty(stackTraceElement.getMethodName()))
+                            .setFileName(Strings.nullToEmpty(stackTraceElement.getFileName()))
+                            .setLineNumber(stackTraceElement.getLineNumber())
+                            .build();
+                }
+            } else {
+                builder.setLocationStackEntryIndex(locationStackEntryIndex);
             }
         }
         builder.addAllChildEntry(childEntries);
@@ -165,6 +191,16 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
         return startTick;
     }
 
+    // returns zero if this entry has no location stack trace, or if it is the first serialized
+    // entry to reference its location stack trace
+    int getLocationStackEntryIndex(LocationStackTable locationStackTable, int entryIndex) {
+        ImmutableList<StackTraceElement> stackTrace = this.stackTrace;
+        if (stackTrace == null) {
+            return 0;
+        }
+        return locationStackTable.getFirstEntryIndex(stackTrace, entryIndex);
+    }
+
     @Override
     public void end() {
         long endTick = ticker.read();
@@ -192,7 +228,7 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
             // skip i=0 which is "java.lang.Thread.getStackTrace()"
             // skip i=1 which is "...TraceEntry.endWithStackTrace()"
             // skip i=2 which is the plugin advice
-            this.stackTrace = ImmutableList.copyOf(stackTrace).subList(3, stackTrace.length);
+            setStackTrace(stackTrace, 3);
         } else {
             // store threshold in case this trace entry is extended, see extend() below
             stackTraceThreshold = thresholdNanos;
@@ -250,13 +286,41 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
                 // skip i=0 which is "java.lang.Thread.getStackTrace()"
                 // skip i=1 which is "...Timer.stop()"
                 // skip i=2 which is the plugin advice
-                this.stackTrace = ImmutableList.copyOf(stackTrace).subList(3, stackTrace.length);
+                setStackTrace(stackTrace, 3);
             }
         }
     }
 
-    public void setStackTrace(ImmutableList<StackTraceElement> stackTrace) {
-        this.stackTrace = stackTrace;
+    // only completed synchronous query entries without error or stack trace are folded, so that
+    // nothing is lost other than the individual start offsets and durations (and row counts)
+    boolean isFoldable() {
+        return getQueryData() != null && isCompleted() && !isAsync() && errorMessage == null
+                && stackTrace == null;
+    }
+
+    boolean isRepeatOf(TraceEntryImpl entry) {
+        return parentTraceEntry == entry.parentTraceEntry && getQueryData() == entry.getQueryData();
+    }
+
+    boolean isFoldTarget() {
+        return repeatCount != 0;
+    }
+
+    void markAsFoldTarget() {
+        repeatCount = 1;
+    }
+
+    void fold(TraceEntryImpl entry) {
+        long durationNanos = entry.endTick - entry.revisedStartTick;
+        repeatCount++;
+        repeatTotalNanos += durationNanos;
+        repeatMaxNanos = Math.max(repeatMaxNanos, durationNanos);
+        repeatLastStartTick = entry.startTick;
+    }
+
+    // stack trace elements before index skip are not included
+    public void setStackTrace(StackTraceElement[] stackTrace, int skip) {
+        this.stackTrace = threadContext.getTransaction().internLocationStack(stackTrace, skip);
     }
 
     @Nullable
@@ -273,6 +337,10 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
         this.nextTraceEntry = nextTraceEntry;
     }
 
+    void clearNextTraceEntry() {
+        nextTraceEntry = null;
+    }
+
     void immediateEndAsErrorEntry(ErrorMessage errorMessage, long endTick) {
         this.errorMessage = errorMessage;
         this.endTick = endTick;
@@ -298,7 +366,7 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
             // skip i=1 which is "...TraceEntryImpl.endWithErrorInternal()"
             // skip i=2 which is "...TraceEntryImpl.endWithError()"
             // skip i=3 which is the plugin advice
-            setStackTrace(ImmutableList.copyOf(stackTrace).subList(4, stackTrace.length));
+            setStackTrace(stackTrace, 4);
         }
     }
 
@@ -49,14 +49,17 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.AsyncContextImpl;
 import org.glowroot.agent.impl.TransactionRegistry;
 import org.glowroot.agent.impl.TransactionServiceImpl;
 import org.glowroot.agent.impl.UserProfileScheduler;
+import org.glowroot.agent.plugin.api.AuxThreadContext;
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.internal.ReadableMessage;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
+import org.glowroot.agent.util.ChunkedAppendOnlyList;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.common.util.Cancellable;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
@@ -82,6 +85,13 @@ public class Transaction {
 
     private static final AtomicBoolean loggedBackgroundTransactionSuggestion = new AtomicBoolean();
 
+    // approximate retained sizes, used to estimate the memory retained by in-flight transactions
+    private static final int ESTIMATED_TRACE_ENTRY_BYTES = 200;
+    private static final int ESTIMATED_QUERY_BYTES = 150;
+    private static final int ESTIMATED_PROFILE_SAMPLE_BYTES = 500;
+    private static final int ESTIMATED_ATTRIBUTE_VALUE_BYTES = 100;
+    private static final int ESTIMATED_AUX_THREAD_CONTEXT_BYTES = 500;
+
     private final Supplier<UUID> uuid = Suppliers.memoize(new Supplier<UUID>() {
         @Override
         public UUID get() {
@@ -104,16 +114,27 @@ public class Transaction {
     // lazy loaded to reduce memory when custom attributes are not used
     @GuardedBy("attributes")
     private volatile @MonotonicNonNull SetMultimap<String, String> attributes;
+    // read without synchronization, which is fine since it is only used for an approximation of
+    // retained memory, see getEstimatedRetainedBytes()
+    @GuardedBy("attributes")
+    private int attributeValueCount;
+
+    // lazy loaded to reduce memory when location stack traces are not captured
+    private volatile @MonotonicNonNull LocationStackInterner locationStackInterner;
 
     // trace-level error
     private volatile @Nullable ErrorMessage errorMessage;
     private volatile @Nullable OverrideSource errorMessageOverrideSource;
 
     private final boolean captureThreadStats;
+    private final boolean lowOverheadThreadStats;
     private final GcActivityComponent gcActivityComponent;
 
     private final int maxTraceEntriesPerTransaction;
     private final int maxAggregateQueriesPerQueryType;
+    private final int maxAuxThreadContextsPerTransaction;
+    private final int maxAsyncRootTimersPerTransaction;
+    private final int traceEntryFoldThreshold;
 
     // stack trace data constructed from profiling
     private volatile @MonotonicNonNull Profile mainThreadProfile;
@@ -131,6 +152,12 @@ public class Transaction {
 
     private volatile boolean partiallyStored;
 
+    // set when the in-flight transaction memory budget is exceeded and this transaction is selected
+    // to stop capturing additional trace entries and profile samples
+    private volatile boolean memoryBudgetExceeded;
+    private volatile boolean mainThreadProfileSampleDropped;
+    private volatile boolean auxThreadProfileSampleDropped;
+
     private long captureTime;
 
     // memory barrier is used to ensure memory visibility of entries and timers at key points,
@@ -149,12 +176,25 @@ public class Transaction {
     private final AtomicInteger aggregateQueryLimitCounter = new AtomicInteger();
 
     private final ThreadContextImpl mainThreadContext;
-    // FIXME impose simple max on number of auxiliary thread contexts (AdvancedConfig)
-    private final List<ThreadContextImpl> auxThreadContexts = Lists.newCopyOnWriteArrayList();
+    // only the first maxAuxThreadContextsPerTransaction auxiliary thread contexts are retained
+    // (for their trace entries), all auxiliary thread contexts are rolled up into
+    // auxThreadContextRollup as they complete
+    private final ChunkedAppendOnlyList<ThreadContextImpl> auxThreadContexts =
+            new ChunkedAppendOnlyList<ThreadContextImpl>();
+    private final AtomicInteger auxThreadContextCounter = new AtomicInteger();
+    // lazy loaded to reduce memory when auxiliary threads are not used
+    private volatile @MonotonicNonNull AuxThreadContextRollup auxThreadContextRollup;
+    // shared by all auxiliary thread contexts that are created after the limit has been reached
+    private volatile @MonotonicNonNull AuxThreadContext overflowAuxThreadContext;
     // async root timers are the root timers which do not have corresponding thread context
-    // (those corresponding to async trace entries)
-    // FIXME impose simple max on number of async root timers (AdvancedConfig)
-    private final List<AsyncTimerImpl> asyncRootTimers = Lists.newCopyOnWriteArrayList();
+    // (those corresponding to async trace entries), only the first
+    // maxAsyncRootTimersPerTransaction are retained, the rest are rolled up into asyncTimerRollup
+    // as they end
+    private final ChunkedAppendOnlyList<AsyncTimerImpl> asyncRootTimers =
+            new ChunkedAppendOnlyList<AsyncTimerImpl>();
+    private final AtomicInteger asyncRootTimerCounter = new AtomicInteger();
+    // lazy loaded since most transactions never exceed the limit
+    private volatile @MonotonicNonNull AsyncTimerRollup asyncTimerRollup;
 
     private volatile boolean completed;
     private volatile long endTick;
@@ -168,8 +208,10 @@ public class Transaction {
 
     public Transaction(long startTime, long startTick, String transactionType,
             String transactionName, MessageSupplier messageSupplier, TimerName timerName,
-            boolean captureThreadStats, int maxTraceEntriesPerTransaction,
-            int maxAggregateQueriesPerQueryType,
+            boolean captureThreadStats, boolean lowOverheadThreadStats,
+            @Nullable GcEpochTracker gcEpochTracker, int maxTraceEntriesPerTransaction,
+            int maxAggregateQueriesPerQueryType, int maxAuxThreadContextsPerTransaction,
+            int maxAsyncRootTimersPerTransaction, int traceEntryFoldThreshold,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
             TransactionRegistry transactionRegistry, TransactionServiceImpl transactionService,
@@ -180,9 +222,14 @@ public class Transaction {
         this.transactionType = transactionType;
         this.transactionName = transactionName;
         this.captureThreadStats = captureThreadStats;
-        gcActivityComponent = new GcActivityComponent();
+        this.lowOverheadThreadStats = lowOverheadThreadStats;
+        gcActivityComponent =
+                new GcActivityComponent(lowOverheadThreadStats ? gcEpochTracker : null);
         this.maxTraceEntriesPerTransaction = maxTraceEntriesPerTransaction;
         this.maxAggregateQueriesPerQueryType = maxAggregateQueriesPerQueryType;
+        this.maxAuxThreadContextsPerTransaction = maxAuxThreadContextsPerTransaction;
+        this.maxAsyncRootTimersPerTransaction = maxAsyncRootTimersPerTransaction;
+        this.traceEntryFoldThreshold = traceEntryFoldThreshold;
         this.completionCallback = completionCallback;
         this.ticker = ticker;
         this.transactionRegistry = transactionRegistry;
@@ -190,9 +237,9 @@ public class Transaction {
         this.configService = configService;
         this.userProfileScheduler = userProfileScheduler;
         mainThreadContext = new ThreadContextImpl(castInitialized(this), null, messageSupplier,
-                timerName, startTick, captureThreadStats, threadAllocatedBytes, false,
-                transactionRegistry, transactionService, configService, ticker,
-                threadContextHolder);
+                timerName, startTick, captureThreadStats, lowOverheadThreadStats,
+                threadAllocatedBytes, false, transactionRegistry, transactionService,
+                configService, ticker, threadContextHolder);
     }
 
     public TraceEntryImpl startAuxThreadContext(TraceEntryImpl parentTraceEntry,
@@ -201,13 +248,38 @@ public class Transaction {
             @Nullable ThreadAllocatedBytes threadAllocatedBytes) {
         ThreadContextImpl auxThreadContext = new ThreadContextImpl(this, parentTraceEntry,
                 AuxThreadRootMessageSupplier.INSTANCE, auxTimerName, startTick,
-                captureThreadStats, threadAllocatedBytes, true, transactionRegistry,
-                transactionService, configService, ticker, threadContextHolder);
-        auxThreadContexts.add(auxThreadContext);
+                captureThreadStats, lowOverheadThreadStats, threadAllocatedBytes, true,
+                transactionRegistry, transactionService, configService, ticker,
+                threadContextHolder);
+        // auxiliary thread contexts beyond the limit (and their trace entries) will not be part of
+        // the trace, but their timers, thread stats and queries will still be rolled up on
+        // completion
+        if (auxThreadContextCounter.getAndIncrement() < maxAuxThreadContextsPerTransaction) {
+            auxThreadContexts.add(auxThreadContext);
+        }
         threadContextHolder.set(auxThreadContext);
         return auxThreadContext.getRootEntry();
     }
 
+    // auxiliary thread contexts beyond maxAuxThreadContextsPerTransaction are rolled up and not
+    // retained (see startAuxThreadContext() above), so their parent trace entry does not matter and
+    // a single instance can be handed out instead of allocating one per task (which matters for
+    // fine grained fork/join workloads where there can be one task per element)
+    @Nullable
+    AuxThreadContext getOverflowAuxThreadContext(TraceEntryImpl parentTraceEntry) {
+        if (auxThreadContextCounter.get() < maxAuxThreadContextsPerTransaction) {
+            return null;
+        }
+        AuxThreadContext overflowAuxThreadContext = this.overflowAuxThreadContext;
+        if (overflowAuxThreadContext == null) {
+            // benign race, worst case a few extra instances are created
+            overflowAuxThreadContext = new AsyncContextImpl(this, parentTraceEntry,
+                    transactionRegistry, transactionService);
+            this.overflowAuxThreadContext = overflowAuxThreadContext;
+        }
+        return overflowAuxThreadContext;
+    }
+
     long getStartTime() {
         return startTime;
     }
@@ -289,18 +361,23 @@ public class Transaction {
         return mainThreadContext.getRootTimer();
     }
 
-    public Iterable<TimerImpl> getAuxThreadRootTimers() {
+    public Iterable<CommonTimerImpl> getAuxThreadRootTimers() {
         readMemoryBarrier();
-        if (auxThreadContexts.isEmpty()) {
-            // optimization for common case
-            return ImmutableList.of();
+        AuxThreadContextRollup auxThreadContextRollup = this.auxThreadContextRollup;
+        if (auxThreadContextRollup == null) {
+            // none of the auxiliary thread contexts have completed yet
+            return Iterables.transform(auxThreadContexts, GetRootTimerFunction.INSTANCE);
         }
-        return Iterables.transform(auxThreadContexts, GetRootTimerFunction.INSTANCE);
+        return auxThreadContextRollup.getRootTimers(auxThreadContexts);
     }
 
-    public List<AsyncTimerImpl> getAsyncRootTimers() {
+    public Iterable<CommonTimerImpl> getAsyncRootTimers() {
         readMemoryBarrier();
-        return asyncRootTimers;
+        AsyncTimerRollup asyncTimerRollup = this.asyncTimerRollup;
+        if (asyncTimerRollup == null) {
+            return Iterables.<CommonTimerImpl>unmodifiableIterable(asyncRootTimers);
+        }
+        return Iterables.<CommonTimerImpl>concat(asyncRootTimers, asyncTimerRollup.getRootTimers());
     }
 
     // can be called from a non-transaction thread
@@ -310,13 +387,18 @@ public class Transaction {
 
     // can be called from a non-transaction thread
     public Iterable<ThreadStats> getAuxThreadStats() {
-        if (auxThreadContexts.isEmpty()) {
+        AuxThreadContextRollup auxThreadContextRollup = this.auxThreadContextRollup;
+        if (auxThreadContexts.isEmpty() && auxThreadContextRollup == null) {
             return ImmutableList.of();
         }
         if (!captureThreadStats) {
             return ImmutableList.of(ThreadStats.NA);
         }
-        return Iterables.transform(auxThreadContexts, GetThreadStatsFunction.INSTANCE);
+        if (auxThreadContextRollup == null) {
+            // none of the auxiliary thread contexts have completed yet
+            return Iterables.transform(auxThreadContexts, GetThreadStatsFunction.INSTANCE);
+        }
+        return auxThreadContextRollup.getThreadStats(auxThreadContexts);
     }
 
     // can be called from a non-transaction thread
@@ -326,21 +408,32 @@ public class Transaction {
 
     public Iterator<QueryData> getQueries() {
         readMemoryBarrier();
-        if (auxThreadContexts.size() == 1) {
+        AuxThreadContextRollup auxThreadContextRollup = this.auxThreadContextRollup;
+        if (auxThreadContexts.isEmpty() && auxThreadContextRollup == null) {
             // optimization for common case
             return mainThreadContext.getQueries();
         }
-        List<Iterator<QueryData>> queries =
-                Lists.newArrayListWithCapacity(auxThreadContexts.size() + 1);
+        List<Iterator<QueryData>> queries = Lists.newArrayList();
         queries.add(mainThreadContext.getQueries());
-        for (ThreadContextImpl threadContext : auxThreadContexts) {
-            queries.add(threadContext.getQueries());
+        if (auxThreadContextRollup == null) {
+            // none of the auxiliary thread contexts have completed yet
+            for (ThreadContextImpl threadContext : auxThreadContexts) {
+                queries.add(threadContext.getQueries());
+            }
+        } else {
+            auxThreadContextRollup.addQueries(auxThreadContexts, queries);
         }
         return Iterators.concat(queries.iterator());
     }
 
     public boolean allowAnotherEntry() {
-        return entryLimitCounter.getAndIncrement() < maxTraceEntriesPerTransaction;
+        return !memoryBudgetExceeded
+                && entryLimitCounter.getAndIncrement() < maxTraceEntriesPerTransaction;
+    }
+
+    // called when a trace entry has been folded into a prior identical sibling entry
+    void releaseEntry() {
+        entryLimitCounter.decrementAndGet();
     }
 
     public boolean allowAnotherErrorEntry() {
@@ -350,6 +443,10 @@ public class Transaction {
                         * maxTraceEntriesPerTransaction;
     }
 
+    int getTraceEntryFoldThreshold() {
+        return traceEntryFoldThreshold;
+    }
+
     public boolean allowAnotherAggregateQuery() {
         return aggregateQueryLimitCounter.getAndIncrement() < maxAggregateQueriesPerQueryType
                 * AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER;
@@ -392,8 +489,7 @@ public class Transaction {
     }
 
     boolean isMainThreadProfileSampleLimitExceeded() {
-        // TODO implement profile limit
-        return false;
+        return mainThreadProfileSampleDropped;
     }
 
     long getAuxThreadProfileSampleCount() {
@@ -416,8 +512,7 @@ public class Transaction {
     }
 
     boolean isAuxThreadProfileSampleLimitExceeded() {
-        // TODO implement profile limit
-        return false;
+        return auxThreadProfileSampleDropped;
     }
 
     public int getSlowThresholdMillisOverride() {
@@ -440,7 +535,7 @@ public class Transaction {
         return mainThreadContext;
     }
 
-    public List<ThreadContextImpl> getAuxThreadContexts() {
+    public Iterable<ThreadContextImpl> getAuxThreadContexts() {
         return auxThreadContexts;
     }
 
@@ -478,12 +573,22 @@ public class Transaction {
         String val = Strings.nullToEmpty(value);
         synchronized (attributes) {
             Collection<String> values = attributes.get(name);
-            if (values.size() < ATTRIBUTE_VALUES_PER_KEY_LIMIT) {
-                values.add(val);
+            if (values.size() < ATTRIBUTE_VALUES_PER_KEY_LIMIT && values.add(val)) {
+                attributeValueCount++;
             }
         }
     }
 
+    ImmutableList<StackTraceElement> internLocationStack(StackTraceElement[] stackTrace,
+            int skip) {
+        LocationStackInterner locationStackInterner = this.locationStackInterner;
+        if (locationStackInterner == null) {
+            // auxiliary threads can capture location stack traces concurrently
+            locationStackInterner = getOrCreateLocationStackInterner();
+        }
+        return locationStackInterner.intern(stackTrace, skip);
+    }
+
     public void setError(ErrorMessage errorMessage, OverrideSource overrideSource) {
         if (errorMessageOverrideSource == null
                 || errorMessageOverrideSource.priority < overrideSource.priority) {
@@ -523,19 +628,85 @@ public class Transaction {
     }
 
     public AsyncTimerImpl startAsyncTimer(TimerName asyncTimerName, long startTick) {
-        AsyncTimerImpl asyncTimer = new AsyncTimerImpl((TimerNameImpl) asyncTimerName, startTick);
-        asyncRootTimers.add(asyncTimer);
-        return asyncTimer;
+        if (asyncRootTimerCounter.getAndIncrement() < maxAsyncRootTimersPerTransaction) {
+            AsyncTimerImpl asyncTimer =
+                    new AsyncTimerImpl((TimerNameImpl) asyncTimerName, startTick, null);
+            asyncRootTimers.add(asyncTimer);
+            return asyncTimer;
+        }
+        AsyncTimerRollup asyncTimerRollup = this.asyncTimerRollup;
+        if (asyncTimerRollup == null) {
+            synchronized (asyncRootTimerCounter) {
+                asyncTimerRollup = this.asyncTimerRollup;
+                if (asyncTimerRollup == null) {
+                    asyncTimerRollup = new AsyncTimerRollup();
+                    this.asyncTimerRollup = asyncTimerRollup;
+                }
+            }
+        }
+        // not retained, it is rolled up when it ends (so it is not visible until then)
+        return new AsyncTimerImpl((TimerNameImpl) asyncTimerName, startTick, asyncTimerRollup);
+    }
+
+    // called by the auxiliary thread on completion of each auxiliary thread context
+    void rollupAuxThreadContext(ThreadContextImpl auxThreadContext) {
+        AuxThreadContextRollup auxThreadContextRollup = this.auxThreadContextRollup;
+        if (auxThreadContextRollup == null) {
+            synchronized (auxThreadContextCounter) {
+                auxThreadContextRollup = this.auxThreadContextRollup;
+                if (auxThreadContextRollup == null) {
+                    auxThreadContextRollup = new AuxThreadContextRollup();
+                    this.auxThreadContextRollup = auxThreadContextRollup;
+                }
+            }
+        }
+        auxThreadContextRollup.add(auxThreadContext);
     }
 
     boolean isEntryLimitExceeded() {
-        return entryLimitCounter.get() > maxTraceEntriesPerTransaction;
+        return entryLimitCounter.get() > maxTraceEntriesPerTransaction || memoryBudgetExceeded;
+    }
+
+    // this is based only on counters that are already maintained (or cheap to maintain) on the hot
+    // path, so it is only a rough approximation
+    public long getEstimatedRetainedBytes() {
+        long entryCount = Math.min(entryLimitCounter.get(), maxTraceEntriesPerTransaction);
+        long queryCount = Math.min(aggregateQueryLimitCounter.get(),
+                (long) maxAggregateQueriesPerQueryType
+                        * AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER);
+        long profileSampleCount =
+                getMainThreadProfileSampleCount() + getAuxThreadProfileSampleCount();
+        long auxThreadContextCount =
+                Math.min(auxThreadContextCounter.get(), maxAuxThreadContextsPerTransaction);
+        return entryCount * ESTIMATED_TRACE_ENTRY_BYTES
+                + queryCount * ESTIMATED_QUERY_BYTES
+                + profileSampleCount * ESTIMATED_PROFILE_SAMPLE_BYTES
+                + (long) attributeValueCount * ESTIMATED_ATTRIBUTE_VALUE_BYTES
+                + auxThreadContextCount * ESTIMATED_AUX_THREAD_CONTEXT_BYTES;
+    }
+
+    public boolean isMemoryBudgetExceeded() {
+        return memoryBudgetExceeded;
+    }
+
+    // stops capturing additional trace entries and profile samples (error entries, timers and
+    // aggregate data are still captured)
+    public void setMemoryBudgetExceeded() {
+        memoryBudgetExceeded = true;
     }
 
     public void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo, int limit) {
         if (completed) {
             return;
         }
+        if (memoryBudgetExceeded) {
+            if (auxiliary) {
+                auxThreadProfileSampleDropped = true;
+            } else {
+                mainThreadProfileSampleDropped = true;
+            }
+            return;
+        }
         Profile profile;
         if (auxiliary) {
             profile = auxThreadProfile;
@@ -608,6 +779,13 @@ public class Transaction {
         return captureTime;
     }
 
+    private synchronized LocationStackInterner getOrCreateLocationStackInterner() {
+        if (locationStackInterner == null) {
+            locationStackInterner = new LocationStackInterner();
+        }
+        return locationStackInterner;
+    }
+
     private boolean readMemoryBarrier() {
         return memoryBarrier;
     }
@@ -646,12 +824,13 @@ public class Transaction {
         }
     }
 
-    private static class GetRootTimerFunction implements Function<ThreadContextImpl, TimerImpl> {
+    private static class GetRootTimerFunction
+            implements Function<ThreadContextImpl, CommonTimerImpl> {
 
         private static final GetRootTimerFunction INSTANCE = new GetRootTimerFunction();
 
         @Override
-        public TimerImpl apply(@Nullable ThreadContextImpl input) {
+        public CommonTimerImpl apply(@Nullable ThreadContextImpl input) {
             checkNotNull(input);
             return input.getRootTimer();
         }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// thread safe append-only list, used instead of CopyOnWriteArrayList where the number of elements
+// can be large (e.g. auxiliary thread contexts of a transaction that fans out to thousands of
+// tasks), since each CopyOnWriteArrayList.add() copies the whole array
+//
+// adds are O(1) (elements are never moved once added), and iteration is lock free and weakly
+// consistent, seeing all elements that were added prior to the start of iteration
+public class ChunkedAppendOnlyList<T> implements Iterable<T> {
+
+    private static final int CHUNK_SIZE = 64;
+
+    private static final Object[][] EMPTY_CHUNKS = new Object[0][];
+
+    // chunks is written before size, and read after size, so that readers see the chunks (and
+    // elements) corresponding to the size that they read
+    //
+    // nothing is allocated until the first add, since many lists (e.g. auxiliary thread contexts of
+    // a transaction) are never added to
+    private volatile Object[][] chunks = EMPTY_CHUNKS;
+    private volatile int size;
+
+    public synchronized void add(T element) {
+        int index = size;
+        int chunkIndex = index / CHUNK_SIZE;
+        Object[][] chunks = this.chunks;
+        if (chunkIndex == chunks.length) {
+            // only the (small) array of chunk references is copied, never the elements themselves
+            Object[][] newChunks = new Object[Math.max(1, chunks.length * 2)][];
+            System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+            chunks = newChunks;
+        }
+        Object[] chunk = chunks[chunkIndex];
+        if (chunk == null) {
+            chunk = new Object[CHUNK_SIZE];
+            chunks[chunkIndex] = chunk;
+        }
+        chunk[index % CHUNK_SIZE] = element;
+        this.chunks = chunks;
+        this.size = index + 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        // read size first, see comment above
+        int size = this.size;
+        return new ChunkedIterator<T>(chunks, size);
+    }
+
+    private static class ChunkedIterator<T> implements Iterator<T> {
+
+        private final Object[][] chunks;
+        private final int size;
+
+        private int index;
+
+        private ChunkedIterator(Object[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (index >= size) {
+                throw new NoSuchElementException();
+            }
+            T element = (T) chunks[index / CHUNK_SIZE][index % CHUNK_SIZE];
+            index++;
+            return element;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -119,6 +119,60 @@ public class PathEvaluatorTest {
         assertThat(value).isEqualTo("eeeeee");
     }
 
+    @Test
+    public void shouldCompilePublicPath() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = new PathEvaluator(PublicA.class, "b.str");
+        // when
+        String value = (String) pathEvaluator.evaluateOnBase(new PublicA());
+        // then
+        assertThat(pathEvaluator.isCompiled()).isTrue();
+        assertThat(value).isEqualTo("abc");
+    }
+
+    @Test
+    public void shouldCompilePublicPathWithNull() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = new PathEvaluator(PublicA.class, "b.nil.length");
+        // when
+        Object value = pathEvaluator.evaluateOnBase(new PublicA());
+        // then
+        assertThat(pathEvaluator.isCompiled()).isTrue();
+        assertThat(value).isNull();
+    }
+
+    @Test
+    public void shouldCompilePublicPathWithPrimitive() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = new PathEvaluator(PublicA.class, "b.num");
+        // when
+        int value = (Integer) pathEvaluator.evaluateOnBase(new PublicA());
+        // then
+        assertThat(pathEvaluator.isCompiled()).isTrue();
+        assertThat(value).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldNotCompilePrivatePath() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = new PathEvaluator(A.class, "b.str");
+        // when
+        // then
+        assertThat(pathEvaluator.isCompiled()).isFalse();
+    }
+
+    @Test
+    public void shouldNotCompilePathWithReturnTypeNotVisibleFromLoader() throws Exception {
+        // given
+        ClassLoader loader = new HidingClassLoader(PublicB.class.getName());
+        PathEvaluator pathEvaluator = new PathEvaluator(PublicA.class, "b.str", loader);
+        // when
+        String value = (String) pathEvaluator.evaluateOnBase(new PublicA());
+        // then
+        assertThat(pathEvaluator.isCompiled()).isFalse();
+        assertThat(value).isEqualTo("abc");
+    }
+
     @SuppressWarnings("unused")
     private static class SomeObject {
 
@@ -178,4 +232,38 @@ public class PathEvaluatorTest {
     private static class E extends B {
         private final String eee = "eeeeee";
     }
+
+    public static class PublicA {
+        public PublicB getB() {
+            return new PublicB();
+        }
+    }
+
+    public static class PublicB {
+        public final int num = 3;
+        public String getStr() {
+            return "abc";
+        }
+        public String getNil() {
+            return null;
+        }
+    }
+
+    private static class HidingClassLoader extends ClassLoader {
+
+        private final String hiddenClassName;
+
+        private HidingClassLoader(String hiddenClassName) {
+            super(PathEvaluatorTest.class.getClassLoader());
+            this.hiddenClassName = hiddenClassName;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(hiddenClassName)) {
+                throw new ClassNotFoundException(name);
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
 }
@@ -21,12 +21,14 @@ import java.util.List;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Table;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import org.glowroot.agent.fat.storage.util.CappedDatabase;
 import org.glowroot.agent.fat.storage.util.DataSource;
+import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.Styles;
 import org.glowroot.storage.config.ImmutableStorageConfig;
 import org.glowroot.storage.repo.AggregateRepository;
@@ -84,7 +86,7 @@ public class AggregateDaoTest {
                 ImmutableRollupConfig.of(900000000, 8 * 3600000));
         when(configRepository.getRollupConfigs()).thenReturn(rollupConfigs);
         aggregateDao = new AggregateDao(dataSource, ImmutableList.<CappedDatabase>of(),
-                configRepository, mock(TransactionTypeDao.class));
+                configRepository, mock(TransactionTypeDao.class), Clock.systemClock());
     }
 
     @After
@@ -133,6 +135,47 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldReadExactSummariesFromTruncatedTopTransactionLists() throws Exception {
+        // given
+        List<TransactionAggregate> transactionAggregates = Lists.newArrayList();
+        for (int i = 0; i < 3 * TransactionSummaryCollector.TOP_TRANSACTION_LIMIT; i++) {
+            transactionAggregates.add(createTransactionAggregate("name" + i, 1000000 + i, 2));
+        }
+        // "rare" is last by total time, by average time and by transaction count in this interval
+        transactionAggregates.add(createTransactionAggregate("rare", 1, 1));
+        store(10000, transactionAggregates);
+        store(20000, ImmutableList.of(createTransactionAggregate("rare", 10000000, 5)));
+        store(30000, transactionAggregates);
+        OverallQuery query = ImmutableOverallQuery.builder()
+                .serverRollup(SERVER_ID)
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(0)
+                .build();
+        TransactionSummaryCollector mergedTransactionSummaries = new TransactionSummaryCollector();
+        // when
+        aggregateDao.mergeInTransactionSummaries(mergedTransactionSummaries, query,
+                SummarySortOrder.TOTAL_TIME, 1);
+        Result<TransactionSummary> queryResult =
+                mergedTransactionSummaries.getResult(SummarySortOrder.TOTAL_TIME, 1);
+        Table<Integer, Long, List<String>> missingTransactionNames =
+                mergedTransactionSummaries.getMissingTransactionNames(ImmutableList.of("rare"));
+        aggregateDao.mergeInTransactionSummaries(mergedTransactionSummaries, query,
+                missingTransactionNames.row(0));
+        Result<TransactionSummary> exactQueryResult =
+                mergedTransactionSummaries.getResult(SummarySortOrder.TOTAL_TIME, 1);
+        // then
+        assertThat(queryResult.records().get(0).transactionName()).isEqualTo("rare");
+        assertThat(queryResult.records().get(0).totalNanos()).isEqualTo(10000000);
+        assertThat(missingTransactionNames.size()).isEqualTo(2);
+        assertThat(missingTransactionNames.get(0, 10000L)).containsExactly("rare");
+        assertThat(missingTransactionNames.get(0, 30000L)).containsExactly("rare");
+        assertThat(exactQueryResult.records().get(0).totalNanos()).isEqualTo(10000002);
+        assertThat(exactQueryResult.records().get(0).transactionCount()).isEqualTo(7);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         Aggregate overallAggregate = Aggregate.newBuilder()
@@ -217,6 +260,32 @@ public class AggregateDaoTest {
         return aggregateDao;
     }
 
+    private void store(long captureTime, List<TransactionAggregate> transactionAggregates)
+            throws Exception {
+        Aggregate overallAggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(1000000)
+                .setTransactionCount(10)
+                .setTotalNanosHistogram(getFakeHistogram())
+                .build();
+        aggregateDao.store(SERVER_ID, captureTime, ImmutableList.of(AggregatesByType.newBuilder()
+                .setTransactionType("a type")
+                .setOverallAggregate(overallAggregate)
+                .addAllTransactionAggregate(transactionAggregates)
+                .build()));
+    }
+
+    private static TransactionAggregate createTransactionAggregate(String transactionName,
+            double totalNanos, long transactionCount) {
+        return TransactionAggregate.newBuilder()
+                .setTransactionName(transactionName)
+                .setAggregate(Aggregate.newBuilder()
+                        .setTotalDurationNanos(totalNanos)
+                        .setTransactionCount(transactionCount)
+                        .setTotalNanosHistogram(getFakeHistogram())
+                        .build())
+                .build();
+    }
+
     private static Aggregate.Histogram getFakeHistogram() {
         return Aggregate.Histogram.newBuilder()
                 .addOrderedRawValue(123)
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeValueBlockTest {
+
+    @Test
+    public void shouldRoundTripRegularValues() {
+        // given
+        GaugeValueBlock block = new GaugeValueBlock();
+        for (int i = 0; i < 720; i++) {
+            block.add(1000000 + i * 5000, 1234.5, 1);
+        }
+        // when
+        byte[] bytes = block.toByteArray();
+        List<GaugeValue> gaugeValues = GaugeValueBlock.decode(bytes);
+        // then
+        assertThat(gaugeValues).hasSize(720);
+        for (int i = 0; i < 720; i++) {
+            assertThat(gaugeValues.get(i).getCaptureTime()).isEqualTo(1000000 + i * 5000);
+            assertThat(gaugeValues.get(i).getValue()).isEqualTo(1234.5);
+            assertThat(gaugeValues.get(i).getWeight()).isEqualTo(1);
+        }
+        // a few bits per value
+        assertThat(bytes.length).isLessThan(400);
+    }
+
+    @Test
+    public void shouldRoundTripIrregularValues() {
+        // given
+        Random random = new Random(0);
+        GaugeValueBlock block = new GaugeValueBlock();
+        long[] captureTimes = new long[1000];
+        double[] values = new double[1000];
+        long[] weights = new long[1000];
+        long captureTime = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            captureTime += random.nextInt(100000);
+            captureTimes[i] = captureTime;
+            values[i] = random.nextBoolean() ? random.nextDouble() : random.nextInt(100);
+            weights[i] = random.nextBoolean() ? random.nextLong() : 5000;
+            block.add(captureTimes[i], values[i], weights[i]);
+        }
+        // when
+        List<GaugeValue> gaugeValues = GaugeValueBlock.decode(block.toByteArray());
+        // then
+        assertThat(gaugeValues).hasSize(1000);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(gaugeValues.get(i).getCaptureTime()).isEqualTo(captureTimes[i]);
+            assertThat(gaugeValues.get(i).getValue()).isEqualTo(values[i]);
+            assertThat(gaugeValues.get(i).getWeight()).isEqualTo(weights[i]);
+        }
+    }
+
+    @Test
+    public void shouldAppendAfterSerializing() {
+        // given
+        GaugeValueBlock block = new GaugeValueBlock();
+        block.add(5000, 1, 1);
+        block.toByteArray();
+        block.add(10000, 2, 1);
+        // when
+        List<GaugeValue> gaugeValues = GaugeValueBlock.decode(block.toByteArray());
+        // then
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(1).getCaptureTime()).isEqualTo(10000);
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.fat.storage.util.DataSource;
+import org.glowroot.common.util.Clock;
+import org.glowroot.storage.repo.ConfigRepository;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class GaugeValueDaoTest {
+
+    private static final String SERVER_ID = "";
+
+    private DataSource dataSource;
+    private GaugeDao gaugeDao;
+    private GaugeValueDao gaugeValueDao;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+        gaugeDao = new GaugeDao(dataSource);
+        gaugeValueDao = new GaugeValueDao(dataSource, gaugeDao, mock(ConfigRepository.class),
+                Clock.systemClock());
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldReadGaugeValues() throws Exception {
+        // given
+        long now = System.currentTimeMillis();
+        gaugeValueDao.store(SERVER_ID, createGaugeValues(now));
+        // when
+        List<GaugeValue> gaugeValues =
+                gaugeValueDao.readGaugeValues(SERVER_ID, "abc:xyz", now - 10000, now, 0);
+        // then
+        assertThat(gaugeValues).hasSize(3);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(now - 10000);
+        assertThat(gaugeValues.get(2).getCaptureTime()).isEqualTo(now);
+        assertThat(gaugeValues.get(2).getValue()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldReadPersistedGaugeValues() throws Exception {
+        // given
+        long now = System.currentTimeMillis();
+        gaugeValueDao.store(SERVER_ID, createGaugeValues(now));
+        // when
+        GaugeValueDao newGaugeValueDao = new GaugeValueDao(dataSource, gaugeDao,
+                mock(ConfigRepository.class), Clock.systemClock());
+        List<GaugeValue> gaugeValues =
+                newGaugeValueDao.readGaugeValues(SERVER_ID, "abc:xyz", now - 5000, now, 0);
+        // then
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(now - 5000);
+        assertThat(gaugeValues.get(1).getCaptureTime()).isEqualTo(now);
+    }
+
+    @Test
+    public void shouldPersistOpenBlocksOnClose() throws Exception {
+        // given
+        long now = System.currentTimeMillis();
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(now, now + 1000);
+        gaugeValueDao = new GaugeValueDao(dataSource, gaugeDao,
+                mock(ConfigRepository.class), clock);
+        gaugeValueDao.store(SERVER_ID, createGaugeValues(now));
+        // open blocks are not persisted again within a minute
+        gaugeValueDao.store(SERVER_ID, ImmutableList.of(createGaugeValue(now + 1000, 4)));
+        // when
+        gaugeValueDao.close();
+        GaugeValueDao newGaugeValueDao = new GaugeValueDao(dataSource, gaugeDao,
+                mock(ConfigRepository.class), Clock.systemClock());
+        List<GaugeValue> gaugeValues =
+                newGaugeValueDao.readGaugeValues(SERVER_ID, "abc:xyz", now - 10000, now + 1000, 0);
+        // then
+        assertThat(gaugeValues).hasSize(4);
+        assertThat(gaugeValues.get(3).getCaptureTime()).isEqualTo(now + 1000);
+        assertThat(gaugeValues.get(3).getValue()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldEvictOpenBlocksOnceTheirTimeBucketHasEnded() throws Exception {
+        // given
+        long hour = HOURS.toMillis(1);
+        long bucketEnd = (System.currentTimeMillis() / hour) * hour;
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(bucketEnd - 30000, bucketEnd + 120000);
+        gaugeValueDao = new GaugeValueDao(dataSource, gaugeDao,
+                mock(ConfigRepository.class), clock);
+        gaugeValueDao.store(SERVER_ID, ImmutableList.of(createGaugeValue(bucketEnd - 30000, 1)));
+        // when
+        gaugeValueDao.store(SERVER_ID, ImmutableList.of(GaugeValue.newBuilder()
+                .setGaugeName("abc:other")
+                .setCaptureTime(bucketEnd + 120000)
+                .setValue(2)
+                .setWeight(1)
+                .build()));
+        List<GaugeValue> gaugeValues = gaugeValueDao.readGaugeValues(SERVER_ID, "abc:xyz",
+                bucketEnd - 60000, bucketEnd + 120000, 0);
+        // then
+        assertThat(gaugeValueDao.getOpenBlockCount(0)).isEqualTo(1);
+        assertThat(gaugeValues).hasSize(1);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(bucketEnd - 30000);
+    }
+
+    private static List<GaugeValue> createGaugeValues(long now) {
+        return ImmutableList.of(createGaugeValue(now - 10000, 1),
+                createGaugeValue(now - 5000, 2), createGaugeValue(now, 3));
+    }
+
+    private static GaugeValue createGaugeValue(long captureTime, double value) {
+        return GaugeValue.newBuilder()
+                .setGaugeName("abc:xyz")
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
+}
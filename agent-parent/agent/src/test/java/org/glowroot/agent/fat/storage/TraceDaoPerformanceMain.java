@@ -24,6 +24,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.fat.storage.util.CappedDatabase;
 import org.glowroot.agent.fat.storage.util.DataSource;
+import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -41,8 +42,8 @@ public class TraceDaoPerformanceMain {
         DataSource dataSource = new DataSource();
         CappedDatabase cappedDatabase =
                 new CappedDatabase(new File("glowroot.capped.db"), 1000000, Ticker.systemTicker());
-        TraceDao traceDao =
-                new TraceDao(dataSource, cappedDatabase, mock(TransactionTypeDao.class));
+        TraceDao traceDao = new TraceDao(dataSource, cappedDatabase,
+                mock(TransactionTypeDao.class), Clock.systemClock());
 
         Stopwatch stopwatch = Stopwatch.createStarted();
         for (int i = 0; i < 1000; i++) {
@@ -16,8 +16,14 @@
 package org.glowroot.agent.fat.storage;
 
 import java.io.File;
+import java.util.Set;
+import java.util.UUID;
 
+import javax.annotation.Nullable;
+
+import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
+import com.google.common.collect.Sets;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -28,6 +34,7 @@ import org.glowroot.common.live.ImmutableTracePointFilter;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
+import org.glowroot.common.util.Clock;
 import org.glowroot.storage.repo.ImmutableTraceQuery;
 import org.glowroot.storage.repo.Result;
 import org.glowroot.storage.repo.TraceRepository.TraceQuery;
@@ -53,7 +60,8 @@ public class TraceDaoTest {
         }
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
-        traceDao = new TraceDao(dataSource, cappedDatabase, mock(TransactionTypeDao.class));
+        traceDao = new TraceDao(dataSource, cappedDatabase, mock(TransactionTypeDao.class),
+                Clock.systemClock());
     }
 
     @After
@@ -283,4 +291,109 @@ public class TraceDaoTest {
         // then
         assertThat(traceDao.readHeaderPlus(SERVER_ID, trace.getId())).isNull();
     }
+
+    @Test
+    public void shouldReadSameTracesWithAndWithoutSearchIndex() throws Exception {
+        // given
+        collectSearchTrace(11, "Alice.Smith", "Connection refused by host", "/api/Orders/123");
+        collectSearchTrace(12, "bob", "connection RESET", "/api/orders");
+        collectSearchTrace(13, "al", null, "x");
+        collectSearchTrace(14, "ALICE", Strings.repeat("x", 300) + " needle", "/ORDERS");
+        // when
+        // then
+        assertSameUserSearch(StringComparator.CONTAINS, "lic", 2);
+        assertSameUserSearch(StringComparator.CONTAINS, "LiC", 2);
+        assertSameUserSearch(StringComparator.BEGINS, "ali", 2);
+        assertSameUserSearch(StringComparator.ENDS, "SMITH", 1);
+        assertSameUserSearch(StringComparator.EQUALS, "alice", 1);
+        assertSameUserSearch(StringComparator.NOT_CONTAINS, "alice", 2);
+        // search terms shorter than a trigram
+        assertSameUserSearch(StringComparator.CONTAINS, "al", 3);
+        assertSameUserSearch(StringComparator.BEGINS, "b", 1);
+        assertSameUserSearch(StringComparator.EQUALS, "al", 1);
+        assertSameUserSearch(StringComparator.EQUALS, "Bob", 1);
+        assertSameErrorMessageSearch(StringComparator.CONTAINS, "connection", 2);
+        assertSameErrorMessageSearch(StringComparator.CONTAINS, "REFUSED", 1);
+        assertSameErrorMessageSearch(StringComparator.ENDS, "reset", 1);
+        // match is past the indexed length
+        assertSameErrorMessageSearch(StringComparator.CONTAINS, "needle", 1);
+        assertSameAttributeValueSearch(StringComparator.CONTAINS, "orders", 3);
+        assertSameAttributeValueSearch(StringComparator.BEGINS, "/api/", 2);
+        assertSameAttributeValueSearch(StringComparator.EQUALS, "/API/ORDERS", 1);
+        // search terms that fully contain tokens
+        assertSameErrorMessageSearch(StringComparator.CONTAINS, " refused ", 1);
+        assertSameAttributeValueSearch(StringComparator.BEGINS, "/api/orders/", 1);
+        assertSameAttributeValueSearch(StringComparator.CONTAINS, "/orders", 3);
+        assertSameAttributeValueSearch(StringComparator.CONTAINS, "/", 3);
+    }
+
+    private void collectSearchTrace(long captureTime, String user, @Nullable String errorMessage,
+            String attributeValue) throws Exception {
+        Trace.Header.Builder header = TraceTestData.createTrace().getHeader().toBuilder()
+                .setCaptureTime(captureTime)
+                .setUser(user)
+                .clearAttribute()
+                .addAttribute(Trace.Attribute.newBuilder()
+                        .setName("path")
+                        .addValue(attributeValue));
+        if (errorMessage != null) {
+            header.setError(Trace.Error.newBuilder()
+                    .setMessage(errorMessage));
+        }
+        traceDao.collect(SERVER_ID, Trace.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setHeader(header)
+                .build());
+    }
+
+    private void assertSameUserSearch(StringComparator comparator, String user,
+            int expectedCount) throws Exception {
+        assertSameSearch(ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .userComparator(comparator)
+                .user(user)
+                .build(), expectedCount);
+    }
+
+    private void assertSameErrorMessageSearch(StringComparator comparator, String errorMessage,
+            int expectedCount) throws Exception {
+        assertSameSearch(ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .errorMessageComparator(comparator)
+                .errorMessage(errorMessage)
+                .build(), expectedCount);
+    }
+
+    private void assertSameAttributeValueSearch(StringComparator comparator,
+            String attributeValue, int expectedCount) throws Exception {
+        assertSameSearch(ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .attributeName("path")
+                .attributeValueComparator(comparator)
+                .attributeValue(attributeValue)
+                .build(), expectedCount);
+    }
+
+    private void assertSameSearch(TracePointFilter filter, int expectedCount) throws Exception {
+        // the search index is only used when the query does not reach back before the index was
+        // created (which is zero for a new database)
+        Set<String> indexedTraceIds = readSlowTraceIds(0, filter);
+        Set<String> unindexedTraceIds = readSlowTraceIds(-1, filter);
+        assertThat(indexedTraceIds).isEqualTo(unindexedTraceIds);
+        assertThat(indexedTraceIds).hasSize(expectedCount);
+    }
+
+    private Set<String> readSlowTraceIds(long from, TracePointFilter filter) throws Exception {
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .serverRollup(SERVER_ID)
+                .transactionType("unit test")
+                .from(from)
+                .to(100)
+                .build();
+        Set<String> traceIds = Sets.newHashSet();
+        for (TracePoint tracePoint : traceDao.readSlowPoints(query, filter, 100).records()) {
+            traceIds.add(tracePoint.traceId());
+        }
+        return traceIds;
+    }
 }
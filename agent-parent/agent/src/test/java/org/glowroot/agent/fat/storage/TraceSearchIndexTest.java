@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import org.glowroot.common.live.StringComparator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceSearchIndexTest {
+
+    @Test
+    public void shouldGetIndexGrams() {
+        assertThat(TraceSearchIndex.getIndexGrams("abcd")).containsOnly("ABC", "BCD");
+        assertThat(TraceSearchIndex.getIndexGrams("ab")).isEmpty();
+    }
+
+    @Test
+    public void shouldMarkLongTextAsNotFullyIndexed() {
+        String text = Strings.repeat("a", 300) + "xyz";
+        assertThat(TraceSearchIndex.getIndexGrams(text)).containsOnly("", "AAA");
+    }
+
+    @Test
+    public void shouldSplitSearchGramsOnWildcards() {
+        assertThat(TraceSearchIndex.getSearchGrams("abc%def_gh")).containsOnly("ABC", "DEF");
+    }
+
+    @Test
+    public void shouldGetIndexTokens() {
+        assertThat(TraceSearchIndex.getIndexTokens("Alice.Smith")).containsOnly("ALICE", "SMITH");
+        assertThat(TraceSearchIndex.getIndexTokens("/api/orders/123"))
+                .containsOnly("API", "ORDERS", "123");
+        assertThat(TraceSearchIndex.getIndexTokens("al")).containsOnly("AL");
+    }
+
+    @Test
+    public void shouldMarkLongTextAsNotFullyIndexedWithTokens() {
+        String text = Strings.repeat("a ", 200) + "xyz";
+        assertThat(TraceSearchIndex.getIndexTokens(text)).containsOnly("", "A");
+    }
+
+    @Test
+    public void shouldOnlyGetFullyContainedSearchTokens() {
+        assertThat(TraceSearchIndex.getSearchTokens("/api/orders", StringComparator.CONTAINS))
+                .containsOnly("API");
+        assertThat(TraceSearchIndex.getSearchTokens("api/orders", StringComparator.BEGINS))
+                .containsOnly("API");
+        assertThat(TraceSearchIndex.getSearchTokens("api/orders", StringComparator.ENDS))
+                .containsOnly("ORDERS");
+        assertThat(TraceSearchIndex.getSearchTokens("al", StringComparator.EQUALS))
+                .containsOnly("AL");
+        assertThat(TraceSearchIndex.getSearchTokens("al", StringComparator.CONTAINS)).isEmpty();
+    }
+
+    @Test
+    public void shouldNotEndSearchTokensAtWildcards() {
+        assertThat(TraceSearchIndex.getSearchTokens("a.b%c.d", StringComparator.EQUALS))
+                .containsOnly("A", "B", "C", "D");
+        assertThat(TraceSearchIndex.getSearchTokens("a.b%c.d", StringComparator.BEGINS))
+                .containsOnly("A");
+        assertThat(TraceSearchIndex.getSearchTokens("a.b_c.d", StringComparator.ENDS))
+                .containsOnly("D");
+    }
+}
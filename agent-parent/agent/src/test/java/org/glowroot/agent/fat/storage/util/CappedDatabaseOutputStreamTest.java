@@ -200,7 +200,7 @@ public class CappedDatabaseOutputStreamTest {
         // when
         // have to close in before resizing
         in.close();
-        cappedOut.resize(20);
+        resize(20);
         in = new RandomAccessFile(tempFile, "r");
         // then
         assertThat(cappedId).isEqualTo(6000 + BLOCK_HEADER_SIZE);
@@ -221,6 +221,56 @@ public class CappedDatabaseOutputStreamTest {
         assertThat(content).isEqualTo(text);
     }
 
+    @Test
+    public void shouldWriteDuringOnlineResize() throws IOException {
+        // given
+        Writer out = new OutputStreamWriter(cappedOut);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            sb.append("0123456789");
+        }
+        String text = sb.toString();
+        cappedOut.startBlock();
+        out.write(text);
+        out.flush();
+        cappedOut.endBlock();
+        cappedOut.startBlock();
+        out.write(text);
+        out.flush();
+        cappedOut.endBlock();
+        // when
+        CappedDatabaseOutputStream.OnlineResize resize = cappedOut.startOnlineResize(20);
+        assertThat(cappedOut.continueOnlineResize(resize, 1000)).isEqualTo(10240 - 1000);
+        String text2 = "abcdefghij";
+        cappedOut.startBlock();
+        out.write(text2);
+        out.flush();
+        long cappedId = cappedOut.endBlock();
+        assertThat(cappedOut.isOnlineResizeLapped(resize)).isFalse();
+        assertThat(cappedOut.continueOnlineResize(resize, 100000)).isEqualTo(0);
+        // have to close in before resizing
+        in.close();
+        cappedOut.finishOnlineResize(resize);
+        in = new RandomAccessFile(tempFile, "r");
+        // then
+        int total = 2 * (6000 + BLOCK_HEADER_SIZE);
+        assertThat(cappedId).isEqualTo(total);
+        long currIndex = in.readLong();
+        int cappedDatabaseSizeKb = in.readInt();
+        long lastCompactionBaseIndex = in.readLong();
+        assertThat(currIndex).isEqualTo(total + 10 + BLOCK_HEADER_SIZE);
+        assertThat(cappedDatabaseSizeKb).isEqualTo(20);
+        assertThat(lastCompactionBaseIndex).isEqualTo(total - 10240);
+        assertThat(cappedOut.isOverwritten(total - 10240)).isFalse();
+        in.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + 10240);
+        long blockSize = in.readLong();
+        assertThat(blockSize).isEqualTo(10);
+        byte[] bytes = new byte[(int) blockSize];
+        in.readFully(bytes, 0, 10);
+        String content = new String(bytes);
+        assertThat(content).isEqualTo(text2);
+    }
+
     @Test
     public void shouldWrapAndResizeVerySmall() throws IOException {
         // given
@@ -243,7 +293,7 @@ public class CappedDatabaseOutputStreamTest {
         // when
         // have to close in before resizing
         in.close();
-        cappedOut.resize(1);
+        resize(1);
         in = new RandomAccessFile(tempFile, "r");
         // then
         assertThat(cappedId).isEqualTo(9 * (600 + BLOCK_HEADER_SIZE));
@@ -298,6 +348,19 @@ public class CappedDatabaseOutputStreamTest {
         assertThat(content).isEqualTo(text);
     }
 
+    // same as CappedDatabase.resize(), but without writes in between the chunks
+    private void resize(int newSizeKb) throws IOException {
+        if (cappedOut.performEasyResize(newSizeKb)) {
+            return;
+        }
+        CappedDatabaseOutputStream.OnlineResize resize = cappedOut.startOnlineResize(newSizeKb);
+        long remaining;
+        do {
+            remaining = cappedOut.continueOnlineResize(resize, 1000);
+        } while (remaining > 0);
+        cappedOut.finishOnlineResize(resize);
+    }
+
     private void assertWrite(String text, long cappedId) throws IOException {
         assertThat(cappedId).isEqualTo(0);
         long currIndex = in.readLong();
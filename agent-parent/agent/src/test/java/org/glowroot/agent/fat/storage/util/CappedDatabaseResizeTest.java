@@ -26,6 +26,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.glowroot.agent.fat.storage.util.CappedDatabaseOutputStream.OnlineResize;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class CappedDatabaseResizeTest {
@@ -75,6 +77,127 @@ public class CappedDatabaseResizeTest {
         shouldResizeAndWrap(3);
     }
 
+    @Test
+    public void shouldReadBlocksWrittenDuringResizeAfterCopyIsLapped() throws Exception {
+        // given
+        String text = createRandomText();
+        long[] cappedIds = new long[4];
+        for (int i = 0; i < 4; i++) {
+            cappedIds[i] = write(text);
+        }
+        // when
+        // resizing larger starts the copy at the oldest data, and only the first 100 bytes are
+        // copied before new blocks overwrite the rest of it
+        OnlineResize resize = cappedDatabase.startResize(3, 100);
+        assertThat(resize).isNotNull();
+        long[] cappedIdsDuringResize = new long[4];
+        for (int i = 0; i < 4; i++) {
+            cappedIdsDuringResize[i] = write(text);
+        }
+        long smallestNonExpiredId = cappedDatabase.getSmallestNonExpiredId();
+        finishResize(resize, 100);
+        // then
+        assertThat(cappedDatabase.getSmallestNonExpiredId()).isEqualTo(smallestNonExpiredId);
+        assertThat(cappedDatabase.isExpired(cappedIds[3])).isTrue();
+        for (int i = 1; i < 4; i++) {
+            assertThat(cappedDatabase.read(cappedIdsDuringResize[i]).read()).isEqualTo(text);
+        }
+
+        // also test close and re-open
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 2, Ticker.systemTicker());
+        assertThat(cappedDatabase.getSmallestNonExpiredId()).isEqualTo(smallestNonExpiredId);
+        for (int i = 1; i < 4; i++) {
+            assertThat(cappedDatabase.read(cappedIdsDuringResize[i]).read()).isEqualTo(text);
+        }
+    }
+
+    @Test
+    public void shouldFinishResizeUnderLockIfCopyKeepsGettingLapped() throws Exception {
+        // given
+        String text = createRandomText();
+        for (int i = 0; i < 4; i++) {
+            write(text);
+        }
+        // when
+        OnlineResize resize = cappedDatabase.startResize(3, 100);
+        assertThat(resize).isNotNull();
+        long[] cappedIds = new long[4];
+        boolean done = false;
+        int chunks = 0;
+        while (!done) {
+            // new blocks lap the copy in between every chunk
+            for (int i = 0; i < 4; i++) {
+                cappedIds[i] = write(text);
+            }
+            done = cappedDatabase.continueResize(resize, 100);
+            chunks++;
+        }
+        // then
+        // the copy is restarted 3 times, and then the fourth lap is copied under the lock
+        assertThat(chunks).isEqualTo(4);
+        for (int i = 1; i < 4; i++) {
+            assertThat(cappedDatabase.read(cappedIds[i]).read()).isEqualTo(text);
+        }
+
+        // also test close and re-open
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 2, Ticker.systemTicker());
+        for (int i = 1; i < 4; i++) {
+            assertThat(cappedDatabase.read(cappedIds[i]).read()).isEqualTo(text);
+        }
+    }
+
+    @Test
+    public void shouldReadBlockWithHeaderWrappedByResize() throws Exception {
+        // given
+        String text = createRandomText();
+        for (int i = 0; i < 4; i++) {
+            write(text);
+        }
+        long oldSizeBytes = 2 * 1024;
+        long newSizeBytes = 3 * 1024;
+        // this is where the copy starts, and the new file is positioned relative to it
+        long baseIndex = cappedDatabase.getSmallestNonExpiredId();
+        // when
+        // the first chunk stays ahead of the blocks written below, so the copy is not lapped
+        OnlineResize resize = cappedDatabase.startResize(3, 1200);
+        assertThat(resize).isNotNull();
+        // blocks written during the resize are positioned relative to the old file, so write small
+        // blocks until the next one starts within the last few bytes of the new file, where its
+        // block header wraps around the end of the new file
+        long headerWrapIndex = baseIndex + newSizeBytes
+                - CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + 1;
+        // initial guess at block header plus compression overhead, this is measured below
+        long blockOverhead = 20;
+        long nextIndex = getCurrIndex(oldSizeBytes);
+        while (nextIndex < headerWrapIndex) {
+            long distance = headerWrapIndex - nextIndex;
+            int length;
+            if (distance - blockOverhead <= 32) {
+                length = (int) Math.max(1, distance - blockOverhead);
+            } else {
+                // leave enough distance for the final block
+                length = (int) Math.max(1, Math.min(32, distance - 2 * blockOverhead - 16));
+            }
+            long cappedId = write(createRandomText(length));
+            nextIndex = getCurrIndex(oldSizeBytes);
+            blockOverhead = nextIndex - cappedId - length;
+        }
+        assertThat(nextIndex).isLessThan(baseIndex + newSizeBytes);
+        String wrappedText = createRandomText(100);
+        long wrappedCappedId = write(wrappedText);
+        assertThat(wrappedCappedId).isEqualTo(nextIndex);
+        finishResize(resize, 1200);
+        // then
+        assertThat(cappedDatabase.read(wrappedCappedId).read()).isEqualTo(wrappedText);
+
+        // also test close and re-open
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 2, Ticker.systemTicker());
+        assertThat(cappedDatabase.read(wrappedCappedId).read()).isEqualTo(wrappedText);
+    }
+
     private void shouldWrapAndResize(int newSizeKb) throws Exception {
         // given
         // when
@@ -119,10 +242,30 @@ public class CappedDatabaseResizeTest {
         assertThat(text2).isEqualTo(text);
     }
 
+    private void finishResize(OnlineResize resize, int chunkBytes) throws IOException {
+        boolean done = false;
+        while (!done) {
+            done = cappedDatabase.continueResize(resize, chunkBytes);
+        }
+    }
+
+    private long write(String text) throws IOException {
+        return cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+    }
+
+    // only valid once the old file has wrapped
+    private long getCurrIndex(long oldSizeBytes) {
+        return cappedDatabase.getSmallestNonExpiredId() + oldSizeBytes;
+    }
+
     private String createRandomText() {
+        return createRandomText(600);
+    }
+
+    private String createRandomText(int length) {
         Random random = new Random();
         StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < 600; i++) {
+        for (int i = 0; i < length; i++) {
             sb.append((char) ('a' + random.nextInt(26)));
         }
         String text = sb.toString();
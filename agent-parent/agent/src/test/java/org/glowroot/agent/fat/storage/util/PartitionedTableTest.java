@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage.util;
+
+import java.util.Calendar;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.fat.storage.util.Schemas.Column;
+import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
+import org.glowroot.agent.fat.storage.util.Schemas.Index;
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PartitionedTableTest {
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("name", ColumnType.VARCHAR),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT));
+
+    private static final ImmutableList<Index> indexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("tab_idx", ImmutableList.of("capture_time", "name")));
+
+    private DataSource dataSource;
+    private TestClock clock;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2016, Calendar.MARCH, 1, 12, 0);
+        clock = new TestClock(calendar.getTimeInMillis());
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldInsertIntoDailyPartitions() throws Exception {
+        // given
+        PartitionedTable table = new PartitionedTable(dataSource, "tab", columns, indexes, clock,
+                true);
+        // when
+        insert(table, "a");
+        clock.advanceOneDay();
+        insert(table, "b");
+        // then
+        assertThat(table.getPartitionNames()).containsExactly("tab_p20160301", "tab_p20160302");
+        assertThat(dataSource.queryForLong("select count(*) from tab")).isEqualTo(2);
+        assertThat(dataSource.queryForLong("select count(*) from tab_p20160302")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldDropExpiredPartitions() throws Exception {
+        // given
+        PartitionedTable table = new PartitionedTable(dataSource, "tab", columns, indexes, clock,
+                true);
+        insert(table, "a");
+        clock.advanceOneDay();
+        insert(table, "b");
+        clock.advanceOneDay();
+        insert(table, "c");
+        // when
+        table.deleteBefore(PartitionedTable.getEndTime(20160302) - 1);
+        // then
+        assertThat(table.getPartitionNames()).containsExactly("tab_p20160302", "tab_p20160303");
+        assertThat(dataSource.queryForStringList("select name from tab order by name"))
+                .containsExactly("b", "c");
+        assertThat(dataSource.tableExists("tab_p20160301")).isFalse();
+    }
+
+    @Test
+    public void shouldNotDropCurrentPartition() throws Exception {
+        // given
+        PartitionedTable table = new PartitionedTable(dataSource, "tab", columns, indexes, clock,
+                true);
+        insert(table, "a");
+        // when
+        table.deleteBefore(Long.MAX_VALUE);
+        // then
+        assertThat(table.getPartitionNames()).containsExactly("tab_p20160301");
+        assertThat(dataSource.queryForLong("select count(*) from tab")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldDeleteFromAllPartitions() throws Exception {
+        // given
+        PartitionedTable table = new PartitionedTable(dataSource, "tab", columns, indexes, clock,
+                true);
+        insert(table, "a");
+        clock.advanceOneDay();
+        insert(table, "a");
+        insert(table, "b");
+        // when
+        table.delete("name = ?", "a");
+        // then
+        assertThat(dataSource.queryForStringList("select name from tab")).containsExactly("b");
+    }
+
+    @Test
+    public void shouldTruncate() throws Exception {
+        // given
+        PartitionedTable table = new PartitionedTable(dataSource, "tab", columns, indexes, clock,
+                true);
+        insert(table, "a");
+        clock.advanceOneDay();
+        insert(table, "b");
+        // when
+        table.truncate();
+        // then
+        assertThat(table.getPartitionNames()).containsExactly("tab_p20160302");
+        assertThat(dataSource.queryForLong("select count(*) from tab")).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldMigrateBetweenPartitionedAndNonPartitioned() throws Exception {
+        // given
+        PartitionedTable table = new PartitionedTable(dataSource, "tab", columns, indexes, clock,
+                false);
+        insert(table, "a");
+        // when
+        table = new PartitionedTable(dataSource, "tab", columns, indexes, clock, true);
+        clock.advanceOneDay();
+        insert(table, "b");
+        // then
+        assertThat(dataSource.viewExists("tab")).isTrue();
+        assertThat(table.getPartitionNames()).containsExactly("tab_p20160301", "tab_p20160302");
+        assertThat(dataSource.queryForStringList("select name from tab order by name"))
+                .containsExactly("a", "b");
+
+        // when
+        table = new PartitionedTable(dataSource, "tab", columns, indexes, clock, false);
+        // then
+        assertThat(dataSource.viewExists("tab")).isFalse();
+        assertThat(dataSource.tableExists("tab_p20160301")).isFalse();
+        assertThat(dataSource.tableExists("tab_p20160302")).isFalse();
+        assertThat(dataSource.queryForStringList("select name from tab order by name"))
+                .containsExactly("a", "b");
+    }
+
+    @Test
+    public void shouldCalculateDay() {
+        long endTime = PartitionedTable.getEndTime(20161231);
+        assertThat(PartitionedTable.getDay(endTime - 1)).isEqualTo(20161231);
+        assertThat(PartitionedTable.getDay(endTime)).isEqualTo(20170101);
+    }
+
+    private void insert(PartitionedTable table, String name) throws Exception {
+        dataSource.update("insert into " + table.getInsertTableName()
+                + " (name, capture_time) values (?, ?)", name, clock.currentTimeMillis());
+    }
+
+    private static class TestClock extends Clock {
+
+        private long currentTimeMillis;
+
+        private TestClock(long currentTimeMillis) {
+            this.currentTimeMillis = currentTimeMillis;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return currentTimeMillis;
+        }
+
+        private void advanceOneDay() {
+            currentTimeMillis += 24 * 3600 * 1000L;
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.mockito.stubbing.Answer;
 
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.ImmutableAdvancedConfig;
+import org.glowroot.agent.model.CommonTimerImpl;
 import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.model.ThreadStats;
 import org.glowroot.agent.model.TimerImpl;
@@ -78,7 +79,8 @@ public class AggregatorTest {
         when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
         when(transaction.getQueries()).thenReturn(ImmutableList.<QueryData>of().iterator());
         when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
-        when(transaction.getAuxThreadRootTimers()).thenReturn(ImmutableList.<TimerImpl>of());
+        when(transaction.getAuxThreadRootTimers())
+                .thenReturn(ImmutableList.<CommonTimerImpl>of());
         when(transaction.getAuxThreadStats()).thenReturn(ImmutableList.<ThreadStats>of());
         // when
         int count = 0;
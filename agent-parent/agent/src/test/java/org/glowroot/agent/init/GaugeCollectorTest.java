@@ -19,14 +19,24 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.List;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.QueryExp;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.slf4j.Logger;
 
 import org.glowroot.agent.config.AdvancedConfig;
@@ -36,6 +46,7 @@ import org.glowroot.agent.config.ImmutableAdvancedConfig;
 import org.glowroot.agent.config.ImmutableGaugeConfig;
 import org.glowroot.agent.config.ImmutableMBeanAttribute;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.agent.util.LazyPlatformMBeanServer.InitListener;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.Collector;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
@@ -44,8 +55,10 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -255,6 +268,89 @@ public class GaugeCollectorTest {
                 "MBean attribute value is not a number or string");
     }
 
+    @Test
+    public void shouldReadAllMBeanAttributesInSingleCall() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
+                .build();
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 1));
+        attributeList.add(new Attribute("ddd", "2.5"));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(attributeList);
+        // when
+        List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
+        // then
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getGaugeName()).isEqualTo("xyz:aaa=bbb:ccc");
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(1);
+        assertThat(gaugeValues.get(1).getGaugeName()).isEqualTo("xyz:aaa=bbb:ddd");
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(2.5);
+        verify(lazyPlatformMBeanServer).getAttributes(ObjectName.getInstance("xyz:aaa=bbb"),
+                new String[] {"ccc", "ddd"});
+        verify(lazyPlatformMBeanServer, never()).getAttribute(any(ObjectName.class),
+                anyString());
+    }
+
+    @Test
+    public void shouldCachePatternMatchesUntilMBeanRegistrationChanges() throws Exception {
+        // given
+        ArgumentCaptor<InitListener> initListenerCaptor =
+                ArgumentCaptor.forClass(InitListener.class);
+        verify(lazyPlatformMBeanServer, times(2)).addInitListener(initListenerCaptor.capture());
+        MBeanServer mbeanServer = mock(MBeanServer.class);
+        initListenerCaptor.getAllValues().get(1).postInit(mbeanServer);
+        ArgumentCaptor<NotificationListener> notificationListenerCaptor =
+                ArgumentCaptor.forClass(NotificationListener.class);
+        verify(mbeanServer).addNotificationListener(eq(MBeanServerDelegate.DELEGATE_NAME),
+                notificationListenerCaptor.capture(), isNull(NotificationFilter.class),
+                isNull());
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=*")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+        ObjectName pattern = ObjectName.getInstance("xyz:aaa=*");
+        when(lazyPlatformMBeanServer.queryNames(pattern, null))
+                .thenReturn(ImmutableSet.of(ObjectName.getInstance("xyz:aaa=bbb")));
+        when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString()))
+                .thenReturn(1);
+        // when
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        // then
+        verify(lazyPlatformMBeanServer).queryNames(eq(pattern), isNull(QueryExp.class));
+        // when
+        notificationListenerCaptor.getValue()
+                .handleNotification(mock(MBeanServerNotification.class), null);
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        // then
+        verify(lazyPlatformMBeanServer, times(2)).queryNames(eq(pattern),
+                isNull(QueryExp.class));
+    }
+
+    @Test
+    public void shouldRemoveMBeanRegistrationListenerOnClose() throws Exception {
+        // given
+        ArgumentCaptor<InitListener> initListenerCaptor =
+                ArgumentCaptor.forClass(InitListener.class);
+        verify(lazyPlatformMBeanServer, times(2)).addInitListener(initListenerCaptor.capture());
+        MBeanServer mbeanServer = mock(MBeanServer.class);
+        initListenerCaptor.getAllValues().get(1).postInit(mbeanServer);
+        ArgumentCaptor<NotificationListener> notificationListenerCaptor =
+                ArgumentCaptor.forClass(NotificationListener.class);
+        verify(mbeanServer).addNotificationListener(eq(MBeanServerDelegate.DELEGATE_NAME),
+                notificationListenerCaptor.capture(), isNull(NotificationFilter.class),
+                isNull());
+        // when
+        gaugeCollector.close();
+        // then
+        verify(mbeanServer).removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                notificationListenerCaptor.getValue());
+    }
+
     private static void setLogger(Class<?> clazz, Logger logger) throws Exception {
         Field loggerField = clazz.getDeclaredField("logger");
         loggerField.setAccessible(true);
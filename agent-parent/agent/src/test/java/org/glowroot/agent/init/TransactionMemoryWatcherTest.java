@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.ImmutableAdvancedConfig;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.model.Transaction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TransactionMemoryWatcherTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testUnderBudget() {
+        // given
+        Transaction transaction1 = mockTransaction(MB / 2, 1);
+        Transaction transaction2 = mockTransaction(MB / 4, 2);
+        TransactionMemoryWatcher watcher = createWatcher(1, transaction1, transaction2);
+        // when
+        watcher.run();
+        // then
+        assertThat(watcher.getEstimatedRetainedBytes()).isEqualTo(3 * MB / 4);
+        assertThat(watcher.getInFlightTransactionCount()).isEqualTo(2);
+        verify(transaction1, never()).setMemoryBudgetExceeded();
+        verify(transaction2, never()).setMemoryBudgetExceeded();
+    }
+
+    @Test
+    public void testOverBudgetShedsLargestFirst() {
+        // given
+        Transaction transaction1 = mockTransaction(MB / 2, 1);
+        Transaction transaction2 = mockTransaction(MB, 2);
+        Transaction transaction3 = mockTransaction(MB / 4, 3);
+        TransactionMemoryWatcher watcher =
+                createWatcher(1, transaction1, transaction2, transaction3);
+        // when
+        watcher.run();
+        // then
+        verify(transaction2).setMemoryBudgetExceeded();
+        verify(transaction1, never()).setMemoryBudgetExceeded();
+        verify(transaction3, never()).setMemoryBudgetExceeded();
+        assertThat(watcher.getMemoryBudgetExceededTransactionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testOverBudgetShedsOldestFirstWhenSameSize() {
+        // given
+        Transaction transaction1 = mockTransaction(MB, 2);
+        Transaction transaction2 = mockTransaction(MB, 1);
+        TransactionMemoryWatcher watcher = createWatcher(1, transaction1, transaction2);
+        // when
+        watcher.run();
+        // then
+        verify(transaction2).setMemoryBudgetExceeded();
+        verify(transaction1, never()).setMemoryBudgetExceeded();
+    }
+
+    @Test
+    public void testAlreadyExceededTransactionsDoNotCountTowardsOverage() {
+        // given
+        Transaction transaction1 = mockTransaction(2 * MB, 1);
+        when(transaction1.isMemoryBudgetExceeded()).thenReturn(true);
+        Transaction transaction2 = mockTransaction(MB / 2, 2);
+        TransactionMemoryWatcher watcher = createWatcher(1, transaction1, transaction2);
+        // when
+        watcher.run();
+        // then
+        assertThat(watcher.getEstimatedRetainedBytes()).isEqualTo(5 * MB / 2);
+        verify(transaction1, never()).setMemoryBudgetExceeded();
+        verify(transaction2, never()).setMemoryBudgetExceeded();
+    }
+
+    @Test
+    public void testNoBudget() {
+        // given
+        Transaction transaction = mockTransaction(10 * MB, 1);
+        TransactionMemoryWatcher watcher = createWatcher(0, transaction);
+        // when
+        watcher.run();
+        // then
+        assertThat(watcher.getEstimatedRetainedBytes()).isEqualTo(10 * MB);
+        verify(transaction, never()).setMemoryBudgetExceeded();
+    }
+
+    private static TransactionMemoryWatcher createWatcher(int budgetMb,
+            Transaction... transactions) {
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getTransactions())
+                .thenReturn(ImmutableList.copyOf(transactions));
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig()).thenReturn(
+                ImmutableAdvancedConfig.builder().transactionMemoryBudgetMb(budgetMb).build());
+        return new TransactionMemoryWatcher(transactionRegistry, configService);
+    }
+
+    private static Transaction mockTransaction(long estimatedRetainedBytes, long startTick) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getEstimatedRetainedBytes()).thenReturn(estimatedRetainedBytes);
+        when(transaction.getStartTick()).thenReturn(startTick);
+        return transaction;
+    }
+}
@@ -15,13 +15,23 @@
  */
 package org.glowroot.agent.model;
 
+import java.util.List;
+
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class TraceEntryComponentTest {
 
@@ -33,7 +43,7 @@ public class TraceEntryComponentTest {
         TimerImpl timer = mock(TimerImpl.class);
         Ticker ticker = mock(Ticker.class);
         TraceEntryComponent traceEntryComponent =
-                new TraceEntryComponent(threadContext, messageSupplier, timer, 0, ticker);
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0, 0, ticker);
         // when
         traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
         traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
@@ -50,7 +60,7 @@ public class TraceEntryComponentTest {
         TimerImpl timer2 = mock(TimerImpl.class);
         Ticker ticker = mock(Ticker.class);
         TraceEntryComponent traceEntryComponent =
-                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, ticker);
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, 0, ticker);
         // when
         traceEntryComponent.pushEntry(0, messageSupplier2, null, 0, timer2);
         traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
@@ -68,11 +78,125 @@ public class TraceEntryComponentTest {
         TimerImpl timer2 = mock(TimerImpl.class);
         Ticker ticker = mock(Ticker.class);
         TraceEntryComponent traceEntryComponent =
-                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, ticker);
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, 0, ticker);
         // when
         traceEntryComponent.pushEntry(0, messageSupplier2, null, 0, timer2);
         traceEntryComponent.popEntry(mock(TraceEntryImpl.class), 0);
         // then
         assertThat(traceEntryComponent.isCompleted()).isTrue();
     }
+
+    @Test
+    public void testFoldRepeatedQueryEntries() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        Ticker ticker = mock(Ticker.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0, 2, ticker);
+        QueryData queryData = new QueryData("SQL", "select 1", null);
+        QueryData otherQueryData = new QueryData("SQL", "select 2", null);
+        // when
+        for (int i = 1; i <= 5; i++) {
+            pushAndPop(traceEntryComponent, i, queryData, timer);
+        }
+        pushAndPop(traceEntryComponent, 6, otherQueryData, timer);
+        // then
+        List<Trace.Entry> entries = traceEntryComponent.toProto(100,
+                ImmutableListMultimap.<TraceEntryImpl, TraceEntryImpl>of());
+        assertThat(entries).hasSize(4);
+        assertThat(entries.get(0).getRepeatCount()).isZero();
+        assertThat(entries.get(1).getRepeatCount()).isZero();
+        assertThat(entries.get(2).getRepeatCount()).isEqualTo(3);
+        assertThat(entries.get(2).getStartOffsetNanos()).isEqualTo(3);
+        assertThat(entries.get(2).getRepeatLastStartOffsetNanos()).isEqualTo(5);
+        assertThat(entries.get(3).getRepeatCount()).isZero();
+    }
+
+    @Test
+    public void testNotFoldNonAdjacentQueryEntries() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        Ticker ticker = mock(Ticker.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0, 1, ticker);
+        QueryData queryData = new QueryData("SQL", "select 1", null);
+        QueryData otherQueryData = new QueryData("SQL", "select 2", null);
+        // when
+        for (int i = 1; i <= 6; i++) {
+            pushAndPop(traceEntryComponent, i, i % 2 == 0 ? queryData : otherQueryData, timer);
+        }
+        pushAndPop(traceEntryComponent, 7, null, timer);
+        // then
+        List<Trace.Entry> entries = traceEntryComponent.toProto(100,
+                ImmutableListMultimap.<TraceEntryImpl, TraceEntryImpl>of());
+        assertThat(entries).hasSize(7);
+    }
+
+    @Test
+    public void testWriteRepeatedLocationStackOnlyOnce() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        Transaction transaction = mock(Transaction.class);
+        final LocationStackInterner locationStackInterner = new LocationStackInterner();
+        when(threadContext.getTransaction()).thenReturn(transaction);
+        when(transaction.internLocationStack(any(StackTraceElement[].class), anyInt()))
+                .thenAnswer(new Answer<ImmutableList<StackTraceElement>>() {
+                    @Override
+                    public ImmutableList<StackTraceElement> answer(InvocationOnMock invocation) {
+                        Object[] args = invocation.getArguments();
+                        return locationStackInterner.intern((StackTraceElement[]) args[0],
+                                (Integer) args[1]);
+                    }
+                });
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        Ticker ticker = mock(Ticker.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0, 0, ticker);
+        // when
+        TraceEntryImpl entry1 =
+                traceEntryComponent.pushEntry(1, mock(MessageSupplier.class), null, 0, timer);
+        entry1.setStackTrace(createStackTrace(), 1);
+        TraceEntryImpl entry2 =
+                traceEntryComponent.pushEntry(2, mock(MessageSupplier.class), null, 0, timer);
+        entry2.setStackTrace(createStackTrace(), 1);
+        traceEntryComponent.popEntry(entry2, 2);
+        traceEntryComponent.popEntry(entry1, 2);
+        TraceEntryImpl entry3 =
+                traceEntryComponent.pushEntry(3, mock(MessageSupplier.class), null, 0, timer);
+        entry3.setStackTrace(createStackTrace(), 1);
+        traceEntryComponent.popEntry(entry3, 3);
+        // then
+        List<Trace.Entry> entries = traceEntryComponent.toProto(100,
+                ImmutableListMultimap.<TraceEntryImpl, TraceEntryImpl>of());
+        assertThat(entries).hasSize(2);
+        assertThat(entries.get(0).getLocationStackTraceElementList()).hasSize(2);
+        assertThat(entries.get(0).getLocationStackEntryIndex()).isZero();
+        Trace.Entry childEntry = entries.get(0).getChildEntry(0);
+        assertThat(childEntry.getLocationStackTraceElementList()).isEmpty();
+        assertThat(childEntry.getLocationStackEntryIndex()).isEqualTo(1);
+        assertThat(entries.get(1).getLocationStackTraceElementList()).isEmpty();
+        assertThat(entries.get(1).getLocationStackEntryIndex()).isEqualTo(1);
+    }
+
+    private static StackTraceElement[] createStackTrace() {
+        // first element is skipped, and differs on each capture
+        return new StackTraceElement[] {
+                new StackTraceElement("Skipped", "skipped" + System.nanoTime(), null, -1),
+                new StackTraceElement("Dao", "findById", "Dao.java", 12),
+                new StackTraceElement("Service", "execute", "Service.java", 34)};
+    }
+
+    private static void pushAndPop(TraceEntryComponent traceEntryComponent, long tick,
+            QueryData queryData, TimerImpl timer) {
+        TraceEntryImpl entry = traceEntryComponent.pushEntry(tick, mock(MessageSupplier.class),
+                queryData, 1, timer);
+        // end() calls ThreadContextImpl.popEntry() which is mocked
+        entry.end();
+        traceEntryComponent.popEntry(entry, tick);
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.util.Iterator;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChunkedAppendOnlyListTest {
+
+    @Test
+    public void shouldBeEmpty() {
+        // given
+        ChunkedAppendOnlyList<String> list = new ChunkedAppendOnlyList<String>();
+        // when
+        // then
+        assertThat(list.isEmpty()).isTrue();
+        assertThat(list.size()).isEqualTo(0);
+        assertThat(list.iterator().hasNext()).isFalse();
+    }
+
+    @Test
+    public void shouldIterateAcrossChunks() {
+        // given
+        ChunkedAppendOnlyList<Integer> list = new ChunkedAppendOnlyList<Integer>();
+        // when
+        for (int i = 0; i < 1000; i++) {
+            list.add(i);
+        }
+        // then
+        assertThat(list.isEmpty()).isFalse();
+        assertThat(list.size()).isEqualTo(1000);
+        int expected = 0;
+        for (Integer value : list) {
+            assertThat(value).isEqualTo(expected++);
+        }
+        assertThat(expected).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldNotSeeElementsAddedAfterIteratorCreated() {
+        // given
+        ChunkedAppendOnlyList<String> list = new ChunkedAppendOnlyList<String>();
+        list.add("a");
+        list.add("b");
+        // when
+        Iterator<String> i = list.iterator();
+        list.add("c");
+        // then
+        assertThat(ImmutableList.copyOf(i)).containsExactly("a", "b");
+        assertThat(list).containsExactly("a", "b", "c");
+    }
+}
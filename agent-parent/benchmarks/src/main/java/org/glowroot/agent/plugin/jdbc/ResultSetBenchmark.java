@@ -37,6 +37,9 @@ import org.openjdk.jmh.annotations.TearDown;
 import org.glowroot.agent.plugin.jdbc.support.MockConnection;
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
+// the jdbc plugin property lowOverheadRowCounting cannot be varied per benchmark parameter since it
+// is read from the agent's config.json, so compare by running this benchmark (with database=MOCK to
+// isolate the per-row instrumentation overhead) once with and once without that property enabled
 @BenchmarkMode(Mode.AverageTime)
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 @State(Scope.Thread)
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures the per-task overhead of propagating the transaction context through fork/join tasks,
+// both inside of a transaction and outside of a transaction (where there should be no allocation)
+//
+// the task count is well above the default advanced config maxAuxThreadContextsPerTransaction (500)
+// so that most forks in the ACTIVE case happen after that limit has been reached, compare the
+// per-fork overhead before and after a change by running with -prof gc against both agent jars
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ForkJoinBenchmark extends TransactionWorthy {
+
+    private static final int TASK_COUNT = 16384;
+
+    @Param
+    private TransactionMode transactionMode;
+
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASK_COUNT)
+    public void execute() throws Exception {
+        switch (transactionMode) {
+            case NONE:
+                pool.invoke(new RangeAction(0, TASK_COUNT));
+                break;
+            case ACTIVE:
+                doSomethingTransactionWorthy();
+                break;
+        }
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() {
+        pool.invoke(new RangeAction(0, TASK_COUNT));
+    }
+
+    public enum TransactionMode {
+        NONE, ACTIVE
+    }
+
+    // splits down to one (tiny) leaf task per element, similar to a parallel stream
+    @SuppressWarnings("serial")
+    private static class RangeAction extends RecursiveAction {
+
+        private final int from;
+        private final int to;
+
+        private RangeAction(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeAction(from, mid), new RangeAction(mid, to));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Queues;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// measures messages per second over a local netty echo connection, using the nio transport vs the
+// native epoll transport (which glowroot uses when -Dglowroot.epoll=true)
+//
+// run with -prof gc to also compare the allocation per message
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class NettyTransportBenchmark {
+
+    private static final int MESSAGE_SIZE = 256;
+
+    @Param
+    private Transport transport;
+
+    private EventLoopGroup serverGroup;
+    private EventLoopGroup clientGroup;
+    private Channel serverChannel;
+    private Channel clientChannel;
+
+    private final BlockingQueue<ByteBuf> responses = Queues.newLinkedBlockingQueue();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        if (transport == Transport.EPOLL && !Epoll.isAvailable()) {
+            throw new IllegalStateException("Native epoll transport is not available",
+                    Epoll.unavailabilityCause());
+        }
+        serverGroup = transport.newEventLoopGroup();
+        clientGroup = transport.newEventLoopGroup();
+        ServerBootstrap serverBootstrap = new ServerBootstrap();
+        serverBootstrap.group(serverGroup)
+                .channel(transport.serverChannelType)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new EchoHandler());
+        serverChannel = serverBootstrap.bind(new InetSocketAddress("127.0.0.1", 0)).sync()
+                .channel();
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(clientGroup)
+                .channel(transport.channelType)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new ResponseHandler());
+                    }
+                });
+        clientChannel = bootstrap.connect(serverChannel.localAddress()).sync().channel();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        clientChannel.close().sync();
+        serverChannel.close().sync();
+        clientGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+        serverGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+    }
+
+    @Benchmark
+    public int execute() throws Exception {
+        ByteBuf message = clientChannel.alloc().buffer(MESSAGE_SIZE);
+        message.writeZero(MESSAGE_SIZE);
+        clientChannel.writeAndFlush(message);
+        // the echo can arrive split across multiple reads
+        int remaining = MESSAGE_SIZE;
+        while (remaining > 0) {
+            ByteBuf response = responses.take();
+            remaining -= response.readableBytes();
+            response.release();
+        }
+        return remaining;
+    }
+
+    @Sharable
+    private static class EchoHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.writeAndFlush(msg);
+        }
+    }
+
+    private class ResponseHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            responses.add((ByteBuf) msg);
+        }
+    }
+
+    public enum Transport {
+
+        NIO(NioServerSocketChannel.class, NioSocketChannel.class),
+        EPOLL(EpollServerSocketChannel.class, EpollSocketChannel.class);
+
+        private final Class<? extends ServerChannel> serverChannelType;
+        private final Class<? extends Channel> channelType;
+
+        private Transport(Class<? extends ServerChannel> serverChannelType,
+                Class<? extends Channel> channelType) {
+            this.serverChannelType = serverChannelType;
+            this.channelType = channelType;
+        }
+
+        private EventLoopGroup newEventLoopGroup() {
+            if (this == EPOLL) {
+                return new EpollEventLoopGroup(1);
+            }
+            return new NioEventLoopGroup(1);
+        }
+    }
+}
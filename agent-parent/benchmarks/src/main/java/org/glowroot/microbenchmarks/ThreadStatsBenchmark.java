@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+// measures the per-transaction cost of capturing thread stats and gc activity, with and without
+// advanced config lowOverheadThreadStats
+//
+// this replicates the JMX calls that the agent makes at the start and end of each transaction,
+// since TransactionBenchmark runs against the agent jar whose configuration cannot be varied per
+// benchmark parameter (the end-to-end difference can be measured by running TransactionBenchmark
+// once with and once without lowOverheadThreadStats in the agent's config.json)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ThreadStatsBenchmark {
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    // stands in for the agent's global gc epoch, which is only updated by gc notifications
+    private static volatile long gcEpoch;
+
+    @Param
+    private ThreadStatsMode threadStatsMode;
+
+    @Benchmark
+    public void execute(Blackhole bh) {
+        switch (threadStatsMode) {
+            case FULL:
+                captureFull(bh);
+                captureFull(bh);
+                break;
+            case LOW_OVERHEAD:
+                captureLowOverhead(bh);
+                captureLowOverhead(bh);
+                break;
+        }
+    }
+
+    private static void captureFull(Blackhole bh) {
+        ThreadInfo threadInfo = threadMXBean.getThreadInfo(Thread.currentThread().getId(), 0);
+        bh.consume(threadMXBean.getCurrentThreadCpuTime());
+        bh.consume(threadInfo.getBlockedTime());
+        bh.consume(threadInfo.getWaitedTime());
+        List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+        Map<String, Long> gcSnapshots = Maps.newHashMap();
+        for (GarbageCollectorMXBean gcBean : gcBeans) {
+            bh.consume(gcBean.getCollectionTime());
+            gcSnapshots.put(gcBean.getName(), gcBean.getCollectionCount());
+        }
+        bh.consume(gcSnapshots);
+    }
+
+    private static void captureLowOverhead(Blackhole bh) {
+        bh.consume(threadMXBean.getCurrentThreadCpuTime());
+        bh.consume(gcEpoch);
+    }
+
+    public enum ThreadStatsMode {
+        FULL, LOW_OVERHEAD
+    }
+}
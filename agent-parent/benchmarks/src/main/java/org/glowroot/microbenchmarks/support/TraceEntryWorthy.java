@@ -21,6 +21,10 @@ public class TraceEntryWorthy {
 
     public void doSomethingTraceEntryWorthy2() {}
 
+    // the parameter type is intentionally Object so that the message template path cannot be
+    // resolved (and compiled) at weave time
+    public void doSomethingTraceEntryWorthy3(@SuppressWarnings("unused") Object obj) {}
+
     public String getName() {
         return "the name";
     }
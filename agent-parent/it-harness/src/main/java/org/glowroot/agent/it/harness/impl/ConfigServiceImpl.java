@@ -202,6 +202,9 @@ class ConfigServiceImpl implements ConfigService {
                 .setMaxTraceEntriesPerTransaction(of(2000))
                 .setMaxStackTraceSamplesPerTransaction(of(10000))
                 .setMbeanGaugeNotFoundDelaySeconds(of(60))
+                .setMaxAuxThreadContextsPerTransaction(of(500))
+                .setTraceEntryFoldThreshold(of(10))
+                .setMaxAsyncRootTimersPerTransaction(of(500))
                 .build();
     }
 
@@ -78,6 +78,27 @@ public class ExecutorAspect {
         }
     }
 
+    // the field and method names are verbose to avoid conflict since they will become fields
+    // and methods in all classes that extend java.util.concurrent.ForkJoinTask (and they are
+    // distinct from RunnableImpl since some ForkJoinTasks also implement java.lang.Runnable, e.g.
+    // the tasks used by CompletableFuture)
+    @Mixin({"java.util.concurrent.ForkJoinTask"})
+    public abstract static class ForkJoinTaskImpl implements ForkJoinTaskMixin {
+
+        private volatile @Nullable AuxThreadContext glowroot$forkJoinAuxThreadContext;
+
+        @Override
+        public @Nullable AuxThreadContext glowroot$getForkJoinAuxThreadContext() {
+            return glowroot$forkJoinAuxThreadContext;
+        }
+
+        @Override
+        public void glowroot$setForkJoinAuxThreadContext(
+                @Nullable AuxThreadContext auxThreadContext) {
+            this.glowroot$forkJoinAuxThreadContext = auxThreadContext;
+        }
+    }
+
     // the method names are verbose to avoid conflict since they will become methods in all classes
     // that extend java.lang.Runnable and/or java.util.concurrent.Callable
     public interface RunnableCallableMixin {
@@ -99,6 +120,16 @@ public class ExecutorAspect {
                 @Nullable RunnableCallableMixin runnableCallableMixin);
     }
 
+    // the method names are verbose to avoid conflict since they will become methods in all classes
+    // that extend java.util.concurrent.ForkJoinTask
+    public interface ForkJoinTaskMixin {
+
+        @Nullable
+        AuxThreadContext glowroot$getForkJoinAuxThreadContext();
+
+        void glowroot$setForkJoinAuxThreadContext(@Nullable AuxThreadContext auxThreadContext);
+    }
+
     // ignore self nested is important for cases with wrapping ExecutorServices so that the outer
     // Runnable/Callable is the one used
     @Pointcut(className = "java.util.concurrent.ExecutorService", methodName = "submit",
@@ -151,11 +182,19 @@ public class ExecutorAspect {
     public static class ExecuteAdvice {
         @IsEnabled
         public static boolean isEnabled(@BindParameter Object runnableCallable) {
-            // only capture execute if called on FutureTask
-            return runnableCallable instanceof FutureTaskMixin;
+            // only capture execute if called on FutureTask, or on ForkJoinTask (which is how
+            // CompletableFuture async stages are submitted, both to ForkJoinPool.commonPool() and
+            // to user supplied executors)
+            return runnableCallable instanceof FutureTaskMixin
+                    || runnableCallable instanceof ForkJoinTaskMixin;
         }
         @OnBefore
         public static void onBefore(ThreadContext context, @BindParameter Object runnableCallable) {
+            if (runnableCallable instanceof ForkJoinTaskMixin) {
+                ((ForkJoinTaskMixin) runnableCallable)
+                        .glowroot$setForkJoinAuxThreadContext(context.createAuxThreadContext());
+                return;
+            }
             FutureTaskMixin futureTaskMixin = (FutureTaskMixin) runnableCallable;
             AuxThreadContext asyncContext = context.createAuxThreadContext();
             RunnableCallableMixin innerRunnableCallable =
@@ -166,6 +205,96 @@ public class ExecutorAspect {
         }
     }
 
+    @Pointcut(className = "java.util.concurrent.ForkJoinPool", methodName = "execute|submit|invoke",
+            methodParameterTypes = {"java.util.concurrent.ForkJoinTask"},
+            nestingGroup = "executor")
+    public static class ForkJoinPoolAdvice {
+        @IsEnabled
+        public static boolean isEnabled(@BindParameter Object forkJoinTask) {
+            // this class may have been loaded before class file transformer was added to jvm
+            return forkJoinTask instanceof ForkJoinTaskMixin;
+        }
+        @OnBefore
+        public static void onBefore(ThreadContext context, @BindParameter Object forkJoinTask) {
+            ((ForkJoinTaskMixin) forkJoinTask)
+                    .glowroot$setForkJoinAuxThreadContext(context.createAuxThreadContext());
+        }
+    }
+
+    // binding ThreadContext (as opposed to OptionalThreadContext) means this advice is skipped
+    // entirely (no aux thread context allocation) when there is no active transaction, which is
+    // important since fork() is called at very high rates, e.g. by parallel streams
+    //
+    // once the transaction has reached advanced config maxAuxThreadContextsPerTransaction,
+    // createAuxThreadContext() returns a single shared instance, so fork() itself no longer
+    // allocates, but each forked task that is stolen by another thread still gets its own thread
+    // context when it starts (see ForkJoinTaskExecAdvice below)
+    @Pointcut(className = "java.util.concurrent.ForkJoinTask", methodName = "fork",
+            methodParameterTypes = {})
+    public static class ForkAdvice {
+        @IsEnabled
+        public static boolean isEnabled(@BindReceiver Object forkJoinTask) {
+            // this class may have been loaded before class file transformer was added to jvm
+            return forkJoinTask instanceof ForkJoinTaskMixin;
+        }
+        @OnBefore
+        public static void onBefore(ThreadContext context, @BindReceiver Object forkJoinTask) {
+            ForkJoinTaskMixin forkJoinTaskMixin = (ForkJoinTaskMixin) forkJoinTask;
+            if (forkJoinTaskMixin.glowroot$getForkJoinAuxThreadContext() == null) {
+                forkJoinTaskMixin
+                        .glowroot$setForkJoinAuxThreadContext(context.createAuxThreadContext());
+            }
+        }
+    }
+
+    // tasks that are executed inline (e.g. via invoke() or via join() of a task that has not been
+    // stolen yet) are executed in the same thread that is already tracking the transaction, in
+    // which case AuxThreadContext.start() is a no-op
+    //
+    // each task that runs in a different thread gets its own auxiliary thread context while it runs
+    // (no matter how short the task is), which is rolled up into the transaction's auxiliary thread
+    // timers on completion, and once advanced config maxAuxThreadContextsPerTransaction is exceeded
+    // it is not retained by the transaction, so that fine grained fork/join workloads do not retain
+    // a thread context per task
+    @Pointcut(className = "java.util.concurrent.ForkJoinTask", methodName = "exec",
+            methodParameterTypes = {}, methodReturnType = "boolean")
+    public static class ForkJoinTaskExecAdvice {
+        @OnBefore
+        public static @Nullable TraceEntry onBefore(@BindReceiver Object forkJoinTask) {
+            if (!(forkJoinTask instanceof ForkJoinTaskMixin)) {
+                // this class was loaded before class file transformer was added to jvm
+                return null;
+            }
+            AuxThreadContext auxThreadContext =
+                    ((ForkJoinTaskMixin) forkJoinTask).glowroot$getForkJoinAuxThreadContext();
+            if (auxThreadContext == null) {
+                return null;
+            }
+            return auxThreadContext.start();
+        }
+        @OnReturn
+        public static void onReturn(@BindTraveler @Nullable TraceEntry traceEntry) {
+            if (traceEntry != null) {
+                traceEntry.end();
+            }
+        }
+        @OnThrow
+        public static void onThrow(@BindThrowable Throwable t,
+                @BindTraveler @Nullable TraceEntry traceEntry) {
+            if (traceEntry != null) {
+                traceEntry.endWithError(t);
+            }
+        }
+        @OnAfter
+        public static void onAfter(@BindReceiver Object forkJoinTask) {
+            if (!(forkJoinTask instanceof ForkJoinTaskMixin)) {
+                // this class was loaded before class file transformer was added to jvm
+                return;
+            }
+            ((ForkJoinTaskMixin) forkJoinTask).glowroot$setForkJoinAuxThreadContext(null);
+        }
+    }
+
     // this method uses submit() and returns Future, but none of the callers use/wait on the Future
     @Pointcut(className = "net.sf.ehcache.store.disk.DiskStorageFactory", methodName = "schedule",
             methodParameterTypes = {"java.util.concurrent.Callable"}, nestingGroup = "executor")
@@ -191,6 +320,26 @@ public class ExecutorAspect {
         }
     }
 
+    @Pointcut(
+            className = "java.util.concurrent.ForkJoinTask|java.util.concurrent.CompletableFuture",
+            methodName = "join", methodParameterTypes = {}, timerName = "wait on future")
+    public static class JoinAdvice {
+        private static final TimerName timerName = Agent.getTimerName(JoinAdvice.class);
+        @IsEnabled
+        public static boolean isEnabled(@BindReceiver Future<?> future) {
+            // don't capture if already done, see FutureGetAdvice above
+            return !future.isDone();
+        }
+        @OnBefore
+        public static Timer onBefore(ThreadContext context) {
+            return context.startTimer(timerName);
+        }
+        @OnAfter
+        public static void onAfter(@BindTraveler Timer timer) {
+            timer.stop();
+        }
+    }
+
     @Pointcut(className = "java.lang.Runnable", methodName = "run", methodParameterTypes = {})
     public static class RunnableAdvice {
         @OnBefore
@@ -201,6 +350,11 @@ public class ExecutorAspect {
             }
             RunnableCallableMixin runnableMixin = (RunnableCallableMixin) runnable;
             AuxThreadContext asyncContext = runnableMixin.glowroot$getAuxThreadContext();
+            if (asyncContext == null && runnable instanceof ForkJoinTaskMixin) {
+                // CompletableFuture async stage submitted to a user supplied executor
+                asyncContext =
+                        ((ForkJoinTaskMixin) runnable).glowroot$getForkJoinAuxThreadContext();
+            }
             if (asyncContext == null) {
                 return null;
             }
@@ -227,6 +381,9 @@ public class ExecutorAspect {
             }
             RunnableCallableMixin runnableMixin = (RunnableCallableMixin) runnable;
             runnableMixin.glowroot$setAuxAsyncContext(null);
+            if (runnable instanceof ForkJoinTaskMixin) {
+                ((ForkJoinTaskMixin) runnable).glowroot$setForkJoinAuxThreadContext(null);
+            }
         }
     }
 
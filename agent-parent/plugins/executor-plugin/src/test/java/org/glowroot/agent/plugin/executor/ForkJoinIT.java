@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.executor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.Containers;
+import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ForkJoinIT {
+
+    private static Container container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // tests only work with javaagent container because they need to weave bootstrap classes
+        // that extend ForkJoinTask
+        container = Containers.createJavaagent();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        container.close();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.checkAndReset();
+    }
+
+    @Test
+    public void shouldCaptureForkJoinPoolSubmit() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoSomeForkJoinPoolSubmitWork.class);
+        // then
+        Trace.Header header = trace.getHeader();
+        assertThat(header.getAuxThreadRootTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getName()).isEqualTo("auxiliary thread");
+        assertThat(header.getAuxThreadRootTimer(0).getCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getTotalNanos())
+                .isGreaterThanOrEqualTo(MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void shouldCaptureForkedTasks() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoSomeForkedWork.class);
+        // then
+        Trace.Header header = trace.getHeader();
+        assertThat(header.getAuxThreadRootTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getName()).isEqualTo("auxiliary thread");
+        // forked tasks that end up being executed inline by the joining thread do not get their
+        // own auxiliary thread context
+        assertThat(header.getAuxThreadRootTimer(0).getCount()).isGreaterThanOrEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getCount()).isLessThanOrEqualTo(4);
+        assertThat(header.getAuxThreadRootTimer(0).getTotalNanos())
+                .isGreaterThanOrEqualTo(MILLISECONDS.toNanos(300));
+    }
+
+    public static class DoSomeForkJoinPoolSubmitWork implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                pool.submit(new SleepAction()).get();
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    public static class DoSomeForkedWork implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                pool.submit(new ForkingAction()).get();
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class ForkingAction extends RecursiveAction {
+
+        @Override
+        protected void compute() {
+            ForkJoinTask.invokeAll(new SleepAction(), new SleepAction(), new SleepAction());
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class SleepAction extends RecursiveAction {
+
+        @Override
+        protected void compute() {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+}
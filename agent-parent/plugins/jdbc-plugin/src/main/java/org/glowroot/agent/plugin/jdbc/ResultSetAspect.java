@@ -43,6 +43,9 @@ public class ResultSetAspect {
     private static final Logger logger = Agent.getLogger(ResultSetAspect.class);
     private static final ConfigService configService = Agent.getConfigService("jdbc");
 
+    private static final BooleanProperty lowOverheadRowCounting =
+            configService.getBooleanProperty("lowOverheadRowCounting");
+
     @Pointcut(className = "java.sql.ResultSet", methodName = "next", methodParameterTypes = {},
             nestingGroup = "jdbc", timerName = "jdbc resultset navigate")
     public static class NextAdvice {
@@ -67,6 +70,17 @@ public class ResultSetAspect {
                 // bizarre concurrent mis-usage of ResultSet
                 return;
             }
+            if (lowOverheadRowCounting.value()) {
+                // only the mirror is touched here, the row count is folded into the query entry
+                // at the end of the result set, or at ResultSet.close() or Statement.close()
+                if (currentRowValid) {
+                    mirror.incrementPendingRow();
+                } else {
+                    mirror.pendingRowNavigationAttempted();
+                    mirror.foldPendingRows();
+                }
+                return;
+            }
             QueryEntry lastQueryEntry = mirror.getLastQueryEntry();
             if (lastQueryEntry == null) {
                 // tracing must be disabled (e.g. exceeded trace entry limit)
@@ -118,7 +132,11 @@ public class ResultSetAspect {
                     // tracing must be disabled (e.g. exceeded trace entry limit)
                     return;
                 }
-                lastQueryEntry.setCurrRow(((ResultSet) resultSet).getRow());
+                int row = ((ResultSet) resultSet).getRow();
+                lastQueryEntry.setCurrRow(row);
+                // so that subsequent ResultSet.next() calls continue from here when using
+                // lowOverheadRowCounting
+                mirror.setPendingRow(row);
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
             }
@@ -131,6 +149,22 @@ public class ResultSetAspect {
         }
     }
 
+    @Pointcut(className = "java.sql.ResultSet", methodName = "close", methodParameterTypes = {})
+    public static class CloseAdvice {
+        @IsEnabled
+        public static boolean isEnabled(@BindReceiver HasStatementMirror resultSet) {
+            return lowOverheadRowCounting.value() && resultSet.glowroot$hasStatementMirror();
+        }
+        @OnBefore
+        public static void onBefore(@BindReceiver HasStatementMirror resultSet) {
+            StatementMirror mirror = resultSet.glowroot$getStatementMirror();
+            if (mirror != null) {
+                // this should always be true since just checked hasGlowrootStatementMirror() above
+                mirror.foldPendingRows();
+            }
+        }
+    }
+
     @Pointcut(className = "java.sql.ResultSet", methodName = "get*",
             methodParameterTypes = {"int", ".."}, nestingGroup = "jdbc",
             timerName = "jdbc resultset value")
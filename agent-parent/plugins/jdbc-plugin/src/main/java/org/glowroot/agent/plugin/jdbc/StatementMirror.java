@@ -38,6 +38,13 @@ class StatementMirror {
     // while that thread is adding batches into the statement and executing it
     private @Nullable QueryEntry lastQueryEntry;
 
+    // row navigation that has not yet been folded into lastQueryEntry, only used when jdbc plugin
+    // property lowOverheadRowCounting is enabled
+    //
+    // ok for these fields to be non-volatile for the same reason as lastQueryEntry above
+    private long pendingRow;
+    private boolean pendingRowNavigation;
+
     void addBatch(String sql) {
         // synchronization isn't an issue here as this method is called only by
         // the monitored thread
@@ -65,10 +72,45 @@ class StatementMirror {
     }
 
     void setLastQuery(QueryEntry lastQueryEntry) {
+        foldPendingRows();
         this.lastQueryEntry = lastQueryEntry;
+        pendingRow = 0;
     }
 
     void clearLastQuery() {
+        foldPendingRows();
         lastQueryEntry = null;
+        pendingRow = 0;
+    }
+
+    void incrementPendingRow() {
+        pendingRow++;
+        pendingRowNavigation = true;
+    }
+
+    void pendingRowNavigationAttempted() {
+        pendingRowNavigation = true;
+    }
+
+    // called after lastQueryEntry has been updated directly with the absolute row
+    void setPendingRow(long row) {
+        pendingRow = row;
+        pendingRowNavigation = false;
+    }
+
+    void foldPendingRows() {
+        if (!pendingRowNavigation) {
+            return;
+        }
+        pendingRowNavigation = false;
+        if (lastQueryEntry == null) {
+            // tracing must be disabled (e.g. exceeded trace entry limit)
+            return;
+        }
+        if (pendingRow == 0) {
+            lastQueryEntry.rowNavigationAttempted();
+        } else {
+            lastQueryEntry.setCurrRow(pendingRow);
+        }
     }
 }
@@ -38,6 +38,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 public class StatementIT {
 
+    private static final String PLUGIN_ID = "jdbc";
+
     private static Container container;
 
     @BeforeClass
@@ -68,6 +70,54 @@ public class StatementIT {
                 .isEqualTo("jdbc execution: select * from employee => 3 rows");
     }
 
+    @Test
+    public void testStatementWithLowOverheadRowCounting() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "lowOverheadRowCounting", true);
+        // when
+        Trace trace = container.execute(ExecuteStatementAndIterateOverResults.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(1);
+        Trace.Entry entry = entries.get(0);
+        assertThat(entry.getMessage())
+                .isEqualTo("jdbc execution: select * from employee => 3 rows");
+    }
+
+    @Test
+    public void testStatementPartialIterateWithLowOverheadRowCounting() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "lowOverheadRowCounting", true);
+        // when
+        Trace trace = container.execute(ExecuteStatementAndIterateOverPartialResults.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(1);
+        Trace.Entry entry = entries.get(0);
+        assertThat(entry.getMessage())
+                .isEqualTo("jdbc execution: select * from employee => 2 rows");
+    }
+
+    @Test
+    public void testRepeatedStatementFolding() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(ExecuteRepeatedStatement.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        // default trace entry fold threshold is 10
+        assertThat(entries).hasSize(11);
+        for (int i = 0; i < 10; i++) {
+            assertThat(entries.get(i).getRepeatCount()).isZero();
+        }
+        Trace.Entry entry = entries.get(10);
+        assertThat(entry.getMessage())
+                .isEqualTo("jdbc execution: select * from employee => 3 rows");
+        assertThat(entry.getRepeatCount()).isEqualTo(15);
+        assertThat(entry.getRepeatLastStartOffsetNanos())
+                .isGreaterThan(entry.getStartOffsetNanos());
+    }
+
     @Test
     public void testStatementQuery() throws Exception {
         // given
@@ -220,6 +270,61 @@ public class StatementIT {
         }
     }
 
+    public static class ExecuteStatementAndIterateOverPartialResults
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("select * from employee");
+                ResultSet rs = statement.getResultSet();
+                rs.next();
+                rs.next();
+            } finally {
+                // result set is intentionally not closed
+                statement.close();
+            }
+        }
+    }
+
+    public static class ExecuteRepeatedStatement implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Statement statement = connection.createStatement();
+            try {
+                for (int i = 0; i < 25; i++) {
+                    statement.execute("select * from employee");
+                    ResultSet rs = statement.getResultSet();
+                    while (rs.next()) {
+                        rs.getString(1);
+                    }
+                }
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
     public static class ExecuteStatementQueryAndIterateOverResults
             implements AppUnderTest, TransactionMarker {
         private Connection connection;
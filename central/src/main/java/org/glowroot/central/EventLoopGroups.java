@@ -21,10 +21,11 @@ import java.util.concurrent.ThreadFactory;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
+import org.glowroot.common.util.NativeTransport;
+
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class EventLoopGroups {
@@ -32,14 +33,14 @@ class EventLoopGroups {
     private EventLoopGroups() {}
 
     // copy of io.grpc.netty.Utils.DefaultEventLoopGroupResource with some modification
-    static EventLoopGroup create(String name) {
+    static EventLoopGroup create(String name, int numThreads) {
         ThreadFactory threadFactory = new ThreadFactoryBuilder()
                 .setDaemon(true)
                 .setNameFormat(name + "-%d")
                 .build();
-        final ExecutorService executor = Executors.newSingleThreadExecutor(threadFactory);
-        NioEventLoopGroup nioEventLoopGroup = new NioEventLoopGroup(1, executor);
-        nioEventLoopGroup.terminationFuture().addListener(
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads, threadFactory);
+        EventLoopGroup eventLoopGroup = NativeTransport.newEventLoopGroup(numThreads, executor);
+        eventLoopGroup.terminationFuture().addListener(
                 new GenericFutureListener<Future<Object>>() {
                     @Override
                     public void operationComplete(Future<Object> future) throws Exception {
@@ -49,6 +50,6 @@ class EventLoopGroups {
                         }
                     }
                 });
-        return nioEventLoopGroup;
+        return eventLoopGroup;
     }
 }
@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.central.storage.ServerDao;
+import org.glowroot.common.util.NativeTransport;
 import org.glowroot.storage.repo.AggregateRepository;
 import org.glowroot.storage.repo.GaugeValueRepository;
 import org.glowroot.storage.repo.TraceRepository;
@@ -61,7 +62,12 @@ public class GrpcServer {
 
         downstreamService = new DownstreamServiceImpl();
 
+        int numWorkerThreads = Runtime.getRuntime().availableProcessors() * 2;
         NettyServerBuilder.forPort(port)
+                .bossEventLoopGroup(EventLoopGroups.create("Glowroot-grpc-boss-ELG", 1))
+                .workerEventLoopGroup(
+                        EventLoopGroups.create("Glowroot-grpc-worker-ELG", numWorkerThreads))
+                .channelType(NativeTransport.getServerChannelType())
                 .addService(CollectorServiceGrpc.bindService(new CollectorServiceImpl()))
                 .addService(DownstreamServiceGrpc.bindService(downstreamService))
                 .build()
@@ -19,14 +19,20 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Properties;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.SocketOptions;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
 import org.glowroot.central.storage.AggregateDao;
@@ -40,15 +46,18 @@ import org.glowroot.central.storage.TransactionTypeDao;
 import org.glowroot.common.live.LiveTraceRepository.LiveTraceRepositoryNop;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.Version;
-import org.glowroot.storage.repo.AggregateRepository;
 import org.glowroot.storage.repo.GaugeValueRepository;
 import org.glowroot.storage.repo.RepoAdmin;
 import org.glowroot.storage.repo.TraceRepository;
+import org.glowroot.storage.repo.helper.AggregateCacheStats;
+import org.glowroot.storage.repo.helper.CachingAggregateRepository;
 import org.glowroot.storage.repo.helper.RollupLevelService;
 import org.glowroot.ui.CreateUiModuleBuilder;
 
 public class Main {
 
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+
     private Main() {}
 
     public static void main(String[] args) throws Exception {
@@ -80,8 +89,23 @@ public class Main {
         ConfigRepositoryImpl configRepository =
                 new ConfigRepositoryImpl(serverDao, centralConfigDao, alertConfigDao);
 
-        AggregateRepository aggregateRepository =
-                new AggregateDao(session, serverDao, transactionTypeDao, configRepository);
+        CachingAggregateRepository aggregateRepository = new CachingAggregateRepository(
+                new AggregateDao(session, serverDao, transactionTypeDao, configRepository), clock);
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName aggregateCacheObjectName =
+                new ObjectName("org.glowroot:type=AggregateCache");
+        mbeanServer.registerMBean(new AggregateCacheStats(aggregateRepository),
+                aggregateCacheObjectName);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mbeanServer.unregisterMBean(aggregateCacheObjectName);
+                } catch (Exception e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            }
+        });
         TraceRepository traceRepository = new TraceDao(session, serverDao, transactionTypeDao);
         GaugeValueRepository gaugeValueRepository =
                 new GaugeValueDao(session, serverDao, configRepository);
@@ -24,10 +24,13 @@ import java.util.List;
 import java.util.Map;
 
 import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.DataType;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TupleType;
+import com.datastax.driver.core.TupleValue;
 import com.datastax.driver.core.utils.UUIDs;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
@@ -45,6 +48,7 @@ import org.glowroot.central.util.Messages;
 import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.util.Styles;
 import org.glowroot.storage.repo.AggregateRepository;
+import org.glowroot.storage.repo.AggregateRepository.TransactionSummary;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
 import org.glowroot.storage.repo.ImmutableOverallErrorSummary;
@@ -52,6 +56,7 @@ import org.glowroot.storage.repo.ImmutableOverallSummary;
 import org.glowroot.storage.repo.ImmutableOverviewAggregate;
 import org.glowroot.storage.repo.ImmutablePercentileAggregate;
 import org.glowroot.storage.repo.ImmutableThroughputAggregate;
+import org.glowroot.storage.repo.ImmutableTransactionSummary;
 import org.glowroot.storage.repo.ProfileCollector;
 import org.glowroot.storage.repo.TransactionErrorSummaryCollector;
 import org.glowroot.storage.repo.TransactionSummaryCollector;
@@ -149,6 +154,16 @@ public class AggregateDao implements AggregateRepository {
     private final List<PreparedStatement> insertNeedsRollup;
     private final List<PreparedStatement> readNeedsRollup;
 
+    // per-interval top transaction lists
+    // see TransactionSummaryCollector.getTopTransactionSummaries()
+    private final List<PreparedStatement> insertTopTransactionPS;
+    private final List<PreparedStatement> readTopTransactionPS;
+    private final List<PreparedStatement> readTransactionSummaryByNamePS;
+    private final TupleType captureTimeAndTransactionNameType;
+
+    // intervals captured prior to this time (per rollup level) do not have top transaction lists
+    private final List<Long> topTransactionsSince;
+
     public AggregateDao(Session session, ServerDao serverDao,
             TransactionTypeDao transactionTypeDao, ConfigRepository configRepository) {
         this.session = session;
@@ -224,6 +239,47 @@ public class AggregateDao implements AggregateRepository {
         }
         this.insertNeedsRollup = insertNeedsRollup;
         this.readNeedsRollup = readNeedsRollup;
+
+        session.execute("create table if not exists aggregate_tn_summary_top_since (rollup_level"
+                + " int, since timestamp, primary key (rollup_level))");
+        List<PreparedStatement> insertTopTransactionPS = Lists.newArrayList();
+        List<PreparedStatement> readTopTransactionPS = Lists.newArrayList();
+        List<PreparedStatement> readTransactionSummaryByNamePS = Lists.newArrayList();
+        List<Long> topTransactionsSince = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            session.execute("create table if not exists aggregate_tn_summary_top_rollup_" + i
+                    + " (server_rollup varchar, transaction_type varchar, capture_time timestamp,"
+                    + " transaction_name varchar, total_duration_nanos double,"
+                    + " transaction_count bigint, truncated boolean, primary key ((server_rollup,"
+                    + " transaction_type), capture_time, transaction_name))");
+            insertTopTransactionPS.add(session.prepare("insert into"
+                    + " aggregate_tn_summary_top_rollup_" + i + " (server_rollup,"
+                    + " transaction_type, capture_time, transaction_name, total_duration_nanos,"
+                    + " transaction_count, truncated) values (?, ?, ?, ?, ?, ?, ?)"));
+            readTopTransactionPS.add(session.prepare("select capture_time, transaction_name,"
+                    + " total_duration_nanos, transaction_count, truncated from"
+                    + " aggregate_tn_summary_top_rollup_" + i + " where server_rollup = ?"
+                    + " and transaction_type = ? and capture_time > ? and capture_time <= ?"));
+            readTransactionSummaryByNamePS.add(session.prepare("select capture_time,"
+                    + " transaction_name, total_duration_nanos, transaction_count from "
+                    + getTableName(summaryTable.partialName(), true, i)
+                    + " where server_rollup = ? and transaction_type = ?"
+                    + " and (capture_time, transaction_name) in ?"));
+            // the since time is only inserted the first time, in which case everything already
+            // stored does not have top transaction lists
+            session.execute("insert into aggregate_tn_summary_top_since (rollup_level, since)"
+                    + " values (" + i + ", " + System.currentTimeMillis() + ") if not exists");
+            Row row = checkNotNull(session.execute(
+                    "select since from aggregate_tn_summary_top_since where rollup_level = " + i)
+                    .one());
+            topTransactionsSince.add(checkNotNull(row.getTimestamp(0)).getTime());
+        }
+        this.insertTopTransactionPS = insertTopTransactionPS;
+        this.readTopTransactionPS = readTopTransactionPS;
+        this.readTransactionSummaryByNamePS = readTransactionSummaryByNamePS;
+        captureTimeAndTransactionNameType = session.getCluster().getMetadata()
+                .newTupleType(DataType.timestamp(), DataType.varchar());
+        this.topTransactionsSince = topTransactionsSince;
     }
 
     @Override
@@ -233,12 +289,20 @@ public class AggregateDao implements AggregateRepository {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
             storeOverallAggregate(0, serverId, transactionType, captureTime, overallAggregate);
+            List<TransactionSummary> transactionSummaries = Lists.newArrayList();
             for (TransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
                 storeTransactionAggregate(0, serverId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
                         transactionAggregate.getAggregate());
+                transactionSummaries.add(ImmutableTransactionSummary.builder()
+                        .transactionName(transactionAggregate.getTransactionName())
+                        .totalNanos(transactionAggregate.getAggregate().getTotalDurationNanos())
+                        .transactionCount(transactionAggregate.getAggregate().getTransactionCount())
+                        .build());
             }
+            storeTopTransactions(0, serverId, transactionType, captureTime,
+                    transactionSummaries);
             transactionTypeDao.updateLastCaptureTime(serverId, transactionType);
 
             List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
@@ -280,12 +344,30 @@ public class AggregateDao implements AggregateRepository {
                 .build();
     }
 
-    // sortOrder and limit are only used by fat agent H2 collector, while the central collector
-    // which currently has to pull in all records anyways, just delegates ordering and limit to
-    // TransactionSummaryCollector
+    // sortOrder is only used by fat agent H2 collector, while the central collector delegates
+    // ordering and limit to TransactionSummaryCollector (limit is only used to decide whether the
+    // top transaction lists are sufficient)
     @Override
     public void mergeInTransactionSummaries(TransactionSummaryCollector mergedTransactionSummaries,
             OverallQuery query, SummarySortOrder sortOrder, int limit) {
+        if (query.from() >= topTransactionsSince.get(query.rollupLevel())
+                && limit <= TransactionSummaryCollector.TOP_TRANSACTION_LIMIT) {
+            // only need to read the top transaction list of each interval, instead of every
+            // transaction in every interval
+            BoundStatement boundStatement = readTopTransactionPS.get(query.rollupLevel()).bind();
+            bindQuery(boundStatement, query);
+            ResultSet results = session.execute(boundStatement);
+            for (Row row : results) {
+                long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+                String transactionName = checkNotNull(row.getString(1));
+                double totalNanos = row.getDouble(2);
+                long transactionCount = row.getLong(3);
+                boolean truncated = row.getBool(4);
+                mergedTransactionSummaries.collectFromTopList(query.rollupLevel(), captureTime,
+                        transactionName, totalNanos, transactionCount, truncated);
+            }
+            return;
+        }
         // currently have to do group by / sort / limit client-side
         BoundStatement boundStatement =
                 checkNotNull(readTransactionPS.get(summaryTable)).get(query.rollupLevel()).bind();
@@ -301,6 +383,39 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // all of the given intervals of a rollup level are read in a single query, restricting
+    // (capture_time, transaction_name) using "in" so that only the requested pairs are read
+    @Override
+    public void mergeInTransactionSummaries(TransactionSummaryCollector mergedTransactionSummaries,
+            OverallQuery query, Map<Long, List<String>> transactionNames) {
+        List<TupleValue> keys = Lists.newArrayList();
+        for (Map.Entry<Long, List<String>> entry : transactionNames.entrySet()) {
+            Date captureTime = new Date(entry.getKey());
+            for (String transactionName : entry.getValue()) {
+                keys.add(captureTimeAndTransactionNameType.newValue(captureTime,
+                        transactionName));
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        BoundStatement boundStatement =
+                readTransactionSummaryByNamePS.get(query.rollupLevel()).bind();
+        int i = 0;
+        boundStatement.setString(i++, query.serverRollup());
+        boundStatement.setString(i++, query.transactionType());
+        boundStatement.setList(i++, keys);
+        ResultSet results = session.execute(boundStatement);
+        for (Row row : results) {
+            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+            String transactionName = checkNotNull(row.getString(1));
+            double totalNanos = row.getDouble(2);
+            long transactionCount = row.getLong(3);
+            mergedTransactionSummaries.collect(transactionName, totalNanos, transactionCount,
+                    captureTime);
+        }
+    }
+
     @Override
     public OverallErrorSummary readOverallErrorSummary(OverallQuery query) {
         // currently have to do aggregation client-site (don't want to require Cassandra 2.2 yet)
@@ -662,6 +777,26 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private void storeTopTransactions(int rollupLevel, String serverRollup,
+            String transactionType, long captureTime,
+            List<TransactionSummary> transactionSummaries) {
+        List<TransactionSummary> topTransactionSummaries =
+                TransactionSummaryCollector.getTopTransactionSummaries(transactionSummaries);
+        boolean truncated = topTransactionSummaries.size() < transactionSummaries.size();
+        for (TransactionSummary transactionSummary : topTransactionSummaries) {
+            BoundStatement boundStatement = insertTopTransactionPS.get(rollupLevel).bind();
+            int i = 0;
+            boundStatement.setString(i++, serverRollup);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setString(i++, transactionSummary.transactionName());
+            boundStatement.setDouble(i++, transactionSummary.totalNanos());
+            boundStatement.setLong(i++, transactionSummary.transactionCount());
+            boundStatement.setBool(i++, truncated);
+            session.execute(boundStatement);
+        }
+    }
+
     private PreparedStatement getInsertOverallPS(Table table, int rollupLevel) {
         return checkNotNull(insertOverallPS.get(table)).get(rollupLevel);
     }
@@ -351,7 +351,7 @@ public class ConfigRepositoryImpl implements ConfigRepository {
     public void updateTransactionConfig(String serverId, TransactionConfig transactionConfig,
             String priorVersion) throws Exception {
         synchronized (agentConfigLocks.getUnchecked(serverId)) {
-            AgentConfig agentConfig = serverDao.readAgentConfig(serverId);
+            AgentConfig agentConfig = serverDao.readAgentConfigUncached(serverId);
             if (agentConfig == null) {
                 throw new IllegalStateException("Agent config not found");
             }
@@ -372,7 +372,7 @@ public class ConfigRepositoryImpl implements ConfigRepository {
     public void updateUserRecordingConfig(String serverId, UserRecordingConfig userRecordingConfig,
             String priorVersion) throws Exception {
         synchronized (agentConfigLocks.getUnchecked(serverId)) {
-            AgentConfig agentConfig = serverDao.readAgentConfig(serverId);
+            AgentConfig agentConfig = serverDao.readAgentConfigUncached(serverId);
             if (agentConfig == null) {
                 throw new IllegalStateException("Agent config not found");
             }
@@ -393,7 +393,7 @@ public class ConfigRepositoryImpl implements ConfigRepository {
     public void updateAdvancedConfig(String serverId, AdvancedConfig advancedConfig,
             String priorVersion) throws Exception {
         synchronized (agentConfigLocks.getUnchecked(serverId)) {
-            AgentConfig agentConfig = serverDao.readAgentConfig(serverId);
+            AgentConfig agentConfig = serverDao.readAgentConfigUncached(serverId);
             if (agentConfig == null) {
                 throw new IllegalStateException("Agent config not found");
             }
@@ -414,7 +414,7 @@ public class ConfigRepositoryImpl implements ConfigRepository {
     public void updatePluginConfig(String serverId, String pluginId,
             List<PluginProperty> properties, String priorVersion) throws Exception {
         synchronized (agentConfigLocks.getUnchecked(serverId)) {
-            AgentConfig agentConfig = serverDao.readAgentConfig(serverId);
+            AgentConfig agentConfig = serverDao.readAgentConfigUncached(serverId);
             if (agentConfig == null) {
                 throw new IllegalStateException("Agent config not found");
             }
@@ -450,7 +450,7 @@ public class ConfigRepositoryImpl implements ConfigRepository {
     @Override
     public void insertGaugeConfig(String serverId, GaugeConfig gaugeConfig) throws Exception {
         synchronized (agentConfigLocks.getUnchecked(serverId)) {
-            AgentConfig agentConfig = serverDao.readAgentConfig(serverId);
+            AgentConfig agentConfig = serverDao.readAgentConfigUncached(serverId);
             if (agentConfig == null) {
                 throw new IllegalStateException("Agent config not found");
             }
@@ -473,7 +473,7 @@ public class ConfigRepositoryImpl implements ConfigRepository {
     public void updateGaugeConfig(String serverId, GaugeConfig gaugeConfig, String priorVersion)
             throws Exception {
         synchronized (agentConfigLocks.getUnchecked(serverId)) {
-            AgentConfig agentConfig = serverDao.readAgentConfig(serverId);
+            AgentConfig agentConfig = serverDao.readAgentConfigUncached(serverId);
             if (agentConfig == null) {
                 throw new IllegalStateException("Agent config not found");
             }
@@ -508,7 +508,7 @@ public class ConfigRepositoryImpl implements ConfigRepository {
     @Override
     public void deleteGaugeConfig(String serverId, String version) throws Exception {
         synchronized (agentConfigLocks.getUnchecked(serverId)) {
-            AgentConfig agentConfig = serverDao.readAgentConfig(serverId);
+            AgentConfig agentConfig = serverDao.readAgentConfigUncached(serverId);
             if (agentConfig == null) {
                 throw new IllegalStateException("Agent config not found");
             }
@@ -540,7 +540,7 @@ public class ConfigRepositoryImpl implements ConfigRepository {
     public void insertInstrumentationConfig(String serverId,
             InstrumentationConfig instrumentationConfig) throws Exception {
         synchronized (agentConfigLocks.getUnchecked(serverId)) {
-            AgentConfig agentConfig = serverDao.readAgentConfig(serverId);
+            AgentConfig agentConfig = serverDao.readAgentConfigUncached(serverId);
             if (agentConfig == null) {
                 throw new IllegalStateException("Agent config not found");
             }
@@ -558,7 +558,7 @@ public class ConfigRepositoryImpl implements ConfigRepository {
     public void updateInstrumentationConfig(String serverId,
             InstrumentationConfig instrumentationConfig, String priorVersion) throws Exception {
         synchronized (agentConfigLocks.getUnchecked(serverId)) {
-            AgentConfig agentConfig = serverDao.readAgentConfig(serverId);
+            AgentConfig agentConfig = serverDao.readAgentConfigUncached(serverId);
             if (agentConfig == null) {
                 throw new IllegalStateException("Agent config not found");
             }
@@ -589,7 +589,7 @@ public class ConfigRepositoryImpl implements ConfigRepository {
     @Override
     public void deleteInstrumentationConfig(String serverId, String version) throws Exception {
         synchronized (agentConfigLocks.getUnchecked(serverId)) {
-            AgentConfig agentConfig = serverDao.readAgentConfig(serverId);
+            AgentConfig agentConfig = serverDao.readAgentConfigUncached(serverId);
             if (agentConfig == null) {
                 throw new IllegalStateException("Agent config not found");
             }
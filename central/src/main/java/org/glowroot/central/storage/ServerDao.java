@@ -18,6 +18,7 @@ package org.glowroot.central.storage;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import javax.annotation.Nullable;
 
@@ -26,6 +27,11 @@ import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.protobuf.ByteString;
@@ -39,11 +45,18 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.PluginPrope
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.ProcessInfo;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 // TODO need to validate cannot have serverIds "A/B/C" and "A/B" since there is logic elsewhere
 // (at least in the UI) that "A/B" is only a rollup
 public class ServerDao implements ServerRepository {
 
+    // expiration is only needed to pick up changes made by other central nodes, since all changes
+    // made through this node are written through to the caches below
+    private static final long CACHE_EXPIRATION_SECONDS = 60;
+
+    private static final int SERVER_ROLLUPS_KEY = 1;
+
     private final Session session;
 
     private final PreparedStatement existsPS;
@@ -56,6 +69,28 @@ public class ServerDao implements ServerRepository {
 
     private final PreparedStatement updateDetailPS;
 
+    private final LoadingCache<String, Optional<AgentConfig>> agentConfigCache = CacheBuilder
+            .newBuilder()
+            .expireAfterWrite(CACHE_EXPIRATION_SECONDS, SECONDS)
+            .build(new CacheLoader<String, Optional<AgentConfig>>() {
+                @Override
+                public Optional<AgentConfig> load(String serverId) throws Exception {
+                    return Optional.fromNullable(readAgentConfigUncached(serverId));
+                }
+            });
+
+    // single entry cache (keyed by the constant partition key "one") so that it can share the same
+    // expiration and invalidation mechanics as the agent config cache
+    private final LoadingCache<Integer, ImmutableList<ServerRollup>> serverRollupsCache =
+            CacheBuilder.newBuilder()
+                    .expireAfterWrite(CACHE_EXPIRATION_SECONDS, SECONDS)
+                    .build(new CacheLoader<Integer, ImmutableList<ServerRollup>>() {
+                        @Override
+                        public ImmutableList<ServerRollup> load(Integer key) throws Exception {
+                            return readServerRollupsUncached();
+                        }
+                    });
+
     public ServerDao(Session session) {
         this.session = session;
 
@@ -82,14 +117,7 @@ public class ServerDao implements ServerRepository {
 
     @Override
     public List<ServerRollup> readServerRollups() {
-        ResultSet results = session.execute("select server_rollup, leaf from server where one = 1");
-        List<ServerRollup> rollups = Lists.newArrayList();
-        for (Row row : results) {
-            String serverRollup = checkNotNull(row.getString(0));
-            boolean leaf = row.getBool(1);
-            rollups.add(ImmutableServerRollup.of(serverRollup, leaf));
-        }
-        return rollups;
+        return serverRollupsCache.getUnchecked(SERVER_ROLLUPS_KEY);
     }
 
     // returns stored agent config
@@ -99,8 +127,9 @@ public class ServerDao implements ServerRepository {
         BoundStatement boundStatement = existsPS.bind();
         boundStatement.setString(0, serverId);
         ResultSet results = session.execute(boundStatement);
-        if (results.one() != null) {
-            existingAgentConfig = readAgentConfig(serverId);
+        boolean exists = results.one() != null;
+        if (exists) {
+            existingAgentConfig = readAgentConfigUncached(serverId);
         }
         boundStatement = insertProcessInfoPS.bind();
         boundStatement.setString(0, serverId);
@@ -155,12 +184,16 @@ public class ServerDao implements ServerRepository {
         boundStatement.setString(0, serverId);
         boundStatement.setBytes(1, ByteBuffer.wrap(updatedAgentConfig.toByteArray()));
         session.execute(boundStatement);
+        agentConfigCache.put(serverId, Optional.of(updatedAgentConfig));
         // insert into server last so readProcessInfo() and readAgentConfig() below are more likely
         // to return non-null
         boundStatement = insertPS.bind();
         boundStatement.setString(0, serverId);
         boundStatement.setBool(1, true);
         session.execute(boundStatement);
+        if (!exists) {
+            serverRollupsCache.invalidate(SERVER_ROLLUPS_KEY);
+        }
         return updatedAgentConfig;
     }
 
@@ -185,6 +218,21 @@ public class ServerDao implements ServerRepository {
 
     public @Nullable AgentConfig readAgentConfig(String serverId)
             throws InvalidProtocolBufferException {
+        try {
+            return agentConfigCache.get(serverId).orNull();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvalidProtocolBufferException) {
+                throw (InvalidProtocolBufferException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    // this bypasses the cache, and is used when reading the current agent config in preparation for
+    // updating it, so that optimistic locking is performed against the latest stored version
+    @Nullable
+    AgentConfig readAgentConfigUncached(String serverId) throws InvalidProtocolBufferException {
         BoundStatement boundStatement = readAgentConfigPS.bind();
         boundStatement.setString(0, serverId);
         ResultSet results = session.execute(boundStatement);
@@ -206,6 +254,7 @@ public class ServerDao implements ServerRepository {
         boundStatement.setString(0, serverId);
         boundStatement.setBytes(1, ByteBuffer.wrap(agentConfig.toByteArray()));
         session.execute(boundStatement);
+        agentConfigCache.put(serverId, Optional.of(agentConfig));
     }
 
     void updateLastCaptureTime(String serverRollup, boolean leaf) {
@@ -216,5 +265,22 @@ public class ServerDao implements ServerRepository {
         boundStatement = updateDetailPS.bind();
         boundStatement.setString(0, serverRollup);
         session.execute(boundStatement);
+        ImmutableList<ServerRollup> serverRollups =
+                serverRollupsCache.getIfPresent(SERVER_ROLLUPS_KEY);
+        if (serverRollups != null
+                && !serverRollups.contains(ImmutableServerRollup.of(serverRollup, leaf))) {
+            serverRollupsCache.invalidate(SERVER_ROLLUPS_KEY);
+        }
+    }
+
+    private ImmutableList<ServerRollup> readServerRollupsUncached() {
+        ResultSet results = session.execute("select server_rollup, leaf from server where one = 1");
+        List<ServerRollup> rollups = Lists.newArrayList();
+        for (Row row : results) {
+            String serverRollup = checkNotNull(row.getString(0));
+            boolean leaf = row.getBool(1);
+            rollups.add(ImmutableServerRollup.of(serverRollup, leaf));
+        }
+        return ImmutableList.copyOf(rollups);
     }
 }
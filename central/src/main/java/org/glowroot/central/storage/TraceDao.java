@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -53,6 +54,7 @@ import org.glowroot.storage.repo.ImmutableErrorMessageResult;
 import org.glowroot.storage.repo.ImmutableHeaderPlus;
 import org.glowroot.storage.repo.Result;
 import org.glowroot.storage.repo.TraceRepository;
+import org.glowroot.storage.repo.helper.TracePointDownsampler;
 import org.glowroot.storage.util.ServerRollups;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
@@ -488,6 +490,46 @@ public class TraceDao implements TraceRepository {
     @Override
     public Result<TracePoint> readSlowPoints(TraceQuery query, TracePointFilter filter, int limit)
             throws IOException {
+        return processPoints(readSlowPointRows(query), filter, limit, false);
+    }
+
+    @Override
+    public Result<TracePoint> readErrorPoints(TraceQuery query, TracePointFilter filter,
+            int limit) throws IOException {
+        return processPoints(readErrorPointRows(query), filter, limit, true);
+    }
+
+    @Override
+    public List<TracePoint> readDownsampledSlowPoints(TraceQuery query, TracePointFilter filter,
+            TracePointBuckets buckets) throws IOException {
+        return readDownsampledPoints(query, filter, buckets, false);
+    }
+
+    @Override
+    public List<TracePoint> readDownsampledErrorPoints(TraceQuery query, TracePointFilter filter,
+            TracePointBuckets buckets) throws IOException {
+        return readDownsampledPoints(query, filter, buckets, true);
+    }
+
+    // the duration buckets are linear up to the longest point (same as the chart's y-axis), so the
+    // rows are read twice, first to find the longest point, instead of buffering all of the points
+    private List<TracePoint> readDownsampledPoints(TraceQuery query, TracePointFilter filter,
+            TracePointBuckets buckets, boolean errorPoints) throws IOException {
+        MutableLong maxDurationNanos = new MutableLong();
+        processPoints(readPointRows(query, errorPoints), filter, errorPoints,
+                point -> maxDurationNanos.value =
+                        Math.max(maxDurationNanos.value, point.durationNanos()));
+        TracePointDownsampler downsampler = new TracePointDownsampler(query.from(), query.to(),
+                buckets, filter.durationNanosLow(), maxDurationNanos.value);
+        processPoints(readPointRows(query, errorPoints), filter, errorPoints, downsampler::add);
+        return downsampler.getPoints();
+    }
+
+    private ResultSet readPointRows(TraceQuery query, boolean errorPoints) {
+        return errorPoints ? readErrorPointRows(query) : readSlowPointRows(query);
+    }
+
+    private ResultSet readSlowPointRows(TraceQuery query) {
         String transactionName = query.transactionName();
         if (transactionName == null) {
             BoundStatement boundStatement = readOverallSlowPoint.bind();
@@ -495,8 +537,7 @@ public class TraceDao implements TraceRepository {
             boundStatement.setString(1, query.transactionType());
             boundStatement.setTimestamp(2, new Date(query.from()));
             boundStatement.setTimestamp(3, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, false);
+            return session.execute(boundStatement);
         } else {
             BoundStatement boundStatement = readTransactionSlowPoint.bind();
             boundStatement.setString(0, query.serverRollup());
@@ -504,14 +545,11 @@ public class TraceDao implements TraceRepository {
             boundStatement.setString(2, transactionName);
             boundStatement.setTimestamp(3, new Date(query.from()));
             boundStatement.setTimestamp(4, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, false);
+            return session.execute(boundStatement);
         }
     }
 
-    @Override
-    public Result<TracePoint> readErrorPoints(TraceQuery query, TracePointFilter filter,
-            int limit) throws IOException {
+    private ResultSet readErrorPointRows(TraceQuery query) {
         String transactionName = query.transactionName();
         if (transactionName == null) {
             BoundStatement boundStatement = readOverallErrorPoint.bind();
@@ -519,8 +557,7 @@ public class TraceDao implements TraceRepository {
             boundStatement.setString(1, query.transactionType());
             boundStatement.setTimestamp(2, new Date(query.from()));
             boundStatement.setTimestamp(3, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, true);
+            return session.execute(boundStatement);
         } else {
             BoundStatement boundStatement = readTransactionErrorPoint.bind();
             boundStatement.setString(0, query.serverRollup());
@@ -528,8 +565,7 @@ public class TraceDao implements TraceRepository {
             boundStatement.setString(2, transactionName);
             boundStatement.setTimestamp(3, new Date(query.from()));
             boundStatement.setTimestamp(4, new Date(query.to()));
-            ResultSet results = session.execute(boundStatement);
-            return processPoints(results, filter, limit, true);
+            return session.execute(boundStatement);
         }
     }
 
@@ -715,6 +751,37 @@ public class TraceDao implements TraceRepository {
     private Result<TracePoint> processPoints(ResultSet results, TracePointFilter filter,
             int limit, boolean errorPoints) throws IOException {
         List<TracePoint> tracePoints = Lists.newArrayList();
+        processPoints(results, filter, errorPoints, tracePoints::add);
+        // remove duplicates (partially stored traces) since there is (small) window between updated
+        // insert (with new capture time) and the delete of prior insert (with prior capture time)
+        Set<TraceKey> traceKeys = Sets.newHashSet();
+        ListIterator<TracePoint> i = tracePoints.listIterator(tracePoints.size());
+        while (i.hasPrevious()) {
+            TracePoint trace = i.previous();
+            TraceKey traceKey = ImmutableTraceKey.of(trace.serverId(), trace.traceId());
+            if (!traceKeys.add(traceKey)) {
+                i.remove();
+            }
+        }
+        // apply limit and re-sort if needed
+        if (tracePoints.size() > limit) {
+            tracePoints = tracePoints.stream()
+                    .sorted(Comparator.comparingLong(TracePoint::durationNanos).reversed())
+                    .limit(limit)
+                    .sorted(Comparator.comparingLong(TracePoint::captureTime))
+                    // explicit type on this line is needed for Checker Framework
+                    // see https://github.com/typetools/checker-framework/issues/531
+                    .collect(Collectors.<TracePoint>toList());
+            return new Result<>(tracePoints, true);
+        } else {
+            return new Result<>(tracePoints, false);
+        }
+    }
+
+    // passes each point matching the filter to the consumer as the rows are read, so that the
+    // points do not need to be buffered (e.g. when downsampling)
+    private static void processPoints(ResultSet results, TracePointFilter filter,
+            boolean errorPoints, Consumer<TracePoint> consumer) throws IOException {
         for (Row row : results) {
             int i = 0;
             String serverId = checkNotNull(row.getString(i++));
@@ -741,7 +808,7 @@ public class TraceDao implements TraceRepository {
                     && filter.matchesError(errorMessage)
                     && filter.matchesUser(user)
                     && filter.matchesAttributes(attributes)) {
-                tracePoints.add(ImmutableTracePoint.builder()
+                consumer.accept(ImmutableTracePoint.builder()
                         .serverId(serverId)
                         .traceId(traceId)
                         .captureTime(captureTime)
@@ -750,30 +817,6 @@ public class TraceDao implements TraceRepository {
                         .build());
             }
         }
-        // remove duplicates (partially stored traces) since there is (small) window between updated
-        // insert (with new capture time) and the delete of prior insert (with prior capture time)
-        Set<TraceKey> traceKeys = Sets.newHashSet();
-        ListIterator<TracePoint> i = tracePoints.listIterator(tracePoints.size());
-        while (i.hasPrevious()) {
-            TracePoint trace = i.previous();
-            TraceKey traceKey = ImmutableTraceKey.of(trace.serverId(), trace.traceId());
-            if (!traceKeys.add(traceKey)) {
-                i.remove();
-            }
-        }
-        // apply limit and re-sort if needed
-        if (tracePoints.size() > limit) {
-            tracePoints = tracePoints.stream()
-                    .sorted(Comparator.comparingLong(TracePoint::durationNanos).reversed())
-                    .limit(limit)
-                    .sorted(Comparator.comparingLong(TracePoint::captureTime))
-                    // explicit type on this line is needed for Checker Framework
-                    // see https://github.com/typetools/checker-framework/issues/531
-                    .collect(Collectors.<TracePoint>toList());
-            return new Result<>(tracePoints, true);
-        } else {
-            return new Result<>(tracePoints, false);
-        }
     }
 
     @Value.Immutable
@@ -20,45 +20,69 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.zip.DataFormatException;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+// stores raw values until there are more than MAX_VALUES, and then switches to a compact
+// LogLinearHistogram, see LogLinearHistogram for precision and encoding details
+//
+// histograms that were encoded using HdrHistogram (prior to LogLinearHistogram) can still be read
+// and merged, they are converted to LogLinearHistogram on read
 public class LazyHistogram {
 
-    private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
+    // 2 significant digits is plenty for latency percentiles, and is much more compact than the 5
+    // significant digits previously used with HdrHistogram
+    private static final int HISTOGRAM_SIGNIFICANT_DIGITS =
+            Integer.getInteger("glowroot.histogram.significantDigits", 2);
+    private static final int HISTOGRAM_PRECISION_BITS =
+            LogLinearHistogram.getPrecisionBits(HISTOGRAM_SIGNIFICANT_DIGITS);
     private static final int MAX_VALUES = 1024;
 
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
-    private @MonotonicNonNull Histogram histogram;
+    private @MonotonicNonNull LogLinearHistogram histogram;
+
+    // only non-null for histograms created using the special constructor below, in which case
+    // percentiles are read directly from the encoded form (until/unless mutated)
+    private @Nullable ByteString encoded;
 
     public LazyHistogram() {}
 
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
+        ByteString logLinearEncodedBytes = hist.getLogLinearEncodedBytes();
         ByteString encodedBytes = hist.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (!logLinearEncodedBytes.isEmpty()) {
+            encoded = logLinearEncodedBytes;
+        } else if (!encodedBytes.isEmpty()) {
+            histogram = new LogLinearHistogram(HISTOGRAM_PRECISION_BITS);
+            mergeHdrHistogram(encodedBytes, histogram);
+        } else {
             List<Long> orderedRawValues = hist.getOrderedRawValueList();
             values = new long[orderedRawValues.size()];
             for (int i = 0; i < values.length; i++) {
                 values[i] = orderedRawValues.get(i);
             }
             size = values.length;
-        } else {
-            histogram = Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+            sorted = true;
         }
     }
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
         Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
-        if (histogram == null) {
+        if (encoded != null) {
+            builder.setLogLinearEncodedBytes(encoded);
+        } else if (histogram == null) {
             if (!sorted) {
                 // sort values before storing so don't have to sort each time later when calculating
                 // percentiles
@@ -73,39 +97,63 @@ public class LazyHistogram {
             histogram.encodeIntoByteBuffer(buffer);
             int size = buffer.position();
             buffer.flip();
-            builder.setEncodedBytes(ByteString.copyFrom(buffer, size));
+            builder.setLogLinearEncodedBytes(ByteString.copyFrom(buffer, size));
         }
         return builder.build();
     }
 
     public void merge(Aggregate.Histogram toBeMergedHistogram) throws DataFormatException {
+        ByteString logLinearEncodedBytes = toBeMergedHistogram.getLogLinearEncodedBytes();
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (!logLinearEncodedBytes.isEmpty()) {
+            ensureHistogram();
+            // merged directly from the encoded form, without intermediate decoding
+            histogram.merge(logLinearEncodedBytes);
+        } else if (!encodedBytes.isEmpty()) {
+            ensureHistogram();
+            mergeHdrHistogram(encodedBytes, histogram);
+        } else {
             for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
                 add(rawValue);
             }
+        }
+    }
+
+    // reverses a prior merge of the same histogram (e.g. when it expires out of a sliding window)
+    public void subtract(Aggregate.Histogram toBeSubtractedHistogram) {
+        ensureHistogram();
+        ByteString logLinearEncodedBytes = toBeSubtractedHistogram.getLogLinearEncodedBytes();
+        ByteString encodedBytes = toBeSubtractedHistogram.getEncodedBytes();
+        if (!logLinearEncodedBytes.isEmpty()) {
+            histogram.subtract(logLinearEncodedBytes);
+        } else if (!encodedBytes.isEmpty()) {
+            LogLinearHistogram temp = new LogLinearHistogram(HISTOGRAM_PRECISION_BITS);
+            mergeHdrHistogram(encodedBytes, temp);
+            histogram.subtract(temp);
         } else {
-            if (histogram == null) {
-                convertValuesToHistogram();
+            for (long rawValue : toBeSubtractedHistogram.getOrderedRawValueList()) {
+                histogram.recordValue(rawValue, -1);
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
         }
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
-        if (histogram == null) {
-            convertValuesToHistogram();
-        }
-        if (toBeMergedHistogram.histogram == null) {
+        ensureHistogram();
+        if (toBeMergedHistogram.encoded != null) {
+            histogram.merge(toBeMergedHistogram.encoded);
+        } else if (toBeMergedHistogram.histogram == null) {
             for (int i = 0; i < toBeMergedHistogram.size; i++) {
                 histogram.recordValue(toBeMergedHistogram.values[i]);
             }
         } else {
-            histogram.add(toBeMergedHistogram.histogram);
+            histogram.merge(toBeMergedHistogram.histogram);
         }
     }
 
     public long getValueAtPercentile(double percentile) {
+        if (encoded != null) {
+            return LogLinearHistogram.getValueAtPercentile(encoded, percentile);
+        }
         if (histogram == null) {
             if (size == 0) {
                 // this is consistent with HdrHistogram behavior
@@ -121,6 +169,9 @@ public class LazyHistogram {
 
     @VisibleForTesting
     public void add(long value) {
+        if (encoded != null) {
+            ensureHistogram();
+        }
         ensureCapacity(size + 1);
         if (histogram != null) {
             histogram.recordValue(value);
@@ -135,7 +186,7 @@ public class LazyHistogram {
             return;
         }
         if (capacity > MAX_VALUES) {
-            convertValuesToHistogram();
+            ensureHistogram();
             return;
         }
         if (capacity > values.length) {
@@ -147,14 +198,20 @@ public class LazyHistogram {
     }
 
     @EnsuresNonNull("histogram")
-    private void convertValuesToHistogram() {
-        // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
-        histogram.setAutoResize(true);
+    private void ensureHistogram() {
+        if (histogram != null) {
+            return;
+        }
+        histogram = new LogLinearHistogram(HISTOGRAM_PRECISION_BITS);
+        if (encoded != null) {
+            histogram.merge(encoded);
+            encoded = null;
+        }
         for (int i = 0; i < size; i++) {
             histogram.recordValue(values[i]);
         }
         values = new long[0];
+        size = 0;
     }
 
     private void sortValues() {
@@ -162,6 +219,15 @@ public class LazyHistogram {
         sorted = true;
     }
 
+    // compatibility path for histograms that were encoded using HdrHistogram
+    private static void mergeHdrHistogram(ByteString encodedBytes, LogLinearHistogram histogram) {
+        Histogram hdrHistogram =
+                Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+        for (HistogramIterationValue value : hdrHistogram.recordedValues()) {
+            histogram.recordValue(value.getValueIteratedTo(), value.getCountAtValueIteratedTo());
+        }
+    }
+
     public static class ScratchBuffer {
 
         private @MonotonicNonNull ByteBuffer buffer;
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.ByteString;
+
+// compact histogram with configurable precision, each power of 2 range of values is divided into
+// 2^precisionBits equal width buckets, so the relative error of any recorded value is bounded by
+// 2^-precisionBits (e.g. precisionBits=7 is better than 2 significant digits and precisionBits=10
+// is better than 3 significant digits)
+//
+// bucket counts are held in a dense array that only spans the range of bucket indexes recorded so
+// far, and are encoded sparsely (only non-zero buckets, using varints), which for typical latency
+// distributions is much smaller than HdrHistogram with 5 significant digits
+//
+// the encoded form can be merged into another histogram and queried for percentiles directly,
+// without decoding it into an intermediate histogram first
+//
+// this is not thread safe (same as LazyHistogram)
+class LogLinearHistogram {
+
+    private static final byte ENCODING_VERSION = 1;
+
+    private final int precisionBits;
+
+    private long[] counts = new long[0];
+    // bucket index of counts[0]
+    private int countsOffset;
+    private long totalCount;
+
+    LogLinearHistogram(int precisionBits) {
+        this.precisionBits = precisionBits;
+    }
+
+    static int getPrecisionBits(int significantDigits) {
+        return (int) Math.ceil(significantDigits * Math.log(10) / Math.log(2));
+    }
+
+    void recordValue(long value) {
+        recordValue(value, 1);
+    }
+
+    void recordValue(long value, long count) {
+        addToBucket(getBucketIndex(value, precisionBits), count);
+    }
+
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    void merge(LogLinearHistogram histogram) {
+        for (int i = 0; i < histogram.counts.length; i++) {
+            long count = histogram.counts[i];
+            if (count != 0) {
+                mergeBucket(histogram.countsOffset + i, histogram.precisionBits, count);
+            }
+        }
+    }
+
+    void subtract(LogLinearHistogram histogram) {
+        for (int i = 0; i < histogram.counts.length; i++) {
+            long count = histogram.counts[i];
+            if (count != 0) {
+                mergeBucket(histogram.countsOffset + i, histogram.precisionBits, -count);
+            }
+        }
+    }
+
+    // merges directly from the encoded form
+    void merge(ByteString encoded) {
+        merge(encoded, 1);
+    }
+
+    // reverses a prior merge of the same encoded form, this is exact since the same encoded form is
+    // always mapped to the same buckets
+    void subtract(ByteString encoded) {
+        merge(encoded, -1);
+    }
+
+    private void merge(ByteString encoded, long sign) {
+        ByteBuffer buffer = encoded.asReadOnlyByteBuffer();
+        readVersion(buffer);
+        int encodedPrecisionBits = buffer.get();
+        readVarint(buffer); // total count
+        long bucketCount = readVarint(buffer);
+        int bucketIndex = 0;
+        for (long i = 0; i < bucketCount; i++) {
+            bucketIndex += (int) readVarint(buffer);
+            mergeBucket(bucketIndex, encodedPrecisionBits, sign * readVarint(buffer));
+        }
+    }
+
+    long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return 0;
+        }
+        long countAtPercentile = getCountAtPercentile(percentile, totalCount);
+        long cumulativeCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= countAtPercentile) {
+                return getRepresentativeValue(countsOffset + i, precisionBits);
+            }
+        }
+        return getRepresentativeValue(countsOffset + counts.length - 1, precisionBits);
+    }
+
+    // percentile query directly on the encoded form
+    static long getValueAtPercentile(ByteString encoded, double percentile) {
+        ByteBuffer buffer = encoded.asReadOnlyByteBuffer();
+        readVersion(buffer);
+        int encodedPrecisionBits = buffer.get();
+        long totalCount = readVarint(buffer);
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = getCountAtPercentile(percentile, totalCount);
+        long bucketCount = readVarint(buffer);
+        long cumulativeCount = 0;
+        int bucketIndex = 0;
+        for (long i = 0; i < bucketCount; i++) {
+            bucketIndex += (int) readVarint(buffer);
+            cumulativeCount += readVarint(buffer);
+            if (cumulativeCount >= countAtPercentile) {
+                break;
+            }
+        }
+        return getRepresentativeValue(bucketIndex, encodedPrecisionBits);
+    }
+
+    int getNeededByteBufferCapacity() {
+        // version + precision bits + total count + bucket count + (delta index + count) per bucket
+        return 2 + 10 + 5 + counts.length * (5 + 10);
+    }
+
+    void encodeIntoByteBuffer(ByteBuffer buffer) {
+        int nonZeroBucketCount = 0;
+        for (long count : counts) {
+            if (count != 0) {
+                nonZeroBucketCount++;
+            }
+        }
+        buffer.put(ENCODING_VERSION);
+        buffer.put((byte) precisionBits);
+        writeVarint(buffer, totalCount);
+        writeVarint(buffer, nonZeroBucketCount);
+        int priorBucketIndex = 0;
+        for (int i = 0; i < counts.length; i++) {
+            long count = counts[i];
+            if (count != 0) {
+                int bucketIndex = countsOffset + i;
+                writeVarint(buffer, bucketIndex - priorBucketIndex);
+                writeVarint(buffer, count);
+                priorBucketIndex = bucketIndex;
+            }
+        }
+    }
+
+    private void mergeBucket(int bucketIndex, int fromPrecisionBits, long count) {
+        if (fromPrecisionBits == precisionBits) {
+            addToBucket(bucketIndex, count);
+        } else {
+            recordValue(getRepresentativeValue(bucketIndex, fromPrecisionBits), count);
+        }
+    }
+
+    private void addToBucket(int bucketIndex, long count) {
+        if (counts.length == 0) {
+            counts = new long[1];
+            countsOffset = bucketIndex;
+        } else if (bucketIndex < countsOffset) {
+            int newOffset = Math.max(0, bucketIndex - counts.length / 2);
+            long[] temp = new long[counts.length + countsOffset - newOffset];
+            System.arraycopy(counts, 0, temp, countsOffset - newOffset, counts.length);
+            counts = temp;
+            countsOffset = newOffset;
+        } else if (bucketIndex >= countsOffset + counts.length) {
+            // grow by at least half again to amortize the copying
+            int newLength = Math.max(bucketIndex - countsOffset + 1,
+                    counts.length + counts.length / 2);
+            long[] temp = new long[newLength];
+            System.arraycopy(counts, 0, temp, 0, counts.length);
+            counts = temp;
+        }
+        counts[bucketIndex - countsOffset] += count;
+        totalCount += count;
+    }
+
+    @VisibleForTesting
+    static int getBucketIndex(long value, int precisionBits) {
+        if (value < (1L << precisionBits)) {
+            // values below 2^precisionBits are recorded exactly
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - precisionBits;
+        int subBucketIndex = (int) (value >>> shift) - (1 << precisionBits);
+        return ((shift + 1) << precisionBits) + subBucketIndex;
+    }
+
+    // returns the midpoint of the bucket, so that the error is at most half of the bucket width
+    @VisibleForTesting
+    static long getRepresentativeValue(int bucketIndex, int precisionBits) {
+        int group = bucketIndex >>> precisionBits;
+        if (group == 0) {
+            return bucketIndex;
+        }
+        int shift = group - 1;
+        long subBucketIndex = bucketIndex & ((1 << precisionBits) - 1);
+        long lowestValue = ((1L << precisionBits) + subBucketIndex) << shift;
+        return lowestValue + ((1L << shift) >>> 1);
+    }
+
+    // this is consistent with HdrHistogram
+    private static long getCountAtPercentile(double percentile, long totalCount) {
+        double requestedPercentile = Math.min(percentile, 100);
+        long countAtPercentile = (long) Math.ceil(requestedPercentile / 100 * totalCount);
+        return Math.max(countAtPercentile, 1);
+    }
+
+    private static void readVersion(ByteBuffer buffer) {
+        byte version = buffer.get();
+        if (version != ENCODING_VERSION) {
+            throw new IllegalStateException("Unexpected histogram encoding version: " + version);
+        }
+    }
+
+    private static void writeVarint(ByteBuffer buffer, long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            buffer.put((byte) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
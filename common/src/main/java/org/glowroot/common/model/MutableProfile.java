@@ -22,6 +22,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -32,9 +33,12 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 import com.google.common.collect.PeekingIterator;
 import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
 import com.google.common.io.CharStreams;
+import com.google.common.primitives.Longs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,6 +51,17 @@ public class MutableProfile {
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    // this bounds the size of the flame graph subtree json (to tens of KB) regardless of the size
+    // of the full profile
+    private static final int MAX_FLAME_GRAPH_SUBTREE_NODES = 200;
+
+    private static final Ordering<ProfileNode> sampleCountOrdering = new Ordering<ProfileNode>() {
+        @Override
+        public int compare(ProfileNode left, ProfileNode right) {
+            return Longs.compare(left.sampleCount, right.sampleCount);
+        }
+    };
+
     // TODO use primitive maps, e.g. from GS collections
     private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
@@ -230,9 +245,21 @@ public class MutableProfile {
         jg.writeEndObject();
     }
 
+    // writes the same json as writeJson(), but incrementally, so that a large profile can be
+    // streamed out in pieces
+    public IncrementalJsonWriter newIncrementalJsonWriter(JsonGenerator jg) {
+        return new IncrementalJsonWriter(jg);
+    }
+
     public String toFlameGraphJson() throws IOException {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+        writeFlameGraphJson(jg);
+        jg.close();
+        return sb.toString();
+    }
+
+    public void writeFlameGraphJson(JsonGenerator jg) throws IOException {
         jg.writeStartObject();
         jg.writeNumberField("totalSampleCount", getSampleCount());
         jg.writeArrayFieldStart("rootNodes");
@@ -247,8 +274,62 @@ public class MutableProfile {
         jg.writeEndArray();
         jg.writeNumberField("height", height);
         jg.writeEndObject();
-        jg.close();
-        return sb.toString();
+    }
+
+    // writes only the subtree rooted at the frame path (the stack trace elements leading down from
+    // a root node, or empty for the entire profile), limited to maxDepth levels and to the largest
+    // MAX_FLAME_GRAPH_SUBTREE_NODES nodes, so that drilling down into a large profile only costs
+    // the size of the subtree
+    //
+    // this does not modify the profile (unlike truncateBranches), so it is safe to call
+    // concurrently on a shared (e.g. cached) profile
+    public void writeFlameGraphSubtreeJson(JsonGenerator jg, List<String> framePath, int maxDepth,
+            double truncateBranchPercentage) throws IOException {
+        List<ProfileNode> subtreeRootNodes = Lists.newArrayList();
+        for (ProfileNode rootNode : rootNodes) {
+            if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
+                subtreeRootNodes.add(rootNode);
+            }
+        }
+        for (int i = 0; i < framePath.size(); i++) {
+            if (i > 0) {
+                List<ProfileNode> childNodes = Lists.newArrayList();
+                for (ProfileNode subtreeRootNode : subtreeRootNodes) {
+                    childNodes.addAll(subtreeRootNode.childNodes);
+                }
+                subtreeRootNodes = childNodes;
+            }
+            // there can be multiple matching sibling nodes, differing only by leaf thread state
+            List<ProfileNode> matchingNodes = Lists.newArrayList();
+            for (ProfileNode node : subtreeRootNodes) {
+                if (node.getText().equals(framePath.get(i))) {
+                    matchingNodes.add(node);
+                }
+            }
+            subtreeRootNodes = matchingNodes;
+        }
+        long totalSampleCount = 0;
+        for (ProfileNode subtreeRootNode : subtreeRootNodes) {
+            totalSampleCount += subtreeRootNode.sampleCount;
+        }
+        int minSamples = (int) Math.ceil(totalSampleCount * truncateBranchPercentage / 100);
+        Set<ProfileNode> includedNodes =
+                getFlameGraphSubtreeNodes(subtreeRootNodes, maxDepth, minSamples);
+        jg.writeStartObject();
+        jg.writeNumberField("totalSampleCount", totalSampleCount);
+        jg.writeArrayFieldStart("rootNodes");
+        int height = 0;
+        for (ProfileNode subtreeRootNode : subtreeRootNodes) {
+            if (includedNodes.contains(subtreeRootNode)) {
+                FlameGraphSubtreeWriter writer =
+                        new FlameGraphSubtreeWriter(subtreeRootNode, includedNodes, jg);
+                writer.traverse();
+                height = Math.max(height, writer.height);
+            }
+        }
+        jg.writeEndArray();
+        jg.writeNumberField("height", height);
+        jg.writeEndObject();
     }
 
     private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
@@ -262,6 +343,37 @@ public class MutableProfile {
         return index;
     }
 
+    // selects nodes breadth first, so that when the node limit is reached, it is the deepest (and
+    // within that level, the smallest) nodes that are left out
+    private static Set<ProfileNode> getFlameGraphSubtreeNodes(List<ProfileNode> subtreeRootNodes,
+            int maxDepth, int minSamples) {
+        Set<ProfileNode> includedNodes = Sets.newIdentityHashSet();
+        List<ProfileNode> levelNodes = sampleCountOrdering.greatestOf(subtreeRootNodes,
+                MAX_FLAME_GRAPH_SUBTREE_NODES);
+        int depth = 1;
+        while (!levelNodes.isEmpty()) {
+            includedNodes.addAll(levelNodes);
+            if (depth++ >= maxDepth) {
+                break;
+            }
+            List<ProfileNode> nextLevelNodes = Lists.newArrayList();
+            for (ProfileNode levelNode : levelNodes) {
+                for (ProfileNode childNode : levelNode.childNodes) {
+                    if (childNode.sampleCount >= minSamples) {
+                        nextLevelNodes.add(childNode);
+                    }
+                }
+            }
+            int remaining = MAX_FLAME_GRAPH_SUBTREE_NODES - includedNodes.size();
+            if (nextLevelNodes.size() > remaining) {
+                includedNodes.addAll(sampleCountOrdering.greatestOf(nextLevelNodes, remaining));
+                break;
+            }
+            levelNodes = nextLevelNodes;
+        }
+        return includedNodes;
+    }
+
     private static Profile.LeafThreadState getThreadState(@Nullable Thread.State state) {
         if (state == null) {
             return Profile.LeafThreadState.NONE;
@@ -576,6 +688,51 @@ public class MutableProfile {
         }
     }
 
+    public class IncrementalJsonWriter {
+
+        private final JsonGenerator jg;
+
+        private boolean started;
+        private boolean completed;
+        private int nextRootNodeIndex;
+        private @Nullable ProfileWriter profileWriter;
+
+        private IncrementalJsonWriter(JsonGenerator jg) {
+            this.jg = jg;
+        }
+
+        // writes up to maxSteps profile nodes (each node is visited once on the way down, and once
+        // more on the way up if it has children), and returns true if there is more to write
+        public boolean writeNext(int maxSteps) throws IOException {
+            if (completed) {
+                return false;
+            }
+            if (!started) {
+                jg.writeStartObject();
+                jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
+                jg.writeArrayFieldStart("rootNodes");
+                started = true;
+            }
+            for (int i = 0; i < maxSteps; i++) {
+                ProfileWriter profileWriter = this.profileWriter;
+                if (profileWriter == null) {
+                    if (nextRootNodeIndex == rootNodes.size()) {
+                        jg.writeEndArray();
+                        jg.writeEndObject();
+                        completed = true;
+                        return false;
+                    }
+                    profileWriter = new ProfileWriter(rootNodes.get(nextRootNodeIndex++), jg);
+                    this.profileWriter = profileWriter;
+                }
+                if (!profileWriter.traverse(1)) {
+                    this.profileWriter = null;
+                }
+            }
+            return true;
+        }
+    }
+
     private class ProfileWriter extends Traverser<ProfileNode, IOException> {
 
         private final JsonGenerator jg;
@@ -644,4 +801,54 @@ public class MutableProfile {
             jg.writeEndObject();
         }
     }
+
+    private class FlameGraphSubtreeWriter extends Traverser<ProfileNode, IOException> {
+
+        private final Set<ProfileNode> includedNodes;
+        private final JsonGenerator jg;
+        private int height;
+
+        private FlameGraphSubtreeWriter(ProfileNode rootNode, Set<ProfileNode> includedNodes,
+                JsonGenerator jg) {
+            super(rootNode);
+            this.includedNodes = includedNodes;
+            this.jg = jg;
+        }
+
+        @Override
+        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+            height = Math.max(height, depth + 1);
+            jg.writeStartObject();
+            jg.writeStringField("name", node.getText());
+            jg.writeNumberField("value", node.sampleCount);
+            List<ProfileNode> includedChildNodes = Lists.newArrayList();
+            long ellipsedSampleCount = node.ellipsedSampleCount;
+            for (ProfileNode childNode : node.childNodes) {
+                if (includedNodes.contains(childNode)) {
+                    includedChildNodes.add(childNode);
+                } else {
+                    ellipsedSampleCount += childNode.sampleCount;
+                }
+            }
+            if (ellipsedSampleCount > 0) {
+                // the ui can drill down (re-requesting the subtree) to see more
+                jg.writeNumberField("ellipsedValue", ellipsedSampleCount);
+            }
+            if (!includedChildNodes.isEmpty()) {
+                jg.writeArrayFieldStart("children");
+            }
+            return includedChildNodes;
+        }
+
+        @Override
+        public void revisitAfterChildren(ProfileNode node) throws IOException {
+            for (ProfileNode childNode : node.childNodes) {
+                if (includedNodes.contains(childNode)) {
+                    jg.writeEndArray();
+                    break;
+                }
+            }
+            jg.writeEndObject();
+        }
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.Nullable;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// the native epoll transport is opt-in (-Dglowroot.epoll=true), and falls back to nio when the
+// native library cannot be loaded (e.g. not linux, or running inside of the shaded agent jar since
+// the native library cannot be loaded after netty is relocated)
+//
+// this is used to select the transport for the ui http server and for the agent and central grpc
+// event loop groups
+public class NativeTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(NativeTransport.class);
+
+    private static final boolean useEpoll =
+            Boolean.getBoolean("glowroot.epoll") && isEpollAvailable();
+
+    private NativeTransport() {}
+
+    public static EventLoopGroup newEventLoopGroup(int numThreads, ThreadFactory threadFactory) {
+        if (useEpoll) {
+            return Epolls.newEventLoopGroup(numThreads, threadFactory);
+        }
+        return new NioEventLoopGroup(numThreads, threadFactory);
+    }
+
+    public static EventLoopGroup newEventLoopGroup(int numThreads, Executor executor) {
+        if (useEpoll) {
+            return Epolls.newEventLoopGroup(numThreads, executor);
+        }
+        return new NioEventLoopGroup(numThreads, executor);
+    }
+
+    public static Class<? extends Channel> getChannelType() {
+        if (useEpoll) {
+            return Epolls.getChannelType();
+        }
+        return NioSocketChannel.class;
+    }
+
+    public static Class<? extends ServerChannel> getServerChannelType() {
+        if (useEpoll) {
+            return Epolls.getServerChannelType();
+        }
+        return NioServerSocketChannel.class;
+    }
+
+    private static boolean isEpollAvailable() {
+        try {
+            Class.forName("io.netty.channel.epoll.Epoll", false,
+                    NativeTransport.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            logger.warn("native epoll transport is not on the class path, using nio instead");
+            logger.debug(e.getMessage(), e);
+            return false;
+        }
+        Throwable unavailabilityCause = Epolls.getUnavailabilityCause();
+        if (unavailabilityCause != null) {
+            logger.warn("native epoll transport is not available, using nio instead: {}",
+                    unavailabilityCause.getMessage());
+            logger.debug(unavailabilityCause.getMessage(), unavailabilityCause);
+            return false;
+        }
+        return true;
+    }
+
+    // separate class so that the epoll classes are only loaded once they are known to be on the
+    // class path
+    private static class Epolls {
+
+        private static EventLoopGroup newEventLoopGroup(int numThreads,
+                ThreadFactory threadFactory) {
+            return new EpollEventLoopGroup(numThreads, threadFactory);
+        }
+
+        private static EventLoopGroup newEventLoopGroup(int numThreads, Executor executor) {
+            return new EpollEventLoopGroup(numThreads, executor);
+        }
+
+        private static Class<? extends Channel> getChannelType() {
+            return EpollSocketChannel.class;
+        }
+
+        private static Class<? extends ServerChannel> getServerChannelType() {
+            return EpollServerSocketChannel.class;
+        }
+
+        private static @Nullable Throwable getUnavailabilityCause() {
+            return Epoll.isAvailable() ? null : Epoll.unavailabilityCause();
+        }
+    }
+}
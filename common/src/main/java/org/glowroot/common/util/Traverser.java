@@ -33,29 +33,42 @@ public abstract class Traverser<T extends /*@NonNull*/ Object, E extends Excepti
         stack.push(root);
     }
 
-    @SuppressWarnings("unchecked")
     public void traverse() throws E {
         while (!stack.isEmpty()) {
-            Object popped = stack.pop();
-            if (popped == ALREADY_TRAVERSED_MARKER) {
-                revisitAfterChildren((T) stack.pop());
-                depth--;
-                continue;
-            }
-            T unprocessed = (T) popped;
-            List<T> childNodes = visit(unprocessed, depth);
-            if (childNodes.isEmpty()) {
-                // optimization for no children
-                revisitAfterChildren(unprocessed);
-            } else {
-                stack.push(unprocessed);
-                stack.push(ALREADY_TRAVERSED_MARKER);
-                ListIterator<T> i = childNodes.listIterator(childNodes.size());
-                while (i.hasPrevious()) {
-                    stack.push(i.previous());
-                }
-                depth++;
+            step();
+        }
+    }
+
+    // performs at most maxSteps steps of the traversal and returns true if the traversal is not
+    // yet complete, so that a large traversal can be performed incrementally
+    public boolean traverse(int maxSteps) throws E {
+        for (int i = 0; i < maxSteps && !stack.isEmpty(); i++) {
+            step();
+        }
+        return !stack.isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void step() throws E {
+        Object popped = stack.pop();
+        if (popped == ALREADY_TRAVERSED_MARKER) {
+            revisitAfterChildren((T) stack.pop());
+            depth--;
+            return;
+        }
+        T unprocessed = (T) popped;
+        List<T> childNodes = visit(unprocessed, depth);
+        if (childNodes.isEmpty()) {
+            // optimization for no children
+            revisitAfterChildren(unprocessed);
+        } else {
+            stack.push(unprocessed);
+            stack.push(ALREADY_TRAVERSED_MARKER);
+            ListIterator<T> i = childNodes.listIterator(childNodes.size());
+            while (i.hasPrevious()) {
+                stack.push(i.previous());
             }
+            depth++;
         }
     }
 
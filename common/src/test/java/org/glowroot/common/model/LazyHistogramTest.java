@@ -15,6 +15,10 @@
  */
 package org.glowroot.common.model;
 
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
 import org.junit.Test;
 
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
@@ -34,6 +38,36 @@ public class LazyHistogramTest {
         shouldTestPercentiles(100000000);
     }
 
+    @Test
+    public void shouldSubtract() throws Exception {
+        // given
+        LazyHistogram first = new LazyHistogram();
+        for (int i = 0; i < 2000; i++) {
+            first.add(i * 1000000L);
+        }
+        LazyHistogram second = new LazyHistogram();
+        for (int i = 0; i < 10; i++) {
+            second.add(50);
+        }
+        LazyHistogram third = new LazyHistogram();
+        for (int i = 0; i < 100; i++) {
+            third.add(100);
+        }
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        Aggregate.Histogram firstProto = first.toProto(scratchBuffer);
+        Aggregate.Histogram secondProto = second.toProto(scratchBuffer);
+        LazyHistogram window = new LazyHistogram();
+        window.merge(firstProto);
+        window.merge(secondProto);
+        window.merge(third.toProto(scratchBuffer));
+        // when
+        window.subtract(firstProto);
+        window.subtract(secondProto);
+        // then
+        assertThat(window.getValueAtPercentile(0)).isEqualTo(100);
+        assertThat(window.getValueAtPercentile(100)).isEqualTo(100);
+    }
+
     @Test
     public void shouldTestEncodeDecode() throws Exception {
         // test smaller numbers in more detail since that is where laziness occurs
@@ -78,6 +112,82 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldReadHdrHistogram() throws Exception {
+        for (int num : new int[] {2000000, 10000000, 100000000}) {
+            // given
+            Histogram hdrHistogram = createHdrHistogram(num);
+            Aggregate.Histogram hdrHistogramProto = toProto(hdrHistogram);
+            // when
+            LazyHistogram lazyHistogram = new LazyHistogram(hdrHistogramProto);
+            LazyHistogram merged = new LazyHistogram();
+            merged.merge(hdrHistogramProto);
+            // then
+            assertPercentiles(lazyHistogram, hdrHistogram);
+            assertPercentiles(merged, hdrHistogram);
+            Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+            assertThat(histogram.getEncodedBytes().isEmpty()).isTrue();
+            assertThat(histogram.getLogLinearEncodedBytes().isEmpty()).isFalse();
+        }
+    }
+
+    @Test
+    public void shouldMergeHdrHistogramIntoLogLinearHistogram() throws Exception {
+        // given
+        int num = 10000000;
+        LazyHistogram upperHalf = new LazyHistogram();
+        for (int i = 2 * num; i > num; i -= 1000) {
+            upperHalf.add(i);
+        }
+        Aggregate.Histogram upperHalfProto = upperHalf.toProto(new ScratchBuffer());
+        assertThat(upperHalfProto.getLogLinearEncodedBytes().isEmpty()).isFalse();
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        lazyHistogram.merge(upperHalfProto);
+        // when
+        lazyHistogram.merge(toProto(createHdrHistogram(num)));
+        // then
+        assertPercentile(lazyHistogram, num * 2, 50);
+        assertPercentile(lazyHistogram, num * 2, 95);
+        assertPercentile(lazyHistogram, num * 2, 99);
+        assertPercentile(lazyHistogram, num * 2, 99.9);
+        assertPercentile(lazyHistogram, num * 2, 99.99);
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        assertThat(histogram.getEncodedBytes().isEmpty()).isTrue();
+        assertThat(histogram.getLogLinearEncodedBytes().isEmpty()).isFalse();
+    }
+
+    @Test
+    public void shouldSubtractHdrHistogram() throws Exception {
+        // given
+        int num = 10000000;
+        Histogram hdrHistogram = createHdrHistogram(num);
+        Aggregate.Histogram hdrHistogramProto = toProto(hdrHistogram);
+        LazyHistogram upperHalf = new LazyHistogram();
+        for (int i = 2 * num; i > num; i -= 1000) {
+            upperHalf.add(i);
+        }
+        Aggregate.Histogram upperHalfProto = upperHalf.toProto(new ScratchBuffer());
+        LazyHistogram small = new LazyHistogram();
+        for (int i = 0; i < 100; i++) {
+            small.add(100);
+        }
+        LazyHistogram window = new LazyHistogram();
+        window.merge(hdrHistogramProto);
+        window.merge(upperHalfProto);
+        window.merge(small.toProto(new ScratchBuffer()));
+        // when
+        window.subtract(upperHalfProto);
+        window.subtract(small.toProto(new ScratchBuffer()));
+        // then
+        assertPercentiles(window, hdrHistogram);
+        // when
+        window.merge(small.toProto(new ScratchBuffer()));
+        window.subtract(hdrHistogramProto);
+        // then
+        assertThat(window.getValueAtPercentile(0)).isEqualTo(100);
+        assertThat(window.getValueAtPercentile(100)).isEqualTo(100);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -152,6 +262,34 @@ public class LazyHistogramTest {
         assertPercentile(lazyHistogram, encodedSize + nonEncodedSize, 99.99);
     }
 
+    // this matches how histograms were encoded prior to LogLinearHistogram
+    private static Histogram createHdrHistogram(int num) {
+        Histogram histogram = new Histogram(1000, 2000, 5);
+        histogram.setAutoResize(true);
+        for (int i = num; i > 0; i -= 1000) {
+            histogram.recordValue(i);
+        }
+        return histogram;
+    }
+
+    private static Aggregate.Histogram toProto(Histogram histogram) {
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        histogram.encodeIntoByteBuffer(buffer);
+        buffer.flip();
+        return Aggregate.Histogram.newBuilder()
+                .setEncodedBytes(ByteString.copyFrom(buffer))
+                .build();
+    }
+
+    private static void assertPercentiles(LazyHistogram lazyHistogram, Histogram hdrHistogram) {
+        for (double percentile : new double[] {50, 95, 99, 99.9, 99.99}) {
+            long expected = hdrHistogram.getValueAtPercentile(percentile);
+            long low = (long) Math.floor(expected * 0.99);
+            long high = (long) Math.ceil(expected * 1.01);
+            assertThat(lazyHistogram.getValueAtPercentile(percentile)).isBetween(low, high);
+        }
+    }
+
     private void assertPercentile(LazyHistogram lazyHistogram, int num, double percentile) {
         long low = (long) Math.floor(num * percentile * 0.99 / (100 * 1000)) * 1000;
         long high = (long) Math.ceil(num * percentile * 1.01 / (100 * 1000)) * 1000;
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogLinearHistogramTest {
+
+    @Test
+    public void shouldCalculatePrecisionBits() {
+        assertThat(LogLinearHistogram.getPrecisionBits(1)).isEqualTo(4);
+        assertThat(LogLinearHistogram.getPrecisionBits(2)).isEqualTo(7);
+        assertThat(LogLinearHistogram.getPrecisionBits(3)).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldRoundTripBucketIndex() {
+        for (int precisionBits = 4; precisionBits <= 14; precisionBits++) {
+            for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+                int bucketIndex = LogLinearHistogram.getBucketIndex(value, precisionBits);
+                long representativeValue =
+                        LogLinearHistogram.getRepresentativeValue(bucketIndex, precisionBits);
+                assertThat(LogLinearHistogram.getBucketIndex(representativeValue, precisionBits))
+                        .isEqualTo(bucketIndex);
+                double error = Math.abs(representativeValue - value) / (double) value;
+                assertThat(error).isLessThanOrEqualTo(1.0 / (1 << precisionBits));
+            }
+        }
+    }
+
+    @Test
+    public void shouldQueryPercentileOnEncodedForm() {
+        LogLinearHistogram histogram = new LogLinearHistogram(7);
+        for (int i = 1; i <= 100000; i++) {
+            histogram.recordValue(i * 1000L);
+        }
+        ByteString encoded = encode(histogram);
+        for (double percentile : new double[] {1, 50, 90, 99, 99.9, 100}) {
+            assertThat(LogLinearHistogram.getValueAtPercentile(encoded, percentile))
+                    .isEqualTo(histogram.getValueAtPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void shouldMergeEncodedForm() {
+        LogLinearHistogram histogram1 = new LogLinearHistogram(7);
+        LogLinearHistogram histogram2 = new LogLinearHistogram(7);
+        for (int i = 1; i <= 10000; i++) {
+            histogram1.recordValue(i);
+            histogram2.recordValue(i * 1000000L);
+        }
+        LogLinearHistogram merged = new LogLinearHistogram(7);
+        merged.merge(encode(histogram1));
+        merged.merge(encode(histogram2));
+
+        assertThat(merged.getTotalCount()).isEqualTo(20000);
+        assertThat(merged.getValueAtPercentile(25)).isEqualTo(histogram1.getValueAtPercentile(50));
+        assertThat(merged.getValueAtPercentile(75)).isEqualTo(histogram2.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void shouldMergeDifferentPrecision() {
+        LogLinearHistogram histogram = new LogLinearHistogram(10);
+        for (int i = 1; i <= 10000; i++) {
+            histogram.recordValue(i * 1000L);
+        }
+        LogLinearHistogram merged = new LogLinearHistogram(7);
+        merged.merge(encode(histogram));
+
+        assertThat(merged.getTotalCount()).isEqualTo(10000);
+        long expected = 9900000;
+        assertThat((double) merged.getValueAtPercentile(99)).isBetween(expected * 0.99,
+                expected * 1.01);
+    }
+
+    @Test
+    public void shouldHandleEmpty() {
+        LogLinearHistogram histogram = new LogLinearHistogram(7);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(0);
+        assertThat(LogLinearHistogram.getValueAtPercentile(encode(histogram), 50)).isEqualTo(0);
+    }
+
+    private static ByteString encode(LogLinearHistogram histogram) {
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        histogram.encodeIntoByteBuffer(buffer);
+        buffer.flip();
+        return ByteString.copyFrom(buffer);
+    }
+}
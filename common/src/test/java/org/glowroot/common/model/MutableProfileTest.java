@@ -23,6 +23,7 @@ import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.Test;
@@ -164,6 +165,105 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testFlameGraphSubtree() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = Lists.newArrayList();
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+        stackTraceElements1.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements2 = Lists.newArrayList();
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Def", "jkl", "Def.java", 321));
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+        stackTraceElements2.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements2, Thread.State.RUNNABLE);
+        String json = profile.toJson();
+        // when
+        String subtreeJson = toFlameGraphSubtreeJson(profile,
+                ImmutableList.of("xx.yy.zz.Main.main(Main.java:789)",
+                        "aa.bb.cc.Def.ghi(Def.java:456)"),
+                2, 50);
+        // then
+        assertThat(subtreeJson).isEqualTo(("{"
+                + "  \"totalSampleCount\": 3,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"name\": \"aa.bb.cc.Def.ghi(Def.java:456)\","
+                + "      \"value\": 3,"
+                + "      \"ellipsedValue\": 1,"
+                + "      \"children\": ["
+                + "        {"
+                + "          \"name\": \"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "          \"value\": 2"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ],"
+                + "  \"height\": 2"
+                + "}").replace(" ", ""));
+        // writing subtree does not truncate the (possibly shared) profile
+        assertThat(profile.toJson()).isEqualTo(json);
+    }
+
+    @Test
+    public void testFlameGraphSubtreeNotFound() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        // when
+        String subtreeJson =
+                toFlameGraphSubtreeJson(profile, ImmutableList.of("xx.yy.zz.Main.other()"), 10, 0);
+        // then
+        assertThat(subtreeJson)
+                .isEqualTo("{\"totalSampleCount\":0,\"rootNodes\":[],\"height\":0}");
+    }
+
+    @Test
+    public void testIncrementalJson() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = Lists.newArrayList();
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements1.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements2 = Lists.newArrayList();
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Def", "jkl", "Def.java", 321));
+        stackTraceElements2.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements3 = Lists.newArrayList();
+        stackTraceElements3.add(new StackTraceElement("xx.yy.zz.Other", "run", "Other.java", 1));
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements2, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements3, Thread.State.RUNNABLE);
+        // when
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg =
+                new ObjectMapper().getFactory().createGenerator(CharStreams.asWriter(sb));
+        MutableProfile.IncrementalJsonWriter writer = profile.newIncrementalJsonWriter(jg);
+        int pieces = 0;
+        while (writer.writeNext(2)) {
+            pieces++;
+        }
+        jg.close();
+        // then
+        assertThat(sb.toString()).isEqualTo(profile.toJson());
+        assertThat(pieces).isGreaterThan(1);
+    }
+
+    private static String toFlameGraphSubtreeJson(MutableProfile profile,
+            List<String> framePath, int maxDepth, double truncateBranchPercentage)
+                    throws IOException {
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg =
+                new ObjectMapper().getFactory().createGenerator(CharStreams.asWriter(sb));
+        profile.writeFlameGraphSubtreeJson(jg, framePath, maxDepth, truncateBranchPercentage);
+        jg.close();
+        return sb.toString();
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
@@ -16,6 +16,7 @@
 package org.glowroot.storage.repo;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -41,6 +42,12 @@ public interface AggregateRepository {
     void mergeInTransactionSummaries(TransactionSummaryCollector mergedTransactionSummaries,
             OverallQuery query, SummarySortOrder sortOrder, int limit) throws Exception;
 
+    // this is used to read the exact summaries of transactions that are missing from the truncated
+    // top transaction lists of the given intervals, all of which are at query.rollupLevel()
+    // (query.from() and query.to() are not used, the intervals are keyed by their capture time)
+    void mergeInTransactionSummaries(TransactionSummaryCollector mergedTransactionSummaries,
+            OverallQuery query, Map<Long, List<String>> transactionNames) throws Exception;
+
     // query.from() is non-inclusive
     OverallErrorSummary readOverallErrorSummary(OverallQuery query) throws Exception;
 
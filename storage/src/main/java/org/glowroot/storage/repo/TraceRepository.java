@@ -42,6 +42,14 @@ public interface TraceRepository {
     Result<TracePoint> readErrorPoints(TraceQuery query, TracePointFilter filter, int limit)
             throws Exception;
 
+    // returns the longest duration normal point and the longest duration error point in each
+    // (capture time, duration) bucket, see TracePointDownsampler
+    List<TracePoint> readDownsampledSlowPoints(TraceQuery query, TracePointFilter filter,
+            TracePointBuckets buckets) throws Exception;
+
+    List<TracePoint> readDownsampledErrorPoints(TraceQuery query, TracePointFilter filter,
+            TracePointBuckets buckets) throws Exception;
+
     long readSlowCount(TraceQuery query) throws Exception;
 
     long readErrorCount(TraceQuery query) throws Exception;
@@ -72,6 +80,13 @@ public interface TraceRepository {
         long to();
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    public interface TracePointBuckets {
+        int timeBuckets();
+        int durationBuckets();
+    }
+
     @Value.Immutable
     public interface ErrorMessageFilter {
         ImmutableList<String> includes();
@@ -15,12 +15,17 @@
  */
 package org.glowroot.storage.repo;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Longs;
 
@@ -29,6 +34,9 @@ import org.glowroot.storage.repo.AggregateRepository.TransactionSummary;
 
 public class TransactionSummaryCollector {
 
+    // the number of transactions kept by each ordering in the per-interval top transaction lists
+    public static final int TOP_TRANSACTION_LIMIT = 100;
+
     private static final Ordering<TransactionSummary> orderingByTotalTimeDesc =
             new Ordering<TransactionSummary>() {
                 @Override
@@ -56,6 +64,10 @@ public class TransactionSummaryCollector {
 
     private final Map<String, MutableTransactionSummary> transactionSummaries = Maps.newHashMap();
 
+    // transaction names present in each truncated top transaction list, keyed by rollup level and
+    // capture time, the summaries of any other transactions in these intervals are not included
+    private final Table<Integer, Long, Set<String>> truncatedTopLists = HashBasedTable.create();
+
     private long lastCaptureTime;
 
     public void collect(String transactionName, double totalNanos, long transactionCount,
@@ -70,6 +82,40 @@ public class TransactionSummaryCollector {
         lastCaptureTime = Math.max(lastCaptureTime, captureTime);
     }
 
+    // collects a row from a per-interval top transaction list (see getTopTransactionSummaries())
+    public void collectFromTopList(int rollupLevel, long captureTime, String transactionName,
+            double totalNanos, long transactionCount, boolean truncated) {
+        collect(transactionName, totalNanos, transactionCount, captureTime);
+        if (truncated) {
+            Set<String> transactionNames = truncatedTopLists.get(rollupLevel, captureTime);
+            if (transactionNames == null) {
+                transactionNames = Sets.newHashSet();
+                truncatedTopLists.put(rollupLevel, captureTime, transactionNames);
+            }
+            transactionNames.add(transactionName);
+        }
+    }
+
+    // returns the given transaction names that are missing from each truncated top transaction
+    // list, keyed by rollup level and capture time, the summaries collected for these transactions
+    // are only exact once the missing intervals have also been collected
+    public Table<Integer, Long, List<String>> getMissingTransactionNames(
+            Collection<String> transactionNames) {
+        Table<Integer, Long, List<String>> missingTransactionNames = HashBasedTable.create();
+        for (Table.Cell<Integer, Long, Set<String>> cell : truncatedTopLists.cellSet()) {
+            List<String> missing = Lists.newArrayList();
+            for (String transactionName : transactionNames) {
+                if (!cell.getValue().contains(transactionName)) {
+                    missing.add(transactionName);
+                }
+            }
+            if (!missing.isEmpty()) {
+                missingTransactionNames.put(cell.getRowKey(), cell.getColumnKey(), missing);
+            }
+        }
+        return missingTransactionNames;
+    }
+
     public long getLastCaptureTime() {
         return lastCaptureTime;
     }
@@ -85,13 +131,10 @@ public class TransactionSummaryCollector {
     public Result<TransactionSummary> getResult(SummarySortOrder sortOrder, int limit) {
         List<TransactionSummary> summaries = Lists.newArrayList();
         for (Map.Entry<String, MutableTransactionSummary> entry : transactionSummaries.entrySet()) {
-            summaries.add(ImmutableTransactionSummary.builder()
-                    .transactionName(entry.getKey())
-                    .totalNanos(entry.getValue().totalNanos)
-                    .transactionCount(entry.getValue().transactionCount)
-                    .build());
+            summaries.add(toTransactionSummary(entry.getKey(), entry.getValue()));
         }
-        summaries = sortTransactionSummaries(summaries, sortOrder);
+        // bounded selection instead of sorting every transaction summary
+        summaries = getOrdering(sortOrder).leastOf(summaries, limit + 1);
         if (summaries.size() > limit) {
             return new Result<TransactionSummary>(summaries.subList(0, limit), true);
         } else {
@@ -99,16 +142,57 @@ public class TransactionSummaryCollector {
         }
     }
 
-    private static List<TransactionSummary> sortTransactionSummaries(
-            Iterable<TransactionSummary> transactionSummaries,
-            SummarySortOrder sortOrder) {
+    // returns the current summaries of the given (previously selected) transactions, re-sorted
+    //
+    // this is used after the missing intervals of the selected transactions have been collected,
+    // instead of selecting again, since a summary can move down in the sort order (e.g. average
+    // time can decrease) and then a transaction whose summary is not exact could be selected
+    public Result<TransactionSummary> getResult(SummarySortOrder sortOrder,
+            Collection<String> transactionNames, boolean moreAvailable) {
+        List<TransactionSummary> summaries = Lists.newArrayList();
+        for (String transactionName : transactionNames) {
+            MutableTransactionSummary mts = transactionSummaries.get(transactionName);
+            if (mts != null) {
+                summaries.add(toTransactionSummary(transactionName, mts));
+            }
+        }
+        return new Result<TransactionSummary>(getOrdering(sortOrder).sortedCopy(summaries),
+                moreAvailable);
+    }
+
+    // returns the union of the top transactions by total time, by average time and by transaction
+    // count (which covers all of the summary sort orders), this is stored for each interval so that
+    // reading transaction summaries does not need to read every transaction in every interval
+    public static List<TransactionSummary> getTopTransactionSummaries(
+            List<TransactionSummary> transactionSummaries) {
+        if (transactionSummaries.size() <= TOP_TRANSACTION_LIMIT) {
+            return transactionSummaries;
+        }
+        Set<TransactionSummary> topTransactionSummaries = Sets.newLinkedHashSet();
+        for (SummarySortOrder sortOrder : SummarySortOrder.values()) {
+            topTransactionSummaries.addAll(getOrdering(sortOrder).leastOf(transactionSummaries,
+                    TOP_TRANSACTION_LIMIT));
+        }
+        return Lists.newArrayList(topTransactionSummaries);
+    }
+
+    private static TransactionSummary toTransactionSummary(String transactionName,
+            MutableTransactionSummary mts) {
+        return ImmutableTransactionSummary.builder()
+                .transactionName(transactionName)
+                .totalNanos(mts.totalNanos)
+                .transactionCount(mts.transactionCount)
+                .build();
+    }
+
+    private static Ordering<TransactionSummary> getOrdering(SummarySortOrder sortOrder) {
         switch (sortOrder) {
             case TOTAL_TIME:
-                return orderingByTotalTimeDesc.immutableSortedCopy(transactionSummaries);
+                return orderingByTotalTimeDesc;
             case AVERAGE_TIME:
-                return orderingByAverageTimeDesc.immutableSortedCopy(transactionSummaries);
+                return orderingByAverageTimeDesc;
             case THROUGHPUT:
-                return orderingByTransactionCountDesc.immutableSortedCopy(transactionSummaries);
+                return orderingByTransactionCountDesc;
             default:
                 throw new AssertionError("Unexpected sort order: " + sortOrder);
         }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.repo.helper;
+
+public class AggregateCacheStats implements AggregateCacheStatsMXBean {
+
+    private final CachingAggregateRepository cachingAggregateRepository;
+
+    public AggregateCacheStats(CachingAggregateRepository cachingAggregateRepository) {
+        this.cachingAggregateRepository = cachingAggregateRepository;
+    }
+
+    @Override
+    public long getHitCount() {
+        return cachingAggregateRepository.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cachingAggregateRepository.getMissCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hitCount = cachingAggregateRepository.getHitCount();
+        long requestCount = hitCount + cachingAggregateRepository.getMissCount();
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cachingAggregateRepository.getEvictionCount();
+    }
+
+    @Override
+    public long getCachedAggregateCount() {
+        return cachingAggregateRepository.getCachedAggregateCount();
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.repo.helper;
+
+import java.util.List;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
+
+// notified (on the storing thread) after each interval of aggregates has been stored
+public interface AggregateStoreListener {
+
+    void onStore(String serverId, long captureTime, List<AggregatesByType> aggregatesByType);
+}
@@ -16,9 +16,14 @@
 package org.glowroot.storage.repo.helper;
 
 import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.zip.DataFormatException;
 
 import javax.crypto.SecretKey;
 import javax.mail.Address;
@@ -29,10 +34,16 @@ import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.util.Styles;
 import org.glowroot.storage.config.AlertConfig;
 import org.glowroot.storage.config.SmtpConfig;
 import org.glowroot.storage.repo.AggregateRepository;
@@ -46,6 +57,7 @@ import org.glowroot.storage.repo.Utils;
 import org.glowroot.storage.util.Encryption;
 import org.glowroot.storage.util.MailService;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
@@ -60,6 +72,16 @@ public class AlertingService {
     private final RollupLevelService rollupLevelService;
     private final MailService mailService;
 
+    // sliding windows of percentile aggregates are maintained incrementally, so that each check
+    // only needs to read the aggregates since the prior check, and a single window is shared by all
+    // alerts with the same server rollup, transaction type and time period
+    //
+    // these are only accessed by the thread calling checkAlerts()
+    private final Map<TransactionTypeKey, TransactionTypeWindows> windows = Maps.newHashMap();
+    // triggered alerts are only inserted and deleted by this class, so the repository only needs to
+    // be queried the first time each alert version is checked
+    private final Map<String, Boolean> triggeredAlertVersions = Maps.newHashMap();
+
     public AlertingService(ConfigRepository configRepository, ServerRepository serverRepository,
             TriggeredAlertRepository triggeredAlertRepository,
             AggregateRepository aggregateRepository, RollupLevelService rollupLevelService,
@@ -73,51 +95,130 @@ public class AlertingService {
     }
 
     public void checkAlerts(long endTime) throws Exception {
+        Set<TransactionTypeKey> activeKeys = Sets.newHashSet();
+        Set<String> activeAlertVersions = Sets.newHashSet();
         for (ServerRollup serverRollup : serverRepository.readServerRollups()) {
+            ListMultimap<String, AlertConfig> alertConfigs = ArrayListMultimap.create();
             for (AlertConfig alertConfig : configRepository.getAlertConfigs(serverRollup.name())) {
+                alertConfigs.put(alertConfig.transactionType(), alertConfig);
+                activeAlertVersions.add(alertConfig.version());
+            }
+            for (String transactionType : alertConfigs.keySet()) {
+                TransactionTypeKey key = ImmutableTransactionTypeKey.of(serverRollup.name(),
+                        transactionType);
+                activeKeys.add(key);
+                List<AlertConfig> transactionTypeAlertConfigs = alertConfigs.get(transactionType);
+                TransactionTypeWindows transactionTypeWindows;
                 try {
-                    checkAlert(serverRollup.name(), alertConfig, endTime);
+                    transactionTypeWindows =
+                            updateWindows(key, transactionTypeAlertConfigs, endTime);
                 } catch (Exception e) {
+                    // start over on next check
+                    windows.remove(key);
                     logger.error(e.getMessage(), e);
+                    continue;
+                }
+                for (AlertConfig alertConfig : transactionTypeAlertConfigs) {
+                    PercentileWindow window = transactionTypeWindows.windows
+                            .get(MINUTES.toMillis(alertConfig.timePeriodMinutes()));
+                    try {
+                        checkAlert(serverRollup.name(), alertConfig, checkNotNull(window),
+                                endTime);
+                    } catch (Exception e) {
+                        logger.error(e.getMessage(), e);
+                    }
                 }
             }
         }
+        // discard windows and triggered state that are no longer used by any alert
+        windows.keySet().retainAll(activeKeys);
+        triggeredAlertVersions.keySet().retainAll(activeAlertVersions);
     }
 
-    private void checkAlert(String serverRollup, AlertConfig alertConfig, long endTime)
-            throws Exception {
-        long startTime = endTime - MINUTES.toMillis(alertConfig.timePeriodMinutes());
-        // don't want to include the aggregate at startTime, so add 1
-        startTime++;
-        int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
-        List<PercentileAggregate> percentileAggregates =
-                aggregateRepository.readPercentileAggregates(
-                        ImmutableTransactionQuery.builder()
-                                .serverRollup(serverRollup)
-                                .transactionType(alertConfig.transactionType())
-                                .from(startTime)
-                                .to(endTime)
-                                .rollupLevel(rollupLevel)
-                                .build());
-        long transactionCount = 0;
-        LazyHistogram histogram = new LazyHistogram();
-        for (PercentileAggregate aggregate : percentileAggregates) {
-            transactionCount += aggregate.transactionCount();
-            histogram.merge(aggregate.histogram());
+    private TransactionTypeWindows updateWindows(TransactionTypeKey key,
+            List<AlertConfig> alertConfigs, long endTime) throws Exception {
+        Set<Long> timePeriods = Sets.newHashSet();
+        long maxTimePeriod = 0;
+        for (AlertConfig alertConfig : alertConfigs) {
+            long timePeriod = MINUTES.toMillis(alertConfig.timePeriodMinutes());
+            timePeriods.add(timePeriod);
+            maxTimePeriod = Math.max(maxTimePeriod, timePeriod);
+        }
+        TransactionTypeWindows transactionTypeWindows = windows.get(key);
+        if (transactionTypeWindows != null && (endTime < transactionTypeWindows.endTime
+                || endTime - transactionTypeWindows.endTime >= maxTimePeriod)) {
+            // clock went backwards, or alerts have not been checked for longer than the time
+            // period, either way it is simplest to start over
+            transactionTypeWindows = null;
+        }
+        if (transactionTypeWindows == null) {
+            transactionTypeWindows = new TransactionTypeWindows(endTime);
+            windows.put(key, transactionTypeWindows);
+        } else if (endTime > transactionTypeWindows.endTime) {
+            // only need to read the aggregates since the prior check (which are always available
+            // at rollup level 0), and these are shared by all of the windows
+            List<PercentileAggregate> aggregates =
+                    readPercentileAggregates(key, transactionTypeWindows.endTime + 1, endTime, 0);
+            for (PercentileWindow window : transactionTypeWindows.windows.values()) {
+                for (PercentileAggregate aggregate : aggregates) {
+                    window.add(aggregate);
+                }
+                window.expire(endTime);
+            }
+            transactionTypeWindows.endTime = endTime;
         }
+        transactionTypeWindows.windows.keySet().retainAll(timePeriods);
+        for (long timePeriod : timePeriods) {
+            if (transactionTypeWindows.windows.containsKey(timePeriod)) {
+                continue;
+            }
+            // don't want to include the aggregate at startTime, so add 1
+            long startTime = endTime - timePeriod + 1;
+            int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
+            PercentileWindow window = new PercentileWindow(timePeriod);
+            for (PercentileAggregate aggregate : readPercentileAggregates(key, startTime, endTime,
+                    rollupLevel)) {
+                window.add(aggregate);
+            }
+            transactionTypeWindows.windows.put(timePeriod, window);
+        }
+        return transactionTypeWindows;
+    }
+
+    private List<PercentileAggregate> readPercentileAggregates(TransactionTypeKey key, long from,
+            long to, int rollupLevel) throws Exception {
+        return aggregateRepository.readPercentileAggregates(ImmutableTransactionQuery.builder()
+                .serverRollup(key.serverRollup())
+                .transactionType(key.transactionType())
+                .from(from)
+                .to(to)
+                .rollupLevel(rollupLevel)
+                .build());
+    }
+
+    private void checkAlert(String serverRollup, AlertConfig alertConfig, PercentileWindow window,
+            long endTime) throws Exception {
+        long transactionCount = window.transactionCount;
         if (transactionCount < alertConfig.minTransactionCount()) {
             // don't clear existing triggered alert
             return;
         }
-        boolean previouslyTriggered = triggeredAlertRepository.exists(alertConfig.version());
-        long valueAtPercentile = histogram.getValueAtPercentile(alertConfig.percentile());
+        String version = alertConfig.version();
+        Boolean previouslyTriggered = triggeredAlertVersions.get(version);
+        if (previouslyTriggered == null) {
+            previouslyTriggered = triggeredAlertRepository.exists(version);
+            triggeredAlertVersions.put(version, previouslyTriggered);
+        }
+        long valueAtPercentile = window.histogram.getValueAtPercentile(alertConfig.percentile());
         boolean currentlyTriggered =
                 valueAtPercentile >= MILLISECONDS.toNanos(alertConfig.thresholdMillis());
         if (previouslyTriggered && !currentlyTriggered) {
-            triggeredAlertRepository.delete(alertConfig.version());
+            triggeredAlertRepository.delete(version);
+            triggeredAlertVersions.put(version, false);
             sendAlert(serverRollup, alertConfig, valueAtPercentile, transactionCount, true);
         } else if (!previouslyTriggered && currentlyTriggered) {
-            triggeredAlertRepository.insert(alertConfig.version(), endTime);
+            triggeredAlertRepository.insert(version, endTime);
+            triggeredAlertVersions.put(version, true);
             sendAlert(serverRollup, alertConfig, valueAtPercentile, transactionCount, false);
         }
     }
@@ -217,4 +318,55 @@ public class AlertingService {
         }
         return Session.getInstance(props, authenticator);
     }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface TransactionTypeKey {
+        String serverRollup();
+        String transactionType();
+    }
+
+    private static class TransactionTypeWindows {
+
+        // end time of the prior check, all windows are up to date through this time
+        private long endTime;
+
+        // keyed by time period in milliseconds
+        private final Map<Long, PercentileWindow> windows = Maps.newHashMap();
+
+        private TransactionTypeWindows(long endTime) {
+            this.endTime = endTime;
+        }
+    }
+
+    private static class PercentileWindow {
+
+        private final long timePeriodMillis;
+
+        // ordered by capture time
+        private final Deque<PercentileAggregate> aggregates = new ArrayDeque<PercentileAggregate>();
+
+        private final LazyHistogram histogram = new LazyHistogram();
+        private long transactionCount;
+
+        private PercentileWindow(long timePeriodMillis) {
+            this.timePeriodMillis = timePeriodMillis;
+        }
+
+        private void add(PercentileAggregate aggregate) throws DataFormatException {
+            aggregates.addLast(aggregate);
+            histogram.merge(aggregate.histogram());
+            transactionCount += aggregate.transactionCount();
+        }
+
+        // subtracts the aggregates that are no longer inside of the window ending at endTime
+        private void expire(long endTime) {
+            long startTime = endTime - timePeriodMillis;
+            while (!aggregates.isEmpty() && aggregates.getFirst().captureTime() <= startTime) {
+                PercentileAggregate aggregate = aggregates.removeFirst();
+                histogram.subtract(aggregate.histogram());
+                transactionCount -= aggregate.transactionCount();
+            }
+        }
+    }
 }
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.repo.helper;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+import org.glowroot.storage.repo.AggregateRepository;
+import org.glowroot.storage.repo.ImmutableTransactionQuery;
+import org.glowroot.storage.repo.ProfileCollector;
+import org.glowroot.storage.repo.TransactionErrorSummaryCollector;
+import org.glowroot.storage.repo.TransactionSummaryCollector;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches decoded overview, percentile and throughput aggregates for intervals that can no longer
+// change, so that repeated chart refreshes only need to read the open tail of the window from the
+// underlying repository
+public class CachingAggregateRepository implements AggregateRepository {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingAggregateRepository.class);
+
+    // once an interval is older than this, it is assumed that no more data will be stored for it
+    // (this accounts for agents reporting late, and for central re-running rollups as a result)
+    private static final long FINALIZATION_DELAY_MILLIS = MINUTES.toMillis(5);
+
+    // this is per aggregate type (overview, percentile, throughput)
+    private static final long MAX_CACHED_AGGREGATES =
+            Long.getLong("glowroot.internal.aggregateCache.maxAggregates", 100000);
+
+    private final AggregateRepository delegate;
+    private final Clock clock;
+
+    private final IntervalCache<OverviewAggregate> overviewCache =
+            new IntervalCache<OverviewAggregate>() {
+                @Override
+                List<OverviewAggregate> readFromDelegate(TransactionQuery query)
+                        throws Exception {
+                    return delegate.readOverviewAggregates(query);
+                }
+                @Override
+                long getCaptureTime(OverviewAggregate aggregate) {
+                    return aggregate.captureTime();
+                }
+            };
+
+    private final IntervalCache<PercentileAggregate> percentileCache =
+            new IntervalCache<PercentileAggregate>() {
+                @Override
+                List<PercentileAggregate> readFromDelegate(TransactionQuery query)
+                        throws Exception {
+                    return delegate.readPercentileAggregates(query);
+                }
+                @Override
+                long getCaptureTime(PercentileAggregate aggregate) {
+                    return aggregate.captureTime();
+                }
+            };
+
+    private final IntervalCache<ThroughputAggregate> throughputCache =
+            new IntervalCache<ThroughputAggregate>() {
+                @Override
+                List<ThroughputAggregate> readFromDelegate(TransactionQuery query)
+                        throws Exception {
+                    return delegate.readThroughputAggregates(query);
+                }
+                @Override
+                long getCaptureTime(ThroughputAggregate aggregate) {
+                    return aggregate.captureTime();
+                }
+            };
+
+    // these count individual aggregates (not series lookups)
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final List<AggregateStoreListener> storeListeners =
+            new CopyOnWriteArrayList<AggregateStoreListener>();
+
+    public CachingAggregateRepository(AggregateRepository delegate, Clock clock) {
+        this.delegate = delegate;
+        this.clock = clock;
+    }
+
+    @Override
+    public void store(String serverId, long captureTime, List<AggregatesByType> aggregatesByType)
+            throws Exception {
+        delegate.store(serverId, captureTime, aggregatesByType);
+        for (AggregateStoreListener storeListener : storeListeners) {
+            try {
+                storeListener.onStore(serverId, captureTime, aggregatesByType);
+            } catch (Throwable t) {
+                // listener failure should not fail (and cause retry of) the store
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    public void addStoreListener(AggregateStoreListener storeListener) {
+        storeListeners.add(storeListener);
+    }
+
+    public void removeStoreListener(AggregateStoreListener storeListener) {
+        storeListeners.remove(storeListener);
+    }
+
+    @Override
+    public OverallSummary readOverallSummary(OverallQuery query) throws Exception {
+        return delegate.readOverallSummary(query);
+    }
+
+    @Override
+    public void mergeInTransactionSummaries(TransactionSummaryCollector mergedTransactionSummaries,
+            OverallQuery query, SummarySortOrder sortOrder, int limit) throws Exception {
+        delegate.mergeInTransactionSummaries(mergedTransactionSummaries, query, sortOrder, limit);
+    }
+
+    @Override
+    public void mergeInTransactionSummaries(TransactionSummaryCollector mergedTransactionSummaries,
+            OverallQuery query, Map<Long, List<String>> transactionNames) throws Exception {
+        delegate.mergeInTransactionSummaries(mergedTransactionSummaries, query, transactionNames);
+    }
+
+    @Override
+    public OverallErrorSummary readOverallErrorSummary(OverallQuery query) throws Exception {
+        return delegate.readOverallErrorSummary(query);
+    }
+
+    @Override
+    public void mergeInTransactionErrorSummaries(
+            TransactionErrorSummaryCollector mergedTransactionErrorSummaries, OverallQuery query,
+            ErrorSummarySortOrder sortOrder, int limit) throws Exception {
+        delegate.mergeInTransactionErrorSummaries(mergedTransactionErrorSummaries, query,
+                sortOrder, limit);
+    }
+
+    @Override
+    public List<OverviewAggregate> readOverviewAggregates(TransactionQuery query)
+            throws Exception {
+        return overviewCache.read(query);
+    }
+
+    @Override
+    public List<PercentileAggregate> readPercentileAggregates(TransactionQuery query)
+            throws Exception {
+        return percentileCache.read(query);
+    }
+
+    @Override
+    public List<ThroughputAggregate> readThroughputAggregates(TransactionQuery query)
+            throws Exception {
+        return throughputCache.read(query);
+    }
+
+    @Override
+    public void mergeInMainThreadProfiles(ProfileCollector mergedProfile, TransactionQuery query)
+            throws Exception {
+        delegate.mergeInMainThreadProfiles(mergedProfile, query);
+    }
+
+    @Override
+    public void mergeInAuxThreadProfiles(ProfileCollector mergedProfile, TransactionQuery query)
+            throws Exception {
+        delegate.mergeInAuxThreadProfiles(mergedProfile, query);
+    }
+
+    @Override
+    public void mergeInQueries(QueryCollector mergedQueries, TransactionQuery query)
+            throws Exception {
+        delegate.mergeInQueries(mergedQueries, query);
+    }
+
+    @Override
+    public List<ErrorPoint> readErrorPoints(TransactionQuery query) throws Exception {
+        return delegate.readErrorPoints(query);
+    }
+
+    @Override
+    public boolean hasAuxThreadProfile(TransactionQuery query) throws Exception {
+        return delegate.hasAuxThreadProfile(query);
+    }
+
+    @Override
+    public boolean shouldHaveMainThreadProfile(TransactionQuery query) throws Exception {
+        return delegate.shouldHaveMainThreadProfile(query);
+    }
+
+    @Override
+    public boolean shouldHaveAuxThreadProfile(TransactionQuery query) throws Exception {
+        return delegate.shouldHaveAuxThreadProfile(query);
+    }
+
+    @Override
+    public boolean shouldHaveQueries(TransactionQuery query) throws Exception {
+        return delegate.shouldHaveQueries(query);
+    }
+
+    @Override
+    public void deleteAll(String serverRollup) throws Exception {
+        delegate.deleteAll(serverRollup);
+        overviewCache.invalidate(serverRollup);
+        percentileCache.invalidate(serverRollup);
+        throughputCache.invalidate(serverRollup);
+    }
+
+    // must be called after deleting aggregates outside of this repository (e.g. by the fat agent
+    // reaper), otherwise the deleted intervals would continue to be served from the cache
+    public void invalidateBefore(long captureTime, int rollupLevel) {
+        overviewCache.invalidateBefore(captureTime, rollupLevel);
+        percentileCache.invalidateBefore(captureTime, rollupLevel);
+        throughputCache.invalidateBefore(captureTime, rollupLevel);
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    long getEvictionCount() {
+        return overviewCache.cache.stats().evictionCount()
+                + percentileCache.cache.stats().evictionCount()
+                + throughputCache.cache.stats().evictionCount();
+    }
+
+    long getCachedAggregateCount() {
+        return overviewCache.getAggregateCount() + percentileCache.getAggregateCount()
+                + throughputCache.getAggregateCount();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SeriesKey {
+        String serverRollup();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        int rollupLevel();
+    }
+
+    private abstract class IntervalCache<T> {
+
+        private final Cache<SeriesKey, CachedSeries<T>> cache = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_CACHED_AGGREGATES)
+                .weigher(new Weigher<SeriesKey, CachedSeries<T>>() {
+                    @Override
+                    public int weigh(SeriesKey key, CachedSeries<T> value) {
+                        return value.aggregates.size();
+                    }
+                })
+                // series that are not being viewed don't need to hang around
+                .expireAfterAccess(1, HOURS)
+                .recordStats()
+                .build();
+
+        abstract List<T> readFromDelegate(TransactionQuery query) throws Exception;
+
+        abstract long getCaptureTime(T aggregate);
+
+        // query.from() is INCLUSIVE
+        private List<T> read(TransactionQuery query) throws Exception {
+            long finalizedThrough = clock.currentTimeMillis() - FINALIZATION_DELAY_MILLIS;
+            SeriesKey key = ImmutableSeriesKey.of(query.serverRollup(), query.transactionType(),
+                    query.transactionName(), query.rollupLevel());
+            CachedSeries<T> series = cache.getIfPresent(key);
+            if (series == null || query.from() < series.coveredFrom
+                    || query.from() > series.coveredTo + 1) {
+                List<T> aggregates = readFromDelegate(query);
+                missCount.addAndGet(aggregates.size());
+                CachedSeries<T> newSeries = CachedSeries.create(query.from(),
+                        Math.min(query.to(), finalizedThrough), aggregates, this);
+                if (newSeries != null) {
+                    cache.put(key, newSeries);
+                }
+                return aggregates;
+            }
+            List<T> aggregates = Lists.newArrayList();
+            if (query.from() <= series.coveredTo) {
+                aggregates.addAll(series.aggregates.subMap(query.from(), true,
+                        Math.min(query.to(), series.coveredTo), true).values());
+                hitCount.addAndGet(aggregates.size());
+            }
+            if (query.to() <= series.coveredTo) {
+                return aggregates;
+            }
+            List<T> tailAggregates = readFromDelegate(ImmutableTransactionQuery.builder()
+                    .copyFrom(query)
+                    .from(series.coveredTo + 1)
+                    .build());
+            missCount.addAndGet(tailAggregates.size());
+            aggregates.addAll(tailAggregates);
+            CachedSeries<T> extendedSeries =
+                    series.extend(Math.min(query.to(), finalizedThrough), tailAggregates, this);
+            if (extendedSeries != series) {
+                cache.put(key, extendedSeries);
+            }
+            return aggregates;
+        }
+
+        private void invalidate(String serverRollup) {
+            Iterator<SeriesKey> i = cache.asMap().keySet().iterator();
+            while (i.hasNext()) {
+                if (i.next().serverRollup().equals(serverRollup)) {
+                    i.remove();
+                }
+            }
+        }
+
+        private void invalidateBefore(long captureTime, int rollupLevel) {
+            Iterator<Map.Entry<SeriesKey, CachedSeries<T>>> i =
+                    cache.asMap().entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<SeriesKey, CachedSeries<T>> entry = i.next();
+                if (entry.getKey().rollupLevel() == rollupLevel
+                        && entry.getValue().coveredFrom < captureTime) {
+                    i.remove();
+                }
+            }
+        }
+
+        private long getAggregateCount() {
+            long count = 0;
+            for (CachedSeries<T> series : cache.asMap().values()) {
+                count += series.aggregates.size();
+            }
+            return count;
+        }
+    }
+
+    private static class CachedSeries<T> {
+
+        // all data between coveredFrom and coveredTo (both INCLUSIVE) is finalized and present in
+        // the aggregates map
+        private final long coveredFrom;
+        private final long coveredTo;
+        private final ImmutableSortedMap<Long, T> aggregates;
+
+        private CachedSeries(long coveredFrom, long coveredTo,
+                ImmutableSortedMap<Long, T> aggregates) {
+            this.coveredFrom = coveredFrom;
+            this.coveredTo = coveredTo;
+            this.aggregates = aggregates;
+        }
+
+        private CachedSeries<T> extend(long maxCoveredTo, List<T> orderedAggregates,
+                IntervalCache<T> intervalCache) {
+            ImmutableSortedMap.Builder<Long, T> builder = ImmutableSortedMap.naturalOrder();
+            builder.putAll(aggregates);
+            long newCoveredTo =
+                    addFinalized(builder, orderedAggregates, maxCoveredTo, intervalCache);
+            if (newCoveredTo == Long.MIN_VALUE) {
+                return this;
+            }
+            return new CachedSeries<T>(coveredFrom, newCoveredTo, builder.build());
+        }
+
+        // returns null if there are no finalized aggregates
+        @Nullable
+        private static <T> CachedSeries<T> create(long coveredFrom, long maxCoveredTo,
+                List<T> orderedAggregates, IntervalCache<T> intervalCache) {
+            ImmutableSortedMap.Builder<Long, T> builder = ImmutableSortedMap.naturalOrder();
+            long coveredTo = addFinalized(builder, orderedAggregates, maxCoveredTo, intervalCache);
+            if (coveredTo == Long.MIN_VALUE) {
+                return null;
+            }
+            return new CachedSeries<T>(coveredFrom, coveredTo, builder.build());
+        }
+
+        // coverage only extends through the last finalized aggregate actually returned (as opposed
+        // to maxCoveredTo) since rollups may lag behind, in which case rolled up aggregates can
+        // still show up later for earlier capture times than maxCoveredTo
+        private static <T> long addFinalized(ImmutableSortedMap.Builder<Long, T> builder,
+                List<T> orderedAggregates, long maxCoveredTo, IntervalCache<T> intervalCache) {
+            long coveredTo = Long.MIN_VALUE;
+            for (T aggregate : orderedAggregates) {
+                long captureTime = intervalCache.getCaptureTime(aggregate);
+                if (captureTime > maxCoveredTo) {
+                    break;
+                }
+                builder.put(captureTime, aggregate);
+                coveredTo = captureTime;
+            }
+            return coveredTo;
+        }
+    }
+}
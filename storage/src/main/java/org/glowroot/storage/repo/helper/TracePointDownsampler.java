@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.repo.helper;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.storage.repo.TraceRepository.TracePointBuckets;
+
+// reduces a stream of trace points down to the longest normal point and the longest error point in
+// each (capture time, duration) bucket, so that the number of points returned is bounded by the
+// number of buckets (instead of by the number of traces), while still preserving the outliers
+//
+// both dimensions are bucketed linearly to match the chart axes, capture time over (from, to] and
+// duration over [minDurationNanos, maxDurationNanos] (the chart's y-axis runs from the duration
+// filter's lower bound up to the longest point), so each bucket covers the same number of pixels
+//
+// the fat agent evaluates the same bucket expressions in sql (see TracePointQueryBuilder), so the
+// integer arithmetic here must be kept in sync with it
+public class TracePointDownsampler {
+
+    private final long from;
+    private final long to;
+    private final int timeBuckets;
+    private final int durationBuckets;
+    private final long minDurationNanos;
+    private final long durationRange;
+
+    private final Map<Long, TracePoint> exemplars = Maps.newHashMap();
+
+    public TracePointDownsampler(long from, long to, TracePointBuckets buckets,
+            long minDurationNanos, long maxDurationNanos) {
+        this.from = from;
+        this.to = to;
+        timeBuckets = Math.max(buckets.timeBuckets(), 1);
+        durationBuckets = Math.max(buckets.durationBuckets(), 1);
+        this.minDurationNanos = minDurationNanos;
+        durationRange = Math.max(maxDurationNanos - minDurationNanos + 1, 1);
+    }
+
+    public void add(TracePoint point) {
+        long key = (getTimeBucket(point.captureTime()) * (long) durationBuckets
+                + getDurationBucket(point.durationNanos())) * 2 + (point.error() ? 1 : 0);
+        TracePoint exemplar = exemplars.get(key);
+        if (exemplar == null || point.durationNanos() > exemplar.durationNanos()) {
+            exemplars.put(key, point);
+        }
+    }
+
+    public List<TracePoint> getPoints() {
+        // the same trace can show up twice with different durations if it was partially stored
+        // (with one capture time) and then stored again once complete (with a later capture time)
+        Map<String, TracePoint> points = Maps.newHashMap();
+        for (TracePoint point : exemplars.values()) {
+            TracePoint existing = points.get(point.traceId());
+            if (existing == null || point.durationNanos() > existing.durationNanos()) {
+                points.put(point.traceId(), point);
+            }
+        }
+        List<TracePoint> orderedPoints = Lists.newArrayList(points.values());
+        Collections.sort(orderedPoints, new Comparator<TracePoint>() {
+            @Override
+            public int compare(TracePoint left, TracePoint right) {
+                return Longs.compare(left.captureTime(), right.captureTime());
+            }
+        });
+        return orderedPoints;
+    }
+
+    // capture times outside of (from, to] (e.g. pending points) fall into the first or last bucket
+    private long getTimeBucket(long captureTime) {
+        if (to <= from) {
+            return 0;
+        }
+        long bucket = (captureTime - from - 1) * timeBuckets / (to - from);
+        return Math.min(Math.max(bucket, 0), timeBuckets - 1);
+    }
+
+    // durations outside of [minDurationNanos, maxDurationNanos] fall into the first or last bucket
+    private long getDurationBucket(long durationNanos) {
+        long bucket = (durationNanos - minDurationNanos) * durationBuckets / durationRange;
+        return Math.min(Math.max(bucket, 0), durationBuckets - 1);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.repo;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.storage.repo.AggregateRepository.SummarySortOrder;
+import org.glowroot.storage.repo.AggregateRepository.TransactionSummary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransactionSummaryCollectorTest {
+
+    @Test
+    public void shouldOnlyResortSelectedTransactionsAfterCollectingMissingIntervals() {
+        // given
+        TransactionSummaryCollector collector = new TransactionSummaryCollector();
+        collector.collectFromTopList(0, 60000, "a", 1000, 1, true);
+        collector.collectFromTopList(0, 60000, "b", 900, 1, true);
+        collector.collectFromTopList(0, 60000, "c", 800, 1, true);
+        Result<TransactionSummary> result = collector.getResult(SummarySortOrder.AVERAGE_TIME, 2);
+        List<String> transactionNames = getTransactionNames(result);
+        assertThat(transactionNames).containsExactly("a", "b");
+        // when
+        // "a" was missing from another truncated interval, and its average time drops below "c"
+        collector.collect("a", 100, 9, 120000);
+        result = collector.getResult(SummarySortOrder.AVERAGE_TIME, transactionNames,
+                result.moreAvailable());
+        // then
+        assertThat(getTransactionNames(result)).containsExactly("b", "a");
+        assertThat(result.records().get(1).totalNanos()).isEqualTo(1100);
+        assertThat(result.records().get(1).transactionCount()).isEqualTo(10);
+        assertThat(result.moreAvailable()).isTrue();
+    }
+
+    private static List<String> getTransactionNames(Result<TransactionSummary> result) {
+        ImmutableList.Builder<String> transactionNames = ImmutableList.builder();
+        for (TransactionSummary transactionSummary : result.records()) {
+            transactionNames.add(transactionSummary.transactionName());
+        }
+        return transactionNames.build();
+    }
+}
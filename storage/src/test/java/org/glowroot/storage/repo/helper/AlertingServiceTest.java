@@ -42,7 +42,12 @@ import org.glowroot.storage.util.Encryption;
 import org.glowroot.storage.util.MailService;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class AlertingServiceTest {
@@ -103,6 +108,36 @@ public class AlertingServiceTest {
         assertThat(mailService.getMessage()).isNull();
     }
 
+    @Test
+    public void shouldOnlyReadNewAggregatesOnSubsequentChecks() throws Exception {
+        // given
+        setup(1000000);
+        PercentileAggregate aggregate = createPercentileAggregate(180000, 999000);
+        ImmutableTransactionQuery query = ImmutableTransactionQuery.builder()
+                .serverRollup(SERVER_ID)
+                .transactionType("tt")
+                .from(120001)
+                .to(180000)
+                .rollupLevel(0)
+                .build();
+        when(aggregateRepository.readPercentileAggregates(query))
+                .thenReturn(ImmutableList.of(aggregate));
+        AlertingService alertingService = new AlertingService(configRepository, serverRepository,
+                triggeredAlertRepository, aggregateRepository, rollupLevelService, mailService);
+        // when
+        alertingService.checkAlerts(120000);
+        alertingService.checkAlerts(180000);
+        // then
+        // the aggregate at 120000 is subtracted from the window, so the alert is cleared
+        assertThat(mailService.getMessage().getSubject()).endsWith(" - OK");
+        verify(aggregateRepository, times(2))
+                .readPercentileAggregates(any(ImmutableTransactionQuery.class));
+        verify(aggregateRepository).readPercentileAggregates(query);
+        verify(triggeredAlertRepository).exists(anyString());
+        verify(triggeredAlertRepository).insert(anyString(), eq(120000L));
+        verify(triggeredAlertRepository).delete(anyString());
+    }
+
     @Test
     public void shouldReturnCorrectPercentileName() {
         assertThat(Utils.getPercentileWithSuffix(0)).isEqualTo("0th");
@@ -148,16 +183,7 @@ public class AlertingServiceTest {
                 .minTransactionCount(0)
                 .addEmailAddresses("to@example.org")
                 .build();
-        LazyHistogram lazyHistogram = new LazyHistogram();
-        for (long histogramValue : histogramValues) {
-            lazyHistogram.add(histogramValue);
-        }
-        PercentileAggregate aggregate = ImmutablePercentileAggregate.builder()
-                .captureTime(120000)
-                .totalNanos(1000000)
-                .transactionCount(1)
-                .histogram(lazyHistogram.toProto(new ScratchBuffer()))
-                .build();
+        PercentileAggregate aggregate = createPercentileAggregate(120000, histogramValues);
         when(configRepository.getAlertConfigs(SERVER_ID))
                 .thenReturn(ImmutableList.of(alertConfig));
         ImmutableTransactionQuery query = ImmutableTransactionQuery.builder()
@@ -171,6 +197,20 @@ public class AlertingServiceTest {
                 .thenReturn(ImmutableList.of(aggregate));
     }
 
+    private static PercentileAggregate createPercentileAggregate(long captureTime,
+            long... histogramValues) {
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (long histogramValue : histogramValues) {
+            lazyHistogram.add(histogramValue);
+        }
+        return ImmutablePercentileAggregate.builder()
+                .captureTime(captureTime)
+                .totalNanos(1000000)
+                .transactionCount(1)
+                .histogram(lazyHistogram.toProto(new ScratchBuffer()))
+                .build();
+    }
+
     static class MockMailService extends MailService {
 
         private Message msg;
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.repo.helper;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common.util.Clock;
+import org.glowroot.storage.repo.AggregateRepository;
+import org.glowroot.storage.repo.AggregateRepository.ThroughputAggregate;
+import org.glowroot.storage.repo.AggregateRepository.TransactionQuery;
+import org.glowroot.storage.repo.ImmutableThroughputAggregate;
+import org.glowroot.storage.repo.ImmutableTransactionQuery;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+public class CachingAggregateRepositoryTest {
+
+    private AggregateRepository aggregateRepository;
+    private Clock clock;
+    private CachingAggregateRepository cachingAggregateRepository;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        aggregateRepository = mock(AggregateRepository.class);
+        clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(MINUTES.toMillis(60));
+        cachingAggregateRepository = new CachingAggregateRepository(aggregateRepository, clock);
+    }
+
+    @Test
+    public void shouldOnlyReadTailIntervalsOnSecondRead() throws Exception {
+        // given
+        TransactionQuery query = query(1, 60);
+        TransactionQuery tailQuery = query(MINUTES.toMillis(55) + 1, MINUTES.toMillis(60));
+        when(aggregateRepository.readThroughputAggregates(query)).thenReturn(aggregates(1, 60));
+        when(aggregateRepository.readThroughputAggregates(tailQuery))
+                .thenReturn(aggregates(56, 60));
+        // when
+        List<ThroughputAggregate> first =
+                cachingAggregateRepository.readThroughputAggregates(query);
+        List<ThroughputAggregate> second =
+                cachingAggregateRepository.readThroughputAggregates(query);
+        // then
+        assertThat(first).hasSize(60);
+        assertThat(second).isEqualTo(first);
+        verify(aggregateRepository).readThroughputAggregates(query);
+        verify(aggregateRepository).readThroughputAggregates(tailQuery);
+        verifyNoMoreInteractions(aggregateRepository);
+        assertThat(cachingAggregateRepository.getHitCount()).isEqualTo(55);
+        assertThat(cachingAggregateRepository.getMissCount()).isEqualTo(65);
+    }
+
+    @Test
+    public void shouldServeSubRangeFromCache() throws Exception {
+        // given
+        TransactionQuery query = query(1, 60);
+        when(aggregateRepository.readThroughputAggregates(query)).thenReturn(aggregates(1, 60));
+        cachingAggregateRepository.readThroughputAggregates(query);
+        // when
+        List<ThroughputAggregate> subRange =
+                cachingAggregateRepository.readThroughputAggregates(query(10, 20));
+        // then
+        assertThat(subRange).isEqualTo(aggregates(10, 20));
+        verify(aggregateRepository).readThroughputAggregates(query);
+        verifyNoMoreInteractions(aggregateRepository);
+    }
+
+    @Test
+    public void shouldNotCacheBeyondLastReturnedInterval() throws Exception {
+        // given
+        TransactionQuery query = query(1, 60);
+        TransactionQuery tailQuery = query(MINUTES.toMillis(30) + 1, MINUTES.toMillis(60));
+        // e.g. rollups lagging behind
+        when(aggregateRepository.readThroughputAggregates(query)).thenReturn(aggregates(1, 30));
+        when(aggregateRepository.readThroughputAggregates(tailQuery))
+                .thenReturn(aggregates(31, 40));
+        // when
+        cachingAggregateRepository.readThroughputAggregates(query);
+        List<ThroughputAggregate> second =
+                cachingAggregateRepository.readThroughputAggregates(query);
+        // then
+        assertThat(second).isEqualTo(aggregates(1, 40));
+        verify(aggregateRepository).readThroughputAggregates(tailQuery);
+    }
+
+    @Test
+    public void shouldInvalidateOnDeleteAll() throws Exception {
+        // given
+        TransactionQuery query = query(1, 60);
+        when(aggregateRepository.readThroughputAggregates(query)).thenReturn(aggregates(1, 60));
+        cachingAggregateRepository.readThroughputAggregates(query);
+        // when
+        cachingAggregateRepository.deleteAll("");
+        // then
+        assertThat(cachingAggregateRepository.getCachedAggregateCount()).isZero();
+    }
+
+    @Test
+    public void shouldInvalidateOnDeleteBefore() throws Exception {
+        // given
+        TransactionQuery query = query(1, 60);
+        when(aggregateRepository.readThroughputAggregates(query)).thenReturn(aggregates(1, 60));
+        cachingAggregateRepository.readThroughputAggregates(query);
+        // when
+        cachingAggregateRepository.invalidateBefore(MINUTES.toMillis(10), 1);
+        long countAfterOtherRollupLevel = cachingAggregateRepository.getCachedAggregateCount();
+        cachingAggregateRepository.invalidateBefore(MINUTES.toMillis(10), 0);
+        // then
+        assertThat(countAfterOtherRollupLevel).isEqualTo(55);
+        assertThat(cachingAggregateRepository.getCachedAggregateCount()).isZero();
+    }
+
+    private static TransactionQuery query(int fromMinute, int toMinute) {
+        return query(MINUTES.toMillis(fromMinute), MINUTES.toMillis(toMinute));
+    }
+
+    private static TransactionQuery query(long from, long to) {
+        return ImmutableTransactionQuery.builder()
+                .serverRollup("")
+                .transactionType("tt")
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+    }
+
+    private static List<ThroughputAggregate> aggregates(int fromMinute, int toMinute) {
+        List<ThroughputAggregate> aggregates = Lists.newArrayList();
+        for (int i = fromMinute; i <= toMinute; i++) {
+            aggregates.add(ImmutableThroughputAggregate.of(MINUTES.toMillis(i), i));
+        }
+        return aggregates;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.repo.helper;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.common.live.ImmutableTracePoint;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.storage.repo.ImmutableTracePointBuckets;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TracePointDownsamplerTest {
+
+    @Test
+    public void shouldKeepLongestPointPerBucket() {
+        // given
+        TracePointDownsampler downsampler = new TracePointDownsampler(0, 1000,
+                ImmutableTracePointBuckets.of(10, 10), 0, MILLISECONDS.toNanos(1000));
+        // when
+        for (int i = 0; i < 100; i++) {
+            downsampler.add(createPoint("t" + i, 1, MILLISECONDS.toNanos(100) + i, false));
+        }
+        downsampler.add(createPoint("e", 2, MILLISECONDS.toNanos(100), true));
+        downsampler.add(createPoint("x", 999, MILLISECONDS.toNanos(100), false));
+        // then
+        List<TracePoint> points = downsampler.getPoints();
+        assertThat(points).hasSize(3);
+        assertThat(points.get(0).traceId()).isEqualTo("t99");
+        assertThat(points.get(1).traceId()).isEqualTo("e");
+        assertThat(points.get(2).traceId()).isEqualTo("x");
+    }
+
+    @Test
+    public void shouldKeepOutlier() {
+        // given
+        TracePointDownsampler downsampler = new TracePointDownsampler(0, 1000,
+                ImmutableTracePointBuckets.of(1, 10), 0, MILLISECONDS.toNanos(100000));
+        // when
+        for (int i = 0; i < 100; i++) {
+            downsampler.add(createPoint("t" + i, i, MILLISECONDS.toNanos(10), false));
+        }
+        downsampler.add(createPoint("outlier", 500, MILLISECONDS.toNanos(100000), false));
+        // then
+        List<TracePoint> points = downsampler.getPoints();
+        assertThat(points).hasSize(2);
+        assertThat(points.get(1).traceId()).isEqualTo("outlier");
+    }
+
+    @Test
+    public void shouldBucketLinearly() {
+        // given
+        TracePointDownsampler downsampler = new TracePointDownsampler(0, 1000,
+                ImmutableTracePointBuckets.of(10, 10), 0, MILLISECONDS.toNanos(1000));
+        // when
+        downsampler.add(createPoint("a", 1, MILLISECONDS.toNanos(50), false));
+        downsampler.add(createPoint("b", 100, MILLISECONDS.toNanos(90), false));
+        downsampler.add(createPoint("c", 101, MILLISECONDS.toNanos(150), false));
+        downsampler.add(createPoint("d", 901, MILLISECONDS.toNanos(950), false));
+        downsampler.add(createPoint("e", 1000, MILLISECONDS.toNanos(1000), false));
+        // then
+        List<TracePoint> points = downsampler.getPoints();
+        assertThat(points).hasSize(3);
+        assertThat(points.get(0).traceId()).isEqualTo("b");
+        assertThat(points.get(1).traceId()).isEqualTo("c");
+        assertThat(points.get(2).traceId()).isEqualTo("e");
+    }
+
+    @Test
+    public void shouldRemoveDuplicates() {
+        // given
+        TracePointDownsampler downsampler = new TracePointDownsampler(0, 1000,
+                ImmutableTracePointBuckets.of(10, 10), 0, MILLISECONDS.toNanos(1000));
+        // when
+        downsampler.add(createPoint("t", 1, MILLISECONDS.toNanos(10), false));
+        downsampler.add(createPoint("t", 500, MILLISECONDS.toNanos(1000), false));
+        // then
+        List<TracePoint> points = downsampler.getPoints();
+        assertThat(points).hasSize(1);
+        assertThat(points.get(0).captureTime()).isEqualTo(500);
+    }
+
+    private static TracePoint createPoint(String traceId, long captureTime, long durationNanos,
+            boolean error) {
+        return ImmutableTracePoint.builder()
+                .serverId("")
+                .traceId(traceId)
+                .captureTime(captureTime)
+                .durationNanos(durationNanos)
+                .error(error)
+                .build();
+    }
+}
@@ -31,9 +31,13 @@ glowroot.controller('TransactionAverageCtrl', [
     var chartState = charts.createState();
 
     function refreshData() {
-      charts.refreshData('backend/transaction/average', chartState, $scope, undefined, onRefreshData);
+      charts.refreshData('backend/transaction/average', chartState, $scope, undefined, onRefreshData, toLiveValues);
     }
 
+    $scope.$on('$destroy', function () {
+      charts.closeLive(chartState);
+    });
+
     $scope.$watchGroup(['chartFrom', 'chartTo', 'chartRefresh'], function () {
       refreshData();
     });
@@ -55,6 +59,28 @@ glowroot.controller('TransactionAverageCtrl', [
       }
     };
 
+    function toLiveValues(aggregate, plotData) {
+      $scope.transactionCounts[aggregate.captureTime] = aggregate.transactionCount;
+      var values = [];
+      var otherIndex;
+      var otherNanos = aggregate.totalDurationNanos;
+      angular.forEach(plotData, function (plotDataItem, index) {
+        if (plotDataItem.label === 'Other') {
+          otherIndex = index;
+          values.push(0);
+          return;
+        }
+        var nanos = aggregate.stackedTimers[plotDataItem.label] || 0;
+        otherNanos -= nanos;
+        // convert to average milliseconds
+        values.push(aggregate.transactionCount ? nanos / aggregate.transactionCount / 1000000 : 0);
+      });
+      if (otherIndex !== undefined && aggregate.transactionCount) {
+        values[otherIndex] = otherNanos / aggregate.transactionCount / 1000000;
+      }
+      return values;
+    }
+
     function onRefreshData(data) {
       var mainThreadRootTimers = data.mergedAggregate.mainThreadRootTimers;
       if (mainThreadRootTimers.length === 1) {
@@ -37,9 +37,14 @@ glowroot.controller('TransactionPercentilesCtrl', [
     var appliedPercentiles;
 
     function refreshData() {
-      charts.refreshData('backend/transaction/percentiles', chartState, $scope.$parent, addToQuery, onRefreshData);
+      charts.refreshData('backend/transaction/percentiles', chartState, $scope.$parent, addToQuery, onRefreshData,
+          toLiveValues);
     }
 
+    $scope.$on('$destroy', function () {
+      charts.closeLive(chartState);
+    });
+
     $scope.$watchGroup(['chartFrom', 'chartTo', 'chartRefresh'], function () {
       if (angular.equals(appliedPercentiles, $scope.layout.defaultPercentiles)) {
         $location.search('percentile', null);
@@ -115,6 +120,11 @@ glowroot.controller('TransactionPercentilesCtrl', [
       query.percentile = appliedPercentiles;
     }
 
+    function toLiveValues(aggregate) {
+      $scope.transactionCounts[aggregate.captureTime] = aggregate.transactionCount;
+      return aggregate.percentileValues;
+    }
+
     function onRefreshData(data) {
       $scope.transactionCounts = data.transactionCounts;
       $scope.mergedAggregate = data.mergedAggregate;
@@ -33,9 +33,14 @@ glowroot.controller('TransactionThroughputCtrl', [
     var chartState = charts.createState();
 
     function refreshData() {
-      charts.refreshData('backend/transaction/throughput', chartState, $scope.$parent, undefined, onRefreshData);
+      charts.refreshData('backend/transaction/throughput', chartState, $scope.$parent, undefined, onRefreshData,
+          toLiveValues);
     }
 
+    $scope.$on('$destroy', function () {
+      charts.closeLive(chartState);
+    });
+
     $scope.$watchGroup(['chartFrom', 'chartTo', 'chartRefresh'], function (newval, oldval) {
       refreshData();
     });
@@ -62,6 +67,10 @@ glowroot.controller('TransactionThroughputCtrl', [
       $scope.transactionsPerMin = data.transactionsPerMin;
     }
 
+    function toLiveValues(aggregate) {
+      return [60000 * aggregate.transactionCount / chartState.dataPointIntervalMillis];
+    }
+
     var chartOptions = {
       tooltip: true,
       series: {
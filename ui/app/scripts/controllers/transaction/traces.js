@@ -43,6 +43,10 @@ glowroot.controller('TracesCtrl', [
 
     var defaultFilterLimit = 500;
 
+    // for chart ranges longer than this, the server only returns the slowest trace (and the slowest error trace)
+    // in each (capture time, response time) bucket of the chart
+    var downsampleRangeMillis = 24 * 60 * 60 * 1000;
+
     var highlightedTraceId;
 
     $scope.showChartSpinner = 0;
@@ -92,6 +96,11 @@ glowroot.controller('TracesCtrl', [
         query.transactionName = $scope.transactionName;
       }
       query.serverRollup = $scope.serverRollup;
+      if (to - from > downsampleRangeMillis) {
+        // buckets are roughly the size of a plotted point
+        query.timeBuckets = Math.ceil(plot.width() / 3);
+        query.durationBuckets = Math.ceil(plot.height() / 3);
+      }
       $scope.showChartSpinner++;
       $http.get('backend/' + traceKind + '/points' + queryStrings.encodeObject(query))
           .success(function (data) {
@@ -126,6 +135,7 @@ glowroot.controller('TracesCtrl', [
             $scope.showExpiredMessage = data.expired;
             $scope.chartLimitExceeded = data.limitExceeded;
             $scope.chartLimit = limit;
+            $scope.chartDownsampled = data.downsampled;
             $scope.traceAttributeNames = data.traceAttributeNames;
             // user clicked on Refresh button, need to reset axes
             plot.getAxes().xaxis.options.min = from;
@@ -158,7 +168,7 @@ glowroot.controller('TracesCtrl', [
       var traceCount = data[0].data.length + data[1].data.length + data[2].data.length;
       // parent scope can be null if user has moved on to another controller by the time http get returns
       if ($scope.$parent) {
-        if ($scope.chartLimitExceeded) {
+        if ($scope.chartLimitExceeded || $scope.chartDownsampled) {
           $scope.$parent.$broadcast('updateTraceTabCount', undefined);
         } else {
           $scope.$parent.$broadcast('updateTraceTabCount', traceCount);
@@ -231,7 +231,10 @@ glowroot.factory('charts', [
       chartState.plot.getAxes().yaxis.options.max = undefined;
     }
 
-    function refreshData(url, chartState, $scope, addToQuery, onRefreshData) {
+    // toLiveValues is optional, and when provided, is used to append newly stored intervals to the chart (pushed by
+    // the server as they are stored) while the chart is showing the "last" N minutes/hours, instead of the chart
+    // having to re-query the whole window
+    function refreshData(url, chartState, $scope, addToQuery, onRefreshData, toLiveValues) {
       // addToQuery may change query.from/query.to (see gauges.js)
       var chartFrom = $scope.chartFrom;
       var chartTo = $scope.chartTo;
@@ -245,6 +248,7 @@ glowroot.factory('charts', [
       if (addToQuery) {
         addToQuery(query);
       }
+      closeLive(chartState);
       $scope.showChartSpinner++;
       $http.get(url + queryStrings.encodeObject(query))
           .success(function (data) {
@@ -286,9 +290,13 @@ glowroot.factory('charts', [
             } else {
               chartState.plot.setData([[]]);
             }
+            chartState.plotData = plotData;
             chartState.plot.setupGrid();
             chartState.plot.draw();
             updateLegend(chartState, $scope);
+            if (toLiveValues) {
+              subscribeLive(chartState, $scope, query, toLiveValues);
+            }
           })
           .error(function (data, status) {
             $scope.showChartSpinner--;
@@ -296,6 +304,70 @@ glowroot.factory('charts', [
           });
     }
 
+    function subscribeLive(chartState, $scope, query, toLiveValues) {
+      if (!window.EventSource || !$scope.last || !chartState.plotData.length) {
+        return;
+      }
+      var intervalMillis = $rootScope.layout.rollupConfigs[0].intervalMillis;
+      if (chartState.dataPointIntervalMillis !== intervalMillis) {
+        // only non-rolled up intervals are pushed
+        return;
+      }
+      var liveQuery = {
+        serverRollup: query.serverRollup,
+        transactionType: query.transactionType,
+        transactionName: query.transactionName,
+        percentile: query.percentile
+      };
+      var eventSource = new EventSource('backend/transaction/live' + queryStrings.encodeObject(liveQuery));
+      eventSource.addEventListener('aggregate', function (event) {
+        var aggregate = JSON.parse(event.data);
+        var values = toLiveValues(aggregate, chartState.plotData);
+        var captureTime = aggregate.captureTime;
+        var from = captureTime - $scope.last;
+        angular.forEach(chartState.plotData, function (plotDataItem, index) {
+          appendLivePoint(plotDataItem.data, captureTime, values[index], intervalMillis, from);
+        });
+        chartState.plot.getAxes().xaxis.options.min = from;
+        chartState.plot.getAxes().xaxis.options.max = captureTime;
+        chartState.plot.setData(chartState.plotData);
+        chartState.plot.setupGrid();
+        chartState.plot.draw();
+      });
+      chartState.eventSource = eventSource;
+    }
+
+    function appendLivePoint(data, captureTime, value, intervalMillis, from) {
+      var last;
+      // the active (partial) interval and the final downslope are superseded by the new interval
+      while (data.length) {
+        last = data[data.length - 1];
+        if (last !== null && last[0] <= captureTime - intervalMillis) {
+          break;
+        }
+        data.pop();
+      }
+      last = data.length ? data[data.length - 1] : undefined;
+      if (last && last[0] < captureTime - intervalMillis) {
+        // gap between points, bring down to zero and then back up from zero to show gap
+        if (last[1] !== 0) {
+          data.push([last[0] + intervalMillis, 0]);
+        }
+        data.push([captureTime - intervalMillis, 0]);
+      }
+      data.push([captureTime, value]);
+      while (data.length && (data[0] === null || data[0][0] < from)) {
+        data.shift();
+      }
+    }
+
+    function closeLive(chartState) {
+      if (chartState.eventSource) {
+        chartState.eventSource.close();
+        chartState.eventSource = undefined;
+      }
+    }
+
     function updateLegend(chartState, $scope) {
       var plotData = chartState.plot.getData();
       $scope.seriesLabels = [];
@@ -376,6 +448,7 @@ glowroot.factory('charts', [
       initResize: initResize,
       plot: plot,
       refreshData: refreshData,
+      closeLive: closeLive,
       renderTooltipHtml: renderTooltipHtml,
       updateRange: updateRange,
       getDataPointIntervalMillis: getDataPointIntervalMillis
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// executes independent storage reads concurrently (e.g. the rolled up read and the non-rolled up
+// tail read, which in central are separate cassandra round trips), so that the latency of a ui
+// request approaches the latency of its slowest read instead of the sum of its reads
+class AggregateQueryExecutor {
+
+    private static final long QUERY_TIMEOUT_MILLIS =
+            Long.getLong("glowroot.internal.ui.queryTimeoutMillis", 60 * 1000);
+
+    private static final int MAX_QUEUED_QUERIES = 100;
+
+    private final ThreadPoolExecutor executor;
+
+    AggregateQueryExecutor(int numThreads) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("Glowroot-Aggregate-Query-%d").build();
+        // when the queue is full, the read is performed on the requesting thread, which is no
+        // worse than performing the reads sequentially
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 0, MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_QUERIES), threadFactory,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    // returns a deadline (in System.nanoTime() terms) for all of the reads of a single request
+    long newDeadline() {
+        return System.nanoTime() + MILLISECONDS.toNanos(QUERY_TIMEOUT_MILLIS);
+    }
+
+    <T> Future<T> submit(Callable<T> callable) {
+        return executor.submit(callable);
+    }
+
+    <T> T get(Future<T> future, long deadline) throws Exception {
+        try {
+            return future.get(Math.max(deadline - System.nanoTime(), 0), NANOSECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            Throwables.propagateIfPossible(cause, Exception.class);
+            throw e;
+        }
+    }
+
+    // for reads that are performed on the requesting thread
+    void checkDeadline(long deadline) throws TimeoutException {
+        if (System.nanoTime() > deadline) {
+            throw new TimeoutException("Query exceeded " + QUERY_TIMEOUT_MILLIS + " milliseconds");
+        }
+    }
+
+    // running reads are not interrupted, since interrupting a thread that is performing H2 file
+    // i/o closes the underlying file channel
+    static void cancel(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+}
@@ -57,7 +57,7 @@ class ChunkedInputs {
             if (hasSentTerminatingChunk) {
                 return null;
             }
-            ByteBuf nextChunk = readNextChunk();
+            ByteBuf nextChunk = readNextChunk(ctx);
             if (nextChunk != null) {
                 return new DefaultHttpContent(nextChunk);
             }
@@ -85,28 +85,42 @@ class ChunkedInputs {
             return -1;
         }
 
-        protected abstract @Nullable ByteBuf readNextChunk() throws IOException;
+        protected abstract @Nullable ByteBuf readNextChunk(ChannelHandlerContext ctx)
+                throws IOException;
     }
 
     private static class ChunkSourceChunkedInput extends BaseChunkedInput {
 
-        private final ByteBuf byteBuf;
-        private final Writer writer;
-        private final ChunkCopier chunkCopier;
+        private final ChunkSource chunkSource;
+
+        // these are initialized lazily on first read, so that byteBuf can be allocated from the
+        // channel's (pooled) allocator
+        private @Nullable ByteBuf byteBuf;
+        private @Nullable Writer writer;
+        private @Nullable ChunkCopier chunkCopier;
 
         private boolean closed;
 
-        private ChunkSourceChunkedInput(ChunkSource chunkSource) throws IOException {
-            byteBuf = Unpooled.buffer();
-            writer = new OutputStreamWriter(new ByteBufOutputStream(byteBuf), Charsets.UTF_8);
-            chunkCopier = chunkSource.getCopier(writer);
+        private ChunkSourceChunkedInput(ChunkSource chunkSource) {
+            this.chunkSource = chunkSource;
         }
 
         @Override
-        public @Nullable ByteBuf readNextChunk() throws IOException {
+        public @Nullable ByteBuf readNextChunk(ChannelHandlerContext ctx) throws IOException {
             if (closed) {
                 return null;
             }
+            ByteBuf byteBuf = this.byteBuf;
+            Writer writer = this.writer;
+            ChunkCopier chunkCopier = this.chunkCopier;
+            if (byteBuf == null || writer == null || chunkCopier == null) {
+                byteBuf = ctx.alloc().buffer();
+                writer = new OutputStreamWriter(new ByteBufOutputStream(byteBuf), Charsets.UTF_8);
+                chunkCopier = chunkSource.getCopier(writer);
+                this.byteBuf = byteBuf;
+                this.writer = writer;
+                this.chunkCopier = chunkCopier;
+            }
             if (byteBuf.refCnt() > 1) {
                 throw new IOException("ByteBuf is still in use by another");
             }
@@ -126,6 +140,15 @@ class ChunkedInputs {
             closed = true;
             return null;
         }
+
+        @Override
+        public void close() throws IOException {
+            if (byteBuf != null) {
+                // return to pool (once the last chunk has been written)
+                byteBuf.release();
+                byteBuf = null;
+            }
+        }
     }
 
     private static class ZipFileChunkedInput extends BaseChunkedInput {
@@ -148,7 +171,7 @@ class ChunkedInputs {
         }
 
         @Override
-        protected @Nullable ByteBuf readNextChunk() throws IOException {
+        protected @Nullable ByteBuf readNextChunk(ChannelHandlerContext ctx) throws IOException {
             if (closed) {
                 return null;
             }
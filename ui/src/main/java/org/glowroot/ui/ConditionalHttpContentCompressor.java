@@ -32,6 +32,10 @@ class ConditionalHttpContentCompressor extends HttpContentCompressor {
             // don't compress already zipped content
             return null;
         }
+        if (contentType != null && contentType.startsWith("text/event-stream")) {
+            // compression would buffer server-sent events instead of flushing each one
+            return null;
+        }
         return super.beginEncode(response, acceptEncoding);
     }
 }
@@ -499,6 +499,11 @@ class ConfigJsonService {
         abstract int maxTraceEntriesPerTransaction();
         abstract int maxStackTraceSamplesPerTransaction();
         abstract int mbeanGaugeNotFoundDelaySeconds();
+        abstract int maxAuxThreadContextsPerTransaction();
+        abstract boolean lowOverheadThreadStats();
+        abstract int traceEntryFoldThreshold();
+        abstract int transactionMemoryBudgetMb();
+        abstract int maxAsyncRootTimersPerTransaction();
         abstract String version();
 
         private AdvancedConfig convert() {
@@ -512,6 +517,12 @@ class ConfigJsonService {
                     .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                     .setMaxStackTraceSamplesPerTransaction(of(maxStackTraceSamplesPerTransaction()))
                     .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
+                    .setMaxAuxThreadContextsPerTransaction(
+                            of(maxAuxThreadContextsPerTransaction()))
+                    .setLowOverheadThreadStats(lowOverheadThreadStats())
+                    .setTraceEntryFoldThreshold(of(traceEntryFoldThreshold()))
+                    .setTransactionMemoryBudgetMb(transactionMemoryBudgetMb())
+                    .setMaxAsyncRootTimersPerTransaction(of(maxAsyncRootTimersPerTransaction()))
                     .build();
         }
 
@@ -530,6 +541,13 @@ class ConfigJsonService {
                             config.getMaxStackTraceSamplesPerTransaction().getValue())
                     .mbeanGaugeNotFoundDelaySeconds(
                             config.getMbeanGaugeNotFoundDelaySeconds().getValue())
+                    .maxAuxThreadContextsPerTransaction(
+                            config.getMaxAuxThreadContextsPerTransaction().getValue())
+                    .lowOverheadThreadStats(config.getLowOverheadThreadStats())
+                    .traceEntryFoldThreshold(config.getTraceEntryFoldThreshold().getValue())
+                    .transactionMemoryBudgetMb(config.getTransactionMemoryBudgetMb())
+                    .maxAsyncRootTimersPerTransaction(
+                            config.getMaxAsyncRootTimersPerTransaction().getValue())
                     .version(Versions.getVersion(config))
                     .build();
         }
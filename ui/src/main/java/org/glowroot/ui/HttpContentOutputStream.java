@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+
+import javax.annotation.Nullable;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+// writes into pooled buffers, sending each one as a chunk of http content once it is full
+//
+// when called from outside of the event loop (e.g. from the json service response executor), this
+// waits for the channel to be writable before sending each chunk, so that the amount of buffered
+// response is bounded by the channel's write buffer high water mark plus one chunk, regardless of
+// the total response size and regardless of how slowly the client reads the response
+class HttpContentOutputStream extends OutputStream {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    // backstop in case a writability change is missed
+    private static final long WRITABILITY_WAIT_MILLIS = 1000;
+
+    private static final AttributeKey<Object> WRITABILITY_MONITOR =
+            AttributeKey.valueOf("glowroot.writabilityMonitor");
+
+    private final ChannelHandlerContext ctx;
+    private final boolean waitForWritability;
+
+    private @Nullable ByteBuf byteBuf;
+
+    HttpContentOutputStream(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        // blocking on the event loop would deadlock since the event loop is what drains the
+        // channel's write buffer
+        waitForWritability = !ctx.executor().inEventLoop();
+    }
+
+    // called by HttpServerHandler on channelWritabilityChanged() and on channelInactive()
+    static void notifyWritabilityChanged(Channel channel) {
+        Object monitor = channel.attr(WRITABILITY_MONITOR).get();
+        if (monitor != null) {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        getByteBuf().writeByte(b);
+        sendIfFull();
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            ByteBuf byteBuf = getByteBuf();
+            int n = Math.min(remaining, byteBuf.writableBytes());
+            byteBuf.writeBytes(bytes, offset, n);
+            offset += n;
+            remaining -= n;
+            sendIfFull();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        ByteBuf byteBuf = this.byteBuf;
+        if (byteBuf == null) {
+            return;
+        }
+        if (byteBuf.isReadable()) {
+            send(byteBuf);
+        } else {
+            byteBuf.release();
+            this.byteBuf = null;
+        }
+    }
+
+    private ByteBuf getByteBuf() {
+        if (byteBuf == null) {
+            byteBuf = ctx.alloc().buffer(CHUNK_SIZE, CHUNK_SIZE);
+        }
+        return byteBuf;
+    }
+
+    private void sendIfFull() throws IOException {
+        ByteBuf byteBuf = this.byteBuf;
+        if (byteBuf != null && !byteBuf.isWritable()) {
+            send(byteBuf);
+        }
+    }
+
+    private void send(ByteBuf byteBuf) throws IOException {
+        this.byteBuf = null;
+        if (waitForWritability) {
+            try {
+                awaitWritable();
+            } catch (IOException e) {
+                byteBuf.release();
+                throw e;
+            }
+        }
+        ChannelFuture future = ctx.writeAndFlush(new DefaultHttpContent(byteBuf));
+        if (future.isDone() && !future.isSuccess()) {
+            // e.g. client has disconnected, no point in rendering the rest of the response
+            Throwable cause = future.cause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        Channel channel = ctx.channel();
+        if (channel.isWritable()) {
+            return;
+        }
+        Object monitor = getWritabilityMonitor(channel);
+        synchronized (monitor) {
+            while (!channel.isWritable()) {
+                if (!channel.isActive()) {
+                    // client has disconnected, no point in rendering the rest of the response
+                    throw new ClosedChannelException();
+                }
+                try {
+                    monitor.wait(WRITABILITY_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    // executor is being shut down
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    private static Object getWritabilityMonitor(Channel channel) {
+        Attribute<Object> attr = channel.attr(WRITABILITY_MONITOR);
+        Object monitor = attr.get();
+        if (monitor == null) {
+            Object newMonitor = new Object();
+            monitor = attr.setIfAbsent(newMonitor);
+            if (monitor == null) {
+                monitor = newMonitor;
+            }
+        }
+        return monitor;
+    }
+}
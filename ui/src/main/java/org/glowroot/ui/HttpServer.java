@@ -32,9 +32,7 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.stream.ChunkedWriteHandler;
@@ -43,6 +41,8 @@ import io.netty.util.internal.logging.Slf4JLoggerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.common.util.NativeTransport;
+
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class HttpServer {
@@ -53,6 +53,7 @@ class HttpServer {
     private final HttpServerHandler handler;
     private final EventLoopGroup bossGroup;
     private final EventLoopGroup workerGroup;
+    private final JsonServiceExecutor jsonServiceExecutor;
 
     private final String bindAddress;
 
@@ -69,14 +70,16 @@ class HttpServer {
                 .setNameFormat("Glowroot-Http-Boss-%d").build();
         ThreadFactory workerThreadFactory = new ThreadFactoryBuilder().setDaemon(true)
                 .setNameFormat("Glowroot-Http-Worker-%d").build();
-        bossGroup = new NioEventLoopGroup(1, bossThreadFactory);
-        workerGroup = new NioEventLoopGroup(numWorkerThreads, workerThreadFactory);
+        bossGroup = NativeTransport.newEventLoopGroup(1, bossThreadFactory);
+        workerGroup = NativeTransport.newEventLoopGroup(numWorkerThreads, workerThreadFactory);
+
+        jsonServiceExecutor = new JsonServiceExecutor(numWorkerThreads);
 
         final HttpServerHandler handler = new HttpServerHandler(layoutService, httpServices,
-                httpSessionManager, jsonServices);
+                httpSessionManager, jsonServices, jsonServiceExecutor);
 
         bootstrap = new ServerBootstrap();
-        bootstrap.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
+        bootstrap.group(bossGroup, workerGroup).channel(NativeTransport.getServerChannelType())
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
@@ -106,6 +109,7 @@ class HttpServer {
                 // clean up
                 bossGroup.shutdownGracefully(0, 0, SECONDS);
                 workerGroup.shutdownGracefully(0, 0, SECONDS);
+                jsonServiceExecutor.close();
                 throw f;
             }
             logger.error("error binding to port: {} (bound to port {} instead)", port,
@@ -150,6 +154,7 @@ class HttpServer {
         serverChannel.close().awaitUninterruptibly();
         bossGroup.shutdownGracefully();
         workerGroup.shutdownGracefully();
+        jsonServiceExecutor.close();
         handler.close();
         logger.debug("close(): http server stopped");
     }
@@ -26,11 +26,14 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.annotations.VisibleForTesting;
@@ -53,13 +56,18 @@ import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import org.h2.api.ErrorCode;
@@ -68,6 +76,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.Styles;
+import org.glowroot.ui.JsonServiceExecutor.ResultCallback;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -77,6 +86,7 @@ import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_TIMEOUT;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import static io.netty.handler.codec.http.HttpResponseStatus.UNAUTHORIZED;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -123,15 +133,18 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
     private final ImmutableMap<Pattern, HttpService> httpServices;
     private final ImmutableList<JsonServiceMapping> jsonServiceMappings;
     private final HttpSessionManager httpSessionManager;
+    private final JsonServiceExecutor jsonServiceExecutor;
 
     private final ThreadLocal</*@Nullable*/ Channel> currentChannel =
             new ThreadLocal</*@Nullable*/ Channel>();
 
     HttpServerHandler(LayoutService layoutService, Map<Pattern, HttpService> httpServices,
-            HttpSessionManager httpSessionManager, List<Object> jsonServices) {
+            HttpSessionManager httpSessionManager, List<Object> jsonServices,
+            JsonServiceExecutor jsonServiceExecutor) {
         this.layoutService = layoutService;
         this.httpServices = ImmutableMap.copyOf(httpServices);
         this.httpSessionManager = httpSessionManager;
+        this.jsonServiceExecutor = jsonServiceExecutor;
         List<JsonServiceMapping> jsonServiceMappings = Lists.newArrayList();
         for (Object jsonService : jsonServices) {
             for (Method method : jsonService.getClass().getDeclaredMethods()) {
@@ -164,6 +177,19 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         super.channelActive(ctx);
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        HttpContentOutputStream.notifyWritabilityChanged(ctx.channel());
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        // wake up any response that is waiting for writability, so that it can abort
+        HttpContentOutputStream.notifyWritabilityChanged(ctx.channel());
+        super.channelInactive(ctx);
+    }
+
     void close() {
         allChannels.close().awaitUninterruptibly();
     }
@@ -227,7 +253,44 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         if (keepAlive && !request.protocolVersion().isKeepAliveDefault()) {
             response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
         }
-        ChannelFuture f = ctx.write(response);
+        // flush is needed since this may be called from json service executor thread, in which case
+        // channelReadComplete() has already been called
+        ChannelFuture f = ctx.writeAndFlush(response);
+        if (!keepAlive) {
+            f.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    // the json is written directly into pooled chunks of http content, so that large responses are
+    // never fully materialized in memory
+    private void sendStreamingResponse(ChannelHandlerContext ctx, FullHttpRequest request,
+            StreamingJson streamingJson) throws IOException {
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+        if (httpSessionManager.getSessionId(request) != null
+                && httpSessionManager.getAuthenticatedUser(request) == null) {
+            httpSessionManager.deleteSessionCookie(response);
+        }
+        response.headers().add("Glowroot-Layout-Version", layoutService.getLayoutVersion());
+        response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        response.headers().add(HttpHeaderNames.CONTENT_TYPE, MediaType.JSON_UTF_8);
+        if (keepAlive && !request.protocolVersion().isKeepAliveDefault()) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        HttpServices.preventCaching(response);
+        ctx.write(response);
+        JsonGenerator jg =
+                jsonFactory.createGenerator(new HttpContentOutputStream(ctx), JsonEncoding.UTF8);
+        try {
+            streamingJson.writeJson(jg);
+        } finally {
+            // this also closes the underlying HttpContentOutputStream, which sends the final
+            // partial chunk
+            jg.close();
+        }
+        // chunked transfer encoding must be terminated by a final chunk of length zero
+        ChannelFuture f = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        HttpServices.addErrorListener(f);
         if (!keepAlive) {
             f.addListener(ChannelFutureListener.CLOSE);
         }
@@ -257,8 +320,8 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         }
         JsonServiceMatcher jsonServiceMatcher = getJsonServiceMatcher(request, path);
         if (jsonServiceMatcher != null) {
-            return handleJsonServiceMappings(request, jsonServiceMatcher.jsonServiceMapping(),
-                    jsonServiceMatcher.matcher());
+            return handleJsonServiceMappings(ctx, request,
+                    jsonServiceMatcher.jsonServiceMapping(), jsonServiceMatcher.matcher());
         }
         return handleStaticResource(path, request);
     }
@@ -328,8 +391,11 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         return null;
     }
 
-    private FullHttpResponse handleJsonServiceMappings(FullHttpRequest request,
-            JsonServiceMapping jsonServiceMapping, Matcher matcher) throws Exception {
+    // returns null if the json service was handed off to the json service executor, in which case
+    // the response is sent asynchronously
+    private @Nullable FullHttpResponse handleJsonServiceMappings(final ChannelHandlerContext ctx,
+            final FullHttpRequest request, final JsonServiceMapping jsonServiceMapping,
+            Matcher matcher) throws Exception {
         if (!httpSessionManager.hasReadAccess(request)) {
             return handleNotAuthenticated(request);
         }
@@ -337,8 +403,8 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         if (!isGetRequest && !httpSessionManager.hasAdminAccess(request)) {
             return handleNotAuthorized();
         }
-        String requestText = getRequestText(request);
-        String[] args = new String[matcher.groupCount()];
+        final String requestText = getRequestText(request);
+        final String[] args = new String[matcher.groupCount()];
         for (int i = 0; i < args.length; i++) {
             String group = matcher.group(i + 1);
             checkNotNull(group);
@@ -346,14 +412,43 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         }
         logger.debug("handleJsonRequest(): serviceMethodName={}, args={}, requestText={}",
                 jsonServiceMapping.methodName(), args, requestText);
-        Object responseObject;
+        final Channel channel = ctx.channel();
+        // only GET requests are coalesced, since other requests can have side effects
+        final String coalescingKey = isGetRequest ? request.uri() : null;
+        Callable</*@Nullable*/ Object> callable = new Callable</*@Nullable*/ Object>() {
+            @Override
+            public @Nullable Object call() throws Exception {
+                currentChannel.set(channel);
+                Object result;
+                try {
+                    result = callMethod(jsonServiceMapping.service(),
+                            jsonServiceMapping.methodName(), args, requestText);
+                } finally {
+                    currentChannel.remove();
+                }
+                if (coalescingKey != null && result instanceof FullHttpResponse) {
+                    // the response content is reference counted and its headers are added to
+                    // when it is sent, so the waiters of a coalesced request are given a snapshot
+                    // from which each builds its own response
+                    return new SharedResponse((FullHttpResponse) result);
+                }
+                return result;
+            }
+        };
+        // request is released at the end of channelRead(), so retain it until the asynchronous
+        // response has been sent
+        request.retain();
         try {
-            responseObject = callMethod(jsonServiceMapping.service(),
-                    jsonServiceMapping.methodName(), args, requestText);
-        } catch (Exception e) {
-            return newHttpResponseFromException(e);
+            jsonServiceExecutor.execute(coalescingKey, callable, channel,
+                    new JsonServiceResultCallback(ctx, request));
+        } catch (RejectedExecutionException e) {
+            request.release();
+            // log exception at debug level
+            logger.debug(e.getMessage(), e);
+            return newHttpResponseWithMessage(SERVICE_UNAVAILABLE,
+                    "Too many concurrent requests, please try again");
         }
-        return buildJsonResponse(responseObject);
+        return null;
     }
 
     private FullHttpResponse buildJsonResponse(@Nullable Object responseObject) {
@@ -570,6 +665,87 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    private class JsonServiceResultCallback implements ResultCallback {
+
+        private final ChannelHandlerContext ctx;
+        private final FullHttpRequest request;
+
+        private JsonServiceResultCallback(ChannelHandlerContext ctx, FullHttpRequest request) {
+            this.ctx = ctx;
+            this.request = request;
+        }
+
+        @Override
+        public void onSuccess(@Nullable Object result) {
+            if (result instanceof StreamingJson) {
+                try {
+                    sendStreamingResponse(ctx, request, (StreamingJson) result);
+                } catch (Exception e) {
+                    // response headers have already been sent, so too late to send error response
+                    if (HttpServices.shouldLogException(e)) {
+                        logger.error(e.getMessage(), e);
+                    }
+                    ctx.close();
+                } finally {
+                    request.release();
+                }
+                return;
+            }
+            Object responseObject = result;
+            if (responseObject instanceof SharedResponse) {
+                responseObject = ((SharedResponse) responseObject).newResponse();
+            }
+            sendResponse(buildJsonResponse(responseObject));
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            Exception e = t instanceof Exception ? (Exception) t : new Exception(t);
+            sendResponse(newHttpResponseFromException(e));
+        }
+
+        @Override
+        public void onCancel() {
+            // client has disconnected, so there is nobody to send a response to
+            request.release();
+        }
+
+        private void sendResponse(FullHttpResponse response) {
+            try {
+                sendFullResponse(ctx, request, response);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                ctx.close();
+            } finally {
+                request.release();
+            }
+        }
+    }
+
+    // immutable snapshot of a response, which is safe to read concurrently from multiple threads
+    private static class SharedResponse {
+
+        private final HttpResponseStatus status;
+        private final HttpHeaders headers;
+        private final byte[] content;
+
+        private SharedResponse(FullHttpResponse response) {
+            status = response.status();
+            headers = new DefaultHttpHeaders().set(response.headers());
+            ByteBuf buf = response.content();
+            content = new byte[buf.readableBytes()];
+            buf.getBytes(buf.readerIndex(), content);
+            response.release();
+        }
+
+        private FullHttpResponse newResponse() {
+            FullHttpResponse response =
+                    new DefaultFullHttpResponse(HTTP_1_1, status, Unpooled.wrappedBuffer(content));
+            response.headers().set(headers);
+            return response;
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface JsonServiceMatcher {
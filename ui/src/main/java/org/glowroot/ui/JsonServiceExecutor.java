@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// json services perform blocking storage queries (and potentially large profile merges), so they
+// are executed on this bounded executor instead of on the netty event loop, which would otherwise
+// stall every other connection on the same event loop (including static resource requests)
+class JsonServiceExecutor {
+
+    // bounded so that a backlog of slow requests results in quick rejection instead of unbounded
+    // growth
+    private static final int MAX_QUEUED_REQUESTS = 100;
+
+    private static final int MAX_CALLBACK_THREADS = 20;
+
+    private final ThreadPoolExecutor executor;
+
+    // results are delivered to each waiter on this executor, so that the callbacks never run on
+    // the netty event loop (e.g. when the request is already complete by the time the waiter is
+    // added, or when the request is cancelled from the channel close listener), and so that a
+    // slow client does not hold up delivery to the other waiters of a coalesced request
+    //
+    // the number of threads is bounded, but the queue is not since rejecting a callback would mean
+    // never responding to the request (the number of queued callbacks is bounded by the number of
+    // open connections)
+    private final ThreadPoolExecutor callbackExecutor;
+
+    private final ConcurrentMap<String, InFlightRequest> coalescingRequests =
+            Maps.newConcurrentMap();
+
+    JsonServiceExecutor(int numThreads) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("Glowroot-Http-Json-%d").build();
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 0, MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS), threadFactory);
+        callbackExecutor = new ThreadPoolExecutor(MAX_CALLBACK_THREADS, MAX_CALLBACK_THREADS, 60,
+                SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Http-Json-Response-%d")
+                        .build());
+        callbackExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // identical concurrent requests (same non-null coalescingKey) share a single computation
+    //
+    // the result is delivered to all of the waiters concurrently, so the callable must not return
+    // a result that is mutated or released when it is sent (e.g. a reference counted response)
+    //
+    // the computation is cancelled once all of the channels waiting on it have been closed
+    void execute(@Nullable String coalescingKey, Callable</*@Nullable*/ Object> callable,
+            Channel channel, ResultCallback callback) throws RejectedExecutionException {
+        if (coalescingKey == null) {
+            InFlightRequest inFlightRequest = new InFlightRequest(callable);
+            inFlightRequest.addWaiter();
+            executor.execute(inFlightRequest.task);
+            addWaiterCallbacks(inFlightRequest, channel, callback);
+            return;
+        }
+        while (true) {
+            InFlightRequest existing = coalescingRequests.get(coalescingKey);
+            if (existing != null) {
+                if (existing.addWaiter()) {
+                    addWaiterCallbacks(existing, channel, callback);
+                    return;
+                }
+                // all waiters of existing request have gone away and it has been cancelled
+                coalescingRequests.remove(coalescingKey, existing);
+                continue;
+            }
+            InFlightRequest inFlightRequest = new InFlightRequest(callable);
+            inFlightRequest.addWaiter();
+            if (coalescingRequests.putIfAbsent(coalescingKey, inFlightRequest) != null) {
+                // lost race, try again
+                continue;
+            }
+            removeOnCompletion(coalescingKey, inFlightRequest);
+            try {
+                executor.execute(inFlightRequest.task);
+            } catch (RejectedExecutionException e) {
+                coalescingRequests.remove(coalescingKey, inFlightRequest);
+                throw e;
+            }
+            addWaiterCallbacks(inFlightRequest, channel, callback);
+            return;
+        }
+    }
+
+    void close() {
+        // not using shutdownNow() since interrupting threads that are performing H2 or capped
+        // database file i/o closes the underlying FileChannel
+        executor.shutdown();
+        callbackExecutor.shutdown();
+    }
+
+    private void removeOnCompletion(final String coalescingKey,
+            final InFlightRequest inFlightRequest) {
+        inFlightRequest.task.addListener(new Runnable() {
+            @Override
+            public void run() {
+                coalescingRequests.remove(coalescingKey, inFlightRequest);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void addWaiterCallbacks(final InFlightRequest inFlightRequest,
+            final Channel channel, final ResultCallback callback) {
+        final ChannelFutureListener closeListener = new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (inFlightRequest.removeWaiter()) {
+                    // mayInterruptIfRunning=false since interrupting a thread that is performing
+                    // H2 or capped database file i/o closes the underlying FileChannel, which
+                    // then causes all subsequent storage reads to fail
+                    inFlightRequest.task.cancel(false);
+                }
+            }
+        };
+        channel.closeFuture().addListener(closeListener);
+        Futures.addCallback(inFlightRequest.task, new FutureCallback</*@Nullable*/ Object>() {
+            @Override
+            public void onSuccess(@Nullable Object result) {
+                channel.closeFuture().removeListener(closeListener);
+                callback.onSuccess(result);
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                channel.closeFuture().removeListener(closeListener);
+                if (t instanceof CancellationException) {
+                    callback.onCancel();
+                } else {
+                    callback.onFailure(t);
+                }
+            }
+        }, callbackExecutor);
+    }
+
+    interface ResultCallback {
+
+        void onSuccess(@Nullable Object result);
+
+        void onFailure(Throwable t);
+
+        void onCancel();
+    }
+
+    private static class InFlightRequest {
+
+        private final ListenableFutureTask</*@Nullable*/ Object> task;
+
+        @GuardedBy("this")
+        private int waiterCount;
+        @GuardedBy("this")
+        private boolean abandoned;
+
+        private InFlightRequest(Callable</*@Nullable*/ Object> callable) {
+            task = ListenableFutureTask.create(callable);
+        }
+
+        // returns false if request has already been abandoned by all prior waiters
+        private synchronized boolean addWaiter() {
+            if (abandoned) {
+                return false;
+            }
+            waiterCount++;
+            return true;
+        }
+
+        // returns true if this was the last waiter
+        private synchronized boolean removeWaiter() {
+            waiterCount--;
+            if (waiterCount == 0) {
+                abandoned = true;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -41,6 +41,7 @@ class LazyHttpServer {
     private final TraceDetailHttpService traceDetailHttpService;
     private final TraceExportHttpService traceExportHttpService;
     private final GlowrootLogHttpService glowrootLogHttpService;
+    private final LiveAggregateHttpService liveAggregateHttpService;
     private final List<Object> jsonServices;
     private final int numWorkerThreads;
 
@@ -50,7 +51,8 @@ class LazyHttpServer {
             IndexHtmlHttpService indexHtmlHttpService, LayoutHttpService layoutHttpService,
             LayoutService layoutService, TraceDetailHttpService traceDetailHttpService,
             TraceExportHttpService traceExportHttpService,
-            GlowrootLogHttpService glowrootLogHttpService, List<Object> jsonServices,
+            GlowrootLogHttpService glowrootLogHttpService,
+            LiveAggregateHttpService liveAggregateHttpService, List<Object> jsonServices,
             int numWorkerThreads) {
         this.bindAddress = bindAddress;
         this.port = port;
@@ -61,6 +63,7 @@ class LazyHttpServer {
         this.traceDetailHttpService = traceDetailHttpService;
         this.traceExportHttpService = traceExportHttpService;
         this.glowrootLogHttpService = glowrootLogHttpService;
+        this.liveAggregateHttpService = liveAggregateHttpService;
         this.jsonServices = jsonServices;
         this.numWorkerThreads = numWorkerThreads;
     }
@@ -101,6 +104,8 @@ class LazyHttpServer {
         httpServices.put(Pattern.compile("^/backend/trace/aux-thread-profile$"),
                 traceDetailHttpService);
         httpServices.put(Pattern.compile("^/backend/log$"), glowrootLogHttpService);
+        httpServices.put(Pattern.compile("^/backend/transaction/live$"),
+                liveAggregateHttpService);
         // services
         try {
             return new HttpServer(bindAddress, port, numWorkerThreads, layoutService, httpServices,
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.util.ObjectMappers;
+import org.glowroot.common.util.Styles;
+import org.glowroot.storage.repo.helper.AggregateStoreListener;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.TransactionAggregate;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+// pushes each newly stored interval of aggregates to subscribed charts as server-sent events, so
+// that charts in auto-refresh mode do not need to re-query (and re-merge) the whole chart window
+//
+// the event for a given (server rollup, transaction type, transaction name, percentiles) is only
+// computed once per interval, no matter how many charts are subscribed to it
+//
+// only aggregate charts are pushed (see charts.subscribeLive()), the trace point chart still
+// re-queries on refresh since trace points are not stored as part of the aggregate interval
+class LiveAggregateHttpService implements HttpService, AggregateStoreListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveAggregateHttpService.class);
+    private static final ObjectMapper mapper = ObjectMappers.create();
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    private final ConcurrentMap<SubscriptionKey, Set<Subscriber>> subscriptions =
+            Maps.newConcurrentMap();
+
+    // events are built (which includes decoding histograms) on this executor instead of on the
+    // thread that is storing the aggregates
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("Glowroot-Live-Aggregate-%d")
+                    .build());
+
+    @Override
+    public @Nullable FullHttpResponse handleRequest(ChannelHandlerContext ctx, HttpRequest request)
+            throws Exception {
+        String uri = request.uri();
+        int index = uri.indexOf('?');
+        String queryString = index == -1 ? "" : uri.substring(index + 1);
+        LiveAggregateRequest liveAggregateRequest =
+                QueryStrings.decode(queryString, LiveAggregateRequest.class);
+
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+        response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
+        HttpServices.preventCaching(response);
+        ChannelFuture future = ctx.writeAndFlush(response);
+        HttpServices.addErrorListener(future);
+
+        final SubscriptionKey subscriptionKey = ImmutableSubscriptionKey.of(
+                liveAggregateRequest.serverRollup(), liveAggregateRequest.transactionType());
+        final Subscriber subscriber = new Subscriber(ctx.channel(),
+                ImmutableEventKey.of(liveAggregateRequest.transactionName(),
+                        liveAggregateRequest.percentile()));
+        subscribe(subscriptionKey, subscriber);
+        ctx.channel().closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                unsubscribe(subscriptionKey, subscriber);
+            }
+        });
+        // return null to indicate streaming
+        return null;
+    }
+
+    @Override
+    public void onStore(final String serverId, final long captureTime,
+            final List<AggregatesByType> aggregatesByTypeList) {
+        if (!hasSubscribers(serverId, aggregatesByTypeList)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        publish(serverId, captureTime, aggregatesByTypeList);
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // executor has been shut down
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+
+    private void subscribe(SubscriptionKey subscriptionKey, Subscriber subscriber) {
+        while (true) {
+            Set<Subscriber> subscribers = subscriptions.get(subscriptionKey);
+            if (subscribers == null) {
+                subscribers = Sets.newConcurrentHashSet();
+                Set<Subscriber> existing = subscriptions.putIfAbsent(subscriptionKey, subscribers);
+                if (existing != null) {
+                    subscribers = existing;
+                }
+            }
+            subscribers.add(subscriber);
+            if (subscriptions.get(subscriptionKey) == subscribers) {
+                return;
+            }
+            // lost race with the last unsubscribe, which removed this (empty) set from the map
+            subscribers.remove(subscriber);
+        }
+    }
+
+    private void unsubscribe(SubscriptionKey subscriptionKey, Subscriber subscriber) {
+        Set<Subscriber> subscribers = subscriptions.get(subscriptionKey);
+        if (subscribers == null) {
+            return;
+        }
+        subscribers.remove(subscriber);
+        if (subscribers.isEmpty()) {
+            // a concurrent subscribe() that adds to this set after it has been removed from the
+            // map will notice and retry
+            subscriptions.remove(subscriptionKey, subscribers);
+        }
+    }
+
+    private boolean hasSubscribers(String serverId, List<AggregatesByType> aggregatesByTypeList) {
+        for (AggregatesByType aggregatesByType : aggregatesByTypeList) {
+            if (subscriptions.containsKey(ImmutableSubscriptionKey.of(serverId,
+                    aggregatesByType.getTransactionType()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void publish(String serverId, long captureTime,
+            List<AggregatesByType> aggregatesByTypeList) {
+        for (AggregatesByType aggregatesByType : aggregatesByTypeList) {
+            Set<Subscriber> subscribers = subscriptions.get(ImmutableSubscriptionKey.of(serverId,
+                    aggregatesByType.getTransactionType()));
+            if (subscribers == null || subscribers.isEmpty()) {
+                continue;
+            }
+            Map<String, Aggregate> transactionAggregates = null;
+            Map<EventKey, String> events = Maps.newHashMap();
+            for (Subscriber subscriber : subscribers) {
+                String event = events.get(subscriber.eventKey);
+                if (event == null) {
+                    String transactionName = subscriber.eventKey.transactionName();
+                    Aggregate aggregate;
+                    if (transactionName == null) {
+                        aggregate = aggregatesByType.getOverallAggregate();
+                    } else {
+                        if (transactionAggregates == null) {
+                            transactionAggregates = getTransactionAggregates(aggregatesByType);
+                        }
+                        aggregate = transactionAggregates.get(transactionName);
+                    }
+                    if (aggregate == null) {
+                        // no transactions with this name during the interval
+                        continue;
+                    }
+                    try {
+                        event = createEvent(captureTime, aggregate,
+                                subscriber.eventKey.percentile());
+                    } catch (IOException e) {
+                        logger.error(e.getMessage(), e);
+                        continue;
+                    }
+                    events.put(subscriber.eventKey, event);
+                }
+                subscriber.send(event);
+            }
+        }
+    }
+
+    private static Map<String, Aggregate> getTransactionAggregates(
+            AggregatesByType aggregatesByType) {
+        Map<String, Aggregate> transactionAggregates = Maps.newHashMap();
+        for (TransactionAggregate transactionAggregate : aggregatesByType
+                .getTransactionAggregateList()) {
+            transactionAggregates.put(transactionAggregate.getTransactionName(),
+                    transactionAggregate.getAggregate());
+        }
+        return transactionAggregates;
+    }
+
+    private static String createEvent(long captureTime, Aggregate aggregate,
+            List<Double> percentiles) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("event: aggregate\ndata: ");
+        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+        jg.writeStartObject();
+        jg.writeNumberField("captureTime", captureTime);
+        jg.writeNumberField("transactionCount", aggregate.getTransactionCount());
+        jg.writeNumberField("errorCount", aggregate.getErrorCount());
+        jg.writeNumberField("totalDurationNanos", aggregate.getTotalDurationNanos());
+        // stacked timer values only include time spent as a leaf node in the timer tree
+        Map<String, Double> stackedTimers = Maps.newHashMap();
+        for (Aggregate.Timer rootTimer : aggregate.getMainThreadRootTimerList()) {
+            // skip root timers
+            for (Aggregate.Timer topLevelTimer : rootTimer.getChildTimerList()) {
+                // traverse tree starting at top-level (under root) timers
+                addToStackedTimer(topLevelTimer, stackedTimers);
+            }
+        }
+        jg.writeObjectFieldStart("stackedTimers");
+        for (Map.Entry<String, Double> entry : stackedTimers.entrySet()) {
+            jg.writeNumberField(entry.getKey(), entry.getValue());
+        }
+        jg.writeEndObject();
+        if (!percentiles.isEmpty()) {
+            LazyHistogram histogram = new LazyHistogram(aggregate.getTotalNanosHistogram());
+            jg.writeArrayFieldStart("percentileValues");
+            for (double percentile : percentiles) {
+                // convert to milliseconds
+                jg.writeNumber(histogram.getValueAtPercentile(percentile)
+                        / NANOSECONDS_PER_MILLISECOND);
+            }
+            jg.writeEndArray();
+        }
+        jg.writeEndObject();
+        jg.close();
+        sb.append("\n\n");
+        return sb.toString();
+    }
+
+    private static void addToStackedTimer(Aggregate.Timer timer,
+            Map<String, Double> stackedTimers) {
+        double totalNestedNanos = 0;
+        for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+            totalNestedNanos += childTimer.getTotalNanos();
+            addToStackedTimer(childTimer, stackedTimers);
+        }
+        String timerName = timer.getName();
+        Double existing = stackedTimers.get(timerName);
+        double selfNanos = timer.getTotalNanos() - totalNestedNanos;
+        stackedTimers.put(timerName, existing == null ? selfNanos : existing + selfNanos);
+    }
+
+    private static class Subscriber {
+
+        private final Channel channel;
+        private final EventKey eventKey;
+
+        private Subscriber(Channel channel, EventKey eventKey) {
+            this.channel = channel;
+            this.eventKey = eventKey;
+        }
+
+        private void send(String event) {
+            if (!channel.isWritable()) {
+                // slow consumer, drop this interval rather than buffer unbounded, the chart will
+                // pick it up on its next full refresh
+                return;
+            }
+            ChannelFuture future = channel.writeAndFlush(
+                    new DefaultHttpContent(Unpooled.copiedBuffer(event, Charsets.UTF_8)));
+            HttpServices.addErrorListener(future);
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SubscriptionKey {
+        String serverRollup();
+        String transactionType();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface EventKey {
+        @Nullable
+        String transactionName();
+        ImmutableList<Double> percentile();
+    }
+
+    @Value.Immutable
+    interface LiveAggregateRequest {
+        String serverRollup();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        // singular because this is used in query string
+        ImmutableList<Double> percentile();
+    }
+}
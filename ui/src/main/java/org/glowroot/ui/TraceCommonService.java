@@ -16,14 +16,19 @@
 package org.glowroot.ui;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
 import com.google.common.io.CharStreams;
 import org.immutables.value.Value;
 
@@ -33,6 +38,7 @@ import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.util.Styles;
 import org.glowroot.storage.repo.TraceRepository;
 import org.glowroot.storage.repo.TraceRepository.HeaderPlus;
+import org.glowroot.ui.ChunkSource.ChunkCopier;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.Proto;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
@@ -68,40 +74,40 @@ class TraceCommonService {
     // overwritten entries will return {"overwritten":true}
     // expired (not found) trace will return {"expired":true}
     @Nullable
-    String getEntriesJson(String serverId, String traceId) throws Exception {
+    ChunkSource getEntries(String serverId, String traceId) throws Exception {
         // check active/pending traces first, and lastly stored traces to make sure that the trace
         // is not missed if it is in transition between these states
         List<Trace.Entry> entries = liveTraceRepository.getEntries(serverId, traceId);
         if (entries.isEmpty()) {
             entries = traceRepository.readEntries(serverId, traceId);
         }
-        return toJson(entries);
+        return toChunkSource(entries);
     }
 
     // overwritten profile will return {"overwritten":true}
     // expired (not found) trace will return {"expired":true}
     @Nullable
-    String getMainThreadProfileJson(String serverId, String traceId) throws Exception {
+    ChunkSource getMainThreadProfile(String serverId, String traceId) throws Exception {
         // check active/pending traces first, and lastly stored traces to make sure that the trace
         // is not missed if it is in transition between these states
         Profile profile = liveTraceRepository.getMainThreadProfile(serverId, traceId);
         if (profile == null) {
             profile = traceRepository.readMainThreadProfile(serverId, traceId);
         }
-        return toJson(profile);
+        return toChunkSource(profile);
     }
 
     // overwritten profile will return {"overwritten":true}
     // expired (not found) trace will return {"expired":true}
     @Nullable
-    String getAuxThreadProfileJson(String serverId, String traceId) throws Exception {
+    ChunkSource getAuxThreadProfile(String serverId, String traceId) throws Exception {
         // check active/pending traces first, and lastly stored traces to make sure that the trace
         // is not missed if it is in transition between these states
         Profile profile = liveTraceRepository.getAuxThreadProfile(serverId, traceId);
         if (profile == null) {
             profile = traceRepository.readAuxThreadProfile(serverId, traceId);
         }
-        return toJson(profile);
+        return toChunkSource(profile);
     }
 
     @Nullable
@@ -135,6 +141,34 @@ class TraceCommonService {
         return builder.build();
     }
 
+    // entries are rendered one top-level entry per chunk, directly into the response buffer,
+    // instead of rendering the full json into a String first
+    private static @Nullable ChunkSource toChunkSource(final List<Trace.Entry> entries) {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        return new ChunkSource() {
+            @Override
+            public ChunkCopier getCopier(Writer writer) throws IOException {
+                return new EntriesChunkCopier(entries, writer);
+            }
+        };
+    }
+
+    private static @Nullable ChunkSource toChunkSource(@Nullable Profile profile) {
+        if (profile == null) {
+            return null;
+        }
+        final MutableProfile mutableProfile = new MutableProfile();
+        mutableProfile.merge(profile);
+        return new ChunkSource() {
+            @Override
+            public ChunkCopier getCopier(Writer writer) throws IOException {
+                return new ProfileChunkCopier(mutableProfile, writer);
+            }
+        };
+    }
+
     private static @Nullable String toJson(List<Trace.Entry> entries) throws IOException {
         if (entries.isEmpty()) {
             return null;
@@ -142,8 +176,9 @@ class TraceCommonService {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
         jg.writeStartArray();
+        LocationStackResolver locationStackResolver = new LocationStackResolver();
         for (Trace.Entry entry : entries) {
-            writeJson(entry, jg);
+            writeJson(entry, jg, locationStackResolver);
         }
         jg.writeEndArray();
         jg.close();
@@ -281,10 +316,17 @@ class TraceCommonService {
         return sb.toString();
     }
 
-    private static void writeJson(Trace.Entry entry, JsonGenerator jg) throws IOException {
+    private static void writeJson(Trace.Entry entry, JsonGenerator jg,
+            LocationStackResolver locationStackResolver) throws IOException {
         jg.writeStartObject();
         jg.writeNumberField("startOffsetNanos", entry.getStartOffsetNanos());
         jg.writeNumberField("durationNanos", entry.getDurationNanos());
+        if (entry.getRepeatCount() != 0) {
+            jg.writeNumberField("repeatCount", entry.getRepeatCount());
+            jg.writeNumberField("repeatMaxDurationNanos", entry.getRepeatMaxDurationNanos());
+            jg.writeNumberField("repeatLastStartOffsetNanos",
+                    entry.getRepeatLastStartOffsetNanos());
+        }
         if (entry.getActive()) {
             jg.writeBooleanField("active", true);
         }
@@ -294,8 +336,9 @@ class TraceCommonService {
             jg.writeFieldName("detail");
             writeDetailEntries(detailEntries, jg);
         }
+        // must be resolved before writing child entries, see LocationStackResolver
         List<Proto.StackTraceElement> locationStackTraceElements =
-                entry.getLocationStackTraceElementList();
+                locationStackResolver.resolve(entry);
         if (!locationStackTraceElements.isEmpty()) {
             jg.writeArrayFieldStart("locationStackTraceElements");
             for (Proto.StackTraceElement stackTraceElement : locationStackTraceElements) {
@@ -311,7 +354,7 @@ class TraceCommonService {
         if (!childEntries.isEmpty()) {
             jg.writeArrayFieldStart("childEntries");
             for (Trace.Entry childEntry : childEntries) {
-                writeJson(childEntry, jg);
+                writeJson(childEntry, jg, locationStackResolver);
             }
             jg.writeEndArray();
         }
@@ -460,4 +503,95 @@ class TraceCommonService {
         @Nullable
         String auxThreadProfileJson();
     }
+
+    // the profile is rendered a bounded number of nodes per chunk, so that a large profile is not
+    // buffered in full
+    private static class ProfileChunkCopier implements ChunkCopier {
+
+        private static final int NODES_PER_CHUNK = 100;
+
+        private final JsonGenerator jg;
+        private final MutableProfile.IncrementalJsonWriter profileWriter;
+
+        private boolean closed;
+
+        private ProfileChunkCopier(MutableProfile profile, Writer writer) throws IOException {
+            jg = jsonFactory.createGenerator(writer);
+            profileWriter = profile.newIncrementalJsonWriter(jg);
+        }
+
+        @Override
+        public boolean copyNext() throws IOException {
+            if (closed) {
+                return false;
+            }
+            closed = !profileWriter.writeNext(NODES_PER_CHUNK);
+            // flush instead of close so that the underlying writer is not closed
+            jg.flush();
+            return true;
+        }
+    }
+
+    private static class EntriesChunkCopier implements ChunkCopier {
+
+        private final Iterator<Trace.Entry> entries;
+        private final JsonGenerator jg;
+        private final LocationStackResolver locationStackResolver = new LocationStackResolver();
+
+        private boolean started;
+        private boolean closed;
+
+        private EntriesChunkCopier(List<Trace.Entry> entries, Writer writer) throws IOException {
+            this.entries = entries.iterator();
+            jg = jsonFactory.createGenerator(writer);
+        }
+
+        @Override
+        public boolean copyNext() throws IOException {
+            if (closed) {
+                return false;
+            }
+            if (!started) {
+                jg.writeStartArray();
+                started = true;
+            }
+            if (entries.hasNext()) {
+                writeJson(entries.next(), jg, locationStackResolver);
+            } else {
+                jg.writeEndArray();
+                closed = true;
+            }
+            // flush instead of close so that the underlying writer is not closed
+            jg.flush();
+            return true;
+        }
+    }
+
+    // resolves location_stack_entry_index references (see Trace.proto), this relies on entries
+    // being resolved in pre-order traversal of the entry tree
+    private static class LocationStackResolver {
+
+        private final Map<Integer, List<Proto.StackTraceElement>> locationStacks =
+                Maps.newHashMap();
+
+        private int entryIndex;
+
+        private List<Proto.StackTraceElement> resolve(Trace.Entry entry) {
+            int currEntryIndex = ++entryIndex;
+            List<Proto.StackTraceElement> locationStackTraceElements =
+                    entry.getLocationStackTraceElementList();
+            if (!locationStackTraceElements.isEmpty()) {
+                locationStacks.put(currEntryIndex, locationStackTraceElements);
+                return locationStackTraceElements;
+            }
+            int locationStackEntryIndex = entry.getLocationStackEntryIndex();
+            if (locationStackEntryIndex == 0) {
+                return ImmutableList.of();
+            }
+            List<Proto.StackTraceElement> locationStack =
+                    locationStacks.get(locationStackEntryIndex);
+            return locationStack == null ? ImmutableList.<Proto.StackTraceElement>of()
+                    : locationStack;
+        }
+    }
 }
@@ -76,7 +76,6 @@ class TraceDetailHttpService implements HttpService {
         }
         HttpServices.preventCaching(response);
         ctx.write(response);
-        // TODO no more point in chunking here
         ChannelFuture future = ctx.write(ChunkedInputs.from(detail));
         HttpServices.addErrorListener(future);
         if (!keepAlive) {
@@ -89,27 +88,15 @@ class TraceDetailHttpService implements HttpService {
     private @Nullable ChunkSource getDetailChunkSource(String traceComponent, String serverName,
             String traceId) throws Exception {
         if (traceComponent.equals("entries")) {
-            String entriesJson = traceCommonService.getEntriesJson(serverName, traceId);
-            if (entriesJson == null) {
-                // this includes trace was found but the trace had no trace entries
-                // caller should check trace.entry_count
-                return null;
-            }
-            return ChunkSource.wrap(entriesJson);
+            // this returns null if trace was found but the trace had no trace entries
+            // caller should check trace.entry_count
+            return traceCommonService.getEntries(serverName, traceId);
         }
         if (traceComponent.equals("main-thread-profile")) {
-            String profileJson = traceCommonService.getMainThreadProfileJson(serverName, traceId);
-            if (profileJson == null) {
-                return null;
-            }
-            return ChunkSource.wrap(profileJson);
+            return traceCommonService.getMainThreadProfile(serverName, traceId);
         }
         if (traceComponent.equals("aux-thread-profile")) {
-            String profileJson = traceCommonService.getAuxThreadProfileJson(serverName, traceId);
-            if (profileJson == null) {
-                return null;
-            }
-            return ChunkSource.wrap(profileJson);
+            return traceCommonService.getAuxThreadProfile(serverName, traceId);
         }
         throw new IllegalStateException("Unexpected trace component: " + traceComponent);
     }
@@ -37,10 +37,13 @@ import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.util.Clock;
 import org.glowroot.storage.repo.ConfigRepository;
+import org.glowroot.storage.repo.ImmutableTracePointBuckets;
 import org.glowroot.storage.repo.ImmutableTraceQuery;
 import org.glowroot.storage.repo.Result;
 import org.glowroot.storage.repo.TraceRepository;
+import org.glowroot.storage.repo.TraceRepository.TracePointBuckets;
 import org.glowroot.storage.repo.TraceRepository.TraceQuery;
+import org.glowroot.storage.repo.helper.TracePointDownsampler;
 
 import static java.util.concurrent.TimeUnit.HOURS;
 
@@ -105,7 +108,12 @@ class TracePointJsonService {
                 .attributeValueComparator(request.attributeValueComparator())
                 .attributeValue(request.attributeValue())
                 .build();
-        return new Handler(traceKind, query, filter, request.limit()).handle();
+        TracePointBuckets buckets = null;
+        if (request.timeBuckets() > 0 && request.durationBuckets() > 0) {
+            buckets = ImmutableTracePointBuckets.of(request.timeBuckets(),
+                    request.durationBuckets());
+        }
+        return new Handler(traceKind, query, filter, request.limit(), buckets).handle();
     }
 
     private class Handler {
@@ -114,12 +122,16 @@ class TracePointJsonService {
         private final TraceQuery query;
         private final TracePointFilter filter;
         private final int limit;
+        // non-null when downsampling
+        private final @Nullable TracePointBuckets buckets;
 
-        private Handler(TraceKind traceKind, TraceQuery query, TracePointFilter filter, int limit) {
+        private Handler(TraceKind traceKind, TraceQuery query, TracePointFilter filter, int limit,
+                @Nullable TracePointBuckets buckets) {
             this.traceKind = traceKind;
             this.query = query;
             this.filter = filter;
             this.limit = limit;
+            this.buckets = buckets;
         }
 
         private String handle() throws Exception {
@@ -167,6 +179,9 @@ class TracePointJsonService {
             } else {
                 matchingPendingPoints = ImmutableList.of();
             }
+            if (buckets != null) {
+                return getDownsampledPoints(matchingPendingPoints, buckets);
+            }
             Result<TracePoint> queryResult;
             if (traceKind == TraceKind.SLOW) {
                 queryResult = traceRepository.readSlowPoints(query, filter, limit);
@@ -182,6 +197,39 @@ class TracePointJsonService {
             return new Result<TracePoint>(orderedPoints, queryResult.moreAvailable());
         }
 
+        private Result<TracePoint> getDownsampledPoints(List<TracePoint> matchingPendingPoints,
+                TracePointBuckets buckets) throws Exception {
+            List<TracePoint> points;
+            if (traceKind == TraceKind.SLOW) {
+                points = traceRepository.readDownsampledSlowPoints(query, filter, buckets);
+            } else {
+                // TraceKind.ERROR
+                points = traceRepository.readDownsampledErrorPoints(query, filter, buckets);
+            }
+            // pending points are run through the same buckets, which also takes care of removing
+            // duplicates (preferring the longer duration)
+            //
+            // the longest point from the repository is always retained by the downsampling, so the
+            // duration range is still known here
+            long maxDurationNanos = 0;
+            for (TracePoint point : points) {
+                maxDurationNanos = Math.max(maxDurationNanos, point.durationNanos());
+            }
+            for (TracePoint pendingPoint : matchingPendingPoints) {
+                maxDurationNanos = Math.max(maxDurationNanos, pendingPoint.durationNanos());
+            }
+            TracePointDownsampler downsampler = new TracePointDownsampler(query.from(), query.to(),
+                    buckets, filter.durationNanosLow(), maxDurationNanos);
+            for (TracePoint point : points) {
+                downsampler.add(point);
+            }
+            for (TracePoint pendingPoint : matchingPendingPoints) {
+                downsampler.add(pendingPoint);
+            }
+            // downsampled points are never limited
+            return new Result<TracePoint>(downsampler.getPoints(), false);
+        }
+
         private void insertIntoOrderedPoints(TracePoint pendingPoint,
                 List<TracePoint> orderedPoints) {
             int duplicateIndex = -1;
@@ -267,6 +315,9 @@ class TracePointJsonService {
             if (expired) {
                 jg.writeBooleanField("expired", true);
             }
+            if (buckets != null) {
+                jg.writeBooleanField("downsampled", true);
+            }
             jg.writeArrayFieldStart("traceAttributeNames");
             for (String traceAttributeName : traceAttributeNames) {
                 jg.writeString(traceAttributeName);
@@ -307,5 +358,15 @@ class TracePointJsonService {
         public abstract @Nullable String attributeValue();
 
         public abstract int limit();
+
+        // downsampling is only performed when both of these are positive
+        @Value.Default
+        public int timeBuckets() {
+            return 0;
+        }
+        @Value.Default
+        public int durationBuckets() {
+            return 0;
+        }
     }
 }
@@ -17,11 +17,21 @@ package org.glowroot.ui;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Table;
+import org.immutables.value.Value;
 
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.QueryCollector;
+import org.glowroot.common.util.Styles;
 import org.glowroot.storage.config.ConfigDefaults;
 import org.glowroot.storage.repo.AggregateRepository;
 import org.glowroot.storage.repo.AggregateRepository.OverallQuery;
@@ -49,13 +59,26 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 class TransactionCommonService {
 
+    // merged profiles can be large, so only a few are retained, and only for long enough to serve
+    // the follow-up requests made while drilling down into a flame graph
+    private static final int PROFILE_CACHE_MAX_SIZE = 10;
+    private static final long PROFILE_CACHE_EXPIRATION_SECONDS = 60;
+
     private final AggregateRepository aggregateRepository;
     private final ConfigRepository configRepository;
+    private final AggregateQueryExecutor queryExecutor;
+
+    // cached profiles are shared across requests, so must not be modified after they are cached
+    private final Cache<ProfileCacheKey, MutableProfile> profileCache = CacheBuilder.newBuilder()
+            .maximumSize(PROFILE_CACHE_MAX_SIZE)
+            .expireAfterWrite(PROFILE_CACHE_EXPIRATION_SECONDS, TimeUnit.SECONDS)
+            .build();
 
     TransactionCommonService(AggregateRepository aggregateRepository,
-            ConfigRepository configRepository) {
+            ConfigRepository configRepository, AggregateQueryExecutor queryExecutor) {
         this.aggregateRepository = aggregateRepository;
         this.configRepository = configRepository;
+        this.queryExecutor = queryExecutor;
     }
 
     // query.from() is non-inclusive
@@ -70,75 +93,167 @@ class TransactionCommonService {
     }
 
     // query.from() is INCLUSIVE
-    List<OverviewAggregate> getOverviewAggregates(TransactionQuery query) throws Exception {
-        List<OverviewAggregate> aggregates = aggregateRepository.readOverviewAggregates(query);
+    List<OverviewAggregate> getOverviewAggregates(final TransactionQuery query) throws Exception {
         if (query.rollupLevel() == 0) {
-            return aggregates;
+            return aggregateRepository.readOverviewAggregates(query);
         }
-        long nonRolledUpFrom = query.from();
-        if (!aggregates.isEmpty()) {
-            long lastRolledUpTime = aggregates.get(aggregates.size() - 1).captureTime();
-            nonRolledUpFrom = Math.max(nonRolledUpFrom, lastRolledUpTime + 1);
+        long deadline = queryExecutor.newDeadline();
+        final TransactionQuery speculativeNonRolledUpQuery = getSpeculativeNonRolledUpQuery(query);
+        List<Future<List<OverviewAggregate>>> futures = Lists.newArrayList();
+        try {
+            futures.add(queryExecutor.submit(new Callable<List<OverviewAggregate>>() {
+                @Override
+                public List<OverviewAggregate> call() throws Exception {
+                    return aggregateRepository.readOverviewAggregates(query);
+                }
+            }));
+            futures.add(queryExecutor.submit(new Callable<List<OverviewAggregate>>() {
+                @Override
+                public List<OverviewAggregate> call() throws Exception {
+                    return aggregateRepository
+                            .readOverviewAggregates(speculativeNonRolledUpQuery);
+                }
+            }));
+            List<OverviewAggregate> aggregates = queryExecutor.get(futures.get(0), deadline);
+            long nonRolledUpFrom = query.from();
+            if (!aggregates.isEmpty()) {
+                long lastRolledUpTime = aggregates.get(aggregates.size() - 1).captureTime();
+                nonRolledUpFrom = Math.max(nonRolledUpFrom, lastRolledUpTime + 1);
+            }
+            List<OverviewAggregate> orderedNonRolledUpAggregates = Lists.newArrayList();
+            if (nonRolledUpFrom < speculativeNonRolledUpQuery.from()) {
+                // rollup is further behind than anticipated
+                queryExecutor.checkDeadline(deadline);
+                orderedNonRolledUpAggregates.addAll(aggregateRepository
+                        .readOverviewAggregates(ImmutableTransactionQuery.builder()
+                                .copyFrom(query)
+                                .from(nonRolledUpFrom)
+                                .to(speculativeNonRolledUpQuery.from() - 1)
+                                .rollupLevel(0)
+                                .build()));
+            }
+            for (OverviewAggregate aggregate : queryExecutor.get(futures.get(1), deadline)) {
+                if (aggregate.captureTime() >= nonRolledUpFrom) {
+                    orderedNonRolledUpAggregates.add(aggregate);
+                }
+            }
+            aggregates = Lists.newArrayList(aggregates);
+            aggregates.addAll(
+                    rollUpOverviewAggregates(orderedNonRolledUpAggregates, query.rollupLevel()));
+            return aggregates;
+        } finally {
+            AggregateQueryExecutor.cancel(futures);
         }
-        List<OverviewAggregate> orderedNonRolledUpAggregates = Lists.newArrayList();
-        orderedNonRolledUpAggregates.addAll(
-                aggregateRepository.readOverviewAggregates(ImmutableTransactionQuery.builder()
-                        .copyFrom(query)
-                        .from(nonRolledUpFrom)
-                        .rollupLevel(0)
-                        .build()));
-        aggregates = Lists.newArrayList(aggregates);
-        aggregates.addAll(
-                rollUpOverviewAggregates(orderedNonRolledUpAggregates, query.rollupLevel()));
-        return aggregates;
     }
 
     // query.from() is INCLUSIVE
-    List<PercentileAggregate> getPercentileAggregates(TransactionQuery query) throws Exception {
-        List<PercentileAggregate> aggregates = aggregateRepository.readPercentileAggregates(query);
+    List<PercentileAggregate> getPercentileAggregates(final TransactionQuery query)
+            throws Exception {
         if (query.rollupLevel() == 0) {
-            return aggregates;
+            return aggregateRepository.readPercentileAggregates(query);
         }
-        long nonRolledUpFrom = query.from();
-        if (!aggregates.isEmpty()) {
-            long lastRolledUpTime = aggregates.get(aggregates.size() - 1).captureTime();
-            nonRolledUpFrom = Math.max(nonRolledUpFrom, lastRolledUpTime + 1);
+        long deadline = queryExecutor.newDeadline();
+        final TransactionQuery speculativeNonRolledUpQuery = getSpeculativeNonRolledUpQuery(query);
+        List<Future<List<PercentileAggregate>>> futures = Lists.newArrayList();
+        try {
+            futures.add(queryExecutor.submit(new Callable<List<PercentileAggregate>>() {
+                @Override
+                public List<PercentileAggregate> call() throws Exception {
+                    return aggregateRepository.readPercentileAggregates(query);
+                }
+            }));
+            futures.add(queryExecutor.submit(new Callable<List<PercentileAggregate>>() {
+                @Override
+                public List<PercentileAggregate> call() throws Exception {
+                    return aggregateRepository
+                            .readPercentileAggregates(speculativeNonRolledUpQuery);
+                }
+            }));
+            List<PercentileAggregate> aggregates = queryExecutor.get(futures.get(0), deadline);
+            long nonRolledUpFrom = query.from();
+            if (!aggregates.isEmpty()) {
+                long lastRolledUpTime = aggregates.get(aggregates.size() - 1).captureTime();
+                nonRolledUpFrom = Math.max(nonRolledUpFrom, lastRolledUpTime + 1);
+            }
+            List<PercentileAggregate> orderedNonRolledUpAggregates = Lists.newArrayList();
+            if (nonRolledUpFrom < speculativeNonRolledUpQuery.from()) {
+                // rollup is further behind than anticipated
+                queryExecutor.checkDeadline(deadline);
+                orderedNonRolledUpAggregates.addAll(aggregateRepository
+                        .readPercentileAggregates(ImmutableTransactionQuery.builder()
+                                .copyFrom(query)
+                                .from(nonRolledUpFrom)
+                                .to(speculativeNonRolledUpQuery.from() - 1)
+                                .rollupLevel(0)
+                                .build()));
+            }
+            for (PercentileAggregate aggregate : queryExecutor.get(futures.get(1), deadline)) {
+                if (aggregate.captureTime() >= nonRolledUpFrom) {
+                    orderedNonRolledUpAggregates.add(aggregate);
+                }
+            }
+            aggregates = Lists.newArrayList(aggregates);
+            aggregates.addAll(
+                    rollUpPercentileAggregates(orderedNonRolledUpAggregates, query.rollupLevel()));
+            return aggregates;
+        } finally {
+            AggregateQueryExecutor.cancel(futures);
         }
-        List<PercentileAggregate> orderedNonRolledUpAggregates = Lists.newArrayList();
-        orderedNonRolledUpAggregates.addAll(
-                aggregateRepository.readPercentileAggregates(ImmutableTransactionQuery.builder()
-                        .copyFrom(query)
-                        .from(nonRolledUpFrom)
-                        .rollupLevel(0)
-                        .build()));
-        aggregates = Lists.newArrayList(aggregates);
-        aggregates.addAll(
-                rollUpPercentileAggregates(orderedNonRolledUpAggregates, query.rollupLevel()));
-        return aggregates;
     }
 
     // query.from() is INCLUSIVE
-    List<ThroughputAggregate> getThroughputAggregates(TransactionQuery query) throws Exception {
-        List<ThroughputAggregate> aggregates = aggregateRepository.readThroughputAggregates(query);
+    List<ThroughputAggregate> getThroughputAggregates(final TransactionQuery query)
+            throws Exception {
         if (query.rollupLevel() == 0) {
-            return aggregates;
+            return aggregateRepository.readThroughputAggregates(query);
         }
-        long nonRolledUpFrom = query.from();
-        if (!aggregates.isEmpty()) {
-            long lastRolledUpTime = aggregates.get(aggregates.size() - 1).captureTime();
-            nonRolledUpFrom = Math.max(nonRolledUpFrom, lastRolledUpTime + 1);
+        long deadline = queryExecutor.newDeadline();
+        final TransactionQuery speculativeNonRolledUpQuery = getSpeculativeNonRolledUpQuery(query);
+        List<Future<List<ThroughputAggregate>>> futures = Lists.newArrayList();
+        try {
+            futures.add(queryExecutor.submit(new Callable<List<ThroughputAggregate>>() {
+                @Override
+                public List<ThroughputAggregate> call() throws Exception {
+                    return aggregateRepository.readThroughputAggregates(query);
+                }
+            }));
+            futures.add(queryExecutor.submit(new Callable<List<ThroughputAggregate>>() {
+                @Override
+                public List<ThroughputAggregate> call() throws Exception {
+                    return aggregateRepository
+                            .readThroughputAggregates(speculativeNonRolledUpQuery);
+                }
+            }));
+            List<ThroughputAggregate> aggregates = queryExecutor.get(futures.get(0), deadline);
+            long nonRolledUpFrom = query.from();
+            if (!aggregates.isEmpty()) {
+                long lastRolledUpTime = aggregates.get(aggregates.size() - 1).captureTime();
+                nonRolledUpFrom = Math.max(nonRolledUpFrom, lastRolledUpTime + 1);
+            }
+            List<ThroughputAggregate> orderedNonRolledUpAggregates = Lists.newArrayList();
+            if (nonRolledUpFrom < speculativeNonRolledUpQuery.from()) {
+                // rollup is further behind than anticipated
+                queryExecutor.checkDeadline(deadline);
+                orderedNonRolledUpAggregates.addAll(aggregateRepository
+                        .readThroughputAggregates(ImmutableTransactionQuery.builder()
+                                .copyFrom(query)
+                                .from(nonRolledUpFrom)
+                                .to(speculativeNonRolledUpQuery.from() - 1)
+                                .rollupLevel(0)
+                                .build()));
+            }
+            for (ThroughputAggregate aggregate : queryExecutor.get(futures.get(1), deadline)) {
+                if (aggregate.captureTime() >= nonRolledUpFrom) {
+                    orderedNonRolledUpAggregates.add(aggregate);
+                }
+            }
+            aggregates = Lists.newArrayList(aggregates);
+            aggregates.addAll(
+                    rollUpThroughputAggregates(orderedNonRolledUpAggregates, query.rollupLevel()));
+            return aggregates;
+        } finally {
+            AggregateQueryExecutor.cancel(futures);
         }
-        List<ThroughputAggregate> orderedNonRolledUpAggregates = Lists.newArrayList();
-        orderedNonRolledUpAggregates.addAll(
-                aggregateRepository.readThroughputAggregates(ImmutableTransactionQuery.builder()
-                        .copyFrom(query)
-                        .from(nonRolledUpFrom)
-                        .rollupLevel(0)
-                        .build()));
-        aggregates = Lists.newArrayList(aggregates);
-        aggregates.addAll(
-                rollUpThroughputAggregates(orderedNonRolledUpAggregates, query.rollupLevel()));
-        return aggregates;
     }
 
     // query.from() is non-inclusive
@@ -158,6 +273,21 @@ class TransactionCommonService {
         return profile;
     }
 
+    // query.from() is non-inclusive
+    //
+    // the returned profile is shared with other requests and must not be modified (in particular,
+    // it has not been truncated, see MutableProfile.writeFlameGraphSubtreeJson())
+    MutableProfile getCachedMergedProfile(final TransactionQuery query, final boolean auxiliary,
+            final List<String> includes, final List<String> excludes) throws Exception {
+        ProfileCacheKey key = ImmutableProfileCacheKey.of(query, auxiliary, includes, excludes);
+        return profileCache.get(key, new Callable<MutableProfile>() {
+            @Override
+            public MutableProfile call() throws Exception {
+                return getMergedProfile(query, auxiliary, includes, excludes, 0);
+            }
+        });
+    }
+
     boolean hasAuxThreadProfile(TransactionQuery query) throws Exception {
         for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
             TransactionQuery revisedQuery = ImmutableTransactionQuery.builder()
@@ -224,53 +354,172 @@ class TransactionCommonService {
                 break;
             }
         }
-        return mergedTransactionSummaries.getResult(sortOrder, limit);
+        Result<TransactionSummary> result = mergedTransactionSummaries.getResult(sortOrder, limit);
+        List<String> transactionNames = Lists.newArrayList();
+        for (TransactionSummary transactionSummary : result.records()) {
+            transactionNames.add(transactionSummary.transactionName());
+        }
+        // summaries that were merged from truncated top transaction lists are only exact once the
+        // intervals where they are missing from the top transaction list are also merged in
+        Table<Integer, Long, List<String>> missingTransactionNames =
+                mergedTransactionSummaries.getMissingTransactionNames(transactionNames);
+        if (missingTransactionNames.isEmpty()) {
+            return result;
+        }
+        // one query per rollup level, covering all of its intervals
+        for (Map.Entry<Integer, Map<Long, List<String>>> entry : missingTransactionNames.rowMap()
+                .entrySet()) {
+            OverallQuery levelQuery = ImmutableOverallQuery.builder()
+                    .copyFrom(query)
+                    .rollupLevel(entry.getKey())
+                    .build();
+            aggregateRepository.mergeInTransactionSummaries(mergedTransactionSummaries,
+                    levelQuery, entry.getValue());
+        }
+        // the selected transactions are not re-selected, since their summaries can move down in
+        // the sort order (e.g. average time can decrease) and any newly selected transaction would
+        // not be exact, so only the (now exact) selected summaries are re-sorted
+        return mergedTransactionSummaries.getResult(sortOrder, transactionNames,
+                result.moreAvailable());
     }
 
-    private MutableProfile getMergedProfile(TransactionQuery query, boolean auxiliary)
+    private MutableProfile getMergedProfile(TransactionQuery query, final boolean auxiliary)
             throws Exception {
-        long revisedFrom = query.from();
-        ProfileCollector mergedProfile = new ProfileCollector();
-        for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
-            TransactionQuery revisedQuery = ImmutableTransactionQuery.builder()
-                    .copyFrom(query)
-                    .from(revisedFrom)
-                    .rollupLevel(rollupLevel)
-                    .build();
-            if (auxiliary) {
-                aggregateRepository.mergeInAuxThreadProfiles(mergedProfile, revisedQuery);
-            } else {
-                aggregateRepository.mergeInMainThreadProfiles(mergedProfile, revisedQuery);
-            }
-            long lastRolledUpTime = mergedProfile.getLastCaptureTime();
-            revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
-            if (revisedFrom > query.to()) {
-                break;
-            }
+        List<ProfileCollector> collectors =
+                readRollupLevels(query, new RollupLevelReader<ProfileCollector>() {
+                    @Override
+                    public ProfileCollector read(TransactionQuery revisedQuery) throws Exception {
+                        ProfileCollector collector = new ProfileCollector();
+                        if (auxiliary) {
+                            aggregateRepository.mergeInAuxThreadProfiles(collector, revisedQuery);
+                        } else {
+                            aggregateRepository.mergeInMainThreadProfiles(collector,
+                                    revisedQuery);
+                        }
+                        return collector;
+                    }
+                    @Override
+                    public long getLastCaptureTime(ProfileCollector collector) {
+                        return collector.getLastCaptureTime();
+                    }
+                });
+        MutableProfile mergedProfile = collectors.get(0).getProfile();
+        for (int i = 1; i < collectors.size(); i++) {
+            mergedProfile.merge(collectors.get(i).getProfile());
         }
-        return mergedProfile.getProfile();
+        return mergedProfile;
     }
 
     private List<Aggregate.QueriesByType> getMergedQueries(TransactionQuery query,
-            int maxAggregateQueriesPerQueryType) throws Exception {
-        long revisedFrom = query.from();
-        QueryCollector mergedQueries = new QueryCollector(maxAggregateQueriesPerQueryType, 0);
-        for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
-            TransactionQuery revisedQuery = ImmutableTransactionQuery.builder()
-                    .copyFrom(query)
-                    .from(revisedFrom)
-                    .rollupLevel(rollupLevel)
-                    .build();
-            aggregateRepository.mergeInQueries(mergedQueries, revisedQuery);
-            long lastRolledUpTime = mergedQueries.getLastCaptureTime();
-            revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
-            if (revisedFrom > query.to()) {
-                break;
-            }
+            final int maxAggregateQueriesPerQueryType) throws Exception {
+        List<QueryCollector> collectors =
+                readRollupLevels(query, new RollupLevelReader<QueryCollector>() {
+                    @Override
+                    public QueryCollector read(TransactionQuery revisedQuery) throws Exception {
+                        QueryCollector collector =
+                                new QueryCollector(maxAggregateQueriesPerQueryType, 0);
+                        aggregateRepository.mergeInQueries(collector, revisedQuery);
+                        return collector;
+                    }
+                    @Override
+                    public long getLastCaptureTime(QueryCollector collector) {
+                        return collector.getLastCaptureTime();
+                    }
+                });
+        QueryCollector mergedQueries = collectors.get(0);
+        for (int i = 1; i < collectors.size(); i++) {
+            mergedQueries.mergeQueries(collectors.get(i).toProto(false));
         }
         return mergedQueries.toProto(true);
     }
 
+    // query.from() is non-inclusive
+    //
+    // each rollup level is read starting after the last capture time read from the rollup level
+    // above it, so in order to read the rollup levels concurrently, the start of each rollup level
+    // is anticipated based on the rollup level above it being fully rolled up, and if that turns
+    // out not to be the case, the remaining rollup levels are read sequentially
+    private <C> List<C> readRollupLevels(TransactionQuery query,
+            final RollupLevelReader<C> reader) throws Exception {
+        long deadline = queryExecutor.newDeadline();
+        List<TransactionQuery> speculativeQueries = Lists.newArrayList();
+        List<Future<C>> futures = Lists.newArrayList();
+        try {
+            long speculativeFrom = query.from();
+            for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
+                final TransactionQuery speculativeQuery = ImmutableTransactionQuery.builder()
+                        .copyFrom(query)
+                        .from(speculativeFrom)
+                        .rollupLevel(rollupLevel)
+                        .build();
+                speculativeQueries.add(speculativeQuery);
+                futures.add(queryExecutor.submit(new Callable<C>() {
+                    @Override
+                    public C call() throws Exception {
+                        return reader.read(speculativeQuery);
+                    }
+                }));
+                if (rollupLevel > 0) {
+                    speculativeFrom = Math.max(speculativeFrom,
+                            getExpectedLastRolledUpTime(query.to(), rollupLevel) + 1);
+                }
+                if (speculativeFrom > query.to()) {
+                    break;
+                }
+            }
+            List<C> collectors = Lists.newArrayList();
+            long revisedFrom = query.from();
+            int rollupLevel = query.rollupLevel();
+            for (int i = 0; i < futures.size(); i++) {
+                if (speculativeQueries.get(i).from() != revisedFrom) {
+                    // rollup is further behind than anticipated
+                    break;
+                }
+                C collector = queryExecutor.get(futures.get(i), deadline);
+                collectors.add(collector);
+                revisedFrom = Math.max(revisedFrom, reader.getLastCaptureTime(collector) + 1);
+                rollupLevel--;
+                if (revisedFrom > query.to()) {
+                    return collectors;
+                }
+            }
+            for (; rollupLevel >= 0; rollupLevel--) {
+                queryExecutor.checkDeadline(deadline);
+                C collector = reader.read(ImmutableTransactionQuery.builder()
+                        .copyFrom(query)
+                        .from(revisedFrom)
+                        .rollupLevel(rollupLevel)
+                        .build());
+                collectors.add(collector);
+                revisedFrom = Math.max(revisedFrom, reader.getLastCaptureTime(collector) + 1);
+                if (revisedFrom > query.to()) {
+                    break;
+                }
+            }
+            return collectors;
+        } finally {
+            AggregateQueryExecutor.cancel(futures);
+        }
+    }
+
+    // query.from() is INCLUSIVE
+    private TransactionQuery getSpeculativeNonRolledUpQuery(TransactionQuery query) {
+        long expectedLastRolledUpTime =
+                getExpectedLastRolledUpTime(query.to(), query.rollupLevel());
+        return ImmutableTransactionQuery.builder()
+                .copyFrom(query)
+                .from(Math.max(query.from(), expectedLastRolledUpTime + 1))
+                .rollupLevel(0)
+                .build();
+    }
+
+    // returns the capture time of the last rolled up aggregate at or before captureTime, assuming
+    // that the rollup level is up to date
+    private long getExpectedLastRolledUpTime(long captureTime, int rollupLevel) {
+        long intervalMillis = configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        return captureTime - captureTime % intervalMillis;
+    }
+
     private List<OverviewAggregate> rollUpOverviewAggregates(
             List<OverviewAggregate> orderedNonRolledUpOverviewAggregates, int rollupLevel)
                     throws Exception {
@@ -378,4 +627,18 @@ class TransactionCommonService {
             return ConfigDefaults.MAX_AGGREGATE_QUERIES_PER_QUERY_TYPE;
         }
     }
+
+    private interface RollupLevelReader<C> {
+        C read(TransactionQuery revisedQuery) throws Exception;
+        long getLastCaptureTime(C collector);
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface ProfileCacheKey {
+        TransactionQuery query();
+        boolean auxiliary();
+        ImmutableList<String> includes();
+        ImmutableList<String> excludes();
+    }
 }
@@ -179,36 +179,43 @@ class TransactionJsonService {
     }
 
     @GET("/backend/transaction/profile")
-    String getProfile(String queryString) throws Exception {
+    StreamingJson getProfile(String queryString) throws Exception {
         TransactionProfileRequest request =
                 QueryStrings.decode(queryString, TransactionProfileRequest.class);
         TransactionQuery query = toQuery(request);
-        MutableProfile profile =
+        final MutableProfile profile =
                 transactionCommonService.getMergedProfile(query, request.auxiliary(),
                         request.include(), request.exclude(), request.truncateBranchPercentage());
-        boolean hasUnfilteredAuxThreadProfile;
+        final boolean hasUnfilteredAuxThreadProfile;
         if (request.auxiliary()) {
             hasUnfilteredAuxThreadProfile = profile.getUnfilteredSampleCount() > 0;
         } else {
             hasUnfilteredAuxThreadProfile = transactionCommonService.hasAuxThreadProfile(query);
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
-        jg.writeStartObject();
-        jg.writeBooleanField("hasUnfilteredAuxThreadProfile", hasUnfilteredAuxThreadProfile);
+        final boolean overwritten;
         if (profile.getUnfilteredSampleCount() == 0) {
-            if (request.auxiliary() && aggregateRepository.shouldHaveAuxThreadProfile(query)) {
-                jg.writeBooleanField("overwritten", true);
-            } else if (!request.auxiliary()
-                    && aggregateRepository.shouldHaveMainThreadProfile(query)) {
-                jg.writeBooleanField("overwritten", true);
+            if (request.auxiliary()) {
+                overwritten = aggregateRepository.shouldHaveAuxThreadProfile(query);
+            } else {
+                overwritten = aggregateRepository.shouldHaveMainThreadProfile(query);
             }
+        } else {
+            overwritten = false;
         }
-        jg.writeFieldName("profile");
-        profile.writeJson(jg);
-        jg.writeEndObject();
-        jg.close();
-        return sb.toString();
+        return new StreamingJson() {
+            @Override
+            public void writeJson(JsonGenerator jg) throws IOException {
+                jg.writeStartObject();
+                jg.writeBooleanField("hasUnfilteredAuxThreadProfile",
+                        hasUnfilteredAuxThreadProfile);
+                if (overwritten) {
+                    jg.writeBooleanField("overwritten", true);
+                }
+                jg.writeFieldName("profile");
+                profile.writeJson(jg);
+                jg.writeEndObject();
+            }
+        };
     }
 
     @GET("/backend/transaction/queries")
@@ -267,6 +274,17 @@ class TransactionJsonService {
         jg.writeObjectField("overall", overallSummary);
         jg.writeObjectField("transactions", queryResult.records());
         jg.writeBooleanField("moreAvailable", queryResult.moreAvailable());
+        // remainder of the overall summary that is not covered by the returned transactions
+        double othersTotalNanos = overallSummary.totalNanos();
+        long othersTransactionCount = overallSummary.transactionCount();
+        for (TransactionSummary transactionSummary : queryResult.records()) {
+            othersTotalNanos -= transactionSummary.totalNanos();
+            othersTransactionCount -= transactionSummary.transactionCount();
+        }
+        jg.writeObjectFieldStart("others");
+        jg.writeNumberField("totalNanos", Math.max(othersTotalNanos, 0));
+        jg.writeNumberField("transactionCount", Math.max(othersTransactionCount, 0));
+        jg.writeEndObject();
         jg.writeEndObject();
         jg.close();
         return sb.toString();
@@ -299,13 +317,36 @@ class TransactionJsonService {
     }
 
     @GET("/backend/transaction/flame-graph")
-    String getFlameGraph(String queryString) throws Exception {
+    StreamingJson getFlameGraph(String queryString) throws Exception {
         FlameGraphRequest request = QueryStrings.decode(queryString, FlameGraphRequest.class);
         TransactionQuery query = toQuery(request);
-        MutableProfile profile =
+        final MutableProfile profile =
                 transactionCommonService.getMergedProfile(query, request.auxiliary(),
                         request.include(), request.exclude(), request.truncateBranchPercentage());
-        return profile.toFlameGraphJson();
+        return new StreamingJson() {
+            @Override
+            public void writeJson(JsonGenerator jg) throws IOException {
+                profile.writeFlameGraphJson(jg);
+            }
+        };
+    }
+
+    // returns a bounded depth subtree of the flame graph, rooted at the given frame path, which is
+    // served from a cached merged profile, so that drilling down does not re-merge the profile
+    @GET("/backend/transaction/flame-graph-subtree")
+    StreamingJson getFlameGraphSubtree(String queryString) throws Exception {
+        final FlameGraphSubtreeRequest request =
+                QueryStrings.decode(queryString, FlameGraphSubtreeRequest.class);
+        TransactionQuery query = toQuery(request);
+        final MutableProfile profile = transactionCommonService.getCachedMergedProfile(query,
+                request.auxiliary(), request.include(), request.exclude());
+        return new StreamingJson() {
+            @Override
+            public void writeJson(JsonGenerator jg) throws IOException {
+                profile.writeFlameGraphSubtreeJson(jg, request.frame(), request.maxDepth(),
+                        request.truncateBranchPercentage());
+            }
+        };
     }
 
     private TransactionQuery toQuery(RequestBase request) throws Exception {
@@ -659,6 +700,20 @@ class TransactionJsonService {
         double truncateBranchPercentage();
     }
 
+    @Value.Immutable
+    interface FlameGraphSubtreeRequest extends RequestBase {
+        boolean auxiliary();
+        // intentionally not plural since maps from query string
+        ImmutableList<String> include();
+        // intentionally not plural since maps from query string
+        ImmutableList<String> exclude();
+        // stack trace elements from the root node down to the root of the subtree (empty for the
+        // entire flame graph), intentionally not plural since maps from query string
+        ImmutableList<String> frame();
+        int maxDepth();
+        double truncateBranchPercentage();
+    }
+
     @Value.Immutable
     interface Query {
         String queryType();
@@ -29,19 +29,22 @@ import org.glowroot.common.live.LiveTraceRepository;
 import org.glowroot.common.live.LiveWeavingService;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
-import org.glowroot.storage.repo.AggregateRepository;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.GaugeValueRepository;
 import org.glowroot.storage.repo.RepoAdmin;
 import org.glowroot.storage.repo.ServerRepository;
 import org.glowroot.storage.repo.TraceRepository;
 import org.glowroot.storage.repo.TransactionTypeRepository;
+import org.glowroot.storage.repo.helper.CachingAggregateRepository;
 import org.glowroot.storage.repo.helper.RollupLevelService;
 import org.glowroot.storage.util.MailService;
 
 public class UiModule {
 
     private final LazyHttpServer lazyHttpServer;
+    private final AggregateQueryExecutor aggregateQueryExecutor;
+    private final CachingAggregateRepository aggregateRepository;
+    private final LiveAggregateHttpService liveAggregateHttpService;
 
     @Builder.Factory
     public static UiModule createUiModule(
@@ -53,7 +56,7 @@ public class UiModule {
             ConfigRepository configRepository,
             ServerRepository serverRepository,
             TransactionTypeRepository transactionTypeRepository,
-            AggregateRepository aggregateRepository,
+            CachingAggregateRepository aggregateRepository,
             TraceRepository traceRepository,
             GaugeValueRepository gaugeValueRepository,
             RepoAdmin repoAdmin,
@@ -72,8 +75,12 @@ public class UiModule {
                 new IndexHtmlHttpService(httpSessionManager, layoutService);
         LayoutHttpService layoutHttpService =
                 new LayoutHttpService(httpSessionManager, layoutService);
-        TransactionCommonService transactionCommonService =
-                new TransactionCommonService(aggregateRepository, configRepository);
+        // the fat agent's H2 data source serializes access behind a single lock, so there is
+        // little to gain from more than a couple of concurrent reads there
+        AggregateQueryExecutor aggregateQueryExecutor =
+                new AggregateQueryExecutor(central ? 16 : 2);
+        TransactionCommonService transactionCommonService = new TransactionCommonService(
+                aggregateRepository, configRepository, aggregateQueryExecutor);
         TraceCommonService traceCommonService =
                 new TraceCommonService(traceRepository, liveTraceRepository);
         TransactionJsonService transactionJsonService =
@@ -87,6 +94,8 @@ public class UiModule {
         TraceExportHttpService traceExportHttpService =
                 new TraceExportHttpService(traceCommonService, version);
         GlowrootLogHttpService glowrootLogHttpService = new GlowrootLogHttpService(logDir);
+        LiveAggregateHttpService liveAggregateHttpService = new LiveAggregateHttpService();
+        aggregateRepository.addStoreListener(liveAggregateHttpService);
         ErrorCommonService errorCommonService = new ErrorCommonService(aggregateRepository);
         ErrorJsonService errorJsonService = new ErrorJsonService(errorCommonService,
                 transactionCommonService, traceRepository, rollupLevelService, clock);
@@ -120,14 +129,22 @@ public class UiModule {
         int port = configRepository.getUserInterfaceConfig().port();
         LazyHttpServer lazyHttpServer = new LazyHttpServer(bindAddress, port, httpSessionManager,
                 indexHtmlHttpService, layoutHttpService, layoutService, traceDetailHttpService,
-                traceExportHttpService, glowrootLogHttpService, jsonServices, numWorkerThreads);
+                traceExportHttpService, glowrootLogHttpService, liveAggregateHttpService,
+                jsonServices, numWorkerThreads);
 
         lazyHttpServer.init(configJsonService);
-        return new UiModule(lazyHttpServer);
+        return new UiModule(lazyHttpServer, aggregateQueryExecutor, aggregateRepository,
+                liveAggregateHttpService);
     }
 
-    private UiModule(LazyHttpServer lazyHttpServer) {
+    private UiModule(LazyHttpServer lazyHttpServer,
+            AggregateQueryExecutor aggregateQueryExecutor,
+            CachingAggregateRepository aggregateRepository,
+            LiveAggregateHttpService liveAggregateHttpService) {
         this.lazyHttpServer = lazyHttpServer;
+        this.aggregateQueryExecutor = aggregateQueryExecutor;
+        this.aggregateRepository = aggregateRepository;
+        this.liveAggregateHttpService = liveAggregateHttpService;
     }
 
     public int getPort() throws InterruptedException {
@@ -140,6 +157,9 @@ public class UiModule {
         if (httpServer != null) {
             httpServer.close();
         }
+        aggregateQueryExecutor.close();
+        aggregateRepository.removeStoreListener(liveAggregateHttpService);
+        liveAggregateHttpService.close();
     }
 
     private static int getPort(@Nullable HttpServer httpServer) {
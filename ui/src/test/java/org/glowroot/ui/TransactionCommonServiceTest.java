@@ -0,0 +1,352 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.storage.repo.AggregateRepository;
+import org.glowroot.storage.repo.AggregateRepository.OverviewAggregate;
+import org.glowroot.storage.repo.AggregateRepository.PercentileAggregate;
+import org.glowroot.storage.repo.AggregateRepository.ThroughputAggregate;
+import org.glowroot.storage.repo.AggregateRepository.TransactionQuery;
+import org.glowroot.storage.repo.ConfigRepository;
+import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
+import org.glowroot.storage.repo.ImmutableOverviewAggregate;
+import org.glowroot.storage.repo.ImmutablePercentileAggregate;
+import org.glowroot.storage.repo.ImmutableRollupConfig;
+import org.glowroot.storage.repo.ImmutableThroughputAggregate;
+import org.glowroot.storage.repo.ImmutableTransactionQuery;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// the expected results below are the results of reading the rollup levels sequentially (each
+// rollup level starting after the last capture time read from the rollup level above it)
+public class TransactionCommonServiceTest {
+
+    private static final long MINUTE = 60 * 1000;
+
+    private static final List<RollupConfig> ROLLUP_CONFIGS = ImmutableList.<RollupConfig>of(
+            ImmutableRollupConfig.of(MINUTE, 15 * MINUTE),
+            ImmutableRollupConfig.of(5 * MINUTE, 60 * MINUTE),
+            ImmutableRollupConfig.of(30 * MINUTE, 480 * MINUTE));
+
+    // each rolled up aggregate has the same transaction count as the rollup level 0 aggregates in
+    // its interval combined (one transaction per minute)
+    private final Map<Integer, List<ThroughputAggregate>> store = Maps.newHashMap();
+    private final List<TransactionQuery> queries =
+            Collections.synchronizedList(Lists.<TransactionQuery>newArrayList());
+
+    private AggregateQueryExecutor queryExecutor;
+    private TransactionCommonService transactionCommonService;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        AggregateRepository aggregateRepository = mock(AggregateRepository.class);
+        when(aggregateRepository.readThroughputAggregates(any(TransactionQuery.class)))
+                .thenAnswer(new Answer<List<ThroughputAggregate>>() {
+                    @Override
+                    public List<ThroughputAggregate> answer(InvocationOnMock invocation) {
+                        return read((TransactionQuery) invocation.getArguments()[0]);
+                    }
+                });
+        when(aggregateRepository.readOverviewAggregates(any(TransactionQuery.class)))
+                .thenAnswer(new Answer<List<OverviewAggregate>>() {
+                    @Override
+                    public List<OverviewAggregate> answer(InvocationOnMock invocation) {
+                        List<OverviewAggregate> aggregates = Lists.newArrayList();
+                        for (ThroughputAggregate aggregate : read(
+                                (TransactionQuery) invocation.getArguments()[0])) {
+                            aggregates.add(ImmutableOverviewAggregate.builder()
+                                    .captureTime(aggregate.captureTime())
+                                    .totalDurationNanos(aggregate.transactionCount() * 1000)
+                                    .transactionCount(aggregate.transactionCount())
+                                    .build());
+                        }
+                        return aggregates;
+                    }
+                });
+        when(aggregateRepository.readPercentileAggregates(any(TransactionQuery.class)))
+                .thenAnswer(new Answer<List<PercentileAggregate>>() {
+                    @Override
+                    public List<PercentileAggregate> answer(InvocationOnMock invocation) {
+                        List<PercentileAggregate> aggregates = Lists.newArrayList();
+                        for (ThroughputAggregate aggregate : read(
+                                (TransactionQuery) invocation.getArguments()[0])) {
+                            aggregates.add(ImmutablePercentileAggregate.builder()
+                                    .captureTime(aggregate.captureTime())
+                                    .totalNanos(aggregate.transactionCount() * 1000)
+                                    .transactionCount(aggregate.transactionCount())
+                                    .histogram(Aggregate.Histogram.getDefaultInstance())
+                                    .build());
+                        }
+                        return aggregates;
+                    }
+                });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                QueryCollector collector = (QueryCollector) invocation.getArguments()[0];
+                TransactionQuery query = (TransactionQuery) invocation.getArguments()[1];
+                queries.add(query);
+                // query.from() is non-inclusive
+                for (ThroughputAggregate aggregate : find(query.rollupLevel(), query.from() + 1,
+                        query.to())) {
+                    collector.mergeQuery("SQL", "select 1", aggregate.transactionCount() * 1000,
+                            aggregate.transactionCount(), 0);
+                    collector.updateLastCaptureTime(aggregate.captureTime());
+                }
+                return null;
+            }
+        }).when(aggregateRepository).mergeInQueries(any(QueryCollector.class),
+                any(TransactionQuery.class));
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getRollupConfigs()).thenReturn(ROLLUP_CONFIGS);
+        when(configRepository.getAdvancedConfig(anyString()))
+                .thenReturn(AdvancedConfig.getDefaultInstance());
+        queryExecutor = new AggregateQueryExecutor(2);
+        transactionCommonService =
+                new TransactionCommonService(aggregateRepository, configRepository, queryExecutor);
+    }
+
+    @After
+    public void afterEachTest() {
+        queryExecutor.close();
+    }
+
+    @Test
+    public void shouldReadFullyRolledUpSeries() throws Exception {
+        // given
+        populate(1, 60 * MINUTE);
+        populate(0, 62 * MINUTE);
+        // when
+        List<ThroughputAggregate> aggregates = readAllSeries(seriesQuery());
+        // then
+        assertThat(aggregates).isEqualTo(expectedRolledUpSeries());
+        for (TransactionQuery query : queries) {
+            if (query.rollupLevel() == 0) {
+                // only the speculative non-rolled-up read, no gap read
+                assertThat(query.from()).isEqualTo(60 * MINUTE + 1);
+                assertThat(query.to()).isEqualTo(62 * MINUTE);
+            }
+        }
+    }
+
+    @Test
+    public void shouldReadLaggingRolledUpSeries() throws Exception {
+        // given
+        populate(1, 50 * MINUTE);
+        populate(0, 62 * MINUTE);
+        // when
+        List<ThroughputAggregate> aggregates = readAllSeries(seriesQuery());
+        // then
+        assertThat(aggregates).isEqualTo(expectedRolledUpSeries());
+        assertThat(queries).contains(ImmutableTransactionQuery.builder()
+                .copyFrom(seriesQuery())
+                .from(50 * MINUTE + 1)
+                .to(60 * MINUTE)
+                .rollupLevel(0)
+                .build());
+    }
+
+    @Test
+    public void shouldReadEmptyRolledUpSeries() throws Exception {
+        // given
+        populate(0, 62 * MINUTE);
+        // when
+        List<ThroughputAggregate> aggregates = readAllSeries(seriesQuery());
+        // then
+        List<ThroughputAggregate> expected = Lists.newArrayList();
+        // the first rollup level 0 aggregate is exactly on a rollup interval boundary
+        expected.add(ImmutableThroughputAggregate.of(5 * MINUTE, 1));
+        for (long minutes = 10; minutes <= 60; minutes += 5) {
+            expected.add(ImmutableThroughputAggregate.of(minutes * MINUTE, 5));
+        }
+        expected.add(ImmutableThroughputAggregate.of(62 * MINUTE, 2));
+        assertThat(aggregates).isEqualTo(repeat(expected));
+        assertThat(queries).contains(ImmutableTransactionQuery.builder()
+                .copyFrom(seriesQuery())
+                .from(5 * MINUTE)
+                .to(60 * MINUTE)
+                .rollupLevel(0)
+                .build());
+    }
+
+    @Test
+    public void shouldReadFullyRolledUpLevels() throws Exception {
+        // given
+        populate(2, 60 * MINUTE);
+        populate(1, 60 * MINUTE);
+        populate(0, 62 * MINUTE);
+        // when
+        long executionCount = readMergedQueryExecutionCount();
+        // then
+        assertThat(executionCount).isEqualTo(62);
+        assertThat(queries).hasSize(3);
+    }
+
+    @Test
+    public void shouldReadLaggingRolledUpLevels() throws Exception {
+        // given
+        populate(2, 30 * MINUTE);
+        populate(1, 55 * MINUTE);
+        populate(0, 62 * MINUTE);
+        // when
+        long executionCount = readMergedQueryExecutionCount();
+        // then
+        assertThat(executionCount).isEqualTo(62);
+        assertThat(queries).contains(ImmutableTransactionQuery.builder()
+                .copyFrom(mergedQuery())
+                .from(30 * MINUTE + 1)
+                .rollupLevel(1)
+                .build());
+        assertThat(queries).contains(ImmutableTransactionQuery.builder()
+                .copyFrom(mergedQuery())
+                .from(55 * MINUTE + 1)
+                .rollupLevel(0)
+                .build());
+    }
+
+    @Test
+    public void shouldReadEmptyRolledUpLevel() throws Exception {
+        // given
+        populate(1, 60 * MINUTE);
+        populate(0, 62 * MINUTE);
+        // when
+        long executionCount = readMergedQueryExecutionCount();
+        // then
+        assertThat(executionCount).isEqualTo(62);
+        assertThat(queries).contains(ImmutableTransactionQuery.builder()
+                .copyFrom(mergedQuery())
+                .from(MINUTE)
+                .rollupLevel(1)
+                .build());
+    }
+
+    private void populate(int rollupLevel, long throughCaptureTime) {
+        long intervalMillis = ROLLUP_CONFIGS.get(rollupLevel).intervalMillis();
+        List<ThroughputAggregate> aggregates = Lists.newArrayList();
+        for (long captureTime = intervalMillis; captureTime <= throughCaptureTime;
+                captureTime += intervalMillis) {
+            aggregates.add(ImmutableThroughputAggregate.of(captureTime, intervalMillis / MINUTE));
+        }
+        store.put(rollupLevel, aggregates);
+    }
+
+    // query.from() is INCLUSIVE
+    private List<ThroughputAggregate> read(TransactionQuery query) {
+        queries.add(query);
+        return find(query.rollupLevel(), query.from(), query.to());
+    }
+
+    private List<ThroughputAggregate> find(int rollupLevel, long from, long to) {
+        List<ThroughputAggregate> aggregates = store.get(rollupLevel);
+        if (aggregates == null) {
+            return ImmutableList.of();
+        }
+        List<ThroughputAggregate> matching = Lists.newArrayList();
+        for (ThroughputAggregate aggregate : aggregates) {
+            if (aggregate.captureTime() >= from && aggregate.captureTime() <= to) {
+                matching.add(aggregate);
+            }
+        }
+        return matching;
+    }
+
+    // reads the overview, percentile and throughput series, in that order
+    private List<ThroughputAggregate> readAllSeries(TransactionQuery query) throws Exception {
+        List<ThroughputAggregate> aggregates = Lists.newArrayList();
+        for (OverviewAggregate aggregate : transactionCommonService
+                .getOverviewAggregates(query)) {
+            aggregates.add(ImmutableThroughputAggregate.of(aggregate.captureTime(),
+                    aggregate.transactionCount()));
+        }
+        for (PercentileAggregate aggregate : transactionCommonService
+                .getPercentileAggregates(query)) {
+            aggregates.add(ImmutableThroughputAggregate.of(aggregate.captureTime(),
+                    aggregate.transactionCount()));
+        }
+        aggregates.addAll(transactionCommonService.getThroughputAggregates(query));
+        return aggregates;
+    }
+
+    private long readMergedQueryExecutionCount() throws Exception {
+        List<Aggregate.QueriesByType> queriesByType =
+                transactionCommonService.getMergedQueries(mergedQuery());
+        assertThat(queriesByType).hasSize(1);
+        assertThat(queriesByType.get(0).getQueryList()).hasSize(1);
+        return queriesByType.get(0).getQuery(0).getExecutionCount();
+    }
+
+    private static List<ThroughputAggregate> expectedRolledUpSeries() {
+        List<ThroughputAggregate> expected = Lists.newArrayList();
+        for (long minutes = 5; minutes <= 60; minutes += 5) {
+            expected.add(ImmutableThroughputAggregate.of(minutes * MINUTE, 5));
+        }
+        // the non-rolled-up tail is rolled up into a final aggregate at its last capture time
+        expected.add(ImmutableThroughputAggregate.of(62 * MINUTE, 2));
+        return repeat(expected);
+    }
+
+    // one copy for each of the overview, percentile and throughput series
+    private static List<ThroughputAggregate> repeat(List<ThroughputAggregate> aggregates) {
+        List<ThroughputAggregate> repeated = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            repeated.addAll(aggregates);
+        }
+        return repeated;
+    }
+
+    // query.from() is INCLUSIVE
+    private static TransactionQuery seriesQuery() {
+        return ImmutableTransactionQuery.builder()
+                .serverRollup("")
+                .transactionType("Web")
+                .from(5 * MINUTE)
+                .to(62 * MINUTE)
+                .rollupLevel(1)
+                .build();
+    }
+
+    // query.from() is non-inclusive
+    private static TransactionQuery mergedQuery() {
+        return ImmutableTransactionQuery.builder()
+                .serverRollup("")
+                .transactionType("Web")
+                .from(MINUTE)
+                .to(62 * MINUTE)
+                .rollupLevel(2)
+                .build();
+    }
+}